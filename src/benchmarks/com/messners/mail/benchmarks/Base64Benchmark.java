@@ -0,0 +1,98 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.messners.mail.Base64Codec;
+
+/**
+ * Measures <code>Base64Codec</code> encoding and decoding, both the
+ * allocating array methods and the block methods that write into a
+ * caller supplied array.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Base64Benchmark {
+
+	@Param({"57", "1024", "65536", "1048576"})
+	public int size;
+
+	protected byte data[];
+	protected byte encoded[];
+	protected byte encodeBuf[];
+	protected byte decodeBuf[];
+
+
+	@Setup
+	public void setup () {
+
+		data = Corpus.randomBytes(size);
+		encoded = Base64Codec.encode(data);
+		encodeBuf = new byte[Base64Codec.getEncodedLength(size)];
+		decodeBuf = new byte[Base64Codec.getMaxDecodedLength(encoded.length)];
+	}
+
+
+	@Benchmark
+	public byte [] encode () {
+		return (Base64Codec.encode(data));
+	}
+
+
+	@Benchmark
+	public int encodeInto () {
+		return (Base64Codec.encode(data, 0, data.length, encodeBuf, 0));
+	}
+
+
+	@Benchmark
+	public byte [] decode () {
+		return (Base64Codec.decode(encoded));
+	}
+
+
+	@Benchmark
+	public int decodeInto () {
+		return (Base64Codec.decode(encoded, 0, encoded.length, decodeBuf, 0));
+	}
+}
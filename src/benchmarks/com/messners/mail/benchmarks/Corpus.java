@@ -0,0 +1,304 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.messners.mail.Base64Codec;
+
+/**
+ * Builds the messages the benchmarks read. The content is generated from
+ * a fixed seed so every run reads the same bytes. All lines end with a
+ * CRLF, as they do on the wire.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class Corpus {
+
+	protected static final String CRLF = "\r\n";
+
+	protected static final String WORDS[] = {
+		"the", "quarterly", "report", "is", "attached", "please", "review",
+		"before", "our", "meeting", "on", "thursday", "and", "send", "any",
+		"comments", "to", "the", "team", "thanks", "regards", "schedule",
+		"budget", "forecast", "numbers", "look", "good", "overall",
+	};
+
+
+	/**
+	 * Gets a header like those on mail that has crossed a few relays,
+	 * with folded Received and DKIM-Signature fields, ended by the
+	 * blank line.
+	 *
+	 * @return the header bytes
+	 */
+	public static byte [] header () {
+		return (bytes(headerText("text/plain; charset=us-ascii") + CRLF));
+	}
+
+
+	/**
+	 * Gets a plain text message.
+	 *
+	 * @param  lines  the number of lines in the body
+	 * @return the message bytes
+	 */
+	public static byte [] textMessage (int lines) {
+
+		StringBuffer buf = new StringBuffer();
+		buf.append(headerText("text/plain; charset=us-ascii"));
+		buf.append(CRLF);
+		buf.append(text(new Random(42), lines));
+		return (bytes(buf.toString()));
+	}
+
+
+	/**
+	 * Gets a multipart/mixed message with a multipart/alternative text
+	 * and HTML body followed by base64 encoded attachments.
+	 *
+	 * @param  lines        the number of lines in the text body
+	 * @param  attachments  the number of attachments
+	 * @param  size         the size in bytes of each attachment
+	 * @return the message bytes
+	 */
+	public static byte [] multipartMessage (int lines, int attachments,
+			int size) {
+
+		Random random = new Random(42);
+		StringBuffer buf = new StringBuffer();
+		buf.append(headerText(
+			"multipart/mixed; boundary=\"=_mixed_0001\""));
+		buf.append(CRLF);
+		buf.append("This is a multi-part message in MIME format.").append(CRLF);
+		buf.append("--=_mixed_0001").append(CRLF);
+		buf.append("Content-Type: multipart/alternative; " +
+			"boundary=\"=_alt_0001\"").append(CRLF);
+		buf.append(CRLF);
+		buf.append("--=_alt_0001").append(CRLF);
+		buf.append("Content-Type: text/plain; charset=us-ascii").append(CRLF);
+		buf.append(CRLF);
+		String text = text(random, lines);
+		buf.append(text);
+		buf.append("--=_alt_0001").append(CRLF);
+		buf.append("Content-Type: text/html; charset=us-ascii").append(CRLF);
+		buf.append(CRLF);
+		buf.append("<html><body><p>").append(CRLF);
+		buf.append(text);
+		buf.append("</p></body></html>").append(CRLF);
+		buf.append("--=_alt_0001--").append(CRLF);
+
+		for (int i = 0; i < attachments; i++) {
+
+			byte data[] = new byte[size];
+			random.nextBytes(data);
+			buf.append("--=_mixed_0001").append(CRLF);
+			buf.append("Content-Type: application/octet-stream; " +
+				"name=\"report" + i + ".bin\"").append(CRLF);
+			buf.append("Content-Transfer-Encoding: base64").append(CRLF);
+			buf.append("Content-Disposition: attachment; " +
+				"filename=\"report" + i + ".bin\"").append(CRLF);
+			buf.append(CRLF);
+
+			String encoded = new String(Base64Codec.encode(data));
+			for (int off = 0; off < encoded.length(); off += 76) {
+				buf.append(encoded, off, Math.min(off + 76, encoded.length()));
+				buf.append(CRLF);
+			}
+		}
+
+		buf.append("--=_mixed_0001--").append(CRLF);
+		return (bytes(buf.toString()));
+	}
+
+
+	/**
+	 * Gets the message the way a POP3 server sends it in reply to RETR,
+	 * with lines starting with a period doubled and ended by a lone
+	 * period.
+	 *
+	 * @param  message  the message
+	 * @return the dot-stuffed and terminated message
+	 */
+	public static byte [] retrResponse (byte message[]) {
+
+		ByteArrayOutputStream out =
+				new ByteArrayOutputStream(message.length + 1024);
+		boolean bol = true;
+		for (int i = 0; i < message.length; i++) {
+			if (bol && message[i] == '.') {
+				out.write('.');
+			}
+
+			out.write(message[i]);
+			bol = (message[i] == '\n');
+		}
+
+		if (!bol) {
+			out.write('\r');
+			out.write('\n');
+		}
+
+		out.write('.');
+		out.write('\r');
+		out.write('\n');
+		return (out.toByteArray());
+	}
+
+
+	/**
+	 * Gets random bytes.
+	 *
+	 * @param  size  the number of bytes
+	 * @return the bytes
+	 */
+	public static byte [] randomBytes (int size) {
+
+		byte data[] = new byte[size];
+		new Random(42).nextBytes(data);
+		return (data);
+	}
+
+
+	/**
+	 * Creates an empty temporary directory for the attachments a
+	 * benchmark saves, remove it with <code>delete()</code>.
+	 *
+	 * @return the directory
+	 * @exception  IOException  when the directory cannot be created
+	 */
+	public static File tempDir () throws IOException {
+
+		File dir = File.createTempFile("jgmail-bench", "");
+		dir.delete();
+		if (!dir.mkdir()) {
+			throw new IOException("cannot create " + dir);
+		}
+
+		return (dir);
+	}
+
+
+	/**
+	 * Deletes a directory and everything in it.
+	 *
+	 * @param  f  the directory or file to delete
+	 */
+	public static void delete (File f) {
+
+		File files[] = f.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				delete(files[i]);
+			}
+		}
+
+		f.delete();
+	}
+
+
+	/**
+	 * Builds the header fields, the caller adds the blank line.
+	 */
+	protected static String headerText (String contentType) {
+
+		StringBuffer buf = new StringBuffer();
+		buf.append("Return-Path: <reports@example.com>").append(CRLF);
+		for (int i = 0; i < 4; i++) {
+			buf.append("Received: from relay" + i + ".example.net " +
+				"(relay" + i + ".example.net [192.0.2." + (10 + i) + "])")
+				.append(CRLF);
+			buf.append("\tby mx" + i + ".example.org (Postfix) with ESMTPS " +
+				"id 4F2A1B" + i + "C3D;").append(CRLF);
+			buf.append("\tMon, 14 Oct 2024 09:1" + i + ":07 +0000 (UTC)")
+				.append(CRLF);
+		}
+
+		buf.append("DKIM-Signature: v=1; a=rsa-sha256; c=relaxed/relaxed; " +
+			"d=example.com;").append(CRLF);
+		buf.append("\ts=selector1; t=1728897000; " +
+			"h=from:to:subject:date:message-id;").append(CRLF);
+		buf.append("\tbh=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=;")
+			.append(CRLF);
+		buf.append("\tb=dGhpcyBpcyBub3QgYSByZWFsIHNpZ25hdHVyZSBidXQgaXQg" +
+			"aGFzIHRoZSByaWdodCBzaGFwZQ==").append(CRLF);
+		buf.append("From: \"Quarterly Reports\" <reports@example.com>")
+			.append(CRLF);
+		buf.append("To: \"Team\" <team@example.org>, " +
+			"<manager@example.org>").append(CRLF);
+		buf.append("Cc: archive@example.org").append(CRLF);
+		buf.append("Subject: Q3 numbers and the forecast for next quarter")
+			.append(CRLF);
+		buf.append("Date: Mon, 14 Oct 2024 09:10:00 +0000").append(CRLF);
+		buf.append("Message-ID: <20241014091000.4F2A1B@example.com>")
+			.append(CRLF);
+		buf.append("MIME-Version: 1.0").append(CRLF);
+		buf.append("Content-Type: ").append(contentType).append(CRLF);
+		buf.append("List-Unsubscribe: <mailto:unsubscribe@example.com>")
+			.append(CRLF);
+		buf.append("X-Mailer: JgMail Benchmarks").append(CRLF);
+		return (buf.toString());
+	}
+
+
+	/**
+	 * Builds lines of text of about 70 characters, some starting with
+	 * a period so that dot-stuffing is exercised.
+	 */
+	protected static String text (Random random, int lines) {
+
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < lines; i++) {
+
+			if (i % 25 == 24) {
+				buf.append(".");
+			}
+
+			int start = buf.length();
+			while (buf.length() - start < 70) {
+				buf.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+
+			buf.append(CRLF);
+		}
+
+		return (buf.toString());
+	}
+
+
+	/**
+	 * Gets the US-ASCII bytes of the string.
+	 */
+	protected static byte [] bytes (String s) {
+
+		try {
+			return (s.getBytes("US-ASCII"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.messners.mail.AttachmentStore;
+import com.messners.mail.POP3Exception;
+import com.messners.mail.POP3MailMessage;
+import com.messners.mail.POP3Reader;
+
+/**
+ * Measures <code>POP3MailMessage.read()</code> parsing a whole RETR
+ * response. The corpora are:
+ * <pre>
+ *    text         a plain text message of 200 lines
+ *    multipart    a text and HTML alternative body of 200 lines
+ *    attachments  the same body with three 64K base64 attachments
+ * </pre>
+ *
+ * Attachments are saved in an <code>AttachmentStore</code> in a
+ * temporary directory, after the first operation they are already
+ * stored so the cost measured is decoding and hashing them.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageParseBenchmark {
+
+	@Param({"text", "multipart", "attachments"})
+	public String corpus;
+
+	protected byte message[];
+	protected File dir;
+	protected AttachmentStore store;
+
+
+	@Setup
+	public void setup () throws IOException {
+
+		if (corpus.equals("text")) {
+			message = Corpus.textMessage(200);
+		} else if (corpus.equals("multipart")) {
+			message = Corpus.multipartMessage(200, 0, 0);
+		} else {
+			message = Corpus.multipartMessage(200, 3, 64 * 1024);
+		}
+
+		message = Corpus.retrResponse(message);
+
+		dir = Corpus.tempDir();
+		store = new AttachmentStore(dir);
+	}
+
+
+	@TearDown
+	public void tearDown () throws IOException {
+
+		store.close();
+		Corpus.delete(dir);
+	}
+
+
+	@Benchmark
+	public POP3MailMessage read () throws IOException, POP3Exception {
+
+		POP3Reader in = new POP3Reader(new ByteArrayInputStream(message));
+		POP3MailMessage msg = new POP3MailMessage(in, dir.getPath());
+		msg.setAttachmentStore(store);
+		return (msg.read());
+	}
+}
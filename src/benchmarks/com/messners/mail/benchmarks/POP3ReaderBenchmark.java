@@ -0,0 +1,114 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.messners.mail.POP3Reader;
+
+/**
+ * Measures <code>POP3Reader</code> reading the lines of a message body,
+ * as strings and as bytes, and reading a realistic header with
+ * <code>readHeader()</code>. Each operation reads one whole message from
+ * a fresh reader, so the reader's buffer is part of the cost.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class POP3ReaderBenchmark {
+
+	@Param({"100", "10000"})
+	public int lines;
+
+	protected byte body[];
+	protected byte header[];
+
+
+	@Setup
+	public void setup () {
+
+		body = Corpus.retrResponse(Corpus.textMessage(lines));
+		header = Corpus.header();
+	}
+
+
+	@Benchmark
+	public int readLine (Blackhole bh) throws IOException {
+
+		POP3Reader in = new POP3Reader(new ByteArrayInputStream(body));
+		int n = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			bh.consume(line);
+			n++;
+		}
+
+		return (n);
+	}
+
+
+	@Benchmark
+	public int readLineBytes (Blackhole bh) throws IOException {
+
+		POP3Reader in = new POP3Reader(new ByteArrayInputStream(body));
+		int n = 0;
+		ByteBuffer line;
+		while ((line = in.readLineBytes()) != null) {
+			bh.consume(line);
+			n++;
+		}
+
+		return (n);
+	}
+
+
+	@Benchmark
+	public Map<String, String> readHeader () throws IOException {
+
+		POP3Reader in = new POP3Reader(new ByteArrayInputStream(header));
+		return (in.readHeader());
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.messners.mail.AttachmentStore;
+import com.messners.mail.Connection;
+import com.messners.mail.LoopbackConnection;
+import com.messners.mail.POP3;
+import com.messners.mail.POP3Exception;
+import com.messners.mail.POP3MailMessage;
+import com.messners.mail.POP3TestServer;
+import com.messners.mail.SMTP;
+import com.messners.mail.SMTPException;
+import com.messners.mail.SMTPReceipt;
+import com.messners.mail.SMTPSession;
+import com.messners.mail.SMTPTestServer;
+
+/**
+ * Measures whole protocol exchanges against servers running in the same
+ * process:
+ * <pre>
+ *    smtpSend         SMTP.sendMessage(), a connection per message
+ *    smtpSessionSend  SMTPSession.send() over one open connection
+ *    pop3Retrieve     POP3.retrieveMessage() over one open connection
+ * </pre>
+ *
+ * The transport is either "socket", the loopback interface, or
+ * "loopback", in-memory pipes that leave out the kernel.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoundTripBenchmark {
+
+	@Param({ "socket", "loopback" })
+	public String transport;
+
+	protected SMTPTestServer smtpServer;
+	protected POP3TestServer pop3Server;
+	protected SMTP smtp;
+	protected SMTPSession session;
+	protected POP3 pop3;
+	protected File dir;
+	protected AttachmentStore store;
+
+
+	@Setup
+	public void setup () throws IOException, POP3Exception {
+
+		smtpServer = new SMTPTestServer();
+		pop3Server = new POP3TestServer();
+		pop3Server.addMessage(Corpus.multipartMessage(100, 1, 16 * 1024));
+
+		String smtpHost = "127.0.0.1";
+		String pop3Host = "127.0.0.1";
+		int smtpPort = 25;
+		int pop3Port = 110;
+		if (transport.equals("loopback")) {
+			smtpHost = "smtp.loopback";
+			pop3Host = "pop3.loopback";
+			Connection.registerProvider(smtpHost, -1,
+				LoopbackConnection.newProvider(smtpServer));
+			Connection.registerProvider(pop3Host, -1,
+				LoopbackConnection.newProvider(pop3Server));
+		} else {
+			smtpPort = smtpServer.start();
+			pop3Port = pop3Server.start();
+		}
+
+		smtp = new SMTP(smtpHost);
+		smtp.setPort(smtpPort);
+		smtp.setFrom("Reports", "reports@example.com");
+		smtp.addTo("Team", "team@example.org");
+		smtp.addCc(null, "archive@example.org");
+		smtp.setSubject("Q3 numbers and the forecast for next quarter");
+		smtp.setBody(new String(Corpus.textMessage(100), "US-ASCII"));
+
+		session = new SMTPSession(smtp);
+
+		/*
+		 * The attachments pop3Retrieve saves go to a directory that is
+		 * removed in tearDown()
+		 */
+		dir = Corpus.tempDir();
+		store = new AttachmentStore(dir);
+
+		pop3 = new POP3(pop3Host);
+		pop3.setPort(pop3Port);
+		pop3.setAttachmentDir(dir.getPath());
+		pop3.setAttachmentStore(store);
+		pop3.connect();
+		pop3.login("user", "password");
+	}
+
+
+	@TearDown
+	public void tearDown () throws IOException, POP3Exception {
+
+		session.close();
+		pop3.logout();
+		pop3.disconnect();
+		smtpServer.stop();
+		pop3Server.stop();
+		Connection.unregisterProvider("smtp.loopback", -1);
+		Connection.unregisterProvider("pop3.loopback", -1);
+		store.close();
+		Corpus.delete(dir);
+	}
+
+
+	@Benchmark
+	public SMTPReceipt smtpSend () throws IOException, SMTPException {
+		return (smtp.sendMessage());
+	}
+
+
+	@Benchmark
+	public SMTPReceipt smtpSessionSend () throws IOException, SMTPException {
+		return (session.send(smtp));
+	}
+
+
+	@Benchmark
+	public POP3MailMessage pop3Retrieve () throws IOException, POP3Exception {
+		return (pop3.retrieveMessage(1));
+	}
+}
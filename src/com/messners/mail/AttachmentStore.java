@@ -0,0 +1,617 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The <code>AttachmentStore</code> class saves attachments by their
+ * content instead of by their filename. The decoded data of an attachment
+ * is hashed (SHA-256) as it is written, and only one copy, a blob named by
+ * the hash, is kept for each distinct content. The same attachment mailed
+ * to many recipients is stored once, and each <code>MessagePart</code>
+ * refers to the shared blob.<p>
+ *
+ * Attachments up to the memory threshold are held in memory until their
+ * hash is known, so a copy of content that is already stored is never
+ * written to disk. Larger attachments are written to a temporary file
+ * which is renamed into place, or deleted if the content is already
+ * stored.<p>
+ *
+ * A count of the references to each blob is kept in the index file
+ * "refs" in the store directory, a log of "&lt;hash&gt; &lt;count&gt;"
+ * lines where the last line for a hash wins. <code>release()</code> drops
+ * a reference and deletes the blob when there are none left.<p>
+ *
+ * Usage:
+ * <pre>
+ *    AttachmentStore store = new AttachmentStore(new File("attachments"));
+ *    pop3.setAttachmentStore(store);
+ *    POP3MailMessage msg = pop3.retrieveMessage(1);
+ *    ...
+ *    store.release(part.getContentHash());
+ * </pre>
+ *
+ * @see     com.messners.mail.MessagePart#getContentHash()
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class AttachmentStore {
+
+	/**
+	 * The default number of bytes of an attachment held in memory while
+	 * it is being hashed.
+	 */
+	public static final int DEFAULT_MEMORY_THRESHOLD = 8 * 1024 * 1024;
+
+	protected static final String ALGORITHM = "SHA-256";
+	protected static final char HEX[] = "0123456789abcdef".toCharArray();
+
+	protected final File dir;
+	protected final File indexFile;
+
+	/*
+	 * Hash to the number of references to its blob
+	 */
+	protected final HashMap<String, Integer> refs =
+			new HashMap<String, Integer>();
+
+	protected OutputStream log = null;
+	protected int indexLines = 0;
+	protected int memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+
+	protected long bytesStored = 0;
+	protected long bytesShared = 0;
+
+
+	/**
+	 * Creates an <code>AttachmentStore</code> in the specified directory,
+	 * loading its reference counts. The directory is created if it does
+	 * not exist.
+	 *
+	 * @param  dir  the directory to keep the blobs and index in
+	 * @exception  IOException  when the directory or index cannot be read
+	 */
+	public AttachmentStore (File dir) throws IOException {
+
+		this.dir = dir;
+		this.indexFile = new File(dir, "refs");
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+
+		load();
+	}
+
+
+	/**
+	 * Sets the number of bytes of an attachment held in memory while it
+	 * is being hashed, larger attachments go through a temporary file.
+	 *
+	 * @param  bytes  the memory threshold in bytes
+	 */
+	public synchronized void setMemoryThreshold (int bytes) {
+		memoryThreshold = bytes;
+	}
+
+
+	/**
+	 * Gets the number of bytes of an attachment held in memory while it
+	 * is being hashed.
+	 *
+	 * @return the memory threshold in bytes
+	 */
+	public synchronized int getMemoryThreshold () {
+		return (memoryThreshold);
+	}
+
+
+	/**
+	 * Gets the directory of the store.
+	 *
+	 * @return the store directory
+	 */
+	public File getDirectory () {
+		return (dir);
+	}
+
+
+	/**
+	 * Creates a stream to write the decoded data of an attachment to. When
+	 * the stream is closed the data is added to the store, and
+	 * <code>getContentHash()</code> and <code>getFile()</code> on the
+	 * stream give the blob it was stored in.
+	 *
+	 * @return the stream to write the attachment to
+	 */
+	public BlobOutputStream create () {
+
+		try {
+			return (new BlobOutputStream(MessageDigest.getInstance(ALGORITHM),
+				getMemoryThreshold()));
+		} catch (NoSuchAlgorithmException nsae) {
+			/* Every Java platform is required to support SHA-256 */
+			throw new IllegalStateException(nsae.toString());
+		}
+	}
+
+
+	/**
+	 * Gets the blob file for a content hash.
+	 *
+	 * @param  hash  the content hash
+	 * @return the blob file, it only exists if the hash is referenced
+	 */
+	public File getFile (String hash) {
+		return (new File(new File(dir, hash.substring(0, 2)), hash));
+	}
+
+
+	/**
+	 * Gets the number of references to a blob.
+	 *
+	 * @param  hash  the content hash
+	 * @return the reference count, 0 if the content is not stored
+	 */
+	public synchronized int getRefCount (String hash) {
+
+		Integer count = refs.get(hash);
+		return (count != null ? count.intValue() : 0);
+	}
+
+
+	/**
+	 * Adds a reference to stored content, for example when a message part
+	 * referring to it is copied.
+	 *
+	 * @param  hash  the content hash
+	 * @exception  IOException  when the content is not stored or the index
+	 * cannot be written
+	 */
+	public synchronized void addRef (String hash) throws IOException {
+
+		int count = getRefCount(hash);
+		if (count == 0) {
+			throw new IOException("content not stored: " + hash);
+		}
+
+		record(hash, count + 1);
+	}
+
+
+	/**
+	 * Drops a reference to stored content, the blob is deleted when
+	 * there are no references left.
+	 *
+	 * @param  hash  the content hash
+	 * @return true if the blob was deleted
+	 * @exception  IOException  when the index cannot be written
+	 */
+	public synchronized boolean release (String hash) throws IOException {
+
+		int count = getRefCount(hash);
+		if (count == 0) {
+			return (false);
+		}
+
+		record(hash, count - 1);
+		if (count > 1) {
+			return (false);
+		}
+
+		File f = getFile(hash);
+		bytesStored -= f.length();
+		f.delete();
+
+		/*
+		 * Compact the index once most of its lines are stale
+		 */
+		if (indexLines > refs.size() * 2 + 64) {
+			rewrite();
+		}
+
+		return (true);
+	}
+
+
+	/**
+	 * Gets the number of distinct blobs in the store.
+	 *
+	 * @return the number of blobs
+	 */
+	public synchronized int getBlobCount () {
+		return (refs.size());
+	}
+
+
+	/**
+	 * Gets the number of bytes written to blobs by this store.
+	 *
+	 * @return the bytes stored
+	 */
+	public synchronized long getBytesStored () {
+		return (bytesStored);
+	}
+
+
+	/**
+	 * Gets the number of bytes of attachments that were not stored
+	 * because their content was already in the store.
+	 *
+	 * @return the bytes saved by sharing blobs
+	 */
+	public synchronized long getBytesShared () {
+		return (bytesShared);
+	}
+
+
+	/**
+	 * Closes the index file.
+	 *
+	 * @exception  IOException  when the index cannot be closed
+	 */
+	public synchronized void close () throws IOException {
+
+		if (log != null) {
+			log.close();
+			log = null;
+		}
+	}
+
+
+	/**
+	 * Rewrites the index file with a line for each blob.
+	 *
+	 * @exception  IOException  when the index cannot be written
+	 */
+	public synchronized void rewrite () throws IOException {
+
+		close();
+
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+
+			StringBuilder sb = new StringBuilder(refs.size() * 72);
+			for (Map.Entry<String, Integer> e : refs.entrySet()) {
+				sb.append(e.getKey()).append(' ')
+					.append(e.getValue().intValue()).append('\n');
+			}
+
+			out.write(sb.toString().getBytes("ISO-8859-1"));
+			out.getFD().sync();
+
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), indexFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		indexLines = refs.size();
+	}
+
+
+	/**
+	 * Adds a reference for content that has been hashed. If the content
+	 * is new the data held in memory, or the temporary file, becomes its
+	 * blob.
+	 *
+	 * @return true if the content was already stored
+	 */
+	protected boolean commit (String hash, ByteArrayOutputStream data,
+			File tmp, long length) throws IOException {
+
+		synchronized (this) {
+			int count = getRefCount(hash);
+			if (count > 0 || getFile(hash).exists()) {
+				if (tmp != null) {
+					tmp.delete();
+				}
+
+				record(hash, count + 1);
+				bytesShared += length;
+				return (true);
+			}
+		}
+
+		/*
+		 * New content, write its blob outside of the lock and move it
+		 * into place
+		 */
+		File blob = getFile(hash);
+		blob.getParentFile().mkdirs();
+		if (tmp == null) {
+			tmp = newTmpFile();
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				data.writeTo(out);
+			} finally {
+				out.close();
+			}
+		}
+
+		synchronized (this) {
+			int count = getRefCount(hash);
+			if (count > 0 || blob.exists()) {
+				/* Another session stored the same content meanwhile */
+				tmp.delete();
+				record(hash, count + 1);
+				bytesShared += length;
+				return (true);
+			}
+
+			Files.move(tmp.toPath(), blob.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+			record(hash, 1);
+			bytesStored += length;
+			return (false);
+		}
+	}
+
+
+	/**
+	 * Creates a new temporary file in the store directory.
+	 */
+	protected File newTmpFile () throws IOException {
+		return (File.createTempFile("blob", ".tmp", dir));
+	}
+
+
+	/**
+	 * Appends a reference count to the index file.
+	 */
+	protected void record (String hash, int count) throws IOException {
+
+		if (log == null) {
+			log = new FileOutputStream(indexFile, true);
+		}
+
+		log.write((hash + " " + count + "\n").getBytes("ISO-8859-1"));
+		log.flush();
+		indexLines++;
+
+		if (count > 0) {
+			refs.put(hash, Integer.valueOf(count));
+		} else {
+			refs.remove(hash);
+		}
+	}
+
+
+	/**
+	 * Loads the index file. The last line for a hash gives its count,
+	 * malformed lines and hashes whose blob is missing are skipped.
+	 * Leftover temporary files are deleted.
+	 */
+	protected void load () throws IOException {
+
+		File tmps[] = dir.listFiles();
+		if (tmps != null) {
+			for (int i = 0; i < tmps.length; i++) {
+				if (tmps[i].getName().endsWith(".tmp")) {
+					tmps[i].delete();
+				}
+			}
+		}
+
+		if (!indexFile.exists()) {
+			return;
+		}
+
+		byte data[] = Files.readAllBytes(indexFile.toPath());
+
+		int start = 0;
+		for (int i = 0; i < data.length; i++) {
+
+			if (data[i] != '\n') {
+				continue;
+			}
+
+			int space = start;
+			while (space < i && data[space] != ' ') {
+				space++;
+			}
+
+			if (space > start && space + 1 < i) {
+				try {
+					String hash = new String(data, start, space - start,
+						"ISO-8859-1");
+					int count = Integer.parseInt(new String(data, space + 1,
+						i - space - 1, "ISO-8859-1"));
+					if (count > 0) {
+						refs.put(hash, Integer.valueOf(count));
+					} else {
+						refs.remove(hash);
+					}
+				} catch (NumberFormatException nfe) {
+					/* Not an index line, skip it */
+				}
+			}
+
+			indexLines++;
+			start = i + 1;
+		}
+
+		boolean missing = false;
+		for (String hash : refs.keySet().toArray(new String[0])) {
+			if (!getFile(hash).exists()) {
+				refs.remove(hash);
+				missing = true;
+			}
+		}
+
+		if (missing || start < data.length ||
+				indexLines > refs.size() * 2 + 64) {
+			rewrite();
+		}
+	}
+
+
+	/**
+	 * Formats a hash as hex.
+	 */
+	protected static String toHex (byte hash[]) {
+
+		char hex[] = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2]     = HEX[(hash[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HEX[hash[i] & 0x0f];
+		}
+
+		return (new String(hex));
+	}
+
+
+	/**
+	 * The stream an attachment is written to. The data is hashed as it is
+	 * written and held in memory until it passes the memory threshold,
+	 * then it goes to a temporary file.
+	 */
+	public class BlobOutputStream extends OutputStream {
+
+		protected final MessageDigest digest;
+		protected final int threshold;
+		protected ByteArrayOutputStream data = new ByteArrayOutputStream();
+		protected File tmp = null;
+		protected OutputStream out = null;
+		protected long length = 0;
+		protected String hash = null;
+		protected boolean shared = false;
+
+		protected BlobOutputStream (MessageDigest digest, int threshold) {
+			this.digest = digest;
+			this.threshold = threshold;
+		}
+
+		public void write (int b) throws IOException {
+
+			byte one[] = { (byte)b };
+			write(one, 0, 1);
+		}
+
+		public void write (byte b[], int off, int len) throws IOException {
+
+			if (hash != null) {
+				throw new IOException("stream is closed");
+			}
+
+			digest.update(b, off, len);
+			length += len;
+
+			if (out == null && data.size() + len > threshold) {
+				tmp = newTmpFile();
+				out = new FileOutputStream(tmp);
+				data.writeTo(out);
+				data = null;
+			}
+
+			if (out != null) {
+				out.write(b, off, len);
+			} else {
+				data.write(b, off, len);
+			}
+		}
+
+		/**
+		 * Adds the data written to the store.
+		 */
+		public void close () throws IOException {
+
+			if (hash != null) {
+				return;
+			}
+
+			if (out != null) {
+				out.close();
+			}
+
+			hash = toHex(digest.digest());
+			shared = commit(hash, data, tmp, length);
+			data = null;
+		}
+
+		/**
+		 * Deletes what has been written without adding it to the store.
+		 */
+		public void discard () {
+
+			if (hash != null) {
+				return;
+			}
+
+			try {
+				if (out != null) {
+					out.close();
+				}
+			} catch (IOException ignore) {
+			}
+
+			if (tmp != null) {
+				tmp.delete();
+			}
+
+			hash = "";
+			data = null;
+		}
+
+		/**
+		 * Gets the content hash, once the stream is closed.
+		 */
+		public String getContentHash () {
+			return (hash);
+		}
+
+		/**
+		 * Gets the blob file, once the stream is closed.
+		 */
+		public File getFile () {
+			return (AttachmentStore.this.getFile(hash));
+		}
+
+		/**
+		 * Returns true if the content was already in the store.
+		 */
+		public boolean isShared () {
+			return (shared);
+		}
+
+		/**
+		 * Gets the number of bytes written.
+		 */
+		public long getLength () {
+			return (length);
+		}
+	}
+}
@@ -21,10 +21,21 @@
 
 package com.messners.mail;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
  * This class defines static methods for encoding and decoding Base64 data
- * specified in RFC-2045.
+ * specified in RFC-2045.<p>
+ *
+ * Besides the methods that return a new array there are block methods
+ * that encode and decode into a caller supplied array or
+ * <code>ByteBuffer</code> and allocate nothing. To encode or decode a
+ * stream of data use <code>Base64OutputStream</code> and
+ * <code>Base64InputStream</code>.
  *
+ * @see     com.messners.mail.Base64OutputStream
+ * @see     com.messners.mail.Base64InputStream
  * @author  Gregory M. Messner <gmessner@messners.com>
  * @version $Revision: 1.1 $
  */
@@ -69,6 +80,29 @@ public class Base64Codec {
 	}
 
 
+	/*
+	 * Values for decodeValues that are not part of the alphabet
+	 */
+	static final int SKIP = -1;
+	static final int PAD  = -2;
+
+	/**
+	 * Maps every byte value to its 6 bit value, SKIP for bytes that
+	 * are not part of the alphabet and PAD for "=".
+	 */
+	static final byte decodeValues[];
+	static {
+
+		decodeValues = new byte[256];
+		java.util.Arrays.fill(decodeValues, (byte)SKIP);
+		for (int i = 0; i < encodeMap.length; i++) {
+			decodeValues[encodeMap[i]] = (byte)i;
+		}
+
+		decodeValues['='] = (byte)PAD;
+	}
+
+
 	/**
 	 * This class isn't meant to be instantiated.
 	 */
@@ -106,54 +140,127 @@ public class Base64Codec {
 			dataLength = data.length;
 		}
 
-		/*
-		 * Create a buffer to hold the results
-		 */
-		byte dest[] = new byte[((dataLength + 2) / 3) * 4];
+		byte dest[] = new byte[getEncodedLength(dataLength)];
+		encode(data, 0, dataLength, dest, 0);
+		return (dest);
+	}
 
 
+	/**
+	 * Encodes a portion of an array into a caller supplied array without
+	 * allocating anything. The encoded data is padded with "=" characters
+	 * so a large block should be split on a multiple of 3 bytes.
+	 *
+	 * @param  src     the data to encode
+	 * @param  off     the offset of the first byte to encode
+	 * @param  len     the number of bytes to encode
+	 * @param  dst     the array to hold the encoded data, it must have
+	 * room for <code>getEncodedLength(len)</code> bytes
+	 * @param  dstOff  the offset in <var>dst</var> to start at
+	 * @return the number of encoded bytes written to <var>dst</var>
+	 */
+	public final static int encode (byte src[], int off, int len,
+			byte dst[], int dstOff) {
+
 		/*
 		 * 3-byte to 4-byte conversion and 
 		 * 0-63 to ascii printable conversion
 		 */
+		byte map[] = encodeMap;
+		int end = off + len - 2;
 		int i, j;
-		int savedDataLength = dataLength;
-		dataLength = dataLength - 2;
-		for (i = 0, j = 0; i < dataLength; i += 3) {
-
-			dest[j++] = encodeMap[(data[i] >>> 2) & 077];
-    		dest[j++] = encodeMap[(data[i + 1] >>> 4) & 017 |
-				(data[i] << 4) & 077];
-    		dest[j++] = encodeMap[(data[i + 2] >>> 6) & 003 |
-				(data[i + 1] << 2) & 077];
-    		dest[j++] = encodeMap[data[i + 2] & 077];
+		for (i = off, j = dstOff; i < end; i += 3) {
+
+			int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 |
+				(src[i + 2] & 0xff);
+			dst[j++] = map[bits >>> 18];
+			dst[j++] = map[(bits >>> 12) & 077];
+			dst[j++] = map[(bits >>> 6) & 077];
+			dst[j++] = map[bits & 077];
 		}
-	
-		if (i < savedDataLength) {
 
-			dest[j++] = encodeMap[(data[i] >>> 2) & 077];
+		/*
+		 * Encode the last 1 or 2 bytes and pad with "=" characters
+		 */
+		int left = off + len - i;
+		if (left > 0) {
 
-			if (i < savedDataLength - 1) {
+			int bits = (src[i] & 0xff) << 16;
+			if (left > 1) {
+				bits |= (src[i + 1] & 0xff) << 8;
+			}
 
-			    dest[j++] = encodeMap[(data[i + 1] >>> 4) & 017 |
-				    (data[i] << 4) & 077];
-			    dest[j++] = encodeMap[(data[i + 1] << 2) & 077];
+			dst[j++] = map[bits >>> 18];
+			dst[j++] = map[(bits >>> 12) & 077];
+			dst[j++] = (left > 1 ? map[(bits >>> 6) & 077] : (byte)'=');
+			dst[j++] = (byte)'=';
+		}
 
-    		} else {
+		return (j - dstOff);
+	}
 
-			    dest[j++] = encodeMap[(data[i] << 4) & 077];
-			}
+
+	/**
+	 * Encodes the remaining bytes of a buffer into another buffer. Both
+	 * buffers have their positions advanced.
+	 *
+	 * @param  src  the data to encode
+	 * @param  dst  the buffer to hold the encoded data
+	 * @return the number of encoded bytes written to <var>dst</var>
+	 * @exception  java.nio.BufferOverflowException if <var>dst</var> does
+	 * not have room for the encoded data
+	 */
+	public final static int encode (ByteBuffer src, ByteBuffer dst) {
+
+		int len = src.remaining();
+		int n = getEncodedLength(len);
+		if (dst.remaining() < n) {
+			throw new BufferOverflowException();
 		}
 
+		if (src.hasArray() && dst.hasArray()) {
+			encode(src.array(), src.arrayOffset() + src.position(), len,
+				dst.array(), dst.arrayOffset() + dst.position());
+			src.position(src.position() + len);
+			dst.position(dst.position() + n);
+			return (n);
+		}
 
 		/*
-		 * Pad with "=" characters
+		 * Direct buffers are done a group at a time
 		 */
-		for ( ; j < dest.length; j++) {
-			dest[j] = (byte)'=';
+		byte in[] = new byte[3];
+		byte out[] = new byte[4];
+		while (src.hasRemaining()) {
+			int count = Math.min(3, src.remaining());
+			src.get(in, 0, count);
+			dst.put(out, 0, encode(in, 0, count, out, 0));
 		}
 
-		return (dest);
+		return (n);
+	}
+
+
+	/**
+	 * Gets the length of the encoded form of data, not counting any
+	 * line breaks.
+	 *
+	 * @param  dataLength  the length of the data to encode
+	 * @return the length of the encoded data
+	 */
+	public final static int getEncodedLength (int dataLength) {
+		return (((dataLength + 2) / 3) * 4);
+	}
+
+
+	/**
+	 * Gets the most bytes that Base64 encoded data can decode to.
+	 *
+	 * @param  encodedLength  the length of the encoded data
+	 * @return the largest possible length of the decoded data
+	 */
+	public final static int getMaxDecodedLength (int encodedLength) {
+		return ((encodedLength / 4) * 3 + 2);
 	}
 
 
@@ -171,7 +278,8 @@ public class Base64Codec {
 
 	/**
 	 * This method decodes the given byte[] using the Base64 encoding
-	 * specified in RFC-2045.
+	 * specified in RFC-2045. The contents of <var>data</var> are
+	 * not changed.
 	 *
 	 * @param  data the Base64 encoded data to decode
 	 * @param  dataLength  the length of the data to decode
@@ -187,70 +295,152 @@ public class Base64Codec {
 			dataLength = data.length;
 		}
 
-		/*
-		 * Remove the padding on the end
-		 */
 		if (dataLength < 1) {
 			return (null);
 		}
 
-		while (Character.isWhitespace((char)data[dataLength - 1])) {
-			dataLength--;
-		}
-
-		while (data[dataLength - 1] == '=') {
-			dataLength--;
-		}
-
 		/*
-		 * ASCII printable to 0-63 conversion
+		 * Count the Base64 characters so the result can be
+		 * allocated at its exact size
 		 */
-		int newDataLength = 0;
+		int count = 0;
 		for (int i = 0; i < dataLength; i++) {
 
-			char c = (char)data[i];
-			if (c != '\n' && c != '\t' && c != '\r' && c != ' ') {
+			int v = decodeValues[data[i] & 0xff];
+			if (v >= 0) {
+				count++;
+			} else if (v == PAD) {
+				break;
+			}
+		}
 
-				data[newDataLength] = decodeMap[c];
-				newDataLength++;
+		int rem = count % 4;
+		byte dest[] = new byte[(count / 4) * 3 + (rem > 1 ? rem - 1 : 0)];
+		decode(data, 0, dataLength, dest, 0);
+		return (dest);
+	}
+
+
+	/**
+	 * Decodes a portion of an array into a caller supplied array without
+	 * allocating anything. Whitespace and any other characters that are
+	 * not part of the Base64 alphabet are skipped, and decoding stops at
+	 * the first "=" pad character. The source array is not changed.
+	 *
+	 * @param  src     the Base64 encoded data
+	 * @param  off     the offset of the first byte to decode
+	 * @param  len     the number of bytes to decode
+	 * @param  dst     the array to hold the decoded data, it must have
+	 * room for <code>getMaxDecodedLength(len)</code> bytes
+	 * @param  dstOff  the offset in <var>dst</var> to start at
+	 * @return the number of decoded bytes written to <var>dst</var>
+	 */
+	public final static int decode (byte src[], int off, int len,
+			byte dst[], int dstOff) {
+
+		byte values[] = decodeValues;
+		int end = off + len;
+		int bits = 0;
+		int n = 0;
+		int j = dstOff;
+		for (int i = off; i < end; i++) {
+
+			int v = values[src[i] & 0xff];
+			if (v < 0) {
+				if (v == PAD) {
+					break;
+				}
+
+				continue;
+			}
+
+			/*
+			 * 4-byte to 3-byte conversion
+			 */
+			bits = (bits << 6) | v;
+			if (++n == 4) {
+				dst[j++] = (byte)(bits >> 16);
+				dst[j++] = (byte)(bits >> 8);
+				dst[j++] = (byte)bits;
+				bits = 0;
+				n = 0;
 			}
 		}
 
+		return (decodeTail(bits, n, dst, j) - dstOff);
+	}
 
-		/*
-		 * Create a buffer to hold the results
-		 */
-		byte dest[] = new byte[(newDataLength * 3) / 4];
 
-	
-		/*
-		 * 4-byte to 3-byte conversion
-		 */
-		int i, j;
-		int destLength = dest.length - 2;
-		for (i = 0, j = 0; j < destLength; i += 4, j += 3) {
-
-			dest[j] = (byte) (((data[i] << 2) & 255) |
-			 	((data[i + 1] >>> 4) & 003));
-			dest[j + 1] = (byte) (((data[i + 1] << 4) & 255) |
-				((data[i + 2] >>> 2) & 017));
-    		dest[j + 2] = (byte) (((data[i + 2] << 6) & 255) |
-			    (data[i + 3] & 077));
+	/**
+	 * Decodes the remaining bytes of a buffer into another buffer. Both
+	 * buffers have their positions advanced, <var>src</var> to its limit.
+	 *
+	 * @param  src  the Base64 encoded data
+	 * @param  dst  the buffer to hold the decoded data
+	 * @return the number of decoded bytes written to <var>dst</var>
+	 * @exception  java.nio.BufferOverflowException if <var>dst</var> does
+	 * not have room for the decoded data
+	 */
+	public final static int decode (ByteBuffer src, ByteBuffer dst) {
+
+		int len = src.remaining();
+		if (src.hasArray() && dst.hasArray() &&
+				dst.remaining() >= getMaxDecodedLength(len)) {
+			int n = decode(src.array(), src.arrayOffset() + src.position(),
+				len, dst.array(), dst.arrayOffset() + dst.position());
+			src.position(src.limit());
+			dst.position(dst.position() + n);
+			return (n);
 		}
 
-		if (j < dest.length) {
+		int start = dst.position();
+		int bits = 0;
+		int n = 0;
+		while (src.hasRemaining()) {
+
+			int v = decodeValues[src.get() & 0xff];
+			if (v < 0) {
+				if (v == PAD) {
+					src.position(src.limit());
+					break;
+				}
 
-			dest[j] = (byte) (((data[i] << 2) & 255) |
-				((data[i + 1] >>> 4) & 003));
+				continue;
+			}
+
+			bits = (bits << 6) | v;
+			if (++n == 4) {
+				dst.put((byte)(bits >> 16));
+				dst.put((byte)(bits >> 8));
+				dst.put((byte)bits);
+				bits = 0;
+				n = 0;
+			}
 		}
 
-		j++;
-		if (j < dest.length) {
-			dest[j] = (byte) (((data[i + 1] << 4) & 255) |
-				((data[i + 2] >>> 2) & 017));
+		if (n > 1) {
+			byte tail[] = new byte[2];
+			dst.put(tail, 0, decodeTail(bits, n, tail, 0));
 		}
 
-		return (dest);
+		return (dst.position() - start);
 	}
-}
 
+
+	/**
+	 * Writes the bytes held by a partial group of 2 or 3 characters.
+	 *
+	 * @return the offset following the decoded bytes
+	 */
+	static int decodeTail (int bits, int n, byte dst[], int j) {
+
+		if (n == 2) {
+			dst[j++] = (byte)(bits >> 4);
+		} else if (n == 3) {
+			dst[j++] = (byte)(bits >> 10);
+			dst[j++] = (byte)(bits >> 2);
+		}
+
+		return (j);
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The <code>Base64InputStream</code> class decodes Base64 data read from
+ * another stream. Line breaks, whitespace and any other characters that
+ * are not part of the Base64 alphabet are skipped, and the decoded data
+ * ends at the first "=" pad character or the end of the stream. Encoded
+ * data is read and decoded a block at a time using reusable buffers.
+ *
+ * @see     com.messners.mail.Base64Codec
+ * @see     com.messners.mail.Base64OutputStream
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class Base64InputStream extends FilterInputStream {
+
+	protected static final int BUFFER_SIZE = 8192;
+
+	/*
+	 * Encoded data read from the underlying stream
+	 */
+	protected final byte encoded[] = new byte[BUFFER_SIZE];
+
+	/*
+	 * Decoded data waiting to be read
+	 */
+	protected final byte buf[] = new byte[(BUFFER_SIZE / 4) * 3 + 2];
+	protected int pos = 0;
+	protected int count = 0;
+
+	/*
+	 * The bits of a group split across reads of the underlying stream
+	 */
+	protected int bits = 0;
+	protected int groupCount = 0;
+	protected boolean eof = false;
+
+
+	/**
+	 * Creates a <code>Base64InputStream</code>.
+	 *
+	 * @param  in  the stream of Base64 encoded data
+	 */
+	public Base64InputStream (InputStream in) {
+		super(in);
+	}
+
+
+	/**
+	 * Reads a decoded byte.
+	 *
+	 * @return the byte, or -1 at the end of the data
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public int read () throws IOException {
+
+		if (pos >= count && !fill()) {
+			return (-1);
+		}
+
+		return (buf[pos++] & 0xff);
+	}
+
+
+	/**
+	 * Reads decoded data into a portion of an array.
+	 *
+	 * @param  b    the array to read into
+	 * @param  off  the offset to start at
+	 * @param  len  the most bytes to read
+	 * @return the number of bytes read, or -1 at the end of the data
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public int read (byte b[], int off, int len) throws IOException {
+
+		if (len == 0) {
+			return (0);
+		}
+
+		if (pos >= count && !fill()) {
+			return (-1);
+		}
+
+		int n = count - pos;
+		if (n > len) {
+			n = len;
+		}
+
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		return (n);
+	}
+
+
+	/**
+	 * Skips over decoded data.
+	 *
+	 * @param  n  the number of bytes to skip
+	 * @return the number of bytes skipped
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public long skip (long n) throws IOException {
+
+		long skipped = 0;
+		while (skipped < n) {
+
+			if (pos >= count && !fill()) {
+				break;
+			}
+
+			int left = count - pos;
+			int step = (n - skipped < left ? (int)(n - skipped) : left);
+			pos += step;
+			skipped += step;
+		}
+
+		return (skipped);
+	}
+
+
+	/**
+	 * Gets the number of decoded bytes that can be read without blocking.
+	 *
+	 * @return the number of buffered decoded bytes
+	 */
+	public int available () {
+		return (count - pos);
+	}
+
+
+	/**
+	 * Mark and reset are not supported.
+	 *
+	 * @return false
+	 */
+	public boolean markSupported () {
+		return (false);
+	}
+
+
+	/**
+	 * Reads and decodes the next block of encoded data.
+	 *
+	 * @return false if there is no more data
+	 */
+	protected boolean fill () throws IOException {
+
+		pos = 0;
+		count = 0;
+		byte values[] = Base64Codec.decodeValues;
+		while (count == 0 && !eof) {
+
+			int n = in.read(encoded, 0, encoded.length);
+			if (n < 0) {
+				eof = true;
+				break;
+			}
+
+			for (int i = 0; i < n; i++) {
+
+				int v = values[encoded[i] & 0xff];
+				if (v < 0) {
+					if (v == Base64Codec.PAD) {
+						eof = true;
+						break;
+					}
+
+					continue;
+				}
+
+				bits = (bits << 6) | v;
+				if (++groupCount == 4) {
+					buf[count++] = (byte)(bits >> 16);
+					buf[count++] = (byte)(bits >> 8);
+					buf[count++] = (byte)bits;
+					bits = 0;
+					groupCount = 0;
+				}
+			}
+		}
+
+		/*
+		 * At the end, decode a group that was cut short
+		 */
+		if (eof && groupCount > 0) {
+			count = Base64Codec.decodeTail(bits, groupCount, buf, count);
+			bits = 0;
+			groupCount = 0;
+		}
+
+		return (count > 0);
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The <code>Base64OutputStream</code> class Base64 encodes the data written
+ * to it, breaking the encoded data into lines that end with CRLF. Data is
+ * encoded a block at a time into a reusable buffer so that streaming any
+ * amount of data allocates nothing after the stream is created.<p>
+ *
+ * <code>finish()</code> (or <code>close()</code>) must be called to write
+ * the final group of encoded data and its padding.
+ *
+ * @see     com.messners.mail.Base64Codec
+ * @see     com.messners.mail.Base64InputStream
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class Base64OutputStream extends FilterOutputStream {
+
+	/**
+	 * The default length of an encoded line, the most allowed by RFC-2045.
+	 */
+	public static final int DEFAULT_LINE_LENGTH = 76;
+
+	protected static final int BUFFER_SIZE = 8192;
+
+	protected final int lineLength;
+	protected final byte buf[];
+	protected int count = 0;
+
+	/*
+	 * Characters written to the current line
+	 */
+	protected int column = 0;
+
+	/*
+	 * Holds the 1 or 2 bytes left over from the last write
+	 */
+	protected final byte pending[] = new byte[3];
+	protected int pendingCount = 0;
+	protected boolean finished = false;
+
+
+	/**
+	 * Creates a <code>Base64OutputStream</code> that writes 76 character
+	 * lines.
+	 *
+	 * @param  out  the stream to write the encoded data to
+	 */
+	public Base64OutputStream (OutputStream out) {
+		this(out, DEFAULT_LINE_LENGTH);
+	}
+
+
+	/**
+	 * Creates a <code>Base64OutputStream</code>.
+	 *
+	 * @param  out         the stream to write the encoded data to
+	 * @param  lineLength  the length of an encoded line, a multiple of
+	 * 4, or 0 to not break the encoded data into lines
+	 */
+	public Base64OutputStream (OutputStream out, int lineLength) {
+
+		super(out);
+
+		if (lineLength < 0 || lineLength % 4 != 0 ||
+				lineLength + 2 > BUFFER_SIZE) {
+			throw new IllegalArgumentException(
+				"invalid line length: " + lineLength);
+		}
+
+		this.lineLength = lineLength;
+		this.buf = new byte[BUFFER_SIZE];
+	}
+
+
+	/**
+	 * Writes a byte to be encoded.
+	 *
+	 * @param  b  the byte to write
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void write (int b) throws IOException {
+
+		if (finished) {
+			throw new IOException("stream is finished");
+		}
+
+		pending[pendingCount++] = (byte)b;
+		if (pendingCount == 3) {
+			encode(pending, 0, 3);
+			pendingCount = 0;
+		}
+	}
+
+
+	/**
+	 * Writes a portion of an array to be encoded.
+	 *
+	 * @param  b    the data
+	 * @param  off  the offset of the first byte to write
+	 * @param  len  the number of bytes to write
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void write (byte b[], int off, int len) throws IOException {
+
+		if (finished) {
+			throw new IOException("stream is finished");
+		}
+
+		/*
+		 * Complete the group left over from the last write
+		 */
+		while (pendingCount > 0 && len > 0) {
+			write(b[off++]);
+			len--;
+		}
+
+		int whole = len - len % 3;
+		if (whole > 0) {
+			encode(b, off, whole);
+		}
+
+		for (int i = off + whole; i < off + len; i++) {
+			pending[pendingCount++] = b[i];
+		}
+	}
+
+
+	/**
+	 * Writes the last group of encoded data with its padding and ends the
+	 * last line. Nothing more can be written after this.
+	 *
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void finish () throws IOException {
+
+		if (finished) {
+			return;
+		}
+
+		if (pendingCount > 0) {
+			encode(pending, 0, pendingCount);
+			pendingCount = 0;
+		}
+
+		if (lineLength > 0 && column > 0) {
+			ensure(2);
+			buf[count++] = '\r';
+			buf[count++] = '\n';
+			column = 0;
+		}
+
+		finished = true;
+		flushBuffer();
+	}
+
+
+	/**
+	 * Writes the encoded data out, the last 1 or 2 bytes written are
+	 * held back until more data is written or the stream is finished.
+	 *
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void flush () throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+
+	/**
+	 * Finishes and closes the stream.
+	 *
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void close () throws IOException {
+
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Encodes whole groups (or the final group) into the buffer, breaking
+	 * lines as needed.
+	 */
+	protected void encode (byte b[], int off, int len) throws IOException {
+
+		while (len > 0) {
+
+			/*
+			 * Encode up to the end of the line or of the buffer,
+			 * whichever comes first
+			 */
+			int room = (lineLength > 0 ? lineLength - column :
+				BUFFER_SIZE);
+			int space = ((buf.length - count - 2) / 4) * 4;
+			if (space < 4) {
+				flushBuffer();
+				continue;
+			}
+
+			if (room > space) {
+				room = space;
+			}
+
+			int n = (room / 4) * 3;
+			if (n > len) {
+				n = len;
+			}
+
+			int written = Base64Codec.encode(b, off, n, buf, count);
+			count  += written;
+			column += written;
+			off += n;
+			len -= n;
+
+			if (lineLength > 0 && column >= lineLength) {
+				buf[count++] = '\r';
+				buf[count++] = '\n';
+				column = 0;
+			}
+		}
+	}
+
+
+	/**
+	 * Makes room in the buffer for the specified number of bytes.
+	 */
+	protected void ensure (int n) throws IOException {
+
+		if (count + n > buf.length) {
+			flushBuffer();
+		}
+	}
+
+
+	/**
+	 * Writes the buffer to the underlying stream.
+	 */
+	protected void flushBuffer () throws IOException {
+
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+}
@@ -24,12 +24,22 @@ package com.messners.mail;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Hashtable;
 
 /**
  * This is the base class used to abstract a Socket connection. It is required
  * due to the different type of Socket connections used by J2ME and other types
- * of Java.
+ * of Java.<p>
  *
+ * Other transports are plugged in with a <code>ConnectionProvider</code>,
+ * either for a single host and port or as the default for all hosts:
+ * <pre>
+ *    Connection.registerProvider("smtp.test", -1,
+ *        LoopbackConnection.newProvider(new SMTPTestServer()));
+ * </pre>
+ *
+ * @see     com.messners.mail.ConnectionProvider
+ * @see     com.messners.mail.LoopbackConnection
  * @author  Gregory M. Messner <gmessner@messners.com>
  * @version $Revision: 1.1 $
  */
@@ -46,6 +56,20 @@ public abstract class Connection {
 	}
 
 
+	/**
+	 * Holds the providers registered for a host, keyed by the lower case
+	 * host name, or by the host name and port separated by a colon.
+	 */
+	private static final Hashtable<String, ConnectionProvider> providers =
+		new Hashtable<String, ConnectionProvider>();
+
+	/**
+	 * Holds the provider used for hosts without one of their own, null
+	 * for the platform specific Connection.
+	 */
+	private static volatile ConnectionProvider defaultProvider = null;
+
+
 	/**
 	 * Sets the timeout in milliseconds for reads on the connection
 	 * to the server.
@@ -107,4 +131,98 @@ public abstract class Connection {
 
 		return ((Connection)(Class.forName(classname).newInstance()));
 	}
+
+
+	/**
+	 * Get a Connection for the specified host and port. The provider
+	 * registered for the host and port is used, then the one registered
+	 * for the host on any port, then the default provider, and
+	 * finally the platform specific Connection.
+	 *
+	 * @param  host  the hostname or IP address for the connection
+	 * @param  port  the port number for the connection
+	 * @return the unopened Connection
+	 * @exception Exception when the Connection cannot be created
+	 */
+	public static Connection getInstance (String host, int port)
+			throws Exception {
+
+		ConnectionProvider provider = null;
+		if (!providers.isEmpty() && host != null) {
+			String key = host.toLowerCase();
+			provider = providers.get(key + ":" + port);
+			if (provider == null) {
+				provider = providers.get(key);
+			}
+		}
+
+		if (provider == null) {
+			provider = defaultProvider;
+		}
+
+		if (provider == null) {
+			return (getInstance());
+		}
+
+		return (provider.getConnection(host, port));
+	}
+
+
+	/**
+	 * Registers the provider of the connections to a host.
+	 *
+	 * @param  host      the hostname or IP address, case is ignored
+	 * @param  port      the port number, or -1 for all ports
+	 * @param  provider  the provider, or null to remove the one registered
+	 */
+	public static void registerProvider (String host, int port,
+			ConnectionProvider provider) {
+
+		String key = host.toLowerCase();
+		if (port >= 0) {
+			key = key + ":" + port;
+		}
+
+		if (provider == null) {
+			providers.remove(key);
+		} else {
+			providers.put(key, provider);
+		}
+	}
+
+
+	/**
+	 * Removes the provider registered for a host.
+	 *
+	 * @param  host  the hostname or IP address, case is ignored
+	 * @param  port  the port number, or -1 for all ports
+	 */
+	public static void unregisterProvider (String host, int port) {
+		registerProvider(host, port, null);
+	}
+
+
+	/**
+	 * Sets the provider of the connections to hosts that have no
+	 * provider registered.
+	 *
+	 * @param  provider  the provider, or null for the platform
+	 * specific Connection
+	 */
+	public static void setDefaultProvider (
+			ConnectionProvider provider) {
+		defaultProvider = provider;
+	}
+
+
+	/**
+	 * Gets the provider of the connections to hosts that have no
+	 * provider registered.
+	 *
+	 * @return the provider, or null if the platform specific Connection
+	 * is used
+	 */
+	public static ConnectionProvider getDefaultProvider () {
+		return (defaultProvider);
+	}
 }
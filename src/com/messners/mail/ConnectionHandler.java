@@ -0,0 +1,52 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This interface defines the server side of a connection, such as the
+ * in-process test servers in jgmail-testing.jar. A
+ * <code>LoopbackConnection</code> runs the handler on the other end of
+ * its in-memory streams.
+ *
+ * @see     com.messners.mail.LoopbackConnection
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public interface ConnectionHandler {
+
+	/**
+	 * This method is called to run one session with a client. It
+	 * returns when the session is over or the client closes its end.
+	 *
+	 * @param in       the stream the client's data is read from
+	 * @param out      the stream the replies are written to
+	 * @exception IOException when an I/O error occurs
+	 */
+	public abstract void serve (InputStream in, OutputStream out)
+			throws IOException;
+}
@@ -0,0 +1,50 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+/**
+ * This interface defines a provider of <code>Connection</code> instances,
+ * used to plug a transport other than sockets into the mail classes. A
+ * provider is registered for a host with
+ * <code>Connection.registerProvider()</code> or for all hosts with
+ * <code>Connection.setDefaultProvider()</code>.
+ *
+ * @see     com.messners.mail.Connection
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public interface ConnectionProvider {
+
+	/**
+	 * This method is called to get a connection to a host. The
+	 * connection is opened by the caller.
+	 *
+	 * @param host     the hostname or IP address for the connection
+	 * @param port     the port number for the connection
+	 * @return the unopened Connection
+	 * @exception Exception when the Connection cannot be created
+	 */
+	public abstract Connection getConnection (String host, int port)
+			throws Exception;
+}
@@ -0,0 +1,496 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The <code>FlightEvents</code> class defines the JDK Flight Recorder
+ * events for mail work, so that mail stalls show up next to GC and
+ * socket I/O in one recording. The events are:
+ * <pre>
+ *    com.messners.mail.SMTPSession      a SMTP connection, open to close
+ *    com.messners.mail.SMTPCommand      a SMTP command and its reply
+ *    com.messners.mail.SMTPData         the message data and its reply
+ *    com.messners.mail.POP3Command      a POP3 command and its reply
+ *    com.messners.mail.MessageParse     the parsing of a message
+ *    com.messners.mail.AttachmentWrite  the saving of an attachment
+ * </pre>
+ *
+ * Each <code>begin</code> method returns null, and costs no more than
+ * an allocation, when its event is not enabled in a running recording
+ * or when the runtime has no flight recorder. The <code>end</code>
+ * methods do nothing when passed null. The events are referenced only
+ * through this class so the rest of the package still loads on a
+ * runtime without the <code>jdk.jfr</code> module.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+final class FlightEvents {
+
+	/**
+	 * True if the runtime has the flight recorder API.
+	 */
+	static final boolean AVAILABLE = isAvailable();
+
+
+	private FlightEvents () {
+	}
+
+
+	/**
+	 * Begins a SMTP session event.
+	 *
+	 * @param  host  the SMTP server
+	 * @param  port  the port on the SMTP server
+	 * @return the started event or null if not enabled
+	 */
+	static Object beginSMTPSession (String host, int port) {
+
+		if (!AVAILABLE) {
+			return (null);
+		}
+
+		SMTPSessionEvent e = new SMTPSessionEvent();
+		if (!e.isEnabled()) {
+			return (null);
+		}
+
+		e.host = host;
+		e.port = port;
+		e.begin();
+		return (e);
+	}
+
+
+	/**
+	 * Ends a SMTP session event.
+	 *
+	 * @param  event      the event returned by beginSMTPSession()
+	 * @param  messages   the number of messages sent in the session
+	 * @param  replyCode  the last reply code from the server
+	 */
+	static void endSMTPSession (Object event, long messages, int replyCode) {
+
+		if (event == null) {
+			return;
+		}
+
+		SMTPSessionEvent e = (SMTPSessionEvent)event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.messages = messages;
+			e.replyCode = replyCode;
+			e.commit();
+		}
+	}
+
+
+	/**
+	 * Begins a SMTP command event.
+	 *
+	 * @param  host     the SMTP server
+	 * @param  command  the command verb or phase
+	 * @return the started event or null if not enabled
+	 */
+	static Object beginSMTPCommand (String host, String command) {
+
+		if (!AVAILABLE) {
+			return (null);
+		}
+
+		SMTPCommandEvent e = new SMTPCommandEvent();
+		if (!e.isEnabled()) {
+			return (null);
+		}
+
+		e.host = host;
+		e.command = command;
+		e.begin();
+		return (e);
+	}
+
+
+	/**
+	 * Ends a SMTP command event.
+	 *
+	 * @param  event      the event returned by beginSMTPCommand()
+	 * @param  replyCode  the reply code, or -1 if unknown
+	 */
+	static void endSMTPCommand (Object event, int replyCode) {
+
+		if (event == null) {
+			return;
+		}
+
+		SMTPCommandEvent e = (SMTPCommandEvent)event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.replyCode = replyCode;
+			e.commit();
+		}
+	}
+
+
+	/**
+	 * Begins a SMTP message data event.
+	 *
+	 * @param  host  the SMTP server
+	 * @return the started event or null if not enabled
+	 */
+	static Object beginSMTPData (String host) {
+
+		if (!AVAILABLE) {
+			return (null);
+		}
+
+		SMTPDataEvent e = new SMTPDataEvent();
+		if (!e.isEnabled()) {
+			return (null);
+		}
+
+		e.host = host;
+		e.begin();
+		return (e);
+	}
+
+
+	/**
+	 * Ends a SMTP message data event.
+	 *
+	 * @param  event      the event returned by beginSMTPData()
+	 * @param  bytes      the number of bytes of message data written
+	 * @param  replyCode  the reply code, or -1 if unknown
+	 */
+	static void endSMTPData (Object event, long bytes, int replyCode) {
+
+		if (event == null) {
+			return;
+		}
+
+		SMTPDataEvent e = (SMTPDataEvent)event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.bytes = bytes;
+			e.replyCode = replyCode;
+			e.commit();
+		}
+	}
+
+
+	/**
+	 * Begins a POP3 command event.
+	 *
+	 * @param  host     the POP3 server
+	 * @param  command  the command verb or phase
+	 * @return the started event or null if not enabled
+	 */
+	static Object beginPOP3Command (String host, String command) {
+
+		if (!AVAILABLE) {
+			return (null);
+		}
+
+		POP3CommandEvent e = new POP3CommandEvent();
+		if (!e.isEnabled()) {
+			return (null);
+		}
+
+		e.host = host;
+		e.command = command;
+		e.begin();
+		return (e);
+	}
+
+
+	/**
+	 * Ends a POP3 command event.
+	 *
+	 * @param  event  the event returned by beginPOP3Command()
+	 * @param  reply  the first line of the reply
+	 */
+	static void endPOP3Command (Object event, String reply) {
+
+		if (event == null) {
+			return;
+		}
+
+		POP3CommandEvent e = (POP3CommandEvent)event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.replyCode = reply.startsWith("+OK") ? "+OK" :
+				reply.startsWith("-ERR") ? "-ERR" : reply;
+			e.commit();
+		}
+	}
+
+
+	/**
+	 * Begins a message parse event.
+	 *
+	 * @param  host    the POP3 server, or null if not read from one
+	 * @param  msgnum  the message number, or -1 if not known
+	 * @return the started event or null if not enabled
+	 */
+	static Object beginMessageParse (String host, int msgnum) {
+
+		if (!AVAILABLE) {
+			return (null);
+		}
+
+		MessageParseEvent e = new MessageParseEvent();
+		if (!e.isEnabled()) {
+			return (null);
+		}
+
+		e.host = host;
+		e.messageNumber = msgnum;
+		e.begin();
+		return (e);
+	}
+
+
+	/**
+	 * Ends a message parse event.
+	 *
+	 * @param  event        the event returned by beginMessageParse()
+	 * @param  bytes        the number of bytes of the message read
+	 * @param  parts        the number of parts in the message
+	 * @param  attachments  the number of attachments saved
+	 */
+	static void endMessageParse (Object event, long bytes, int parts,
+			int attachments) {
+
+		if (event == null) {
+			return;
+		}
+
+		MessageParseEvent e = (MessageParseEvent)event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.bytes = bytes;
+			e.parts = parts;
+			e.attachments = attachments;
+			e.commit();
+		}
+	}
+
+
+	/**
+	 * Begins an attachment write event.
+	 *
+	 * @param  host         the POP3 server, or null if not read from one
+	 * @param  name         the name of the attachment
+	 * @param  contentType  the content type of the attachment
+	 * @return the started event or null if not enabled
+	 */
+	static Object beginAttachmentWrite (String host, String name,
+			String contentType) {
+
+		if (!AVAILABLE) {
+			return (null);
+		}
+
+		AttachmentWriteEvent e = new AttachmentWriteEvent();
+		if (!e.isEnabled()) {
+			return (null);
+		}
+
+		e.host = host;
+		e.name = name;
+		e.contentType = contentType;
+		e.begin();
+		return (e);
+	}
+
+
+	/**
+	 * Ends an attachment write event.
+	 *
+	 * @param  event   the event returned by beginAttachmentWrite()
+	 * @param  file    the file the attachment was saved in
+	 * @param  bytes   the number of bytes written
+	 * @param  shared  true if the content was already in the
+	 * attachment store
+	 */
+	static void endAttachmentWrite (Object event, String file, long bytes,
+			boolean shared) {
+
+		if (event == null) {
+			return;
+		}
+
+		AttachmentWriteEvent e = (AttachmentWriteEvent)event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.file = file;
+			e.bytes = bytes;
+			e.shared = shared;
+			e.commit();
+		}
+	}
+
+
+	/**
+	 * Checks for the flight recorder API without loading any of the
+	 * event classes.
+	 */
+	private static boolean isAvailable () {
+
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (true);
+		} catch (Throwable t) {
+			return (false);
+		}
+	}
+
+
+	@Name("com.messners.mail.SMTPSession")
+	@Label("SMTP Session")
+	@Category({"Mail", "SMTP"})
+	@Description("A connection to a SMTP server, from connect to close")
+	static class SMTPSessionEvent extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Port")
+		int port;
+
+		@Label("Messages Sent")
+		long messages;
+
+		@Label("Last Reply Code")
+		int replyCode;
+	}
+
+
+	@Name("com.messners.mail.SMTPCommand")
+	@Label("SMTP Command")
+	@Category({"Mail", "SMTP"})
+	@Description("A SMTP command, from being written to its reply")
+	static class SMTPCommandEvent extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Command")
+		String command;
+
+		@Label("Reply Code")
+		int replyCode;
+	}
+
+
+	@Name("com.messners.mail.SMTPData")
+	@Label("SMTP DATA Transfer")
+	@Category({"Mail", "SMTP"})
+	@Description("The message data sent after DATA, through to the reply")
+	static class SMTPDataEvent extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Reply Code")
+		int replyCode;
+	}
+
+
+	@Name("com.messners.mail.POP3Command")
+	@Label("POP3 Command")
+	@Category({"Mail", "POP3"})
+	@Description("A POP3 command, from being written to its status line")
+	static class POP3CommandEvent extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Command")
+		String command;
+
+		@Label("Reply Code")
+		String replyCode;
+	}
+
+
+	@Name("com.messners.mail.MessageParse")
+	@Label("Message Parse")
+	@Category({"Mail", "POP3"})
+	@Description("Reading and parsing a retrieved message")
+	static class MessageParseEvent extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Message Number")
+		int messageNumber;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Parts")
+		int parts;
+
+		@Label("Attachments")
+		int attachments;
+	}
+
+
+	@Name("com.messners.mail.AttachmentWrite")
+	@Label("Attachment Write")
+	@Category({"Mail", "POP3"})
+	@Description("Decoding and saving an attachment of a message")
+	static class AttachmentWriteEvent extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Name")
+		String name;
+
+		@Label("Content Type")
+		String contentType;
+
+		@Label("File")
+		String file;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Already Stored")
+		boolean shared;
+	}
+}
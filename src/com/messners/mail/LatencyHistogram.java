@@ -0,0 +1,313 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The <code>LatencyHistogram</code> class records latencies (in
+ * microseconds) into a fixed set of log-linear buckets, in the style of
+ * HdrHistogram. Each power of two is split into 32 linear sub-buckets so
+ * any recorded value is reported to within about 3% of its actual value,
+ * and the memory used is the same (about 8K) no matter how many values
+ * are recorded. Values above about 38 hours are counted in the top
+ * bucket.<p>
+ *
+ * Recording is lock free and may be done from many threads at once. The
+ * percentiles and other statistics read while values are being recorded
+ * may be slightly out of step with each other, use <code>copy()</code>
+ * to get a snapshot.
+ *
+ * @see     com.messners.mail.MailMetrics
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class LatencyHistogram {
+
+	/*
+	 * Values below 2 * SUB_BUCKETS each get their own bucket, above that
+	 * each power of two up to and including 2^MAX_EXPONENT is split into
+	 * SUB_BUCKETS buckets
+	 */
+	protected static final int SUB_BUCKET_BITS = 5;
+	protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	protected static final int MAX_EXPONENT = 36;
+	protected static final int BUCKET_COUNT =
+		(MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	/**
+	 * The largest value that is recorded exactly into its bucket, larger
+	 * values are counted in the top bucket.
+	 */
+	public static final long MAX_TRACKABLE_VALUE =
+		(1L << (MAX_EXPONENT + 1)) - 1;
+
+
+	protected final AtomicLongArray counts =
+			new AtomicLongArray(BUCKET_COUNT);
+	protected final AtomicLong count = new AtomicLong();
+	protected final AtomicLong total = new AtomicLong();
+	protected final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	protected final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * Creates an empty <code>LatencyHistogram</code>.
+	 */
+	public LatencyHistogram () {
+	}
+
+
+	/**
+	 * Records a value.
+	 *
+	 * @param  micros  the latency in microseconds, negative values are
+	 * recorded as 0
+	 */
+	public void record (long micros) {
+
+		if (micros < 0) {
+			micros = 0;
+		}
+
+		counts.incrementAndGet(indexOf(micros));
+		count.incrementAndGet();
+		total.addAndGet(micros);
+
+		long m = min.get();
+		while (micros < m && !min.compareAndSet(m, micros)) {
+			m = min.get();
+		}
+
+		m = max.get();
+		while (micros > m && !max.compareAndSet(m, micros)) {
+			m = max.get();
+		}
+	}
+
+
+	/**
+	 * Records the time elapsed since the specified start time.
+	 *
+	 * @param  startNanos  the start time as returned by
+	 * <code>System.nanoTime()</code>
+	 */
+	public void recordSince (long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+
+	/**
+	 * Gets the number of values recorded.
+	 *
+	 * @return the number of values recorded
+	 */
+	public long getCount () {
+		return (count.get());
+	}
+
+
+	/**
+	 * Gets the sum of the values recorded.
+	 *
+	 * @return the sum of the values recorded in microseconds
+	 */
+	public long getTotal () {
+		return (total.get());
+	}
+
+
+	/**
+	 * Gets the smallest value recorded.
+	 *
+	 * @return the smallest value in microseconds, 0 if none are recorded
+	 */
+	public long getMin () {
+
+		long m = min.get();
+		return (m == Long.MAX_VALUE ? 0 : m);
+	}
+
+
+	/**
+	 * Gets the largest value recorded.
+	 *
+	 * @return the largest value in microseconds
+	 */
+	public long getMax () {
+		return (max.get());
+	}
+
+
+	/**
+	 * Gets the mean of the values recorded.
+	 *
+	 * @return the mean in microseconds, 0 if none are recorded
+	 */
+	public double getMean () {
+
+		long n = count.get();
+		return (n == 0 ? 0.0 : (double)total.get() / n);
+	}
+
+
+	/**
+	 * Gets the value that the specified percentage of the recorded
+	 * values are less than or equal to. The value returned is the
+	 * largest value that falls in the same bucket.
+	 *
+	 * @param  percentile  the percentile, from 0.0 to 100.0
+	 * @return the value at the percentile in microseconds, 0 if
+	 * none are recorded
+	 */
+	public long getValueAtPercentile (double percentile) {
+
+		long n = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			n += counts.get(i);
+		}
+
+		if (n == 0) {
+			return (0);
+		}
+
+		if (percentile > 100.0) {
+			percentile = 100.0;
+		}
+
+		long wanted = (long)Math.ceil(n * percentile / 100.0);
+		if (wanted < 1) {
+			wanted = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+
+			seen += counts.get(i);
+			if (seen >= wanted) {
+
+				/*
+				 * Don't report more than was actually recorded
+				 */
+				long value = highestValueAt(i);
+				long m = max.get();
+				return (value > m ? m : value);
+			}
+		}
+
+		return (max.get());
+	}
+
+
+	/**
+	 * Clears all the recorded values. Values recorded by other threads
+	 * while the reset is being done may be partly kept.
+	 */
+	public void reset () {
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+
+		count.set(0);
+		total.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+
+
+	/**
+	 * Gets a copy of this histogram.
+	 *
+	 * @return the copy
+	 */
+	public LatencyHistogram copy () {
+
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			h.counts.set(i, counts.get(i));
+		}
+
+		h.count.set(count.get());
+		h.total.set(total.get());
+		h.min.set(min.get());
+		h.max.set(max.get());
+		return (h);
+	}
+
+
+	/**
+	 * Gets a one line summary of the histogram.
+	 *
+	 * @return the count, mean, min, max and common percentiles
+	 */
+	public String toString () {
+
+		StringBuffer buf = new StringBuffer();
+		buf.append("count=").append(getCount());
+		buf.append(" mean=").append(Math.round(getMean()));
+		buf.append(" min=").append(getMin());
+		buf.append(" p50=").append(getValueAtPercentile(50.0));
+		buf.append(" p90=").append(getValueAtPercentile(90.0));
+		buf.append(" p99=").append(getValueAtPercentile(99.0));
+		buf.append(" p999=").append(getValueAtPercentile(99.9));
+		buf.append(" max=").append(getMax());
+		buf.append(" (usecs)");
+		return (buf.toString());
+	}
+
+
+	/**
+	 * Gets the index of the bucket the value is counted in.
+	 */
+	protected static int indexOf (long value) {
+
+		if (value < 2 * SUB_BUCKETS) {
+			return ((int)value);
+		}
+
+		if (value > MAX_TRACKABLE_VALUE) {
+			return (BUCKET_COUNT - 1);
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift * SUB_BUCKETS + (int)(value >> shift));
+	}
+
+
+	/**
+	 * Gets the largest value that is counted in the specified bucket.
+	 */
+	protected static long highestValueAt (int index) {
+
+		if (index < 2 * SUB_BUCKETS) {
+			return (index);
+		}
+
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		return (((sub + 1) << shift) - 1);
+	}
+}
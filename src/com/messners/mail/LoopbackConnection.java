@@ -0,0 +1,204 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides an implementation of Connection that connects to a
+ * <code>ConnectionHandler</code> in the same process through in-memory
+ * pipes instead of a socket. Opening the connection starts the handler
+ * on its own thread with the other ends of the pipes. This takes the
+ * kernel out of protocol tests and benchmarks so they measure the cost
+ * of the mail classes themselves:
+ * <pre>
+ *    SMTPTestServer server = new SMTPTestServer();
+ *    Connection.registerProvider("smtp.test", -1,
+ *        LoopbackConnection.newProvider(server));
+ *    SMTP smtp = new SMTP("smtp.test");
+ * </pre>
+ *
+ * The host and port given to <code>open()</code> are ignored.
+ *
+ * @see com.messners.mail.Connection
+ * @see com.messners.mail.ConnectionHandler
+ * @author Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class LoopbackConnection extends Connection {
+
+	/**
+	 * The size of the buffer of each pipe.
+	 */
+	public static final int PIPE_SIZE = 64 * 1024;
+
+	private static ExecutorService executor = null;
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+
+	protected final ConnectionHandler handler;
+	protected LoopbackPipe toServer = null;
+	protected LoopbackPipe toClient = null;
+	protected int timeout = 0;
+
+
+	/**
+	 * Creates a <code>LoopbackConnection</code> to the specified handler.
+	 *
+	 * @param  handler  the server side of the connection
+	 */
+	public LoopbackConnection (ConnectionHandler handler) {
+		this.handler = handler;
+	}
+
+
+	/**
+	 * Creates a provider of connections to the specified handler, for
+	 * registering with <code>Connection.registerProvider()</code>.
+	 *
+	 * @param  handler  the server side of the connections
+	 * @return the provider
+	 */
+	public static ConnectionProvider newProvider (
+			final ConnectionHandler handler) {
+
+		return (new ConnectionProvider() {
+			public Connection getConnection (String host, int port) {
+				return (new LoopbackConnection(handler));
+			}
+		});
+	}
+
+
+	/**
+	 * Sets the timeout in milliseconds for reads on the connection
+	 * to the server.
+	 *
+	 * @param	timeout	the new read timeout
+	 */
+	public synchronized void setTimeout (int timeout) {
+
+		this.timeout = timeout;
+		if (toClient != null) {
+			toClient.setTimeout(timeout);
+		}
+	}
+
+
+	/**
+	 * Open the connection and start the handler.
+	 *
+	 * @param  host  ignored
+	 * @param  port  ignored
+	 * @exception IOException when already open
+	 */
+	public synchronized void open (String host, int port) throws IOException {
+
+		if (toServer != null) {
+			throw new IOException("connection already open");
+		}
+
+		final LoopbackPipe in = new LoopbackPipe(PIPE_SIZE);
+		final LoopbackPipe out = new LoopbackPipe(PIPE_SIZE);
+		out.setTimeout(timeout);
+
+		getExecutor().execute(new Runnable() {
+			public void run () {
+				try {
+					handler.serve(in.getInputStream(), out.getOutputStream());
+				} catch (IOException ignore) {
+				} finally {
+					in.closeReader();
+					out.closeWriter();
+				}
+			}
+		});
+
+		toServer = in;
+		toClient = out;
+	}
+
+
+	/**
+	 * Close the connection. The handler sees the end of input.
+	 */
+	public synchronized void close () {
+
+		if (toServer != null) {
+			toServer.closeWriter();
+			toClient.closeReader();
+			toServer = null;
+			toClient = null;
+		}
+	}
+
+
+	/**
+	 * Gets the InputStream associated with this connection.
+	 *
+	 * @return the InputStream associated with this connection
+	 */
+	public synchronized InputStream getInputStream () {
+		return (toClient != null ? toClient.getInputStream() : null);
+	}
+
+
+	/**
+	 * Gets the OutputStream associated with this connection.
+	 *
+	 * @return the OutputStream associated with this connection
+	 */
+	public synchronized OutputStream getOutputStream () {
+		return (toServer != null ? toServer.getOutputStream() : null);
+	}
+
+
+	/**
+	 * Gets the executor the handlers are run on, virtual threads when
+	 * the runtime has them, otherwise daemon threads.
+	 */
+	private static synchronized ExecutorService getExecutor () {
+
+		if (executor == null) {
+			executor = MailExecutor.newVirtualThreadExecutor();
+			if (executor == null) {
+				executor = Executors.newCachedThreadPool(new ThreadFactory() {
+					public Thread newThread (Runnable r) {
+						Thread t = new Thread(r, "jgmail-loopback-" +
+							threadNumber.incrementAndGet());
+						t.setDaemon(true);
+						return (t);
+					}
+				});
+			}
+		}
+
+		return (executor);
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * A one way in-memory pipe with a fixed size ring buffer, used by
+ * <code>LoopbackConnection</code>. Unlike <code>PipedInputStream</code>
+ * it does not poll, does not care which threads read and write, and
+ * supports a read timeout. Closing the writing end gives the reader
+ * the end of input once the buffer is drained, closing the reading end
+ * makes writes fail.
+ *
+ * @see     com.messners.mail.LoopbackConnection
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+final class LoopbackPipe {
+
+	private final byte buf[];
+	private int head = 0;
+	private int count = 0;
+
+	private boolean writerClosed = false;
+	private boolean readerClosed = false;
+	private int readersWaiting = 0;
+	private int writersWaiting = 0;
+	private int timeout = 0;
+
+	private final InputStream in = new PipeInputStream();
+	private final OutputStream out = new PipeOutputStream();
+
+
+	LoopbackPipe (int size) {
+		buf = new byte[size];
+	}
+
+
+	InputStream getInputStream () {
+		return (in);
+	}
+
+
+	OutputStream getOutputStream () {
+		return (out);
+	}
+
+
+	/**
+	 * Sets the read timeout in milliseconds, 0 waits forever.
+	 */
+	synchronized void setTimeout (int timeout) {
+		this.timeout = timeout;
+	}
+
+
+	synchronized void closeWriter () {
+
+		writerClosed = true;
+		notifyAll();
+	}
+
+
+	synchronized void closeReader () {
+
+		readerClosed = true;
+		count = 0;
+		notifyAll();
+	}
+
+
+	synchronized int available () throws IOException {
+
+		if (readerClosed) {
+			throw new IOException("pipe closed");
+		}
+
+		return (count);
+	}
+
+
+	synchronized int read (byte b[], int off, int len) throws IOException {
+
+		if (len == 0) {
+			return (0);
+		}
+
+		long deadline = 0;
+		while (count == 0) {
+
+			if (readerClosed) {
+				throw new IOException("pipe closed");
+			}
+
+			if (writerClosed) {
+				return (-1);
+			}
+
+			long wait = 0;
+			if (timeout > 0) {
+				long now = System.currentTimeMillis();
+				if (deadline == 0) {
+					deadline = now + timeout;
+				} else if (now >= deadline) {
+					throw new SocketTimeoutException("Read timed out");
+				}
+
+				wait = deadline - now;
+			}
+
+			readersWaiting++;
+			try {
+				wait(wait);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted reading pipe");
+			} finally {
+				readersWaiting--;
+			}
+		}
+
+		/*
+		 * Copy in up to two pieces when the data wraps around
+		 */
+		int n = Math.min(len, count);
+		int first = Math.min(n, buf.length - head);
+		System.arraycopy(buf, head, b, off, first);
+		if (n > first) {
+			System.arraycopy(buf, 0, b, off + first, n - first);
+		}
+
+		head = (head + n) % buf.length;
+		count -= n;
+		if (count == 0) {
+			head = 0;
+		}
+
+		if (writersWaiting > 0) {
+			notifyAll();
+		}
+
+		return (n);
+	}
+
+
+	synchronized void write (byte b[], int off, int len) throws IOException {
+
+		while (len > 0) {
+
+			while (count == buf.length && !readerClosed && !writerClosed) {
+				writersWaiting++;
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+						"interrupted writing pipe");
+				} finally {
+					writersWaiting--;
+				}
+			}
+
+			if (readerClosed || writerClosed) {
+				throw new IOException("pipe closed");
+			}
+
+			int tail = (head + count) % buf.length;
+			int n = Math.min(len, Math.min(buf.length - count,
+				buf.length - tail));
+			System.arraycopy(b, off, buf, tail, n);
+			count += n;
+			off += n;
+			len -= n;
+
+			if (readersWaiting > 0) {
+				notifyAll();
+			}
+		}
+	}
+
+
+	private class PipeInputStream extends InputStream {
+
+		public int read () throws IOException {
+
+			byte b[] = new byte[1];
+			return (LoopbackPipe.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff);
+		}
+
+		public int read (byte b[], int off, int len) throws IOException {
+			return (LoopbackPipe.this.read(b, off, len));
+		}
+
+		public int available () throws IOException {
+			return (LoopbackPipe.this.available());
+		}
+
+		public void close () {
+			closeReader();
+		}
+	}
+
+
+	private class PipeOutputStream extends OutputStream {
+
+		public void write (int b) throws IOException {
+			LoopbackPipe.this.write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		public void write (byte b[], int off, int len) throws IOException {
+			LoopbackPipe.this.write(b, off, len);
+		}
+
+		public void close () {
+			closeWriter();
+		}
+	}
+}
@@ -0,0 +1,416 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The <code>MailEventDispatcher</code> class delivers the
+ * <code>MailStatusEvent</code>s of a POP3 or SMTP session to its
+ * listeners. It is made to cost as little as possible on the socket read
+ * and write paths:<p>
+ *
+ * <ul>
+ * <li>When no listeners are registered nothing is done at all, not even
+ *     creating the event.
+ * <li>The listener list is a <code>CopyOnWriteArrayList</code>, firing an
+ *     event takes no lock and copies nothing.
+ * <li>Progress events are coalesced. The bytes reported by calls to
+ *     <code>fireProgress()</code> are added up and one event is delivered
+ *     once the byte threshold or the time interval is reached, what is
+ *     left is delivered by <code>flushProgress()</code> at the end of the
+ *     message.
+ * <li>Events can optionally be delivered asynchronously. They are put in
+ *     a bounded ring buffer and delivered, in order, by a task on a
+ *     <code>MailExecutor</code>, so a slow listener never holds up the
+ *     session. When the buffer is full new events are dropped and
+ *     counted.
+ * </ul>
+ *
+ * A session creates its dispatcher with an anonymous subclass that calls
+ * the session's listener interface.
+ *
+ * @see     com.messners.mail.POP3#getEventDispatcher()
+ * @see     com.messners.mail.SMTP#getEventDispatcher()
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public abstract class MailEventDispatcher<L> {
+
+	/**
+	 * The default number of bytes of progress coalesced into one event.
+	 */
+	public static final int DEFAULT_PROGRESS_BYTES = 16 * 1024;
+
+	/**
+	 * The default longest time, in milliseconds, progress is held back.
+	 */
+	public static final long DEFAULT_PROGRESS_MSECS = 100;
+
+	protected final Object source;
+	protected final CopyOnWriteArrayList<L> listeners =
+			new CopyOnWriteArrayList<L>();
+
+	/*
+	 * Progress that has not been delivered yet
+	 */
+	protected final Object progressLock = new Object();
+	protected int progressBytes = DEFAULT_PROGRESS_BYTES;
+	protected long progressNanos = DEFAULT_PROGRESS_MSECS * 1000000L;
+	protected int pendingBytes = 0;
+	protected int pendingTotal = 0;
+	protected int pendingSize = -1;
+	protected long lastProgress = System.nanoTime();
+
+	/*
+	 * The ring buffer of events waiting to be delivered, null when
+	 * events are delivered by the thread that fires them
+	 */
+	protected volatile ArrayBlockingQueue<MailStatusEvent> queue = null;
+	protected volatile MailExecutor executor = null;
+	protected final AtomicBoolean draining = new AtomicBoolean(false);
+	protected final AtomicLong dropped = new AtomicLong();
+
+
+	/**
+	 * Creates a dispatcher for the events of a session.
+	 *
+	 * @param  source  the source of the events
+	 */
+	public MailEventDispatcher (Object source) {
+		this.source = source;
+	}
+
+
+	/**
+	 * Delivers an event to a listener.
+	 *
+	 * @param  listener  the listener
+	 * @param  event     the event
+	 */
+	protected abstract void deliver (L listener, MailStatusEvent event);
+
+
+	/**
+	 * Adds a listener, a listener already added is not added again.
+	 *
+	 * @param  l  the listener to add
+	 * @return true if the listener was added
+	 */
+	public boolean addListener (L l) {
+		return (listeners.addIfAbsent(l));
+	}
+
+
+	/**
+	 * Removes a listener.
+	 *
+	 * @param  l  the listener to remove
+	 * @return true if the listener was removed
+	 */
+	public boolean removeListener (L l) {
+		return (listeners.remove(l));
+	}
+
+
+	/**
+	 * Returns true if any listeners are registered.
+	 *
+	 * @return true if there are listeners
+	 */
+	public boolean hasListeners () {
+		return (!listeners.isEmpty());
+	}
+
+
+	/**
+	 * Gets the number of registered listeners.
+	 *
+	 * @return the number of listeners
+	 */
+	public int getListenerCount () {
+		return (listeners.size());
+	}
+
+
+	/**
+	 * Sets how progress is coalesced. An event is delivered once the
+	 * bytes add up to the threshold or once the interval has passed since
+	 * the last progress event, whichever comes first. Use 0 bytes to
+	 * deliver every progress update.
+	 *
+	 * @param  bytes  the byte threshold
+	 * @param  msecs  the interval in milliseconds
+	 */
+	public void setProgressInterval (int bytes, long msecs) {
+
+		synchronized (progressLock) {
+			progressBytes = bytes;
+			progressNanos = msecs * 1000000L;
+		}
+	}
+
+
+	/**
+	 * Gets the number of bytes of progress coalesced into one event.
+	 *
+	 * @return the byte threshold
+	 */
+	public int getProgressBytes () {
+
+		synchronized (progressLock) {
+			return (progressBytes);
+		}
+	}
+
+
+	/**
+	 * Gets the longest time progress is held back.
+	 *
+	 * @return the interval in milliseconds
+	 */
+	public long getProgressInterval () {
+
+		synchronized (progressLock) {
+			return (progressNanos / 1000000L);
+		}
+	}
+
+
+	/**
+	 * Makes events be delivered asynchronously through a ring buffer
+	 * holding up to the specified number of events, or by the thread that
+	 * fires them.
+	 *
+	 * @param  capacity  the size of the ring buffer, 0 to deliver events
+	 * on the thread that fires them
+	 */
+	public synchronized void setAsync (int capacity) {
+
+		if (capacity > 0) {
+			queue = new ArrayBlockingQueue<MailStatusEvent>(capacity);
+		} else {
+			queue = null;
+		}
+	}
+
+
+	/**
+	 * Returns true if events are delivered asynchronously.
+	 *
+	 * @return true if events go through the ring buffer
+	 */
+	public boolean isAsync () {
+		return (queue != null);
+	}
+
+
+	/**
+	 * Sets the executor asynchronous events are delivered on. By default
+	 * the shared default <code>MailExecutor</code> is used.
+	 *
+	 * @param  executor  the executor, or null for the default executor
+	 */
+	public void setExecutor (MailExecutor executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Gets the number of events dropped because the ring buffer was full.
+	 *
+	 * @return the number of dropped events
+	 */
+	public long getDroppedCount () {
+		return (dropped.get());
+	}
+
+
+	/**
+	 * Fires a COMMAND, RESPONSE, START, DONE or EXCEPTION event.
+	 *
+	 * @param  type     the type of event
+	 * @param  message  the message for the event
+	 */
+	public void fireStatus (int type, String message) {
+
+		if (listeners.isEmpty()) {
+			return;
+		}
+
+		dispatch(new MailStatusEvent(source, type, message));
+	}
+
+
+	/**
+	 * Reports progress reading or writing a message. The progress is
+	 * added up and delivered as one PROGRESS event once enough has been
+	 * made.
+	 *
+	 * @param  bytes  the number of bytes processed since the last call
+	 * @param  total  the total number of bytes processed
+	 * @param  size   the size of the message, or -1 if not known
+	 */
+	public void fireProgress (int bytes, int total, int size) {
+
+		if (listeners.isEmpty()) {
+			return;
+		}
+
+		MailStatusEvent evt;
+		synchronized (progressLock) {
+
+			pendingBytes += bytes;
+			pendingTotal = total;
+			pendingSize  = size;
+
+			long now = System.nanoTime();
+			if (pendingBytes < progressBytes &&
+					now - lastProgress < progressNanos) {
+				return;
+			}
+
+			evt = new MailStatusEvent(source, pendingBytes, total, size);
+			pendingBytes = 0;
+			lastProgress = now;
+		}
+
+		dispatch(evt);
+	}
+
+
+	/**
+	 * Delivers any progress that is being held back, called when a
+	 * message is done.
+	 */
+	public void flushProgress () {
+
+		if (listeners.isEmpty()) {
+			return;
+		}
+
+		MailStatusEvent evt;
+		synchronized (progressLock) {
+
+			if (pendingBytes == 0) {
+				return;
+			}
+
+			evt = new MailStatusEvent(source,
+				pendingBytes, pendingTotal, pendingSize);
+			pendingBytes = 0;
+			lastProgress = System.nanoTime();
+		}
+
+		dispatch(evt);
+	}
+
+
+	/**
+	 * Delivers an event now, or puts it in the ring buffer.
+	 */
+	protected void dispatch (MailStatusEvent evt) {
+
+		ArrayBlockingQueue<MailStatusEvent> q = queue;
+		if (q == null) {
+			for (L l : listeners) {
+				deliver(l, evt);
+			}
+
+			return;
+		}
+
+		if (!q.offer(evt)) {
+			dropped.incrementAndGet();
+		}
+
+		schedule(q);
+	}
+
+
+	/**
+	 * Starts a task to deliver the events in the ring buffer unless one
+	 * is already running. If the task is rejected the events are left
+	 * for the next event to schedule.
+	 */
+	protected void schedule (final ArrayBlockingQueue<MailStatusEvent> q) {
+
+		if (!draining.compareAndSet(false, true)) {
+			return;
+		}
+
+		MailExecutor ex = executor;
+		if (ex == null) {
+			ex = MailExecutor.getDefault();
+		}
+
+		ex.submit(new Callable<Object>() {
+			public Object call () {
+				drain(q);
+				return (null);
+			}
+		}).whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept (Object result, Throwable t) {
+				if (t != null) {
+					draining.set(false);
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Delivers the events in the ring buffer in order. A listener that
+	 * throws does not stop the others from getting the event.
+	 */
+	protected void drain (ArrayBlockingQueue<MailStatusEvent> q) {
+
+		while (true) {
+
+			MailStatusEvent evt;
+			while ((evt = q.poll()) != null) {
+				for (L l : listeners) {
+					try {
+						deliver(l, evt);
+					} catch (RuntimeException ignore) {
+					}
+				}
+			}
+
+			/*
+			 * Check for an event added after the poll came up empty
+			 * but before draining was cleared
+			 */
+			draining.set(false);
+			if (q.isEmpty() || !draining.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+}
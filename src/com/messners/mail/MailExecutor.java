@@ -0,0 +1,429 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>MailExecutor</code> class runs mail tasks (such as sending a
+ * message in the background) with a bounded amount of concurrency and a
+ * bounded queue. When the runtime supports virtual threads each task runs
+ * on its own virtual thread, otherwise a fixed pool of daemon platform
+ * threads is used. Either way no more than <code>maxConcurrency</code>
+ * tasks run at once and no more than <code>queueCapacity</code> tasks
+ * wait to run.<p>
+ *
+ * What happens when a task is submitted and the queue is full is decided
+ * by the overflow policy:
+ * <pre>
+ *    OVERFLOW_REJECT       the returned future fails with a
+ *                          RejectedExecutionException
+ *    OVERFLOW_CALLER_RUNS  the task is run by the submitting thread
+ *    OVERFLOW_BLOCK        the submitting thread waits for room
+ * </pre>
+ *
+ * @see     com.messners.mail.SMTP#sendAsync()
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class MailExecutor {
+
+	/**
+	 * Specifies that tasks submitted when the queue is full fail with a
+	 * <code>RejectedExecutionException</code>.
+	 */
+	public static final int OVERFLOW_REJECT = 0;
+
+	/**
+	 * Specifies that tasks submitted when the queue is full are run by
+	 * the submitting thread.
+	 */
+	public static final int OVERFLOW_CALLER_RUNS = 1;
+
+	/**
+	 * Specifies that the submitting thread waits for room in the queue
+	 * when the queue is full.
+	 */
+	public static final int OVERFLOW_BLOCK = 2;
+
+
+	/**
+	 * Holds the shared default executor, created when first needed.
+	 */
+	private static MailExecutor defaultExecutor = null;
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+
+	protected final int maxConcurrency;
+	protected final int queueCapacity;
+	protected final int overflowPolicy;
+	protected final boolean virtual;
+
+	protected final ExecutorService executor;
+
+	/*
+	 * Admission permits cover running plus queued tasks, running
+	 * permits are only used with virtual threads
+	 */
+	protected final Semaphore admission;
+	protected final Semaphore running;
+
+	protected final AtomicInteger active = new AtomicInteger();
+	protected final AtomicLong completed = new AtomicLong();
+	protected final AtomicLong rejected = new AtomicLong();
+
+
+	/**
+	 * Creates a <code>MailExecutor</code> that uses virtual threads when
+	 * the runtime supports them.
+	 *
+	 * @param  maxConcurrency  the most tasks that will run at once
+	 * @param  queueCapacity   the most tasks that will wait to run
+	 * @param  overflowPolicy  OVERFLOW_REJECT, OVERFLOW_CALLER_RUNS
+	 * or OVERFLOW_BLOCK
+	 */
+	public MailExecutor (int maxConcurrency, int queueCapacity,
+			int overflowPolicy) {
+		this(maxConcurrency, queueCapacity, overflowPolicy, true);
+	}
+
+
+	/**
+	 * Creates a <code>MailExecutor</code>.
+	 *
+	 * @param  maxConcurrency  the most tasks that will run at once
+	 * @param  queueCapacity   the most tasks that will wait to run
+	 * @param  overflowPolicy  OVERFLOW_REJECT, OVERFLOW_CALLER_RUNS
+	 * or OVERFLOW_BLOCK
+	 * @param  useVirtualThreads  if true and the runtime supports
+	 * them, run each task on a virtual thread
+	 */
+	public MailExecutor (int maxConcurrency, int queueCapacity,
+			int overflowPolicy, boolean useVirtualThreads) {
+
+		if (maxConcurrency < 1 || queueCapacity < 0) {
+			throw new IllegalArgumentException(
+				"invalid concurrency or queue capacity");
+		}
+
+		if (overflowPolicy < OVERFLOW_REJECT ||
+				overflowPolicy > OVERFLOW_BLOCK) {
+			throw new IllegalArgumentException(
+				"invalid overflow policy: " + overflowPolicy);
+		}
+
+		this.maxConcurrency = maxConcurrency;
+		this.queueCapacity  = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+		this.admission = new Semaphore(maxConcurrency + queueCapacity);
+
+		ExecutorService vexecutor = null;
+		if (useVirtualThreads) {
+			vexecutor = newVirtualThreadExecutor();
+		}
+
+		if (vexecutor != null) {
+
+			this.virtual  = true;
+			this.executor = vexecutor;
+			this.running  = new Semaphore(maxConcurrency, true);
+
+		} else {
+
+			this.virtual  = false;
+			this.running  = null;
+
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				maxConcurrency, maxConcurrency,
+				60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread (Runnable r) {
+						Thread t = new Thread(r, "jgmail-" +
+							threadNumber.incrementAndGet());
+						t.setDaemon(true);
+						return (t);
+					}
+				});
+			pool.allowCoreThreadTimeOut(true);
+			this.executor = pool;
+		}
+	}
+
+
+	/**
+	 * Gets the shared default executor. Unless replaced with
+	 * <code>setDefault()</code> this allows 16 concurrent tasks, queues
+	 * up to 1000 more, and rejects tasks beyond that.
+	 *
+	 * @return the shared default executor
+	 */
+	public static synchronized MailExecutor getDefault () {
+
+		if (defaultExecutor == null) {
+			defaultExecutor = new MailExecutor(16, 1000, OVERFLOW_REJECT);
+		}
+
+		return (defaultExecutor);
+	}
+
+
+	/**
+	 * Replaces the shared default executor. The previous default
+	 * executor is not shut down.
+	 *
+	 * @param  executor  the new default executor
+	 */
+	public static synchronized void setDefault (MailExecutor executor) {
+		defaultExecutor = executor;
+	}
+
+
+	/**
+	 * Submits a task to be run. The returned future completes with the
+	 * result of the task, or exceptionally with the exception thrown by
+	 * the task (or a <code>RejectedExecutionException</code> if the task
+	 * was rejected).
+	 *
+	 * @param  task  the task to run
+	 * @return a future for the result of the task
+	 */
+	public <T> CompletableFuture<T> submit (final Callable<T> task) {
+
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/*
+		 * Get room in the queue, what to do when there is none
+		 * depends on the overflow policy
+		 */
+		if (!admission.tryAcquire()) {
+
+			switch (overflowPolicy) {
+
+			  case OVERFLOW_CALLER_RUNS:
+				run(task, future);
+				return (future);
+
+			  case OVERFLOW_BLOCK:
+				try {
+					admission.acquire();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					rejected.incrementAndGet();
+					future.completeExceptionally(
+						new RejectedExecutionException(
+							"interrupted waiting to queue task"));
+					return (future);
+				}
+
+				break;
+
+			  default:
+				rejected.incrementAndGet();
+				future.completeExceptionally(
+					new RejectedExecutionException(
+						"mail executor queue is full"));
+				return (future);
+			}
+		}
+
+		try {
+
+			executor.execute(new Runnable() {
+				public void run () {
+					try {
+						runQueued(task, future);
+					} finally {
+						admission.release();
+					}
+				}
+			});
+
+		} catch (RejectedExecutionException ree) {
+			admission.release();
+			rejected.incrementAndGet();
+			future.completeExceptionally(ree);
+		}
+
+		return (future);
+	}
+
+
+	/**
+	 * Runs a task taken from the queue. Virtual threads are not pooled
+	 * so the number running at once is limited here.
+	 */
+	private <T> void runQueued (Callable<T> task,
+			CompletableFuture<T> future) {
+
+		if (running == null) {
+			run(task, future);
+			return;
+		}
+
+		try {
+			running.acquire();
+		} catch (InterruptedException ie) {
+			future.completeExceptionally(ie);
+			return;
+		}
+
+		try {
+			run(task, future);
+		} finally {
+			running.release();
+		}
+	}
+
+
+	/**
+	 * Runs the task and completes the future with the outcome.
+	 */
+	private <T> void run (Callable<T> task, CompletableFuture<T> future) {
+
+		active.incrementAndGet();
+		try {
+			future.complete(task.call());
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+		} finally {
+			active.decrementAndGet();
+			completed.incrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Returns true if tasks are run on virtual threads.
+	 *
+	 * @return true if tasks are run on virtual threads
+	 */
+	public boolean isVirtual () {
+		return (virtual);
+	}
+
+
+	/**
+	 * Gets the overflow policy.
+	 *
+	 * @return OVERFLOW_REJECT, OVERFLOW_CALLER_RUNS or OVERFLOW_BLOCK
+	 */
+	public int getOverflowPolicy () {
+		return (overflowPolicy);
+	}
+
+
+	/**
+	 * Gets the number of tasks currently running.
+	 *
+	 * @return the number of running tasks
+	 */
+	public int getActiveCount () {
+		return (active.get());
+	}
+
+
+	/**
+	 * Gets the number of tasks that are waiting to run.
+	 *
+	 * @return the number of queued tasks
+	 */
+	public int getQueuedCount () {
+
+		int pending = maxConcurrency + queueCapacity -
+			admission.availablePermits() - active.get();
+		return (pending < 0 ? 0 : pending);
+	}
+
+
+	/**
+	 * Gets the number of tasks that have finished running.
+	 *
+	 * @return the number of completed tasks
+	 */
+	public long getCompletedCount () {
+		return (completed.get());
+	}
+
+
+	/**
+	 * Gets the number of tasks that were rejected because the
+	 * queue was full.
+	 *
+	 * @return the number of rejected tasks
+	 */
+	public long getRejectedCount () {
+		return (rejected.get());
+	}
+
+
+	/**
+	 * Stops accepting tasks. Tasks already queued are still run.
+	 */
+	public void shutdown () {
+		executor.shutdown();
+	}
+
+
+	/**
+	 * Waits for the queued and running tasks to finish after a
+	 * <code>shutdown()</code>.
+	 *
+	 * @param  msecs  the most milliseconds to wait
+	 * @return true if all tasks finished
+	 * @exception InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitTermination (long msecs) throws InterruptedException {
+		return (executor.awaitTermination(msecs, TimeUnit.MILLISECONDS));
+	}
+
+
+	/**
+	 * Creates a virtual thread per task executor if the runtime has
+	 * them (Java 21 and later). This is done with reflection so that
+	 * this class still loads on older runtimes.
+	 *
+	 * @return the executor or null if virtual threads are not available
+	 */
+	static ExecutorService newVirtualThreadExecutor () {
+
+		try {
+			return ((ExecutorService)java.util.concurrent.Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor")
+				.invoke(null));
+		} catch (Exception e) {
+			return (null);
+		}
+	}
+}
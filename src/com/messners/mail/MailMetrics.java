@@ -0,0 +1,531 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The <code>MailMetrics</code> class collects latency histograms for
+ * each protocol phase along with counts of the bytes in and out, the
+ * messages handled and the error replies received, by reply code. One
+ * instance can be shared by any number of <code>SMTP</code>,
+ * <code>SMTPSession</code>, <code>SMTPTransport</code> and
+ * <code>POP3</code> instances, nothing is collected by those that have
+ * no metrics set.<p>
+ *
+ * The phases for SMTP are CONNECT, GREETING, the command verbs (EHLO,
+ * AUTH, MAIL, RCPT, DATA, RSET and so on, timed from the command being
+ * sent to its reply arriving), DATA-TRANSFER for writing the message
+ * data, DATA-END for the wait for the reply that follows the data, and
+ * SEND for the whole of each message. For POP3 they are CONNECT,
+ * GREETING and the command verbs (USER, STAT, RETR and so on, timed to
+ * the first line of the reply). Example:
+ * <pre>
+ *    MailMetrics metrics = new MailMetrics();
+ *    metrics.register("relay");
+ *    smtp.setMetrics(metrics);
+ *    ...
+ *    System.out.println(metrics.getReport());
+ *    System.out.println(metrics.getHistogram("RCPT").getValueAtPercentile(99.0));
+ * </pre>
+ *
+ * The metrics can also be viewed and reset with any JMX console once
+ * registered with <code>register()</code>.
+ *
+ * @see     com.messners.mail.LatencyHistogram
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class MailMetrics implements MailMetricsMBean {
+
+	/**
+	 * The phase for opening the connection to the server.
+	 */
+	public static final String CONNECT = "CONNECT";
+
+	/**
+	 * The phase for waiting on the greeting from the server.
+	 */
+	public static final String GREETING = "GREETING";
+
+	/**
+	 * The phase for writing the message data after the DATA command.
+	 */
+	public static final String DATA_TRANSFER = "DATA-TRANSFER";
+
+	/**
+	 * The phase for waiting on the reply that follows the message data.
+	 */
+	public static final String DATA_END = "DATA-END";
+
+	/**
+	 * The phase covering the whole of sending a message.
+	 */
+	public static final String SEND = "SEND";
+
+	/**
+	 * The error code used for POP3 "-ERR" replies.
+	 */
+	public static final String POP3_ERR = "-ERR";
+
+
+	protected final ConcurrentHashMap<String, LatencyHistogram> histograms =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+	protected final ConcurrentHashMap<String, AtomicLong> errors =
+			new ConcurrentHashMap<String, AtomicLong>();
+
+	protected final AtomicLong bytesIn = new AtomicLong();
+	protected final AtomicLong bytesOut = new AtomicLong();
+	protected final AtomicLong messages = new AtomicLong();
+
+	protected ObjectName objectName = null;
+
+
+	/**
+	 * Creates an empty <code>MailMetrics</code>.
+	 */
+	public MailMetrics () {
+	}
+
+
+	/**
+	 * Records the time elapsed for a phase.
+	 *
+	 * @param  phase       the phase name
+	 * @param  startNanos  the start time of the phase as returned by
+	 * <code>System.nanoTime()</code>
+	 */
+	public void record (String phase, long startNanos) {
+		histogramFor(phase).recordSince(startNanos);
+	}
+
+
+	/**
+	 * Counts an error reply.
+	 *
+	 * @param  code  the reply code, for example "550" or "-ERR"
+	 */
+	public void countError (String code) {
+
+		AtomicLong counter = errors.get(code);
+		if (counter == null) {
+			AtomicLong c = new AtomicLong();
+			counter = errors.putIfAbsent(code, c);
+			if (counter == null) {
+				counter = c;
+			}
+		}
+
+		counter.incrementAndGet();
+	}
+
+
+	/**
+	 * Counts a message sent or retrieved.
+	 */
+	public void countMessage () {
+		messages.incrementAndGet();
+	}
+
+
+	/**
+	 * Wraps a stream read from a server so that the bytes read from it
+	 * are counted.
+	 *
+	 * @param  in  the stream to wrap
+	 * @return the counting stream
+	 */
+	public InputStream countInput (InputStream in) {
+		return (new CountingInputStream(in));
+	}
+
+
+	/**
+	 * Wraps a stream written to a server so that the bytes written to
+	 * it are counted.
+	 *
+	 * @param  out  the stream to wrap
+	 * @return the counting stream
+	 */
+	public OutputStream countOutput (OutputStream out) {
+		return (new CountingOutputStream(out));
+	}
+
+
+	/**
+	 * Gets the number of bytes read from mail servers.
+	 *
+	 * @return the number of bytes read
+	 */
+	public long getBytesIn () {
+		return (bytesIn.get());
+	}
+
+
+	/**
+	 * Gets the number of bytes written to mail servers.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long getBytesOut () {
+		return (bytesOut.get());
+	}
+
+
+	/**
+	 * Gets the number of messages sent or retrieved.
+	 *
+	 * @return the number of messages
+	 */
+	public long getMessages () {
+		return (messages.get());
+	}
+
+
+	/**
+	 * Gets the number of error replies received.
+	 *
+	 * @return the number of error replies
+	 */
+	public long getErrors () {
+
+		long n = 0;
+		for (AtomicLong counter : errors.values()) {
+			n += counter.get();
+		}
+
+		return (n);
+	}
+
+
+	/**
+	 * Gets the number of error replies received with a reply code.
+	 *
+	 * @param  code  the reply code, for example "550" or "-ERR"
+	 * @return the number of error replies with the code
+	 */
+	public long getErrors (String code) {
+
+		AtomicLong counter = errors.get(code);
+		return (counter == null ? 0 : counter.get());
+	}
+
+
+	/**
+	 * Gets the reply codes that errors have been counted for.
+	 *
+	 * @return the reply codes, sorted
+	 */
+	public String [] getErrorCodes () {
+
+		String codes[] = errors.keySet().toArray(new String[0]);
+		Arrays.sort(codes);
+		return (codes);
+	}
+
+
+	/**
+	 * Gets the error counts by reply code, as "code=count" strings.
+	 *
+	 * @return the error counts
+	 */
+	public String [] getErrorCounts () {
+
+		String codes[] = getErrorCodes();
+		for (int i = 0; i < codes.length; i++) {
+			codes[i] = codes[i] + "=" + getErrors(codes[i]);
+		}
+
+		return (codes);
+	}
+
+
+	/**
+	 * Gets the names of the phases that latencies have been
+	 * recorded for.
+	 *
+	 * @return the phase names, sorted
+	 */
+	public String [] getPhases () {
+
+		String phases[] = histograms.keySet().toArray(new String[0]);
+		Arrays.sort(phases);
+		return (phases);
+	}
+
+
+	/**
+	 * Gets a snapshot of the latency histogram for a phase.
+	 *
+	 * @param  phase  the phase name
+	 * @return a copy of the histogram, empty if nothing has been
+	 * recorded for the phase
+	 */
+	public LatencyHistogram getHistogram (String phase) {
+
+		LatencyHistogram h = histograms.get(phase);
+		return (h == null ? new LatencyHistogram() : h.copy());
+	}
+
+
+	/**
+	 * Gets a one line latency summary for each phase.
+	 *
+	 * @return the summaries, as "phase: summary" strings
+	 */
+	public String [] getLatencySummary () {
+
+		String phases[] = getPhases();
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = phases[i] + ": " + getHistogram(phases[i]);
+		}
+
+		return (phases);
+	}
+
+
+	/**
+	 * Gets the number of latencies recorded for a phase.
+	 *
+	 * @param  phase  the phase name
+	 * @return the number of latencies recorded
+	 */
+	public long getCount (String phase) {
+
+		LatencyHistogram h = histograms.get(phase);
+		return (h == null ? 0 : h.getCount());
+	}
+
+
+	/**
+	 * Gets the mean latency of a phase.
+	 *
+	 * @param  phase  the phase name
+	 * @return the mean latency in microseconds
+	 */
+	public double getMean (String phase) {
+
+		LatencyHistogram h = histograms.get(phase);
+		return (h == null ? 0.0 : h.getMean());
+	}
+
+
+	/**
+	 * Gets the latency at a percentile for a phase.
+	 *
+	 * @param  phase       the phase name
+	 * @param  percentile  the percentile, from 0.0 to 100.0
+	 * @return the latency at the percentile in microseconds
+	 */
+	public long getValueAtPercentile (String phase, double percentile) {
+
+		LatencyHistogram h = histograms.get(phase);
+		return (h == null ? 0 : h.getValueAtPercentile(percentile));
+	}
+
+
+	/**
+	 * Clears all the counters and latencies.
+	 */
+	public void reset () {
+
+		for (LatencyHistogram h : histograms.values()) {
+			h.reset();
+		}
+
+		for (AtomicLong counter : errors.values()) {
+			counter.set(0);
+		}
+
+		bytesIn.set(0);
+		bytesOut.set(0);
+		messages.set(0);
+	}
+
+
+	/**
+	 * Gets a multi-line text report of all the counters and latencies.
+	 *
+	 * @return the report
+	 */
+	public String getReport () {
+
+		StringBuffer buf = new StringBuffer();
+		buf.append("bytes in: ").append(getBytesIn());
+		buf.append(", bytes out: ").append(getBytesOut());
+		buf.append(", messages: ").append(getMessages());
+		buf.append(", errors: ").append(getErrors());
+		buf.append("\n");
+
+		String counts[] = getErrorCounts();
+		if (counts.length > 0) {
+			buf.append("errors by code:");
+			for (int i = 0; i < counts.length; i++) {
+				buf.append(" ").append(counts[i]);
+			}
+
+			buf.append("\n");
+		}
+
+		String summary[] = getLatencySummary();
+		for (int i = 0; i < summary.length; i++) {
+			buf.append(summary[i]).append("\n");
+		}
+
+		return (buf.toString());
+	}
+
+
+	/**
+	 * Registers the metrics with the platform MBean server under the
+	 * name "com.messners.mail:type=MailMetrics,name=<i>name</i>". If
+	 * already registered the previous registration is removed first.
+	 *
+	 * @param  name  the name to register the metrics under
+	 * @exception  JMException  when the metrics cannot be registered
+	 */
+	public synchronized void register (String name) throws JMException {
+
+		unregister();
+
+		ObjectName on = new ObjectName("com.messners.mail:type=MailMetrics," +
+			"name=" + ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, on);
+		objectName = on;
+	}
+
+
+	/**
+	 * Removes the metrics from the platform MBean server. Does nothing
+	 * if they are not registered.
+	 *
+	 * @exception  JMException  when the metrics cannot be unregistered
+	 */
+	public synchronized void unregister () throws JMException {
+
+		if (objectName == null) {
+			return;
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+
+		objectName = null;
+	}
+
+
+	/**
+	 * Gets the histogram for a phase, creating it if needed.
+	 */
+	protected LatencyHistogram histogramFor (String phase) {
+
+		LatencyHistogram h = histograms.get(phase);
+		if (h == null) {
+			LatencyHistogram newh = new LatencyHistogram();
+			h = histograms.putIfAbsent(phase, newh);
+			if (h == null) {
+				h = newh;
+			}
+		}
+
+		return (h);
+	}
+
+
+	/**
+	 * Counts the bytes read through it.
+	 */
+	protected class CountingInputStream extends FilterInputStream {
+
+		protected CountingInputStream (InputStream in) {
+			super(in);
+		}
+
+		public int read () throws IOException {
+
+			int c = in.read();
+			if (c != -1) {
+				bytesIn.incrementAndGet();
+			}
+
+			return (c);
+		}
+
+		public int read (byte buf[], int offset, int len)
+				throws IOException {
+
+			int n = in.read(buf, offset, len);
+			if (n > 0) {
+				bytesIn.addAndGet(n);
+			}
+
+			return (n);
+		}
+
+		public long skip (long n) throws IOException {
+
+			long skipped = in.skip(n);
+			if (skipped > 0) {
+				bytesIn.addAndGet(skipped);
+			}
+
+			return (skipped);
+		}
+	}
+
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	protected class CountingOutputStream extends FilterOutputStream {
+
+		protected CountingOutputStream (OutputStream out) {
+			super(out);
+		}
+
+		public void write (int b) throws IOException {
+			out.write(b);
+			bytesOut.incrementAndGet();
+		}
+
+		public void write (byte buf[], int offset, int len)
+				throws IOException {
+			out.write(buf, offset, len);
+			bytesOut.addAndGet(len);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+/**
+ * The management interface of <code>MailMetrics</code>, used when the
+ * metrics are registered with the platform MBean server. All latencies
+ * are in microseconds.
+ *
+ * @see     com.messners.mail.MailMetrics#register(String)
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public interface MailMetricsMBean {
+
+	/**
+	 * Gets the number of bytes read from mail servers.
+	 *
+	 * @return the number of bytes read
+	 */
+	long getBytesIn ();
+
+	/**
+	 * Gets the number of bytes written to mail servers.
+	 *
+	 * @return the number of bytes written
+	 */
+	long getBytesOut ();
+
+	/**
+	 * Gets the number of messages sent or retrieved.
+	 *
+	 * @return the number of messages
+	 */
+	long getMessages ();
+
+	/**
+	 * Gets the number of error replies received.
+	 *
+	 * @return the number of error replies
+	 */
+	long getErrors ();
+
+	/**
+	 * Gets the error counts by reply code, as "code=count" strings.
+	 *
+	 * @return the error counts
+	 */
+	String [] getErrorCounts ();
+
+	/**
+	 * Gets the names of the phases that latencies have been
+	 * recorded for.
+	 *
+	 * @return the phase names
+	 */
+	String [] getPhases ();
+
+	/**
+	 * Gets a one line latency summary for each phase.
+	 *
+	 * @return the summaries, as "phase: summary" strings
+	 */
+	String [] getLatencySummary ();
+
+	/**
+	 * Gets the number of latencies recorded for a phase.
+	 *
+	 * @param  phase  the phase name
+	 * @return the number of latencies recorded
+	 */
+	long getCount (String phase);
+
+	/**
+	 * Gets the mean latency of a phase.
+	 *
+	 * @param  phase  the phase name
+	 * @return the mean latency
+	 */
+	double getMean (String phase);
+
+	/**
+	 * Gets the latency at a percentile for a phase.
+	 *
+	 * @param  phase       the phase name
+	 * @param  percentile  the percentile, from 0.0 to 100.0
+	 * @return the latency at the percentile
+	 */
+	long getValueAtPercentile (String phase, double percentile);
+
+	/**
+	 * Clears all the counters and latencies.
+	 */
+	void reset ();
+}
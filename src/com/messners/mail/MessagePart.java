@@ -21,9 +21,35 @@
 
 package com.messners.mail;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
 /**
  * The <code>MessagePart</code> class encapsulates the definition of
- * an email message body. 
+ * an email message body.<p>
+ *
+ * The text of a part is kept in memory until it grows past the spill
+ * threshold, after that it is moved to a temporary file and the rest of
+ * the text is appended to the file. The text of a spilled part is best
+ * read with <code>getReader()</code> or <code>getCharSequence()</code>,
+ * which map the file rather than reading it into the heap. The temporary
+ * file is only removed by <code>dispose()</code>, callers must call it
+ * (or <code>POP3MailMessage.dispose()</code>) once they are done with a
+ * spilled part.
  *
  * @author  Gregory M. Messner <gmessner@messners.com>
  * @version $Revision: 1.1 $
@@ -49,8 +75,20 @@ public class MessagePart {
 	protected String contentType = null;
 	protected String encoding    = null;
 	protected String charset     = null;
+	protected String contentHash = null;
 
 	protected StringBuffer buf = new StringBuffer();
+	protected long length = 0;
+
+	/*
+	 * The temporary file holding the text once it passes the spill
+	 * threshold, it is stored as UTF-16BE so that it can be mapped as a
+	 * CharBuffer
+	 */
+	protected int spillThreshold = -1;
+	protected File spillFile     = null;
+	protected Writer spillOut    = null;
+	protected CharBuffer mapped  = null;
 	
 	protected MessagePart () {
 	}
@@ -133,13 +171,206 @@ public class MessagePart {
 	 */
 	public void append (String s) {
 
-		if (buf.length() > 0) {
-			buf.append('\n');
+		if (length > 0) {
+			write("\n");
+		}
+
+		write(s);
+	}
+
+
+	/**
+	 * Append the string to the body of this message without starting a
+	 * new line. If this takes the text past the spill threshold the text
+	 * is moved to a temporary file.
+	 *
+	 * @param  s  the string to append
+	 * @exception  java.io.UncheckedIOException  when the temporary file
+	 * can not be written
+	 */
+	public void write (String s) {
+
+		try {
+
+			if (spillFile == null) {
+				if (spillThreshold < 0 ||
+						buf.length() + s.length() <= spillThreshold) {
+					buf.append(s);
+					length += s.length();
+					text = null;
+					return;
+				}
+
+				spill();
+			}
+
+			if (spillOut == null) {
+				spillOut = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(spillFile, true),
+					StandardCharsets.UTF_16BE));
+				mapped = null;
+			}
+
+			spillOut.write(s);
+			length += s.length();
+			text = null;
+
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+
+	/**
+	 * Sets the number of characters of text kept in memory, past this the
+	 * text is moved to a temporary file.
+	 *
+	 * @param  chars  the spill threshold in characters, or a negative
+	 * value to always keep the text in memory
+	 */
+	public void setSpillThreshold (int chars) {
+		spillThreshold = chars;
+	}
+
+
+	/**
+	 * Gets the number of characters of text kept in memory.
+	 *
+	 * @return the spill threshold in characters, negative if the text is
+	 * always kept in memory
+	 */
+	public int getSpillThreshold () {
+		return (spillThreshold);
+	}
+
+
+	/**
+	 * Returns true if the text of this part has been moved to a
+	 * temporary file.
+	 *
+	 * @return true if the text has been spilled to a file
+	 */
+	public boolean isSpilled () {
+		return (spillFile != null);
+	}
+
+
+	/**
+	 * Gets the temporary file holding the text of this part, the text is
+	 * stored in the file as UTF-16BE.
+	 *
+	 * @return the temporary file, or null if the text is in memory
+	 */
+	public File getSpillFile () {
+		return (spillFile);
+	}
+
+
+	/**
+	 * Gets the length of the text of the message body.
+	 *
+	 * @return the number of characters of text
+	 */
+	public long getLength () {
+		return (length);
+	}
+
+
+	/**
+	 * Gets a Reader for the text of the message body. The text of a
+	 * spilled part is read from its temporary file.
+	 *
+	 * @return a Reader for the text
+	 * @exception  IOException  when the temporary file can not be read
+	 */
+	public Reader getReader () throws IOException {
+
+		if (spillFile == null) {
+			return (new StringReader(getText()));
 		}
 
-		buf.append(s);
+		closeSpill();
+		return (new BufferedReader(new InputStreamReader(
+			new FileInputStream(spillFile), StandardCharsets.UTF_16BE)));
+	}
+
+
+	/**
+	 * Gets the text of the message body as a CharSequence. The text of a
+	 * spilled part is memory-mapped from its temporary file instead of
+	 * being read into the heap, this allows up to 1G characters.
+	 *
+	 * @return the text
+	 * @exception  IOException  when the temporary file can not be mapped
+	 */
+	public CharSequence getCharSequence () throws IOException {
+
+		if (spillFile == null) {
+			return (getText());
+		}
+
+		closeSpill();
+		if (mapped == null) {
+			try (FileChannel channel = FileChannel.open(
+					spillFile.toPath(), StandardOpenOption.READ)) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size()).asCharBuffer();
+			}
+		}
+
+		return (mapped.duplicate());
+	}
+
+
+	/**
+	 * Deletes the temporary file of a spilled part. The text of the part
+	 * is gone after this. This must be called for every spilled part, the
+	 * temporary file is not otherwise deleted.
+	 */
+	public void dispose () {
+
+		try {
+			closeSpill();
+		} catch (IOException ignore) {
+		}
+
+		mapped = null;
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
+
+		buf = new StringBuffer();
+		length = 0;
 		text = null;
 	}
+
+
+	/**
+	 * Moves the text held in memory to a temporary file.
+	 */
+	protected void spill () throws IOException {
+
+		spillFile = File.createTempFile("part", ".txt");
+		spillOut = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(spillFile), StandardCharsets.UTF_16BE));
+		spillOut.write(buf.toString());
+		buf = new StringBuffer();
+	}
+
+
+	/**
+	 * Flushes and closes the temporary file so it can be read, more text
+	 * can still be appended after this.
+	 */
+	protected void closeSpill () throws IOException {
+
+		if (spillOut != null) {
+			Writer w = spillOut;
+			spillOut = null;
+			w.close();
+		}
+	}
 	
 
 	/**
@@ -160,10 +391,24 @@ public class MessagePart {
 
 
 	/**
-	 * Get the text of the message body.
+	 * Get the text of the message body. The text of a spilled part is
+	 * read back into memory each time this is called, use
+	 * <code>getReader()</code> or <code>getCharSequence()</code> for
+	 * large parts.
+	 *
+	 * @exception  java.io.UncheckedIOException  when the temporary file
+	 * of a spilled part can not be read
 	 */
 	public String getText () {
 
+		if (spillFile != null) {
+			try {
+				return (getCharSequence().toString());
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
 		if (this.text == null) {
 			this.text = buf.toString();
 		}
@@ -204,6 +449,29 @@ public class MessagePart {
 	}
 
 
+	/**
+	 * Get the content hash of an attachment saved in an
+	 * <code>AttachmentStore</code>, the filename is then the shared blob
+	 * for the content.
+	 *
+	 * @return the content hash, or null if the attachment was not saved
+	 * in a store
+	 */
+	public String getContentHash () {
+		return (contentHash);
+	}
+
+
+	/**
+	 * Sets the blob an attachment was saved in by an
+	 * <code>AttachmentStore</code>.
+	 */
+	void setStoredContent (String hash, String filename) {
+		this.contentHash = hash;
+		this.filename = filename;
+	}
+
+
 	/**
 	 * Get the content type and charset or name from a string
 	 *
@@ -0,0 +1,847 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The <code>MimeParser</code> class is a pull parser for a MIME message
+ * read from a <code>POP3Reader</code>. Each call to <code>next()</code>
+ * reads just enough of the message to return the next event:
+ * <pre>
+ *    HEADER_FIELD  a field of the header of the message or of a part
+ *    PART_START    the header of a part is complete
+ *    BODY          a line of the body of a part that is not a multipart
+ *    PART_END      the end of a part
+ *    END           the end of the message
+ * </pre>
+ *
+ * The message itself is the part at depth 0. The parts of a multipart are
+ * one level deeper than the multipart, and nested multiparts are parsed
+ * the same way. The preamble and epilogue of a multipart are skipped.<p>
+ *
+ * After a PART_START the consumer decides what to do with the part: read
+ * its BODY events, skip it with <code>skipPart()</code> (which also skips
+ * all the parts inside a multipart), buffer it with
+ * <code>readBody()</code>, or stream it to a sink with
+ * <code>readBody(OutputStream)</code>. The body is decoded when it is
+ * read this way if it has a Base64 transfer encoding.<p>
+ *
+ * A BODY event's line is a slice of the reader's buffer and is only valid
+ * until <code>next()</code> is called again.
+ *
+ * @see     com.messners.mail.POP3Reader
+ * @see     com.messners.mail.POP3MailMessage
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class MimeParser {
+
+	/**
+	 * Event for a field of the header of the message or a part.
+	 */
+	public static final int HEADER_FIELD = 1;
+
+	/**
+	 * Event for the start of a part, after its header has been read.
+	 */
+	public static final int PART_START = 2;
+
+	/**
+	 * Event for a line of the body of a part.
+	 */
+	public static final int BODY = 3;
+
+	/**
+	 * Event for the end of a part.
+	 */
+	public static final int PART_END = 4;
+
+	/**
+	 * Event for the end of the message.
+	 */
+	public static final int END = 5;
+
+	/*
+	 * Parser states
+	 */
+	protected static final int HEADER   = 0;
+	protected static final int CONTENT  = 1;
+	protected static final int PREAMBLE = 2;
+	protected static final int EPILOGUE = 3;
+	protected static final int DONE     = 4;
+
+	protected static final byte CRLF[] = { '\r', '\n' };
+
+
+	protected final POP3Reader in;
+	protected int state = HEADER;
+
+	/*
+	 * The multiparts being parsed, innermost last, and the part whose
+	 * body is being read
+	 */
+	protected final ArrayList<Part> multiparts = new ArrayList<Part>();
+	protected Part leaf = null;
+
+	/*
+	 * The header of the part being read and its last field
+	 */
+	protected Map<String, String> header = null;
+	protected String fieldName = null;
+	protected StringBuilder fieldValue = new StringBuilder();
+
+	protected final ArrayDeque<Event> events = new ArrayDeque<Event>();
+	protected Event current = null;
+	protected Event pushedBack = null;
+	protected Part skipping = null;
+
+	/*
+	 * The current event
+	 */
+	protected int event = 0;
+	protected Part part = null;
+	protected String name = null;
+	protected String value = null;
+	protected ByteBuffer body = null;
+
+	/*
+	 * Base64 characters carried from one body line to the next
+	 */
+	protected byte base64Buf[] = null;
+	protected int base64Carry = 0;
+
+
+	/**
+	 * Creates a <code>MimeParser</code> that reads a message from the
+	 * specified reader, which must be positioned at the start of the
+	 * message header.
+	 *
+	 * @param  in  the reader to read the message from
+	 */
+	public MimeParser (POP3Reader in) {
+		this.in = in;
+	}
+
+
+	/**
+	 * Reads the message up to the next event and returns it.
+	 *
+	 * @return HEADER_FIELD, PART_START, BODY, PART_END or END
+	 * @exception  IOException  If an I/O error occurs 
+	 */
+	public int next () throws IOException {
+
+		if (pushedBack != null) {
+			Event e = pushedBack;
+			pushedBack = null;
+			return (setEvent(e));
+		}
+
+		while (true) {
+
+			Event e = events.poll();
+			if (e != null) {
+
+				if (skipping != null) {
+					if (e.type == PART_END && e.part == skipping) {
+						skipping = null;
+					} else if (e.depth > skipping.depth) {
+						continue;
+					}
+				}
+
+				return (setEvent(e));
+			}
+
+			if (state == DONE) {
+				return (setEvent(new Event(END, 0, null)));
+			}
+
+			if (step() && skipping == null) {
+				event   = BODY;
+				current = null;
+				name    = null;
+				value   = null;
+				part    = leaf;
+				return (BODY);
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the current event.
+	 *
+	 * @return the current event, or 0 before the first call to
+	 * <code>next()</code>
+	 */
+	public int getEvent () {
+		return (event);
+	}
+
+
+	/**
+	 * Gets the name of the header field for a HEADER_FIELD event.
+	 *
+	 * @return the field name as it appears in the header
+	 */
+	public String getFieldName () {
+		return (name);
+	}
+
+
+	/**
+	 * Gets the value of the header field for a HEADER_FIELD event. Folded
+	 * lines are joined with a single space.
+	 *
+	 * @return the field value
+	 */
+	public String getFieldValue () {
+		return (value);
+	}
+
+
+	/**
+	 * Gets the line for a BODY event. The line does not include the line
+	 * ending, and it is only valid until <code>next()</code> is called.
+	 *
+	 * @return the line as a slice of the reader's buffer
+	 */
+	public ByteBuffer getBody () {
+		return (body);
+	}
+
+
+	/**
+	 * Gets the header of the part for a PART_START, BODY or PART_END
+	 * event. The field names are in lower case.
+	 *
+	 * @return the header of the part
+	 */
+	public Map<String, String> getPartHeader () {
+		return (part != null ? part.header : null);
+	}
+
+
+	/**
+	 * Gets a field from the header of the current part.
+	 *
+	 * @param  fieldName  the name of the field, in any case
+	 * @return the field value, or null if the part has no such field
+	 */
+	public String getHeaderValue (String fieldName) {
+		return (part != null ? part.header.get(fieldName.toLowerCase()) : null);
+	}
+
+
+	/**
+	 * Gets the content type of the current part, without its parameters.
+	 * A part with no content type is "text/plain", unless it is in a
+	 * "multipart/digest" in which case it is "message/rfc822".
+	 *
+	 * @return the content type in lower case
+	 */
+	public String getContentType () {
+		return (part != null ? part.contentType : null);
+	}
+
+
+	/**
+	 * Gets the transfer encoding of the current part.
+	 *
+	 * @return the transfer encoding in lower case, or null if none is
+	 * given
+	 */
+	public String getEncoding () {
+		return (part != null ? part.encoding : null);
+	}
+
+
+	/**
+	 * Gets how deeply the current part is nested, the message is at
+	 * depth 0.
+	 *
+	 * @return the depth of the current part
+	 */
+	public int getDepth () {
+		return (current != null ? current.depth : (part != null ? part.depth : 0));
+	}
+
+
+	/**
+	 * Returns true if the current part is a multipart.
+	 *
+	 * @return true if the current part is a multipart
+	 */
+	public boolean isMultipart () {
+		return (part != null && part.boundary != null);
+	}
+
+
+	/**
+	 * Skips the rest of the current part, including the parts inside it
+	 * if it is a multipart. The next event is the PART_END of the part.
+	 */
+	public void skipPart () {
+
+		if (part != null && event != PART_END) {
+			skipping = part;
+		}
+	}
+
+
+	/**
+	 * Reads the rest of the body of the current part and returns it
+	 * decoded. The next event is the PART_END of the part.
+	 *
+	 * @return the body
+	 * @exception  IOException  If an I/O error occurs 
+	 */
+	public byte[] readBody () throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		readBody(out);
+		return (out.toByteArray());
+	}
+
+
+	/**
+	 * Reads the rest of the body of the current part and writes it
+	 * decoded to the stream. Lines that are not Base64 encoded are
+	 * written separated by CRLF. The next event is the PART_END of the
+	 * part.
+	 *
+	 * @param  out  the stream to write the body to
+	 * @exception  IOException  If an I/O error occurs 
+	 */
+	public void readBody (OutputStream out) throws IOException {
+
+		if (part == null || part.boundary != null || event == PART_END) {
+			return;
+		}
+
+		while (next() == BODY) {
+			writeBody(out);
+		}
+
+		pushedBack = current;
+	}
+
+
+	/**
+	 * Writes the line of the current BODY event decoded to the stream.
+	 * Lines that are not Base64 encoded are written with a CRLF before
+	 * every line but the first of the part.
+	 *
+	 * @param  out  the stream to write the line to
+	 * @exception  IOException  If an I/O error occurs 
+	 */
+	public void writeBody (OutputStream out) throws IOException {
+
+		if (event != BODY) {
+			return;
+		}
+
+		byte b[] = body.array();
+		int off = body.position();
+		int len = body.remaining();
+		if ("base64".equals(part.encoding)) {
+			writeBase64(b, off, len, out);
+		} else {
+
+			if (part.lines > 1) {
+				out.write(CRLF);
+			}
+
+			out.write(b, off, len);
+		}
+	}
+
+
+	/**
+	 * Gets a parameter of a header field such as the boundary of a
+	 * "Content-Type" or the filename of a "Content-Disposition".
+	 *
+	 * @param  fieldValue  the value of the header field
+	 * @param  name        the name of the parameter
+	 * @return the parameter value with any quotes removed, or null if the
+	 * field does not have the parameter
+	 */
+	public static String getParameter (String fieldValue, String name) {
+
+		if (fieldValue == null) {
+			return (null);
+		}
+
+		int length = fieldValue.length();
+		int i = fieldValue.indexOf(';');
+		while (i >= 0 && i < length) {
+
+			/*
+			 * Parse the name
+			 */
+			i++;
+			while (i < length && Character.isWhitespace(fieldValue.charAt(i))) {
+				i++;
+			}
+
+			int eq = fieldValue.indexOf('=', i);
+			int semi = fieldValue.indexOf(';', i);
+			if (eq < 0 || (semi >= 0 && semi < eq)) {
+				i = semi;
+				continue;
+			}
+
+			String pname = fieldValue.substring(i, eq).trim();
+
+			/*
+			 * Parse the value, which may be quoted
+			 */
+			i = eq + 1;
+			while (i < length && Character.isWhitespace(fieldValue.charAt(i))) {
+				i++;
+			}
+
+			String pvalue;
+			if (i < length && fieldValue.charAt(i) == '"') {
+
+				StringBuilder sb = new StringBuilder();
+				for (i++; i < length; i++) {
+					char c = fieldValue.charAt(i);
+					if (c == '"') {
+						i++;
+						break;
+					} else if (c == '\\' && i + 1 < length) {
+						c = fieldValue.charAt(++i);
+					}
+
+					sb.append(c);
+				}
+
+				pvalue = sb.toString();
+				i = fieldValue.indexOf(';', i);
+
+			} else {
+
+				int end = fieldValue.indexOf(';', i);
+				pvalue = fieldValue.substring(i,
+					end < 0 ? length : end).trim();
+				i = end;
+			}
+
+			if (pname.equalsIgnoreCase(name)) {
+				return (pvalue);
+			}
+		}
+
+		return (null);
+	}
+
+
+	/**
+	 * Makes an event current.
+	 */
+	protected int setEvent (Event e) {
+
+		current = e;
+		event = e.type;
+		part  = e.part;
+		name  = e.name;
+		value = e.value;
+		body  = null;
+		if (event == PART_START) {
+			base64Carry = 0;
+		}
+
+		return (event);
+	}
+
+
+	/**
+	 * Reads and handles one line of the message, queuing any events it
+	 * causes.
+	 *
+	 * @return true if the line is a line of body data
+	 */
+	protected boolean step () throws IOException {
+
+		ByteBuffer line = in.readLineBytes();
+		switch (state) {
+
+			case HEADER:
+				readHeaderLine(line);
+				return (false);
+
+			case CONTENT:
+			case PREAMBLE:
+			case EPILOGUE:
+
+				if (line == null) {
+					endOfMessage();
+					return (false);
+				}
+
+				if (isBoundary(line)) {
+					return (false);
+				}
+
+				if (state == CONTENT) {
+					leaf.lines++;
+					body = line;
+					return (true);
+				}
+
+				return (false);
+
+			default:
+				return (false);
+		}
+	}
+
+
+	/**
+	 * Handles a line of a header.
+	 */
+	protected void readHeaderLine (ByteBuffer line) {
+
+		if (header == null) {
+			header = new HashMap<String, String>();
+		}
+
+		int depth = multiparts.size();
+		if (line == null || !line.hasRemaining()) {
+
+			endField(depth);
+
+			Part p = new Part(header, depth,
+				depth > 0 ? multiparts.get(depth - 1) : null);
+			header = null;
+			events.add(new Event(PART_START, depth, p));
+
+			if (p.boundary != null) {
+				multiparts.add(p);
+				state = PREAMBLE;
+			} else {
+				leaf  = p;
+				state = CONTENT;
+			}
+
+			if (line == null) {
+				endOfMessage();
+			}
+
+			return;
+		}
+
+		byte b[] = line.array();
+		int off  = line.position();
+		int end  = line.limit();
+
+		/*
+		 * White space means we're folding in a value
+		 */
+		if (b[off] == ' ' || b[off] == '\t') {
+			if (fieldName != null) {
+				String folded = POP3Reader.toString(b, off, end - off).trim();
+				if (folded.length() > 0) {
+					if (fieldValue.length() > 0) {
+						fieldValue.append(' ');
+					}
+
+					fieldValue.append(folded);
+				}
+			}
+
+			return;
+		}
+
+		endField(depth);
+
+		int colon = off;
+		while (colon < end && b[colon] != ':') {
+			colon++;
+		}
+
+		if (colon == end) {
+			return;
+		}
+
+		fieldName = POP3Reader.toString(b, off, colon - off).trim();
+		fieldValue.append(POP3Reader.toString(b, colon + 1, end - colon - 1).trim());
+	}
+
+
+	/**
+	 * Queues the header field that has been read.
+	 */
+	protected void endField (int depth) {
+
+		if (fieldName == null) {
+			return;
+		}
+
+		String v = fieldValue.toString();
+		if (v.length() > 0) {
+			header.put(fieldName.toLowerCase(), v);
+		}
+
+		Event e = new Event(HEADER_FIELD, depth, null);
+		e.name  = fieldName;
+		e.value = v;
+		events.add(e);
+
+		fieldName = null;
+		fieldValue.setLength(0);
+	}
+
+
+	/**
+	 * Checks if a line is the boundary of one of the enclosing multiparts
+	 * and if it is queues the events it causes. A boundary of an outer
+	 * multipart also ends the multiparts inside it.
+	 */
+	protected boolean isBoundary (ByteBuffer line) {
+
+		if (multiparts.isEmpty() || line.remaining() < 2) {
+			return (false);
+		}
+
+		byte b[] = line.array();
+		int off = line.position();
+		int len = line.remaining();
+		if (b[off] != '-' || b[off + 1] != '-') {
+			return (false);
+		}
+
+		for (int k = multiparts.size() - 1; k >= 0; k--) {
+
+			Part m = multiparts.get(k);
+			int n = m.boundary.length;
+			if (len < n + 2 || !matches(b, off + 2, m.boundary)) {
+				continue;
+			}
+
+			/*
+			 * Only white space may follow the boundary, or "--"
+			 * for the final one
+			 */
+			int i = off + 2 + n;
+			int end = off + len;
+			boolean last = (i + 1 < end && b[i] == '-' && b[i + 1] == '-');
+			if (last) {
+				i += 2;
+			}
+
+			while (i < end && (b[i] == ' ' || b[i] == '\t')) {
+				i++;
+			}
+
+			if (i != end) {
+				continue;
+			}
+
+			endLeaf();
+			while (multiparts.size() > k + 1) {
+				Part inner = multiparts.remove(multiparts.size() - 1);
+				events.add(new Event(PART_END, inner.depth, inner));
+			}
+
+			if (last) {
+				multiparts.remove(k);
+				events.add(new Event(PART_END, m.depth, m));
+				state = EPILOGUE;
+			} else {
+				state = HEADER;
+			}
+
+			return (true);
+		}
+
+		return (false);
+	}
+
+
+	/**
+	 * Queues the events for the end of the message.
+	 */
+	protected void endOfMessage () {
+
+		endLeaf();
+		for (int k = multiparts.size() - 1; k >= 0; k--) {
+			Part m = multiparts.remove(k);
+			events.add(new Event(PART_END, m.depth, m));
+		}
+
+		events.add(new Event(END, 0, null));
+		state = DONE;
+	}
+
+
+	/**
+	 * Queues the end of the part whose body is being read.
+	 */
+	protected void endLeaf () {
+
+		if (leaf != null) {
+			events.add(new Event(PART_END, leaf.depth, leaf));
+			leaf = null;
+		}
+	}
+
+
+	/**
+	 * Decodes a line of Base64 data and writes it to the stream. The
+	 * decoding is done in place in a reusable buffer, and characters left
+	 * over from a line that is not a multiple of 4 long are carried over
+	 * to the next line.
+	 */
+	protected void writeBase64 (byte line[], int off, int len,
+			OutputStream out) throws IOException {
+
+		if (base64Buf == null || base64Buf.length < base64Carry + len) {
+			byte tmp[] = new byte[Math.max(256, (base64Carry + len) * 2)];
+			if (base64Buf != null) {
+				System.arraycopy(base64Buf, 0, tmp, 0, base64Carry);
+			}
+
+			base64Buf = tmp;
+		}
+
+		/*
+		 * Keep only the Base64 characters and padding
+		 */
+		int n = base64Carry;
+		byte values[] = Base64Codec.decodeValues;
+		for (int i = off; i < off + len; i++) {
+			if (values[line[i] & 0xff] != Base64Codec.SKIP) {
+				base64Buf[n++] = line[i];
+			}
+		}
+
+		int whole = n - n % 4;
+		if (whole > 0) {
+			int decoded = Base64Codec.decode(base64Buf, 0, whole, base64Buf, 0);
+			out.write(base64Buf, 0, decoded);
+		}
+
+		base64Carry = n - whole;
+		System.arraycopy(base64Buf, whole, base64Buf, 0, base64Carry);
+	}
+
+
+	/**
+	 * Returns true if the bytes at the offset match the prefix.
+	 */
+	protected static boolean matches (byte b[], int off, byte prefix[]) {
+
+		for (int i = 0; i < prefix.length; i++) {
+			if (b[off + i] != prefix[i]) {
+				return (false);
+			}
+		}
+
+		return (true);
+	}
+
+
+	/**
+	 * A part of the message.
+	 */
+	protected static class Part {
+
+		protected final Map<String, String> header;
+		protected final int depth;
+		protected final String contentType;
+		protected final String encoding;
+		protected final byte boundary[];
+		protected int lines = 0;
+
+		protected Part (Map<String, String> header, int depth, Part parent) {
+
+			this.header = header;
+			this.depth = depth;
+
+			String type = header.get("content-type");
+			if (type == null) {
+				if (parent != null &&
+						"multipart/digest".equals(parent.contentType)) {
+					type = "message/rfc822";
+				} else {
+					type = "text/plain";
+				}
+			}
+
+			String boundary = null;
+			int semi = type.indexOf(';');
+			String base = (semi < 0 ? type : type.substring(0, semi));
+			this.contentType = base.trim().toLowerCase();
+			if (contentType.startsWith("multipart/")) {
+				boundary = getParameter(type, "boundary");
+			}
+
+			this.boundary = (boundary != null && boundary.length() > 0 ?
+				toBytes(boundary) : null);
+
+			String enc = header.get("content-transfer-encoding");
+			this.encoding = (enc != null ? enc.trim().toLowerCase() : null);
+		}
+
+		protected static byte[] toBytes (String s) {
+
+			byte b[] = new byte[s.length()];
+			for (int i = 0; i < b.length; i++) {
+				b[i] = (byte)s.charAt(i);
+			}
+
+			return (b);
+		}
+	}
+
+
+	/**
+	 * A queued event.
+	 */
+	protected static class Event {
+
+		protected final int type;
+		protected final int depth;
+		protected final Part part;
+		protected String name = null;
+		protected String value = null;
+
+		protected Event (int type, int depth, Part part) {
+			this.type = type;
+			this.depth = depth;
+			this.part = part;
+		}
+	}
+}
@@ -23,8 +23,11 @@ package com.messners.mail;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.StringTokenizer;
 
 /**
  * The <code>POP3</code> class implements the Post Office Protocol 3 (POP3).
@@ -62,20 +65,57 @@ public class POP3 {
 	 */
 	public static final int POP3_PORT = 110;
 
+	/**
+	 * The default number of commands a batch method will have waiting
+	 * for replies when the server supports pipelining.
+	 */
+	public static final int DEFAULT_PIPELINE_WINDOW = 32;
+
+	/**
+	 * The default number of characters of a text part that are kept in
+	 * memory before the part is moved to a temporary file.
+	 */
+	public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
 
 	protected int state             = DISCONNECTED;
 	protected int  timeout          = 10000;
 	protected String host           = null;
+	protected int port              = POP3_PORT;
 	protected POP3Response response = null;
 	protected String lastCommand    = null;
 	protected Connection connection = null;
 	protected POP3Reader in         = null;
 	protected PrintWriter out       = null;
+	protected String capabilities[] = null;
+	protected int pipelineWindow    = DEFAULT_PIPELINE_WINDOW;
+
+	/*
+	 * The cursor reading the current multi-line response, it is drained
+	 * before the next command is sent
+	 */
+	protected volatile POP3Cursor cursor = null;
+
+	/*
+	 * When metrics or flight recorder events are being collected this
+	 * holds each command still waiting on its reply
+	 */
+	protected MailMetrics metrics = null;
+	protected final ArrayDeque<PendingReply> pending =
+			new ArrayDeque<PendingReply>();
 
 	protected static String defaultDir = Utilities.getSystemTmpDirectory();
 	protected String attachmentDir = defaultDir;
-	protected ArrayList<POP3StatusListener> pop3Listeners = 
-			new ArrayList<POP3StatusListener>();
+	protected AttachmentStore attachmentStore = null;
+	protected static int defaultSpillThreshold = DEFAULT_SPILL_THRESHOLD;
+	protected int spillThreshold = defaultSpillThreshold;
+	protected final MailEventDispatcher<POP3StatusListener> events =
+		new MailEventDispatcher<POP3StatusListener>(this) {
+			protected void deliver (POP3StatusListener l,
+					MailStatusEvent evt) {
+				l.pop3Status(evt);
+			}
+		};
 
 
 	/**
@@ -149,6 +189,99 @@ public class POP3 {
 	}
 
 
+	/**
+	 * Sets the store that attachments are saved in. Attachments saved in
+	 * a store are kept once per distinct content instead of once per
+	 * message, the attachment directory is not used.
+	 *
+	 * @param  store  the attachment store, or null to save attachments as
+	 * files in the attachment directory
+	 */
+	public void setAttachmentStore (AttachmentStore store) {
+		attachmentStore = store;
+	}
+
+
+	/**
+	 * Gets the store that attachments are saved in.
+	 *
+	 * @return the attachment store, or null if attachments are saved in
+	 * the attachment directory
+	 */
+	public AttachmentStore getAttachmentStore () {
+		return (attachmentStore);
+	}
+
+
+	/**
+	 * Sets the metrics that the latency of each command, and the bytes,
+	 * messages retrieved and -ERR replies, are recorded in. The bytes
+	 * are only counted for connections made after the metrics are set.
+	 *
+	 * @param  metrics  the metrics to record in, or null to not
+	 * record any
+	 */
+	public synchronized void setMetrics (MailMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Gets the metrics that this instance records in.
+	 *
+	 * @return the metrics or null if none are recorded
+	 */
+	public synchronized MailMetrics getMetrics () {
+		return (metrics);
+	}
+
+
+	/**
+	 * Sets the default spill threshold. All new POP3 objects default to
+	 * this threshold. Use setSpillThreshold() to set the threshold for a
+	 * specific POP3 object.
+	 *
+	 * @param  chars  the new default spill threshold in characters
+	 */
+	public static void setDefaultSpillThreshold (int chars) {
+		defaultSpillThreshold = chars;
+	}
+
+
+	/**
+	 * Gets the default spill threshold. All new POP3 objects default to
+	 * this threshold.
+	 *
+	 * @return the default spill threshold in characters
+	 */
+	public static int getDefaultSpillThreshold () {
+		return (defaultSpillThreshold);
+	}
+
+
+	/**
+	 * Sets the number of characters of a text part that are kept in
+	 * memory, past this the text is moved to a temporary file.
+	 *
+	 * @param  chars  the spill threshold in characters, or a negative
+	 * value to always keep text in memory
+	 */
+	public void setSpillThreshold (int chars) {
+		spillThreshold = chars;
+	}
+
+
+	/**
+	 * Gets the number of characters of a text part that are kept in
+	 * memory.
+	 *
+	 * @return the spill threshold in characters
+	 */
+	public int getSpillThreshold () {
+		return (spillThreshold);
+	}
+
+
 
 	/**
 	 * Gets the last command response returned from the server.
@@ -173,6 +306,38 @@ public class POP3 {
 	}
 
 
+	/**
+	 * Gets the host name of the POP3 server, the one last connected to
+	 * if <code>connect(String)</code> was used.
+	 *
+	 * @return the host name of the POP3 server
+	 */
+	public String getHost () {
+		return (host);
+	}
+
+
+	/**
+	 * Gets the port of the POP3 server.
+	 *
+	 * @return the port of the POP3 server
+	 */
+	public int getPort () {
+		return (port);
+	}
+
+
+	/**
+	 * Sets the port of the POP3 server, takes effect on the next
+	 * connect. Defaults to 110.
+	 *
+	 * @param  port  the port of the POP3 server
+	 */
+	public void setPort (int port) {
+		this.port = port;
+	}
+
+
 	/**
 	 * Gets the current POP3 state. Will be one of the following:<br>
 	 * <pre>
@@ -219,7 +384,7 @@ public class POP3 {
 
 
 	/**
-	 * Connect to the POP3 server (on port 110).
+	 * Connect to the POP3 server (on port 110 unless set otherwise).
 	 *
 	 * @return true on a successful connection
 	 * @exception IOException when an error occurs connecting.
@@ -231,7 +396,8 @@ public class POP3 {
 
 
 	/**
-	 * Connect to the specified POP3 server (on port 110).
+	 * Connect to the specified POP3 server (on port 110 unless set
+	 * otherwise).
 	 *
 	 * @param  host  hostname of the POP3 server.
 	 * @return true on a successful connection
@@ -249,10 +415,11 @@ public class POP3 {
 		/*
 		 * Gets a connection to the POP3 server
 		 */
+		long start = System.nanoTime();
 		Connection connection;
 		try {
 
-			connection = Connection.getInstance();
+			connection = Connection.getInstance(host, port);
 
 		} catch (Exception e) {
 
@@ -261,21 +428,31 @@ public class POP3 {
 			throw (ioe);
 		}
 
-		connection.open(host, POP3_PORT);
+		connection.open(host, port);
 		connection.setTimeout(timeout);
+		this.host = host;
 
 		/*
 		 * Gets an input stream to read data from the server, and
 		 * an output stream to write data to the server.
 		 */
-		POP3Reader in = new POP3Reader(connection.getInputStream());
-		PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
+		InputStream is = connection.getInputStream();
+		OutputStream os = connection.getOutputStream();
+		if (metrics != null) {
+			metrics.record(MailMetrics.CONNECT, start);
+			is = metrics.countInput(is);
+			os = metrics.countOutput(os);
+		}
+
+		POP3Reader in = new POP3Reader(is);
+		PrintWriter out = new PrintWriter(os, true);
 
 	    
 		/*
 		 * Save all the just created objects we do this so
 		 * exception handling is streamlined
 		 */
+		this.connection = connection;
 		this.in = in;
 		this.out = out;
 
@@ -284,6 +461,7 @@ public class POP3 {
 		 * When a client connects to a POP3 server the server
 		 * sends a message back. See if all is ok.
 		 */
+		startPhase(MailMetrics.GREETING);
 		response = getResponse();
 		if (response.isOk()) {
 
@@ -313,9 +491,12 @@ public class POP3 {
 				throw (IOException)ioe.fillInStackTrace();
 			} finally {
 		  		state = DISCONNECTED;
+				capabilities = null;
+				cursor = null;
 				connection = null;
 				in = null;
 				out = null;
+				pending.clear();
 			}
 		}
 	}
@@ -355,7 +536,13 @@ public class POP3 {
 		sendCommand("PASS " + password);
 	  	response = getResponse();
 		if (response.isOk()) {
+
+			/*
+			 * The server may offer different capabilities once
+			 * the user is logged in (RFC-2449)
+			 */
 			state = TRANSACTION;
+			capabilities = null;
 			return (true);
 		} else {
 			throw new POP3Exception(response.getResponse());
@@ -462,31 +649,97 @@ public class POP3 {
 			throw new POP3Exception("not in TRANSACTION state");
 		}
 
-  		sendCommand("LIST");
-	  	response = getResponses();
-		if (!response.isOk()) {
+		POP3Listing listing = new POP3Listing();
+		if (!readListing("LIST", listing)) {
+			return (null);
+		}
+
+		return (listing.toArray());
+	}
+
+
+	/**
+	 * Lists the message numbers, sizes and unique identifiers of all the
+	 * messages on the server in a compact <code>POP3Listing</code>, using
+	 * LIST and UIDL. This is the way to list very large mailboxes.
+	 *
+	 * @return the listing, or null if the server refused LIST or UIDL
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
+	 */
+	public synchronized POP3Listing listMailbox ()
+		throws IOException, POP3Exception {
+
+		return (listMailbox(true, true));
+	}
+
+
+	/**
+	 * Lists the messages on the server in a compact
+	 * <code>POP3Listing</code>.
+	 *
+	 * @param  sizes  true to list the message sizes with LIST
+	 * @param  uids   true to list the unique identifiers with UIDL
+	 * @return the listing, or null if the server refused LIST or UIDL
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
+	 */
+	public synchronized POP3Listing listMailbox (boolean sizes, boolean uids)
+		throws IOException, POP3Exception {
+
+		if (state != TRANSACTION) {
+			throw new POP3Exception("not in TRANSACTION state");
+		}
+
+		POP3Listing listing = new POP3Listing();
+		if (sizes && !readListing("LIST", listing)) {
 			return (null);
 		}
 
-		String responses[] = response.getMultipleResponses();
-		POP3MessageInfo msgInfo[] =
-			new POP3MessageInfo[responses.length];
-		for (int i = 0; i < responses.length; i++) {
+		if (uids && !readListing("UIDL", listing)) {
+			return (null);
+		}
+
+		return (listing);
+	}
+
+
+	/**
+	 * Sends a LIST or UIDL command and parses the response lines straight
+	 * into a listing.
+	 *
+	 * @return false if the server did not reply with +OK
+	 */
+	protected boolean readListing (String command, POP3Listing listing)
+		throws IOException, POP3Exception {
+
+		sendCommand(command);
+		response = getResponse();
+		if (!response.isOk()) {
+			return (false);
+		}
 
-			StringTokenizer st = new StringTokenizer(responses[i]);
-			if (st.countTokens() < 2) {
-				throw new POP3Exception(
-					"malformed LIST response");
+		/*
+		 * A malformed line is only reported once the whole response
+		 * has been read so the session stays usable
+		 */
+		boolean uidl = command.equals("UIDL");
+		boolean malformed = false;
+		ByteBuffer line;
+		while ((line = in.readLineBytes()) != null) {
+			if (!(uidl ? listing.addUidLine(line) :
+					listing.addListLine(line))) {
+				malformed = true;
 			}
+		}
 
-			String num  = st.nextToken();
-			String size = st.nextToken();
-			msgInfo[i] = new POP3MessageInfo(
-				Integer.parseInt(num),
-				Integer.parseInt(size));
+		if (malformed) {
+			throw new POP3Exception("malformed " + command + " response");
 		}
 
-		return (msgInfo);
+		return (true);
 	}
 
 
@@ -535,30 +788,12 @@ public class POP3 {
 			throw new POP3Exception("not in TRANSACTION state");
 		}
 
-	  	sendCommand("UIDL");
-	  	response = getResponses();
-		if (!response.isOk()) {
+		POP3Listing listing = new POP3Listing();
+		if (!readListing("UIDL", listing)) {
 			return (null);
 		}
 
-		String responses[] = response.getMultipleResponses();
-		POP3MessageInfo msgInfo[] =
-			new POP3MessageInfo[responses.length];
-		for (int i = 0; i < responses.length; i++) {
-
-			StringTokenizer st = new StringTokenizer(responses[i]);
-			if (st.countTokens() < 2) {
-				throw new POP3Exception(
-					"malformed LIST response");
-			}
-
-			String num = st.nextToken();
-			String uid = st.nextToken();
-			msgInfo[i] = new POP3MessageInfo(
-				Integer.parseInt(num), uid);
-		}
-
-		return (msgInfo);
+		return (listing.toArray());
 	}
 
 
@@ -652,6 +887,119 @@ public class POP3 {
 	}
 
 
+	/**
+	 * Gets the header of a message without its body. The header is read
+	 * with "TOP msgnum 0" and the body is only retrieved, with RETR, when
+	 * <code>getBody()</code> is first called on the returned message,
+	 * which must be done while this session is still in the TRANSACTION
+	 * state.
+	 *
+	 * @param  msgnum   the message number of the message
+	 * @return the message with only its header read
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state, or
+	 * the server will not return the header.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
+	 */
+	public synchronized POP3MailMessage retrieveHeader (int msgnum)
+		throws IOException, POP3Exception {
+
+		return (retrieveHeader(new POP3MessageInfo(msgnum, -1)));
+	}
+
+
+	/**
+	 * Gets the header of a message without its body. The header is read
+	 * with "TOP msgnum 0" and the body is only retrieved, with RETR, when
+	 * <code>getBody()</code> is first called on the returned message,
+	 * which must be done while this session is still in the TRANSACTION
+	 * state.
+	 *
+	 * @param  msgInfo   the <code>POP3MessageInfo</code> object for the
+	 * message, the size from a message listing is kept with the message
+	 * @return the message with only its header read
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state, or
+	 * the server will not return the header.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
+	 */
+	public synchronized POP3MailMessage retrieveHeader (
+		POP3MessageInfo msgInfo)
+		throws IOException, POP3Exception {
+
+		if (state != TRANSACTION) {
+			throw new POP3Exception("not in TRANSACTION state");
+		}
+
+		sendCommand("TOP " + msgInfo.getMessageNumber() + " 0");
+		response = getResponse();
+		if (!response.isOk()) {
+			throw new POP3Exception("Bad response: " +
+				response.getResponse());
+		}
+
+		POP3MailMessage msg = new POP3MailMessage(this, msgInfo);
+		return (msg.readHeaderOnly());
+	}
+
+
+	/**
+	 * Gets the headers of a batch of messages without their bodies, as
+	 * <code>retrieveHeader()</code> does. If the server supports
+	 * pipelining the TOP commands are sent ahead of the replies,
+	 * otherwise they are sent one at a time.
+	 *
+	 * @param  msgInfo  the <code>POP3MessageInfo</code> objects for the
+	 * messages
+	 * @return the messages with only their headers read, an entry is
+	 * null if the server would not return that header
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the commands.  
+	 */
+	public synchronized POP3MailMessage [] retrieveHeaders (
+		final POP3MessageInfo msgInfo[])
+		throws IOException, POP3Exception {
+
+		String commands[] = new String[msgInfo.length];
+		for (int i = 0; i < msgInfo.length; i++) {
+			commands[i] = "TOP " + msgInfo[i].getMessageNumber() + " 0";
+		}
+
+		final POP3MailMessage msgs[] = new POP3MailMessage[msgInfo.length];
+		sendPipelined(commands, true, new ReplyHandler() {
+			public void reply (int index, POP3Response response)
+					throws IOException, POP3Exception {
+
+				if (response.isOk()) {
+					msgs[index] = new POP3MailMessage(
+						POP3.this, msgInfo[index]).readHeaderOnly();
+				}
+			}
+		});
+
+		return (msgs);
+	}
+
+
+	/**
+	 * Retrieves the body of a message that was returned with only its
+	 * header by <code>retrieveHeader()</code>.
+	 *
+	 * @param  msg  the message to retrieve the body of
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
+	 */
+	synchronized void retrieveBody (POP3MailMessage msg)
+		throws IOException, POP3Exception {
+
+		getMessageReader(msg.msgInfo.getMessageNumber());
+		msg.in = in;
+		msg.read();
+	}
+
+
 	/**
 	 * Gets the top n lines of a mail message<br>
 	 *
@@ -761,6 +1109,379 @@ public class POP3 {
 	}
 
 
+	/**
+	 * Gets the capabilities the server lists in reply to the CAPA command
+	 * (RFC-2449), one per entry, for example "UIDL", "TOP" and
+	 * "PIPELINING". The list is cached until the state changes. A server
+	 * that does not support CAPA has no capabilities.
+	 *
+	 * @return the capabilities listed by the server
+	 * @exception POP3Exception If not in the AUTHORIZATION or TRANSACTION
+	 * state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
+	 */
+	public synchronized String [] getCapabilities ()
+		throws IOException, POP3Exception {
+
+		if (state != AUTHORIZATION && state != TRANSACTION) {
+			throw new POP3Exception(
+				"not in AUTHORIZATION or TRANSACTION state");
+		}
+
+		if (capabilities == null) {
+
+			sendCommand("CAPA");
+			response = getResponses();
+			if (response.isOk()) {
+				capabilities = response.getMultipleResponses();
+			} else {
+				capabilities = new String[0];
+			}
+		}
+
+		return (capabilities);
+	}
+
+
+	/**
+	 * Checks if the server lists the specified capability.
+	 *
+	 * @param  name  the capability name, for example "PIPELINING"
+	 * @return true if the server lists the capability
+	 * @exception POP3Exception If not in the AUTHORIZATION or TRANSACTION
+	 * state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
+	 */
+	public synchronized boolean hasCapability (String name)
+		throws IOException, POP3Exception {
+
+		String caps[] = getCapabilities();
+		for (int i = 0; i < caps.length; i++) {
+
+			String cap = caps[i].trim();
+			int space = cap.indexOf(' ');
+			if (space > 0) {
+				cap = cap.substring(0, space);
+			}
+
+			if (cap.equalsIgnoreCase(name)) {
+				return (true);
+			}
+		}
+
+		return (false);
+	}
+
+
+	/**
+	 * Sets the most commands the batch methods will send ahead of their
+	 * replies when the server supports pipelining. A window of 1 sends
+	 * each command only after the reply to the one before it is read.
+	 *
+	 * @param  window  the pipeline window, at least 1
+	 */
+	public synchronized void setPipelineWindow (int window) {
+
+		if (window < 1) {
+			throw new IllegalArgumentException(
+				"invalid pipeline window: " + window);
+		}
+
+		pipelineWindow = window;
+	}
+
+
+	/**
+	 * Gets the most commands the batch methods will send ahead of their
+	 * replies when the server supports pipelining.
+	 *
+	 * @return the pipeline window
+	 */
+	public synchronized int getPipelineWindow () {
+		return (pipelineWindow);
+	}
+
+
+	/**
+	 * Retrieves a batch of messages. If the server supports pipelining
+	 * the RETR commands are sent ahead of the replies, otherwise they are
+	 * sent one at a time.
+	 *
+	 * @param  msgnums  the message numbers of the messages to retrieve
+	 * @return the messages, an entry is null if the server would not
+	 * return that message
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the commands.  
+	 */
+	public synchronized POP3MailMessage [] retrieveMessages (int msgnums[])
+		throws IOException, POP3Exception {
+
+		POP3MessageInfo msgInfo[] = new POP3MessageInfo[msgnums.length];
+		for (int i = 0; i < msgnums.length; i++) {
+			msgInfo[i] = new POP3MessageInfo(msgnums[i], 0);
+		}
+
+		return (retrieveMessages(msgInfo));
+	}
+
+
+	/**
+	 * Retrieves a batch of messages. If the server supports pipelining
+	 * the RETR commands are sent ahead of the replies, otherwise they are
+	 * sent one at a time.
+	 *
+	 * @param  msgInfo  the <code>POP3MessageInfo</code> objects for the
+	 * messages to retrieve
+	 * @return the messages, an entry is null if the server would not
+	 * return that message
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the commands.  
+	 */
+	public synchronized POP3MailMessage [] retrieveMessages (
+		final POP3MessageInfo msgInfo[])
+		throws IOException, POP3Exception {
+
+		final POP3MailMessage msgs[] = new POP3MailMessage[msgInfo.length];
+		final int next[] = new int[1];
+		retrieveMessages(msgInfo, new POP3MessageListener() {
+			public void messageRetrieved (
+					POP3MessageInfo info, POP3MailMessage message) {
+
+				/*
+				 * Messages are passed in order, skipping any
+				 * that the server would not return
+				 */
+				while (msgInfo[next[0]] != info) {
+					next[0]++;
+				}
+
+				msgs[next[0]++] = message;
+			}
+		});
+
+		return (msgs);
+	}
+
+
+	/**
+	 * Retrieves a batch of messages, passing each one to the listener as
+	 * it is read so that the batch is never held in memory. If the server
+	 * supports pipelining the RETR commands are sent ahead of the
+	 * replies, otherwise they are sent one at a time. Messages the server
+	 * will not return are skipped.
+	 *
+	 * @param  msgInfo   the <code>POP3MessageInfo</code> objects for the
+	 * messages to retrieve
+	 * @param  listener  the listener to pass the messages to
+	 * @return the number of messages passed to the listener
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the commands, or the listener throws one.
+	 */
+	public synchronized int retrieveMessages (
+		final POP3MessageInfo msgInfo[], final POP3MessageListener listener)
+		throws IOException, POP3Exception {
+
+		String commands[] = new String[msgInfo.length];
+		for (int i = 0; i < msgInfo.length; i++) {
+			commands[i] = "RETR " + msgInfo[i].getMessageNumber();
+		}
+
+		final int count[] = new int[1];
+		sendPipelined(commands, true, new ReplyHandler() {
+			public void reply (int index, POP3Response response)
+					throws IOException, POP3Exception {
+
+				if (!response.isOk()) {
+					return;
+				}
+
+				POP3MailMessage msg =
+					new POP3MailMessage(POP3.this, msgInfo[index]);
+				msg.read();
+				count[0]++;
+				listener.messageRetrieved(msgInfo[index], msg);
+			}
+		});
+
+		return (count[0]);
+	}
+
+
+	/**
+	 * Marks a batch of messages for deletion. If the server supports
+	 * pipelining the DELE commands are sent ahead of the replies,
+	 * otherwise they are sent one at a time. The messages will be deleted
+	 * when QUIT is issued.
+	 *
+	 * @param  msgnums  the message numbers of the messages to delete
+	 * @return for each message, true if it was marked for deletion
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the commands.  
+	 */
+	public synchronized boolean [] deleteMessages (int msgnums[])
+		throws IOException, POP3Exception {
+
+		String commands[] = new String[msgnums.length];
+		for (int i = 0; i < msgnums.length; i++) {
+			commands[i] = "DELE " + msgnums[i];
+		}
+
+		final boolean deleted[] = new boolean[msgnums.length];
+		sendPipelined(commands, false, new ReplyHandler() {
+			public void reply (int index, POP3Response response) {
+				deleted[index] = response.isOk();
+			}
+		});
+
+		return (deleted);
+	}
+
+
+	/**
+	 * Gets the uidl of a batch of messages. If the server supports
+	 * pipelining the UIDL commands are sent ahead of the replies,
+	 * otherwise they are sent one at a time.
+	 *
+	 * @param  msgnums  the message numbers of the messages to get the
+	 * uidl for
+	 * @return the uidl of each message, an entry is null if the server
+	 * did not return one
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the commands.  
+	 */
+	public synchronized POP3MessageInfo [] listUniqueIdentifiers (
+		int msgnums[]) throws IOException, POP3Exception {
+
+		String commands[] = new String[msgnums.length];
+		for (int i = 0; i < msgnums.length; i++) {
+			commands[i] = "UIDL " + msgnums[i];
+		}
+
+		final POP3MessageInfo msgInfo[] = new POP3MessageInfo[msgnums.length];
+		sendPipelined(commands, false, new ReplyHandler() {
+			public void reply (int index, POP3Response response) {
+				if (response.isOk()) {
+					msgInfo[index] = new POP3MessageInfo(
+						response.getIntToken(1), response.getToken(2));
+				}
+			}
+		});
+
+		return (msgInfo);
+	}
+
+
+	/**
+	 * Handles the replies to commands sent by <code>sendPipelined()</code>.
+	 */
+	protected interface ReplyHandler {
+
+		/**
+		 * Invoked with the first line of each reply, in the order the
+		 * commands were sent. For a multi-line reply the handler must
+		 * read the rest of the reply.
+		 */
+		void reply (int index, POP3Response response)
+			throws IOException, POP3Exception;
+	}
+
+
+	/**
+	 * Sends a batch of commands in the TRANSACTION state, keeping up to
+	 * the pipeline window of them waiting for replies if the server
+	 * supports pipelining. If the handler throws an exception no more
+	 * commands are sent, and the rest of the reply it was handling and
+	 * the replies to the commands already sent are read and thrown away
+	 * before the exception is passed on, so the connection is left ready
+	 * for the next command.
+	 *
+	 * @param  commands   the commands to send
+	 * @param  multiLine  true if an OK reply to the commands is followed
+	 * by lines ending with a lone period
+	 * @param  handler    the handler for the replies
+	 */
+	protected void sendPipelined (String commands[], boolean multiLine,
+		ReplyHandler handler) throws IOException, POP3Exception {
+
+		if (state != TRANSACTION) {
+			throw new POP3Exception("not in TRANSACTION state");
+		}
+
+		if (commands.length == 0) {
+			return;
+		}
+
+		int window = 1;
+		if (commands.length > 1 && pipelineWindow > 1 &&
+				hasCapability("PIPELINING")) {
+			window = pipelineWindow;
+		}
+
+		int sent = 0;
+		int received = 0;
+		long terminators = -1;
+		try {
+
+			while (received < commands.length) {
+
+				/*
+				 * Top the window up before waiting on the next reply
+				 */
+				if (sent < commands.length && sent - received < window) {
+					while (sent < commands.length &&
+							sent - received < window) {
+						writeCommand(commands[sent++]);
+					}
+
+					out.flush();
+				}
+
+				terminators = -1;
+				response = getResponse();
+				received++;
+				terminators = in.getTerminatorCount();
+				handler.reply(received - 1, response);
+			}
+
+		} catch (IOException | POP3Exception | RuntimeException e) {
+
+			/*
+			 * Finish the reply the handler gave up on part way, then
+			 * read the replies to the commands already sent, if this
+			 * fails the connection is unusable anyway
+			 */
+			try {
+				if (multiLine && terminators >= 0 && response.isOk() &&
+						in.getTerminatorCount() == terminators) {
+					while (in.readLineBytes() != null) {
+						/* Skip the rest of the reply */
+					}
+				}
+
+				for (; received < sent; received++) {
+					POP3Response r = getResponse();
+					if (multiLine && r.isOk()) {
+						while (in.readLineBytes() != null) {
+							/* Skip the rest of the reply */
+						}
+					}
+				}
+			} catch (IOException ioe) {
+				e.addSuppressed(ioe);
+			}
+
+			throw e;
+		}
+	}
+
+
 	/**
 	 * Send the passed command to the Server.
 	 *
@@ -769,10 +1490,25 @@ public class POP3 {
 	 */
 	protected void sendCommand (String command) throws IOException {
 
+		writeCommand(command);
+		out.flush();
+	}
+
+
+	/**
+	 * Writes a command ending with CRLF without flushing it, so that
+	 * several commands can be sent together.
+	 *
+	 * @exception IOException If not connected.
+	 */
+	protected void writeCommand (String command) throws IOException {
+
 		if (state == DISCONNECTED) {
 			throw new IOException("not connected");
 		}
 
+		finishCursor();
+
 		if (command.startsWith("PASS")) {
 			fireMailStatusEvent(
 				MailStatusEvent.COMMAND, "PASS ********");
@@ -780,11 +1516,63 @@ public class POP3 {
 			fireMailStatusEvent(MailStatusEvent.COMMAND, command);
 		}
 
-		out.println(command);
+		int index = command.indexOf(' ');
+		startPhase(index > 0 ?
+			command.substring(0, index).toUpperCase() : command);
+
+		out.print(command);
+		out.print("\r\n");
 		lastCommand = command;
 	}
 
 
+	/**
+	 * Notes the start of a phase that ends when the next reply not
+	 * already claimed by an earlier phase arrives. Does nothing if no
+	 * metrics are being recorded and the flight recorder event for POP3
+	 * commands is not enabled.
+	 *
+	 * @param  phase  the phase name
+	 */
+	protected void startPhase (String phase) {
+
+		Object event = FlightEvents.beginPOP3Command(host, phase);
+		if (metrics != null || event != null) {
+			pending.add(new PendingReply(phase, event));
+		}
+	}
+
+
+	/**
+	 * Records the latency of the oldest phase waiting on a reply, and
+	 * counts the reply if it is an error or the start of a message.
+	 *
+	 * @param  line  the first line of the reply
+	 */
+	protected void endPhase (String line) {
+
+		PendingReply reply = pending.poll();
+		if (reply != null) {
+			FlightEvents.endPOP3Command(reply.event, line);
+		}
+
+		if (metrics == null) {
+			return;
+		}
+
+		if (reply != null) {
+			metrics.record(reply.phase, reply.start);
+		}
+
+		if (line.startsWith("-ERR")) {
+			metrics.countError(MailMetrics.POP3_ERR);
+		} else if (reply != null && reply.phase.equals("RETR") &&
+				line.startsWith("+OK")) {
+			metrics.countMessage();
+		}
+	}
+
+
 	/**
 	 * Gets the next response to a previously sent command from the server.
 	 *
@@ -800,6 +1588,10 @@ public class POP3 {
 				"no data while reading POP3 response");
 		}
 
+		if (metrics != null || !pending.isEmpty()) {
+			endPhase(line);
+		}
+
 		fireMailStatusEvent(MailStatusEvent.RESPONSE, line);
 		return (new POP3Response(line));
 	}
@@ -817,25 +1609,17 @@ public class POP3 {
 	 */
 	POP3Response getResponses () throws IOException {
         
-		String line = in.readLine();
-		fireMailStatusEvent(MailStatusEvent.RESPONSE, line);
-
-		line = line.trim();
-		if (!line.startsWith("+OK")) {
-			return (new POP3Response(line));
+		POP3Response status = getResponse();
+		if (!status.isOk()) {
+			return (status);
 		}
     	      
+		POP3Cursor lines = new POP3Cursor(this, in, status, true);
 		ArrayList<String> v = new ArrayList<String>();
-		v.add(line);
-		while (true) {
-			line = in.readLine();
-			if (line == null) {
-				break;
-			}
-
-			fireMailStatusEvent(MailStatusEvent.RESPONSE, line);
-			v.add(line);
-        }
+		v.add(status.getResponse());
+		while (lines.hasNext()) {
+			v.add(lines.next());
+		}
 
 		String responses[] = new String[v.size()];
 		v.toArray(responses);
@@ -844,70 +1628,103 @@ public class POP3 {
 
 
 	/**
-	 * Add a POP3 event listener.
+	 * Sends a command that has a multi-line response and returns a
+	 * cursor to read the lines of the response with as they arrive. The
+	 * status line has been read when this returns, the lines are not
+	 * reported to the status listeners.<p>
 	 *
-	 * @param  l  The POP3StatusListener to add.
+	 * The session can be used again once the cursor has been read to the
+	 * end or closed, the rest of an abandoned response is drained before
+	 * the next command is sent.
+	 *
+	 * @param  command  the command, such as "LIST", "UIDL" or
+	 * "TOP 1 10"
+	 * @return the cursor for the response, which has no lines if the
+	 * server did not reply with +OK
+	 * @exception POP3Exception If not in the POP3 TRANSACTION state.
+	 * @exception IOException If a network I/O error occurs in the
+	 * process of sending the command.  
 	 */
-	public synchronized void addStatusListener (POP3StatusListener l) {
+	public synchronized POP3Cursor openCursor (String command)
+		throws IOException, POP3Exception {
 
-		if (!pop3Listeners.contains(l)) {
-	   		pop3Listeners.add(l);
+		if (state != TRANSACTION) {
+			throw new POP3Exception("not in TRANSACTION state");
+		}
+
+		sendCommand(command);
+		response = getResponse();
+		POP3Cursor c = new POP3Cursor(this, in, response, false);
+		if (response.isOk()) {
+			cursor = c;
 		}
+
+		return (c);
 	}
 
 
 	/**
-	 * Remove a POP3 event listener.
+	 * Drains what is left of the response being read by an open cursor,
+	 * waiting for a background drain to finish.
 	 *
-	 * @param  l  The POP3StatusListener to remove.
+	 * @exception IOException If the response could not be read to its
+	 * end.
 	 */
-	public synchronized void removeStatusListener (POP3StatusListener l) {
+	protected void finishCursor () throws IOException {
 
-		if (!pop3Listeners.contains(l)) {
-	   		pop3Listeners.remove(l);
+		POP3Cursor c = cursor;
+		if (c != null) {
+			cursor = null;
+			c.drain();
 		}
 	}
 
 
 	/**
-	 * Notify listening objects of mail progress events.
+	 * Add a POP3 event listener.
 	 *
-	 * @param   bytes_read  The number of bytes read for this event.
-	 * @param   total  The total number of bytes read.
+	 * @param  l  The POP3StatusListener to add.
 	 */
-	public void fireMailProgressEvent (
-		int bytes_read, int total, int msg_size) {
+	public void addStatusListener (POP3StatusListener l) {
+		events.addListener(l);
+	}
 
-		/*
-		 * Create the event object
-		 */
-		MailStatusEvent evt = new MailStatusEvent(
-			this, bytes_read, total, msg_size);
 
-		/*
-		 * Make a copy of the listener object vector so that it cannot
-		 * be changed while we are firing events
-		 */
-		ArrayList v;
-		synchronized(this) {
-			if (pop3Listeners.size() < 1) {
-				return;
-			}
+	/**
+	 * Remove a POP3 event listener.
+	 *
+	 * @param  l  The POP3StatusListener to remove.
+	 */
+	public void removeStatusListener (POP3StatusListener l) {
+		events.removeListener(l);
+	}
 
-			v = (ArrayList) pop3Listeners.clone();
-	  	}
 
+	/**
+	 * Gets the dispatcher that delivers the events of this session, it
+	 * is used to set how progress events are coalesced and whether events
+	 * are delivered asynchronously.
+	 *
+	 * @return the event dispatcher
+	 */
+	public MailEventDispatcher<POP3StatusListener> getEventDispatcher () {
+		return (events);
+	}
 
 
-	  	/*
-		 * Fire the event to all listeners
-		 */
-	  	int count = v.size();
-	  	for (int i = 0; i < count; i++) {
-			POP3StatusListener l =
-				(POP3StatusListener)v.get(i);
-			l.pop3Status(evt);
-	  	}
+	/**
+	 * Notify listening objects of mail progress events. Progress is
+	 * coalesced by the event dispatcher, so listeners see fewer, larger
+	 * progress events.
+	 *
+	 * @param   bytes_read  The number of bytes read for this event.
+	 * @param   total  The total number of bytes read.
+	 * @param   msg_size  The size of the message, or -1 if not known.
+	 */
+	public void fireMailProgressEvent (
+		int bytes_read, int total, int msg_size) {
+
+		events.fireProgress(bytes_read, total, msg_size);
 	}
 
 
@@ -918,38 +1735,7 @@ public class POP3 {
 	 * @param  message  The POP3 command or response message.
 	 */
 	public void fireMailStatusEvent (int type, String message) {
-
-		/*
-		 * Make a copy of the listener object vector so that it cannot
-		 * be changed while we are firing events
-		 */
-		ArrayList<POP3StatusListener> v;
-		synchronized(this) {
-			if (pop3Listeners.size() < 1) {
-				return;
-			}
-
-			v = new ArrayList<POP3StatusListener>(pop3Listeners.size());
-			for (POP3StatusListener l : pop3Listeners) {
-				v.add(l);
-			}
-	  	}
-
-
-		/*
-		 * Create the event object
-		 */
-		MailStatusEvent evt = new MailStatusEvent(this, type, message);
-
-
-	  	/*
-		 * Fire the event to all listeners
-		 */
-	  	int count = v.size();
-	  	for (int i = 0; i < count; i++) {
-			POP3StatusListener l = v.get(i);
-			l.pop3Status(evt);
-	  	}
+		events.fireStatus(type, message);
 	}
 }
 
@@ -0,0 +1,132 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+/**
+ * The <code>POP3Account</code> class holds what is needed to log in to a
+ * POP3 mailbox. Two accounts are equal when they have the same host,
+ * ignoring case, and the same username; the password is not compared.
+ *
+ * @see     com.messners.mail.POP3Poller
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3Account {
+
+	protected final String host;
+	protected final String username;
+	protected final String password;
+
+
+	/**
+	 * Creates a <code>POP3Account</code>.
+	 *
+	 * @param  host      the hostname of the POP3 server
+	 * @param  username  the account name
+	 * @param  password  the password of the account
+	 */
+	public POP3Account (String host, String username, String password) {
+
+		if (host == null || username == null) {
+			throw new IllegalArgumentException("host and username are required");
+		}
+
+		this.host = host;
+		this.username = username;
+		this.password = password;
+	}
+
+
+	/**
+	 * Gets the hostname of the POP3 server.
+	 *
+	 * @return the hostname of the POP3 server
+	 */
+	public String getHost () {
+		return (host);
+	}
+
+
+	/**
+	 * Gets the account name.
+	 *
+	 * @return the account name
+	 */
+	public String getUsername () {
+		return (username);
+	}
+
+
+	/**
+	 * Gets the password of the account.
+	 *
+	 * @return the password of the account
+	 */
+	public String getPassword () {
+		return (password);
+	}
+
+
+	/**
+	 * Compares this account to another object. The accounts are equal if
+	 * they have the same host, ignoring case, and the same username.
+	 *
+	 * @param  obj  the object to compare to
+	 * @return true if the object is an equal account
+	 */
+	public boolean equals (Object obj) {
+
+		if (obj == this) {
+			return (true);
+		}
+
+		if (!(obj instanceof POP3Account)) {
+			return (false);
+		}
+
+		POP3Account account = (POP3Account)obj;
+		return (host.equalsIgnoreCase(account.host) &&
+			username.equals(account.username));
+	}
+
+
+	/**
+	 * Gets a hash code made from the host and username.
+	 *
+	 * @return the hash code of the account
+	 */
+	public int hashCode () {
+		return (host.toLowerCase().hashCode() * 31 + username.hashCode());
+	}
+
+
+	/**
+	 * Returns the account as "username@host".
+	 *
+	 * @return the account as a string
+	 */
+	public String toString () {
+		return (username + "@" + host);
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+/**
+ * The <code>POP3Cursor</code> class reads the lines of a multi-line POP3
+ * response as they arrive, instead of collecting the whole response
+ * first. Lines can be read as strings through the <code>Iterator</code>
+ * interface, or with <code>nextLine()</code> as slices of the read buffer
+ * which creates no garbage at all. Lines are not reported to the
+ * session's status listeners.<p>
+ *
+ * A cursor can be abandoned before the end of the response by closing
+ * it. The rest of the response, up to the terminating ".", is then read
+ * and thrown away on the default <code>MailExecutor</code>, and the next
+ * command sent on the session waits for that to finish. Sending another
+ * command on the session while a cursor is still open abandons the cursor
+ * in the same way.<p>
+ *
+ * Usage:
+ * <pre>
+ *    POP3Cursor cursor = pop3.openCursor("UIDL");
+ *    try {
+ *        while (cursor.hasNext()) {
+ *            if (process(cursor.next())) {
+ *                break;
+ *            }
+ *        }
+ *    } finally {
+ *        cursor.close();
+ *    }
+ * </pre>
+ *
+ * @see     com.messners.mail.POP3#openCursor(String)
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3Cursor implements Iterator<String>, Closeable {
+
+	protected final POP3 pop3;
+	protected final POP3Reader in;
+	protected final POP3Response status;
+	protected final boolean fireEvents;
+
+	protected boolean done = false;
+	protected boolean closed = false;
+	protected int lineCount = 0;
+	protected int drainedCount = 0;
+	protected IOException drainError = null;
+
+	/*
+	 * A line read ahead by hasNext(), copied out of the read buffer
+	 */
+	protected byte ahead[] = null;
+
+
+	/**
+	 * Creates a cursor for the lines following a status line. A cursor
+	 * for a response that is not +OK has no lines.
+	 *
+	 * @param  pop3        the session the response is read from
+	 * @param  in          the reader for the session
+	 * @param  status      the status line of the response
+	 * @param  fireEvents  true to report each line to the status listeners
+	 */
+	POP3Cursor (POP3 pop3, POP3Reader in, POP3Response status,
+			boolean fireEvents) {
+
+		this.pop3 = pop3;
+		this.in = in;
+		this.status = status;
+		this.fireEvents = fireEvents;
+		this.done = !status.isOk();
+	}
+
+
+	/**
+	 * Gets the status line of the response.
+	 *
+	 * @return the status line
+	 */
+	public POP3Response getStatus () {
+		return (status);
+	}
+
+
+	/**
+	 * Returns true if the status line of the response was +OK.
+	 *
+	 * @return true if the status was +OK
+	 */
+	public boolean isOk () {
+		return (status.isOk());
+	}
+
+
+	/**
+	 * Returns true once the whole response has been read.
+	 *
+	 * @return true if the terminating "." has been read
+	 */
+	public synchronized boolean isDone () {
+		return (done);
+	}
+
+
+	/**
+	 * Gets the number of lines handed out by this cursor.
+	 *
+	 * @return the number of lines read
+	 */
+	public synchronized int getLineCount () {
+		return (lineCount);
+	}
+
+
+	/**
+	 * Gets the number of lines thrown away after the cursor was closed.
+	 *
+	 * @return the number of lines drained
+	 */
+	public synchronized int getDrainedCount () {
+		return (drainedCount);
+	}
+
+
+	/**
+	 * Returns true if there is another line.
+	 *
+	 * @return true if there is another line
+	 * @exception  java.io.UncheckedIOException  when the line cannot
+	 * be read
+	 */
+	public synchronized boolean hasNext () {
+
+		if (ahead != null) {
+			return (true);
+		}
+
+		try {
+			ByteBuffer line = read();
+			if (line == null) {
+				return (false);
+			}
+
+			ahead = new byte[line.remaining()];
+			line.get(ahead);
+			return (true);
+
+		} catch (IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+
+	/**
+	 * Gets the next line as a string.
+	 *
+	 * @return the next line
+	 * @exception  java.util.NoSuchElementException  when there are no
+	 * more lines
+	 * @exception  java.io.UncheckedIOException  when the line cannot
+	 * be read
+	 */
+	public synchronized String next () {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		String line = POP3Reader.toString(ahead, 0, ahead.length);
+		ahead = null;
+		return (line);
+	}
+
+
+	/**
+	 * Gets the next line as a slice of the read buffer, with the CRLF
+	 * and any dot-stuffing removed. The slice is only valid until the
+	 * next line is read.
+	 *
+	 * @return the next line, or null at the end of the response
+	 * @exception  IOException  when the line cannot be read
+	 */
+	public synchronized ByteBuffer nextLine () throws IOException {
+
+		if (ahead != null) {
+			ByteBuffer line = ByteBuffer.wrap(ahead);
+			ahead = null;
+			return (line);
+		}
+
+		return (read());
+	}
+
+
+	/**
+	 * Abandons the rest of the response, which is drained in the
+	 * background. Closing a cursor that has been read to the end does
+	 * nothing.
+	 */
+	public void close () {
+
+		synchronized (this) {
+			ahead = null;
+			if (done || closed) {
+				closed = true;
+				return;
+			}
+
+			closed = true;
+		}
+
+		/*
+		 * If the drain is rejected it is done by the next command sent
+		 * on the session instead
+		 */
+		MailExecutor.getDefault().submit(new Callable<Object>() {
+			public Object call () {
+				try {
+					drain();
+				} catch (IOException ignore) {
+					/* Kept in drainError for the next command */
+				}
+
+				return (null);
+			}
+		});
+	}
+
+
+	/**
+	 * Reads and throws away the rest of the response. Called by the
+	 * session before it sends another command.
+	 *
+	 * @exception  IOException  when the response could not be read to
+	 * its end, the session is then out of step with the server
+	 */
+	protected synchronized void drain () throws IOException {
+
+		if (drainError != null) {
+			throw drainError;
+		}
+
+		closed = true;
+		ahead = null;
+		try {
+			while (!done) {
+				if (in.readLineBytes() == null) {
+					done = true;
+				} else {
+					drainedCount++;
+				}
+			}
+		} catch (IOException ioe) {
+			drainError = ioe;
+			throw ioe;
+		}
+	}
+
+
+	/**
+	 * Reads a line of the response.
+	 */
+	protected ByteBuffer read () throws IOException {
+
+		if (done || closed) {
+			return (null);
+		}
+
+		ByteBuffer line = in.readLineBytes();
+		if (line == null) {
+			done = true;
+			return (null);
+		}
+
+		lineCount++;
+		if (fireEvents) {
+			pop3.fireMailStatusEvent(MailStatusEvent.RESPONSE,
+				POP3Reader.toString(line.array(), line.position(),
+				line.remaining()));
+		}
+
+		return (line);
+	}
+}
@@ -0,0 +1,691 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+
+/**
+ * The <code>POP3Drain</code> class downloads a mailbox over several POP3
+ * sessions at once, so that a large mailbox is not limited to what a
+ * single TCP stream can carry.<p>
+ *
+ * The primary session lists the mailbox, and the message list is split
+ * into small runs of consecutive messages that the sessions take in
+ * order, so a session that is faster than the others simply takes more
+ * of them. The additional sessions are opened on the
+ * <code>MailExecutor</code> and only ever read messages, they never
+ * issue DELE or QUIT, so they make no changes to the mailbox. A server
+ * that locks the mailbox will refuse them, in which case the primary
+ * session does all the work. If a session fails, the messages it had not
+ * read yet are put back for the other sessions.<p>
+ *
+ * The messages are passed to the listener in mailbox order, one at a
+ * time, but not always on the thread that called <code>drain()</code>.
+ * Sessions that get too far ahead of the oldest message not yet read
+ * wait for it, so only a bounded number of messages are held in memory.
+ * When deleting is turned on and every message was passed to the
+ * listener, the primary session deletes the messages and logs out, which
+ * is the only QUIT issued.
+ *
+ * @see     com.messners.mail.POP3#retrieveMessages(POP3MessageInfo[], POP3MessageListener)
+ * @see     com.messners.mail.MailExecutor
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3Drain {
+
+	/**
+	 * The default number of sessions used to drain a mailbox.
+	 */
+	public static final int DEFAULT_SESSIONS = 4;
+
+	/**
+	 * The default number of messages a session takes at a time.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 16;
+
+	/*
+	 * Marks a slot for a message the server would not return
+	 */
+	protected static final Object SKIPPED = new Object();
+
+	protected final String host;
+	protected final String username;
+	protected final String password;
+
+	protected int sessions = DEFAULT_SESSIONS;
+	protected int chunkSize = DEFAULT_CHUNK_SIZE;
+	protected boolean delete = false;
+	protected String attachmentDir = null;
+	protected AttachmentStore attachmentStore = null;
+	protected MailMetrics metrics = null;
+	protected MailExecutor executor = null;
+	protected int sessionsUsed = 0;
+
+
+	/**
+	 * Creates a <code>POP3Drain</code> for the specified account.
+	 *
+	 * @param  host      the hostname of the POP3 server
+	 * @param  username  the account name
+	 * @param  password  the password of the account
+	 */
+	public POP3Drain (String host, String username, String password) {
+
+		this.host = host;
+		this.username = username;
+		this.password = password;
+	}
+
+
+	/**
+	 * Sets the most sessions that will be used to drain the mailbox,
+	 * including the primary session.
+	 *
+	 * @param  sessions  the most sessions to use, at least 1
+	 */
+	public synchronized void setSessions (int sessions) {
+
+		if (sessions < 1) {
+			throw new IllegalArgumentException(
+				"invalid session count: " + sessions);
+		}
+
+		this.sessions = sessions;
+	}
+
+
+	/**
+	 * Gets the most sessions that will be used to drain the mailbox.
+	 *
+	 * @return the most sessions that will be used
+	 */
+	public synchronized int getSessions () {
+		return (sessions);
+	}
+
+
+	/**
+	 * Sets the number of consecutive messages a session takes at a time.
+	 *
+	 * @param  chunkSize  the number of messages, at least 1
+	 */
+	public synchronized void setChunkSize (int chunkSize) {
+
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException(
+				"invalid chunk size: " + chunkSize);
+		}
+
+		this.chunkSize = chunkSize;
+	}
+
+
+	/**
+	 * Gets the number of consecutive messages a session takes at a time.
+	 *
+	 * @return the number of messages
+	 */
+	public synchronized int getChunkSize () {
+		return (chunkSize);
+	}
+
+
+	/**
+	 * Sets whether the messages are deleted from the server once they
+	 * have all been passed to the listener. The default is false.
+	 *
+	 * @param  delete  true to delete the drained messages
+	 */
+	public synchronized void setDelete (boolean delete) {
+		this.delete = delete;
+	}
+
+
+	/**
+	 * Gets whether the messages are deleted from the server once they
+	 * have all been passed to the listener.
+	 *
+	 * @return true if the drained messages are deleted
+	 */
+	public synchronized boolean getDelete () {
+		return (delete);
+	}
+
+
+	/**
+	 * Sets the directory the sessions save attachments in. By default the
+	 * POP3 default attachment directory is used.
+	 *
+	 * @param  dir  the attachment directory
+	 */
+	public synchronized void setAttachmentDir (String dir) {
+		attachmentDir = dir;
+	}
+
+
+	/**
+	 * Sets the store that all sessions save attachments in, identical
+	 * attachments retrieved by different sessions are stored once.
+	 *
+	 * @param  store  the attachment store, or null to use the attachment
+	 * directory
+	 */
+	public synchronized void setAttachmentStore (AttachmentStore store) {
+		attachmentStore = store;
+	}
+
+
+	/**
+	 * Sets the metrics that all sessions record their command latencies,
+	 * bytes, messages and errors in.
+	 *
+	 * @param  metrics  the metrics to record in, or null to not
+	 * record any
+	 */
+	public synchronized void setMetrics (MailMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Sets the executor the additional sessions run on. By default the
+	 * shared default <code>MailExecutor</code> is used.
+	 *
+	 * @param  executor  the executor, or null for the default executor
+	 */
+	public synchronized void setExecutor (MailExecutor executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Gets the executor the additional sessions run on.
+	 *
+	 * @return the executor
+	 */
+	public synchronized MailExecutor getExecutor () {
+		return (executor != null ? executor : MailExecutor.getDefault());
+	}
+
+
+	/**
+	 * Gets the number of sessions that read messages during the last
+	 * drain, including the primary session.
+	 *
+	 * @return the number of sessions used by the last drain
+	 */
+	public synchronized int getSessionsUsed () {
+		return (sessionsUsed);
+	}
+
+
+	/**
+	 * Drains the mailbox and returns the messages in mailbox order. For
+	 * large mailboxes <code>drain(POP3MessageListener)</code> should be
+	 * used instead so that the messages are not all held in memory.
+	 *
+	 * @return the messages
+	 * @exception  IOException  when an I/O error occurs
+	 * @exception  POP3Exception  when a POP3 protocol error occurs
+	 */
+	public POP3MailMessage[] drain () throws IOException, POP3Exception {
+
+		final ArrayList<POP3MailMessage> messages =
+			new ArrayList<POP3MailMessage>();
+		drain(new POP3MessageListener() {
+			public void messageRetrieved (
+					POP3MessageInfo info, POP3MailMessage message) {
+				messages.add(message);
+			}
+		});
+
+		POP3MailMessage msgs[] = new POP3MailMessage[messages.size()];
+		messages.toArray(msgs);
+		return (msgs);
+	}
+
+
+	/**
+	 * Drains the mailbox, passing the messages to the listener in
+	 * mailbox order. If the listener throws an exception the drain is
+	 * stopped, nothing is deleted, and the exception is thrown.
+	 *
+	 * @param  listener  the listener to pass the messages to
+	 * @return the number of messages passed to the listener
+	 * @exception  IOException  when an I/O error occurs, or the listener
+	 * throws one
+	 * @exception  POP3Exception  when a POP3 protocol error occurs
+	 */
+	public synchronized int drain (POP3MessageListener listener)
+			throws IOException, POP3Exception {
+
+		sessionsUsed = 0;
+		POP3 primary = openSession();
+		try {
+
+			POP3MessageInfo list[] = primary.listMessages();
+			if (list == null) {
+				throw new POP3Exception("LIST failed: " +
+					primary.getLastResponse());
+			}
+
+			final Run run = new Run(list, listener,
+				sessions * chunkSize * 2);
+			for (int i = 0; i < list.length; i += chunkSize) {
+				run.queue.add(new Chunk(i, Math.min(i + chunkSize, list.length)));
+			}
+
+			/*
+			 * Start the additional sessions, then do our share of
+			 * the work with the primary session
+			 */
+			int extra = Math.min(sessions, run.queue.size()) - 1;
+			for (int i = 0; i < extra; i++) {
+				getExecutor().submit(new Callable<Object>() {
+					public Object call () {
+						runSession(run);
+						return (null);
+					}
+				});
+			}
+
+			run.started();
+			IOException primaryError = work(run, primary);
+			if (primaryError != null) {
+				run.sessionEnded();
+			}
+
+			run.await();
+			sessionsUsed = run.sessionsUsed;
+			run.rethrow();
+			if (run.next < list.length) {
+				POP3Exception pe = new POP3Exception(
+					"drain incomplete, " + (list.length - run.next) +
+					" messages not read");
+				if (run.lastError != null) {
+					pe.initCause(run.lastError);
+				}
+
+				throw pe;
+			}
+
+			if (primaryError != null) {
+				throw primaryError;
+			}
+
+			if (delete) {
+
+				int msgnums[] = new int[run.delivered];
+				int n = 0;
+				for (int i = 0; i < list.length; i++) {
+					if (!run.skipped[i]) {
+						msgnums[n++] = list[i].getMessageNumber();
+					}
+				}
+
+				primary.deleteMessages(msgnums);
+			}
+
+			primary.logout();
+			return (run.delivered);
+
+		} finally {
+			primary.disconnect();
+		}
+	}
+
+
+	/**
+	 * Opens and logs in a session. Subclasses can override this to set up
+	 * sessions differently.
+	 *
+	 * @return the logged in session
+	 * @exception  IOException  when an I/O error occurs
+	 * @exception  POP3Exception  when the login is refused
+	 */
+	protected POP3 openSession () throws IOException, POP3Exception {
+
+		POP3 pop3 = new POP3(host);
+		if (attachmentDir != null) {
+			pop3.setAttachmentDir(attachmentDir);
+		}
+
+		pop3.setAttachmentStore(attachmentStore);
+		pop3.setMetrics(metrics);
+
+		try {
+			if (!pop3.connect()) {
+				throw new POP3Exception("connect refused: " +
+					pop3.getLastResponse());
+			}
+
+			pop3.login(username, password);
+
+		} catch (IOException | POP3Exception | RuntimeException e) {
+			pop3.disconnect();
+			throw e;
+		}
+
+		return (pop3);
+	}
+
+
+	/**
+	 * Runs an additional, read-only session. It is dropped without
+	 * issuing QUIT so that it never makes changes to the mailbox.
+	 */
+	protected void runSession (Run run) {
+
+		if (!run.hasWork()) {
+			return;
+		}
+
+		POP3 pop3;
+		try {
+			pop3 = openSession();
+		} catch (Exception e) {
+
+			/*
+			 * Most likely the server locks the mailbox, the other
+			 * sessions will do the work
+			 */
+			return;
+		}
+
+		run.started();
+		try {
+			work(run, pop3);
+		} finally {
+
+			try {
+				pop3.disconnect();
+			} catch (IOException ignore) {
+				/* The session is being dropped anyway */
+			}
+
+			run.sessionEnded();
+		}
+	}
+
+
+	/**
+	 * Reads chunks of messages with a session until there are none left.
+	 *
+	 * @return the exception that ended the session early, or null
+	 */
+	protected IOException work (final Run run, POP3 pop3) {
+
+		Chunk chunk;
+		while ((chunk = run.take()) != null) {
+
+			final Chunk c = chunk;
+			POP3MessageInfo batch[] = new POP3MessageInfo[c.end - c.next];
+			System.arraycopy(run.list, c.next, batch, 0, batch.length);
+			try {
+
+				pop3.retrieveMessages(batch, new POP3MessageListener() {
+					public void messageRetrieved (
+							POP3MessageInfo info, POP3MailMessage msg) {
+
+						while (run.list[c.next] != info) {
+							run.put(c.next++, SKIPPED);
+						}
+
+						run.put(c.next++, msg);
+					}
+				});
+
+				while (c.next < c.end) {
+					run.put(c.next++, SKIPPED);
+				}
+
+				run.done(c);
+
+			} catch (Exception e) {
+
+				IOException ioe = (e instanceof IOException ?
+					(IOException)e : new IOException(e.toString()));
+				if (ioe != e) {
+					ioe.initCause(e);
+				}
+
+				run.requeue(c, ioe);
+				return (ioe);
+			}
+		}
+
+		return (null);
+	}
+
+
+	/**
+	 * A run of consecutive messages taken by a session.
+	 */
+	protected static class Chunk {
+
+		protected final int start;
+		protected final int end;
+		protected int next;
+
+		protected Chunk (int start, int end) {
+			this.start = start;
+			this.end = end;
+			this.next = start;
+		}
+	}
+
+
+	/**
+	 * The state of a drain shared by its sessions.
+	 */
+	protected static class Run {
+
+		protected final POP3MessageInfo list[];
+		protected final POP3MessageListener listener;
+		protected final int maxAhead;
+
+		protected final PriorityQueue<Chunk> queue =
+			new PriorityQueue<Chunk>(16, new Comparator<Chunk>() {
+				public int compare (Chunk a, Chunk b) {
+					return (a.start - b.start);
+				}
+			});
+
+		protected final Object slots[];
+		protected final boolean skipped[];
+		protected int next = 0;
+		protected int delivered = 0;
+		protected boolean delivering = false;
+		protected int inProgress = 0;
+		protected int sessionsRunning = 0;
+		protected int sessionsUsed = 0;
+		protected Exception failure = null;
+		protected IOException lastError = null;
+
+		protected Run (POP3MessageInfo list[], POP3MessageListener listener,
+				int maxAhead) {
+
+			this.list = list;
+			this.listener = listener;
+			this.maxAhead = maxAhead;
+			this.slots = new Object[list.length];
+			this.skipped = new boolean[list.length];
+		}
+
+		protected synchronized boolean hasWork () {
+			return (failure == null && !queue.isEmpty());
+		}
+
+		protected synchronized void started () {
+			sessionsRunning++;
+			sessionsUsed++;
+		}
+
+		protected synchronized void sessionEnded () {
+			sessionsRunning--;
+			notifyAll();
+		}
+
+		/**
+		 * Takes the oldest chunk, waiting while it is too far ahead of
+		 * the messages passed to the listener or while another session
+		 * may still put a chunk back.
+		 */
+		protected synchronized Chunk take () {
+
+			while (failure == null) {
+
+				Chunk c = queue.peek();
+				if (c == null) {
+					if (inProgress == 0) {
+						return (null);
+					}
+				} else if (c.start <= next + maxAhead) {
+					inProgress++;
+					return (queue.poll());
+				}
+
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return (null);
+				}
+			}
+
+			return (null);
+		}
+
+		protected synchronized void done (Chunk c) {
+			inProgress--;
+			notifyAll();
+		}
+
+		protected synchronized void requeue (Chunk c, IOException e) {
+
+			inProgress--;
+			lastError = e;
+			if (c.next < c.end) {
+				queue.add(new Chunk(c.next, c.end));
+			}
+
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the work is done or no session is left to do it.
+		 */
+		protected synchronized void await () {
+
+			while (failure == null && sessionsRunning > 0 &&
+					(inProgress > 0 || !queue.isEmpty())) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					failure = new IOException("drain interrupted");
+				}
+			}
+		}
+
+		protected void rethrow () throws IOException, POP3Exception {
+
+			Exception e;
+			synchronized (this) {
+				e = failure;
+			}
+
+			if (e instanceof IOException) {
+				throw (IOException)e;
+			} else if (e instanceof POP3Exception) {
+				throw (POP3Exception)e;
+			} else if (e != null) {
+				throw (RuntimeException)e;
+			}
+		}
+
+		/**
+		 * Stores a message in its slot, then passes the messages that
+		 * are next in order to the listener unless another session is
+		 * already doing so.
+		 */
+		protected void put (int index, Object msg) {
+
+			synchronized (this) {
+				slots[index] = msg;
+				if (delivering || failure != null) {
+					return;
+				}
+
+				delivering = true;
+			}
+
+			while (true) {
+
+				Object m;
+				int i;
+				synchronized (this) {
+					if (failure != null || next >= slots.length ||
+							slots[next] == null) {
+						delivering = false;
+						notifyAll();
+						return;
+					}
+
+					i = next;
+					m = slots[i];
+					slots[i] = null;
+					next++;
+					if (m == SKIPPED) {
+						skipped[i] = true;
+						notifyAll();
+						continue;
+					}
+				}
+
+				try {
+					listener.messageRetrieved(list[i], (POP3MailMessage)m);
+				} catch (Exception e) {
+					synchronized (this) {
+						failure = e;
+						delivering = false;
+						notifyAll();
+					}
+
+					return;
+				}
+
+				synchronized (this) {
+					delivered++;
+					notifyAll();
+				}
+			}
+		}
+	}
+}
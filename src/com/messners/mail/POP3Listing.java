@@ -0,0 +1,586 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The <code>POP3Listing</code> class holds a LIST and/or UIDL listing of a
+ * mailbox in a compact form meant for very large mailboxes. The message
+ * numbers and sizes are kept in <code>int</code> arrays and the unique
+ * identifiers are packed into a single byte array, so a listing of any
+ * size is a handful of objects. The lines of the listing are parsed
+ * straight from the bytes read from the server without being turned into
+ * strings.<p>
+ *
+ * A message is found by its index in the listing, by its message number
+ * or by its unique identifier. <code>POP3MessageInfo</code> objects and
+ * identifier strings are only created when they are asked for.<p>
+ *
+ * Usage:
+ * <pre>
+ *    POP3Listing listing = pop3.listMailbox();
+ *    int i = listing.indexOf(uid);
+ *    if (i &gt;= 0) {
+ *        pop3.retrieveMessage(listing.getMessageNumber(i));
+ *    }
+ * </pre>
+ *
+ * @see     com.messners.mail.POP3#listMailbox()
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3Listing {
+
+	protected static final int INITIAL_CAPACITY = 64;
+
+	protected int count = 0;
+	protected int numbers[];
+	protected int sizes[];
+	protected boolean hasSizes = false;
+	protected boolean hasIdentifiers = false;
+	protected boolean sorted = true;
+
+	/*
+	 * The unique identifiers, packed one after the other into the arena,
+	 * uidOffsets[i] is -1 for a message without one
+	 */
+	protected byte arena[];
+	protected int arenaUsed = 0;
+	protected int uidOffsets[];
+	protected int uidLengths[];
+
+	/*
+	 * Open addressing hash table from unique identifier to index + 1,
+	 * built the first time a message is looked up by identifier
+	 */
+	protected int table[] = null;
+
+
+	/**
+	 * Creates an empty listing.
+	 */
+	public POP3Listing () {
+		this(INITIAL_CAPACITY);
+	}
+
+
+	/**
+	 * Creates an empty listing with room for the specified number of
+	 * messages.
+	 *
+	 * @param  capacity  the expected number of messages
+	 */
+	public POP3Listing (int capacity) {
+
+		if (capacity < 1) {
+			capacity = 1;
+		}
+
+		numbers    = new int[capacity];
+		sizes      = new int[capacity];
+		uidOffsets = new int[capacity];
+		uidLengths = new int[capacity];
+		arena      = new byte[capacity * 16];
+	}
+
+
+	/**
+	 * Gets the number of messages in the listing.
+	 *
+	 * @return the number of messages
+	 */
+	public int size () {
+		return (count);
+	}
+
+
+	/**
+	 * Returns true if the listing has the sizes of the messages, from a
+	 * LIST command.
+	 *
+	 * @return true if the listing has message sizes
+	 */
+	public boolean hasSizes () {
+		return (hasSizes);
+	}
+
+
+	/**
+	 * Returns true if the listing has the unique identifiers of the
+	 * messages, from a UIDL command.
+	 *
+	 * @return true if the listing has unique identifiers
+	 */
+	public boolean hasUniqueIdentifiers () {
+		return (hasIdentifiers);
+	}
+
+
+	/**
+	 * Gets the message number of a message in the listing.
+	 *
+	 * @param  index  the index of the message in the listing
+	 * @return the message number
+	 */
+	public int getMessageNumber (int index) {
+		check(index);
+		return (numbers[index]);
+	}
+
+
+	/**
+	 * Gets the size of a message in the listing.
+	 *
+	 * @param  index  the index of the message in the listing
+	 * @return the size of the message in bytes, or -1 if not known
+	 */
+	public int getMessageSize (int index) {
+		check(index);
+		return (sizes[index]);
+	}
+
+
+	/**
+	 * Gets the total size of the messages in the listing.
+	 *
+	 * @return the total size in bytes of the messages with a known size
+	 */
+	public long getTotalSize () {
+
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			if (sizes[i] > 0) {
+				total += sizes[i];
+			}
+		}
+
+		return (total);
+	}
+
+
+	/**
+	 * Gets the unique identifier of a message in the listing, the string
+	 * is created by this call.
+	 *
+	 * @param  index  the index of the message in the listing
+	 * @return the unique identifier, or null if not known
+	 */
+	public String getUniqueIdentifier (int index) {
+
+		check(index);
+		if (uidOffsets[index] < 0) {
+			return (null);
+		}
+
+		return (POP3Reader.toString(arena, uidOffsets[index],
+			uidLengths[index]));
+	}
+
+
+	/**
+	 * Creates a <code>POP3MessageInfo</code> for a message in the listing.
+	 *
+	 * @param  index  the index of the message in the listing
+	 * @return the information for the message
+	 */
+	public POP3MessageInfo getMessageInfo (int index) {
+
+		check(index);
+		POP3MessageInfo info = new POP3MessageInfo(numbers[index],
+			getUniqueIdentifier(index));
+		if (sizes[index] >= 0) {
+			info.setMessageSize(sizes[index]);
+		}
+
+		return (info);
+	}
+
+
+	/**
+	 * Creates <code>POP3MessageInfo</code> objects for all the messages
+	 * in the listing.
+	 *
+	 * @return the information for all the messages
+	 */
+	public POP3MessageInfo [] toArray () {
+
+		POP3MessageInfo info[] = new POP3MessageInfo[count];
+		for (int i = 0; i < count; i++) {
+			info[i] = getMessageInfo(i);
+		}
+
+		return (info);
+	}
+
+
+	/**
+	 * Finds a message by its message number.
+	 *
+	 * @param  msgnum  the message number
+	 * @return the index of the message in the listing, or -1 if it is not
+	 * in the listing
+	 */
+	public int indexOfMessageNumber (int msgnum) {
+		return (find(msgnum, msgnum - 1));
+	}
+
+
+	/**
+	 * Finds a message by its unique identifier.
+	 *
+	 * @param  uid  the unique identifier
+	 * @return the index of the message in the listing, or -1 if it is not
+	 * in the listing
+	 */
+	public int indexOf (String uid) {
+
+		int length = uid.length();
+		for (int i = 0; i < length; i++) {
+			if (uid.charAt(i) > 0xff) {
+				return (-1);
+			}
+		}
+
+		if (table == null) {
+			buildTable();
+		}
+
+		int mask = table.length - 1;
+		int slot = hash(uid) & mask;
+		while (table[slot] != 0) {
+
+			int index = table[slot] - 1;
+			if (uidLengths[index] == length && equals(index, uid)) {
+				return (index);
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return (-1);
+	}
+
+
+	/**
+	 * Returns true if a message with the unique identifier is in the
+	 * listing.
+	 *
+	 * @param  uid  the unique identifier
+	 * @return true if the message is in the listing
+	 */
+	public boolean contains (String uid) {
+		return (indexOf(uid) >= 0);
+	}
+
+
+	/**
+	 * Adds a line of a LIST response, "msgnum size".
+	 * The fields may be separated by any run of spaces and tabs.
+	 *
+	 * @param  line  the line, as read by <code>readLineBytes()</code>
+	 * @return false if the line is malformed
+	 */
+	protected boolean addListLine (ByteBuffer line) {
+
+		byte b[] = line.array();
+		int pos = line.position();
+		int end = line.limit();
+
+		pos = skipSpaces(b, pos, end);
+		int start = pos;
+		int msgnum = 0;
+		while (pos < end && b[pos] >= '0' && b[pos] <= '9') {
+			msgnum = msgnum * 10 + (b[pos++] - '0');
+		}
+
+		if (pos == start || pos == end || !isSpace(b[pos])) {
+			return (false);
+		}
+
+		pos = skipSpaces(b, pos, end);
+		start = pos;
+		long size = 0;
+		while (pos < end && b[pos] >= '0' && b[pos] <= '9') {
+			size = size * 10 + (b[pos++] - '0');
+		}
+
+		if (pos == start || size > Integer.MAX_VALUE) {
+			return (false);
+		}
+
+		int index = indexFor(msgnum);
+
+		sizes[index] = (int)size;
+		hasSizes = true;
+		return (true);
+	}
+
+
+	/**
+	 * Adds a line of a UIDL response, "msgnum uid".
+	 * The fields may be separated by any run of spaces and tabs.
+	 *
+	 * @param  line  the line, as read by <code>readLineBytes()</code>
+	 * @return false if the line is malformed
+	 */
+	protected boolean addUidLine (ByteBuffer line) {
+
+		byte b[] = line.array();
+		int pos = line.position();
+		int end = line.limit();
+
+		pos = skipSpaces(b, pos, end);
+		int start = pos;
+		int msgnum = 0;
+		while (pos < end && b[pos] >= '0' && b[pos] <= '9') {
+			msgnum = msgnum * 10 + (b[pos++] - '0');
+		}
+
+		if (pos == start || pos == end || !isSpace(b[pos])) {
+			return (false);
+		}
+
+		pos = skipSpaces(b, pos, end);
+		start = pos;
+		while (pos < end && b[pos] > ' ') {
+			pos++;
+		}
+
+		if (pos == start) {
+			return (false);
+		}
+
+		int index = indexFor(msgnum);
+
+		int length = pos - start;
+		if (arenaUsed + length > arena.length) {
+			int grow = arena.length * 2;
+			if (grow < arenaUsed + length) {
+				grow = arenaUsed + length;
+			}
+
+			byte tmp[] = new byte[grow];
+			System.arraycopy(arena, 0, tmp, 0, arenaUsed);
+			arena = tmp;
+		}
+
+		System.arraycopy(b, start, arena, arenaUsed, length);
+		uidOffsets[index] = arenaUsed;
+		uidLengths[index] = length;
+		arenaUsed += length;
+		hasIdentifiers = true;
+		table = null;
+		return (true);
+	}
+
+
+	/**
+	 * Gets the index of a message number, adding it to the listing if it
+	 * is not there yet.
+	 */
+	protected int indexFor (int msgnum) {
+
+		if (count == 0 || numbers[count - 1] < msgnum) {
+			return (append(msgnum));
+		}
+
+		int index = find(msgnum, msgnum - 1);
+		if (index < 0) {
+			index = append(msgnum);
+		}
+
+		return (index);
+	}
+
+
+	/**
+	 * Adds a message to the end of the listing.
+	 */
+	protected int append (int msgnum) {
+
+		if (count > 0 && numbers[count - 1] > msgnum) {
+			sorted = false;
+		}
+
+		if (count == numbers.length) {
+			int grow = numbers.length * 2;
+			numbers    = grow(numbers, grow);
+			sizes      = grow(sizes, grow);
+			uidOffsets = grow(uidOffsets, grow);
+			uidLengths = grow(uidLengths, grow);
+		}
+
+		numbers[count]    = msgnum;
+		sizes[count]      = -1;
+		uidOffsets[count] = -1;
+		uidLengths[count] = 0;
+		return (count++);
+	}
+
+
+	/**
+	 * Finds a message number, checking the likely index first. Servers
+	 * list messages in order so the message is almost always either at
+	 * the likely index or found by a binary search, a listing that is
+	 * out of order is searched from the start.
+	 */
+	protected int find (int msgnum, int likely) {
+
+		if (likely >= 0 && likely < count && numbers[likely] == msgnum) {
+			return (likely);
+		}
+
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+
+			int mid = (low + high) >>> 1;
+			if (numbers[mid] < msgnum) {
+				low = mid + 1;
+			} else if (numbers[mid] > msgnum) {
+				high = mid - 1;
+			} else {
+				return (mid);
+			}
+		}
+
+		if (sorted) {
+			return (-1);
+		}
+
+		/*
+		 * The server listed the messages out of order
+		 */
+		for (int i = 0; i < count; i++) {
+			if (numbers[i] == msgnum) {
+				return (i);
+			}
+		}
+
+		return (-1);
+	}
+
+
+	/**
+	 * Builds the hash table of unique identifiers.
+	 */
+	protected void buildTable () {
+
+		int size = 16;
+		while (size < count * 2) {
+			size <<= 1;
+		}
+
+		table = new int[size];
+		int mask = size - 1;
+		for (int i = 0; i < count; i++) {
+
+			if (uidOffsets[i] < 0) {
+				continue;
+			}
+
+			int slot = hash(arena, uidOffsets[i], uidLengths[i]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+
+			table[slot] = i + 1;
+		}
+	}
+
+
+	/**
+	 * Compares a packed unique identifier to a string.
+	 */
+	protected boolean equals (int index, String uid) {
+
+		int offset = uidOffsets[index];
+		for (int i = 0; i < uidLengths[index]; i++) {
+			if ((arena[offset + i] & 0xff) != uid.charAt(i)) {
+				return (false);
+			}
+		}
+
+		return (true);
+	}
+
+
+	protected static int hash (byte b[], int offset, int length) {
+
+		int h = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ (b[i] & 0xff)) * 0x01000193;
+		}
+
+		return (h ^ (h >>> 16));
+	}
+
+
+	protected static int hash (String s) {
+
+		int h = 0x811c9dc5;
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			h = (h ^ s.charAt(i)) * 0x01000193;
+		}
+
+		return (h ^ (h >>> 16));
+	}
+
+
+	/**
+	 * Skips the spaces and tabs starting at pos.
+	 */
+	protected static int skipSpaces (byte b[], int pos, int end) {
+
+		while (pos < end && isSpace(b[pos])) {
+			pos++;
+		}
+
+		return (pos);
+	}
+
+
+	protected static boolean isSpace (byte b) {
+		return (b == ' ' || b == '\t');
+	}
+
+
+	protected static int [] grow (int a[], int length) {
+
+		int tmp[] = new int[length];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return (tmp);
+	}
+
+
+	protected void check (int index) {
+
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException(
+				"index: " + index + ", size: " + count);
+		}
+	}
+}
@@ -21,9 +21,12 @@
 
 package com.messners.mail;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.ArrayList;
 
@@ -40,11 +43,19 @@ public class POP3MailMessage {
 	protected Map<String, String> header = null;
 	protected MessagePart body[]         = null;
 	protected String attachmentDir       = null;
+	protected AttachmentStore attachmentStore = null;
 	protected POP3 pop3Connection        = null;
 	protected POP3Reader in              = null;
 	protected POP3MessageInfo msgInfo    = null;
 	protected int msgSize = -1;
 	protected int msgTotal = 0;
+	protected int spillThreshold = POP3.getDefaultSpillThreshold();
+
+	/*
+	 * True while only the header has been read, the body is retrieved
+	 * when it is asked for
+	 */
+	protected boolean headerOnly = false;
 
 
 	/**
@@ -58,6 +69,8 @@ public class POP3MailMessage {
 
 		this.pop3Connection = connection;
 		this.attachmentDir  = connection.getAttachmentDir();
+		this.spillThreshold = connection.getSpillThreshold();
+		this.attachmentStore = connection.getAttachmentStore();
 		this.in = connection.getInputStream();
 		this.msgSize = msgInfo.getMessageSize();		
 		this.msgInfo = msgInfo;
@@ -73,6 +86,8 @@ public class POP3MailMessage {
 
 		this.pop3Connection = connection;
 		this.attachmentDir  = connection.getAttachmentDir();
+		this.spillThreshold = connection.getSpillThreshold();
+		this.attachmentStore = connection.getAttachmentStore();
 		this.in = connection.getInputStream();
 	}
 
@@ -131,6 +146,48 @@ public class POP3MailMessage {
 	}
 
 
+	/**
+	 * Sets the store that attachments are saved in, instead of the
+	 * attachment directory.
+	 *
+	 * @param  store  the attachment store, or null to save attachments as
+	 * files in the attachment directory
+	 */
+	public void setAttachmentStore (AttachmentStore store) {
+		attachmentStore = store;
+	}
+
+
+	/**
+	 * Gets the store that attachments are saved in.
+	 */
+	public AttachmentStore getAttachmentStore () {
+		return (attachmentStore);
+	}
+
+
+	/**
+	 * Sets the number of characters of a text part that are kept in
+	 * memory, past this the text is moved to a temporary file that is
+	 * deleted by <code>dispose()</code>.
+	 *
+	 * @param  chars  the spill threshold in characters, or a negative
+	 * value to always keep text in memory
+	 */
+	public void setSpillThreshold (int chars) {
+		spillThreshold = chars;
+	}
+
+
+	/**
+	 * Gets the number of characters of a text part that are kept in
+	 * memory.
+	 */
+	public int getSpillThreshold () {
+		return (spillThreshold);
+	}
+
+
 	/**
 	 * Gets a Map<String, String> that contains the name/value pairs from the
 	 * message header.
@@ -164,7 +221,13 @@ public class POP3MailMessage {
 
 
 	/**
-	 * Read the mail message.
+	 * Read the mail message. The message is parsed with a
+	 * <code>MimeParser</code>, text parts are kept in memory up to the
+	 * spill threshold and in temporary files past it, and attachments are
+	 * saved in the attachment directory. Parts of nested multiparts are
+	 * included in the body in the order they appear. Call
+	 * <code>dispose()</code> when done with the message to delete the
+	 * temporary files.
 	 *
 	 * @exception  IOException If an I/O error occurs 
 	 * @exception  POP3Exception  when a POP3 protocol error occurs.
@@ -175,414 +238,324 @@ public class POP3MailMessage {
 			throw new IOException("message stream is null");
 		}
 
-		int start = in.getBytesRead();
-		header = in.readNameValuePairs();
-		int total = in.getBytesRead() - start;
-		if (pop3Connection != null) {
-			pop3Connection.fireMailProgressEvent(
-				total, total, msgSize);
-		}
-		incrMessageTotal(total);
-
-		body   = readBody();
-		return (this);
-	}
-
-
-	/**
-	 * Read the body of the message. The body may contain both
-	 * inline content and attachments.  We assume that the header
-	 * has been read prior to calling this method.
-	 *
-	 * @exception  IOException  If an I/O error occurs 
-	 * @exception  POP3Exception  when a POP3 protocol error occurs.
-	 */
-	protected synchronized MessagePart [] readBody ()
-		throws IOException, POP3Exception  {
-
-		if (body != null) {
-			return (body);
-		}
-
-		if (in == null) {
-			throw new IOException("message stream is null");
-		}
-
-		if (header == null) {
-			throw new POP3Exception("header not read yet");
-		}
-
-		/*
-		 * Is this a multipart message?
-		 */
-		String content_type = getHeaderValue("content-type");
-		if (content_type == null) {
-			content_type = "text/plain";
-		}
-
-		String tmp = content_type.toLowerCase();
-		if (tmp.indexOf("multipart") >= 0) {
-			return (parseMultipart(content_type));
-		}
-
-		/*
-		 * Is this a single attachment with no body?
-		 */
-		String content_disp = getHeaderValue("content-disposition");
-		if (content_disp != null) {
-			tmp = content_disp.toLowerCase();
-			if (tmp.indexOf("attachment") >= 0) {
-				return (parseSingleAttachment());
-			}
-		}
-
-		/*
-		 * If we got here the message is a non-attachement message or
-		 * a message with a single attachment and no body.  Read the
-		 * body of the message.
-		 */
-		StringBuffer buf = new StringBuffer();
+		MimeParser parser = new MimeParser(in);
+		ArrayList<MessagePart> parts = new ArrayList<MessagePart>();
+		MessagePart part = null;
+		boolean is_text = false;
 		boolean first_line = true;
+		OutputStream outfile = null;
+		AttachmentStore.BlobOutputStream blob = null;
+		boolean is_base64 = false;
+		byte line_separator[] = Utilities.getLineSeparator().getBytes();
 		int last_total = in.getBytesRead();
-		while (true) {
-			
-			String line = in.readLine();
-			if (line == null) {
-				break;
-			}
-
-			if (first_line) {
-				first_line = false;
-				buf.append(line);
-			} else {
-				buf.append("\n" + line);
-			}
 
+		String host = (pop3Connection != null ?
+			pop3Connection.getHost() : null);
+		Object parse_event = FlightEvents.beginMessageParse(host,
+			msgInfo != null ? msgInfo.getMessageNumber() : -1);
+		Object write_event = null;
+		int attachments = 0;
+		boolean complete = false;
+		try {
 
-			int bytes = in.getBytesRead() - last_total;
-			int msgTotal = incrMessageTotal(bytes);
-			last_total += bytes;
-			if (pop3Connection != null) {
-				pop3Connection.fireMailProgressEvent(
-					bytes, msgTotal, msgSize);
-			}
-		}
-	
-		MessagePart body[] = new MessagePart[1];
-		body[0] = new MessagePart(buf.toString(), content_type);
-		return (body);	
-	}
-
-
-	/**
-	 * Get the body of the message. The body may contain both
-	 * inline content and attachments.
-	 */
-	public synchronized MessagePart [] getBody () {
-		return (body);
-	}
-
-
-	/**
-	 * Read in a multipart message and save the body and files contained
-	 * in the boundaries.
-	 *
-	 * @exception  IOException If an I/O error occurs 
-	 */
-	protected MessagePart [] parseMultipart (String content_type)
-		throws IOException, POP3Exception  {
-
-		/*
-		 * Parse the boundary string out of the content type
-		 */
-		String tmp = content_type.toLowerCase();
-		int index = tmp.indexOf("boundary=");
-		if (index == -1) {
-			throw new POP3Exception(
-				"no boundary found in multipart message");
-		}
+			int event;
+			while ((event = parser.next()) != MimeParser.END) {
 
-		String boundary = content_type.substring(index + 9).trim();
-		if ((boundary = Utilities.removeQuotes(boundary)) == null) {	
-			throw new POP3Exception(
-				"malformed boundary in multipart message");
-		}
+				int bytes = in.getBytesRead() - last_total;
+				if (bytes > 0) {
+					int msgTotal = incrMessageTotal(bytes);
+					last_total += bytes;
+					if (pop3Connection != null) {
+						pop3Connection.fireMailProgressEvent(
+							bytes, msgTotal, msgSize);
+					}
+				}
 
-		/*
-		 * Get the length of the boundary string, we'll need it later
-		 */
-		int boundary_len = boundary.length();
+				switch (event) {
+
+					case MimeParser.PART_START:
+						if (parser.getDepth() == 0) {
+							header = parser.getPartHeader();
+						}
+
+						if (parser.isMultipart()) {
+							break;
+						}
+
+						/*
+						 * The body of a message that is not an attachment
+						 * is read as text
+						 */
+						Map<String, String> h = parser.getPartHeader();
+						String content_disp = h.get("content-disposition");
+						if (parser.getDepth() == 0 && (content_disp == null ||
+								content_disp.toLowerCase().indexOf("attachment") < 0)) {
+							String content_type = h.get("content-type");
+							part = new MessagePart("",
+								content_type != null ? content_type : "text/plain");
+							part.setSpillThreshold(spillThreshold);
+							is_text = true;
+							first_line = true;
+							break;
+						}
+
+						part = parseHeader(h);
+						part.setSpillThreshold(spillThreshold);
+						if (part.getType() == MessagePart.FILE) {
+							write_event = FlightEvents.beginAttachmentWrite(
+								host, part.getName(), part.getContentType());
+							if (attachmentStore != null) {
+								blob = attachmentStore.create();
+								outfile = blob;
+							} else {
+								outfile = new FileOutputStream(part.getFilename());
+							}
+
+							is_base64 = "base64".equals(parser.getEncoding());
+						}
+
+						break;
+
+					case MimeParser.BODY:
+						ByteBuffer line = parser.getBody();
+						if (outfile != null) {
+							if (is_base64) {
+								parser.writeBody(outfile);
+							} else {
+								outfile.write(line.array(), line.position(),
+									line.remaining());
+								outfile.write(line_separator);
+							}
+						} else if (is_text) {
+							if (first_line) {
+								first_line = false;
+							} else {
+								part.write("\n");
+							}
+
+							part.write(POP3Reader.toString(line.array(),
+								line.position(), line.remaining()));
+						} else if (part != null) {
+							part.append(POP3Reader.toString(line.array(),
+								line.position(), line.remaining()));
+						}
+
+						break;
+
+					case MimeParser.PART_END:
+						if (outfile != null) {
+							outfile.close();
+							outfile = null;
+						}
+
+						if (blob != null) {
+							part.setStoredContent(blob.getContentHash(),
+								blob.getFile().getPath());
+						}
+
+						if (write_event != null) {
+							FlightEvents.endAttachmentWrite(write_event,
+								part.getFilename(), blob != null ?
+								blob.getLength() :
+								new File(part.getFilename()).length(),
+								blob != null && blob.isShared());
+							write_event = null;
+						}
+
+						if (part != null && part.getType() == MessagePart.FILE) {
+							attachments++;
+						}
+
+						blob = null;
+
+						is_text = false;
+						if (part != null) {
+							parts.add(part);
+							part = null;
+						}
+
+						break;
+				}
+			}
 
-		/*
-		 * Now read each boundary and create a MessagePart object
-		 * to hold the text or file info
-		 */
-		ArrayList<MessagePart> parts = new ArrayList<MessagePart>();
-		OutputStream outfile = null;
-		MessagePart part = null;
-		String base64_extra = null;
-		boolean attachment = false;
-		boolean is_base64 = false;
-		int last_total = in.getBytesRead();
-		byte line_separator[] = Utilities.getLineSeparator().getBytes();
-		while (true) {
+			complete = true;
 
-			String line = in.readLine();
-			if (line == null) {
-				break;
-			}
+		} catch (UncheckedIOException uioe) {
+			/* A text part could not be spilled to its temporary file */
+			throw uioe.getCause();
+		} finally {
 
-			int bytes = in.getBytesRead() - last_total;
-			int msgTotal = incrMessageTotal(bytes);
-			last_total += bytes;
-			if (pop3Connection != null) {
-				pop3Connection.fireMailProgressEvent(
-					bytes, msgTotal, msgSize);
+			if (blob != null) {
+				blob.discard();
+			} else if (outfile != null) {
+				outfile.close();
 			}
 
 			/*
-			 * Are we on a new boundary?
+			 * The parts of a message that failed to read are never handed
+			 * out, so their temporary files are deleted and the references
+			 * their attachments hold in the store are released here
 			 */
-			if (line.indexOf(boundary) == 2 &&
-				line.substring(0, 2).equals("--")) {
-
-				/*
-				 * If we have a message part to finish up, do it
-				 */
+			if (!complete) {
 				if (part != null) {
-					if (attachment && outfile != null) {
-						outfile.close();
-						outfile = null;
+					part.dispose();
+					String hash = part.getContentHash();
+					if (hash == null && blob != null) {
+						hash = blob.getContentHash();
 					}
 
-					parts.add(part);
-					part = null;
-					base64_extra = null;
-					attachment = false;
-					is_base64 = false;
+					release(hash);
 				}
 
-
-				/*
-				 * See if this is the terminating boundary,
-				 * if so we are all done here
-				 */
-				if (line.indexOf("--", boundary_len + 2) ==
-					boundary_len + 2) {
-
-					continue;
-				}
-
-
-				/*
-				 * Parse the message part header
-				 */
-				part = parseParts();
-				if (part == null) {
-					continue;
-				}
-
-				bytes = in.getBytesRead() - last_total;
-				msgTotal = incrMessageTotal(bytes);
-				last_total += bytes;
-				if (pop3Connection != null) {
-					pop3Connection.fireMailProgressEvent(
-						bytes, msgTotal, msgSize);
+				for (int i = 0; i < parts.size(); i++) {
+					parts.get(i).dispose();
+					release(parts.get(i).getContentHash());
 				}
+			}
 
-				if (part.getType() == MessagePart.FILE) {
-					String encoding = part.getEncoding();
-					if (encoding != null &&
-						encoding.equals("base64")) {
-							is_base64 = true;
-					} else {
-						is_base64 = false;
-					}
-
-					outfile = new FileOutputStream(part.getFilename());
-					attachment = true;
-					base64_extra = null;
-				} else {
-					attachment = false;
-				}
+			FlightEvents.endMessageParse(parse_event, getMessageTotal(),
+				parts.size(), attachments);
+		}
 
-			} else if (part == null) {
-				continue;
-			} else if (is_base64 && attachment) {
+		if (pop3Connection != null) {
+			pop3Connection.getEventDispatcher().flushProgress();
+		}
 
-				if (base64_extra != null) {
-					line = base64_extra + line;
-				}
+		if (parts.size() > 0) {
+			body = new MessagePart[parts.size()];
+			parts.toArray(body);
+		}
 
-				/*
-				 * The base 64 Codec only works with
-				 * data lengths divisible by 4
-				 */
-				int len = line.length();
-				int left_over = len % 4;
-				if (left_over != 0) {
-					base64_extra = line.substring(
-							len - left_over);
-					line = line.substring(
-							0, len - left_over);	
-				} else {
-					base64_extra = null;
-				}
+		return (this);
+	}
 
-				byte buf[] = Base64Codec.decode(
-						line.getBytes());
-				if (buf != null) {
-					outfile.write(buf);
-				}
 
-			} else if (attachment) {
+	/**
+	 * Deletes the temporary files of the text parts that were spilled
+	 * while reading the message. The text of those parts is gone after
+	 * this, saved attachments are not touched.
+	 */
+	public synchronized void dispose () {
 
-				byte buf[] = line.getBytes();
-				if (buf != null) {
-					outfile.write(buf);
-					outfile.write(line_separator);
-				}
-				
-			} else {
-				part.append(line);
+		if (body != null) {
+			for (int i = 0; i < body.length; i++) {
+				body[i].dispose();
 			}
 		}
-
-		/*
-		 * Convert the ArrayList of MessagePart to MessagePart[]
-		 */
-		int num_parts = parts.size();
-		if (num_parts < 1) {
-			return (null);
-		}
-
-		MessagePart body[] = new MessagePart[num_parts];
-		parts.toArray(body);
-		return (body);	
 	}
 
 
 	/**
-	 * Reads and parses the information for 1 part of a multipart message.
-	 *
-	 * @exception  IOException If an I/O error occurs 
+	 * Drops the reference a part of a message that failed to read holds
+	 * in the attachment store. A failure to write the index is ignored so
+	 * it does not hide the failure that stopped the read.
 	 */
-	protected MessagePart parseParts () throws IOException {
+	protected void release (String hash) {
 
-		Map<String, String> parts;
-		try {
-			if ((parts = in.readNameValuePairs()) == null) {
-				return (null);
-			}
-		} catch (Exception e) {
-			return (null);
+		if (attachmentStore == null || hash == null || hash.length() == 0) {
+			return;
 		}
 
-		return (parseHeader(parts));
+		try {
+			attachmentStore.release(hash);
+		} catch (IOException ignore) {
+		}
 	}
 
 
-
 	/**
-	 * Read in a single attachment with no body.
+	 * Reads just the header of the message, the response to a
+	 * "TOP msgnum 0" command. The body is retrieved from the server when
+	 * it is first asked for.
 	 *
 	 * @exception  IOException If an I/O error occurs 
 	 */
-	protected MessagePart [] parseSingleAttachment ()
-		throws IOException, POP3Exception  {
+	protected POP3MailMessage readHeaderOnly () throws IOException {
 
-
-		OutputStream outfile = null;
-		MessagePart part = parseHeader(header);
-		if (part == null) {
-			return (null);
+		if (in == null) {
+			throw new IOException("message stream is null");
 		}
 
-		String base64_extra = null;
-		boolean attachment = false;
-		boolean is_base64 = false;
-		int last_total = in.getBytesRead();
-		byte line_separator[] = Utilities.getLineSeparator().getBytes();
-
-		if (part.getType() == MessagePart.FILE) {
-			String encoding = part.getEncoding();
-			if (encoding != null && encoding.equals("base64")) {
-				is_base64 = true;
+		int start = in.getBytesRead();
+		MimeParser parser = new MimeParser(in);
+		int event;
+		while ((event = parser.next()) != MimeParser.END) {
+			if (event == MimeParser.PART_START && parser.getDepth() == 0) {
+				header = parser.getPartHeader();
+				parser.skipPart();
 			}
-
-			outfile = new FileOutputStream(part.getFilename());
-			attachment = true;
 		}
 
+		incrMessageTotal(in.getBytesRead() - start);
+		headerOnly = (pop3Connection != null && msgInfo != null);
+		return (this);
+	}
 
-		while (true) {
-
-			String line = in.readLine();
-			if (line == null) {
-				break;
-			}
 
-			int bytes = in.getBytesRead() - last_total;
-			int msgTotal = incrMessageTotal(bytes);
-			last_total += bytes;
-			if (pop3Connection != null) {
-				pop3Connection.fireMailProgressEvent(
-					bytes, msgTotal, msgSize);
-			}
+	/**
+	 * Returns true if only the header of the message has been read so
+	 * far, the body will be retrieved when it is asked for.
+	 *
+	 * @return true if only the header has been read
+	 */
+	public synchronized boolean isHeaderOnly () {
+		return (headerOnly);
+	}
 
-			if (is_base64 && attachment) {
 
-				if (base64_extra != null) {
-					line = base64_extra + line;
-				}
+	/**
+	 * Get the body of the message. The body may contain both
+	 * inline content and attachments. If only the header of the message
+	 * has been read the body is retrieved from the server first.
+	 *
+	 * @exception  java.io.UncheckedIOException  when the body has to be
+	 * retrieved and that fails
+	 */
+	public synchronized MessagePart [] getBody () {
 
-				/*
-				 * The base 64 Codec only works with
-				 * data lengths divisible by 4
-				 */
-				int len = line.length();
-				int left_over = len % 4;
-				if (left_over != 0) {
-					base64_extra = line.substring(
-							len - left_over);
-					line = line.substring(
-							0, len - left_over);	
-				} else {
-					base64_extra = null;
-				}
+		if (headerOnly) {
+			try {
+				fetchBody();
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			} catch (POP3Exception pe) {
+				throw new UncheckedIOException(
+					new IOException(pe.getMessage(), pe));
+			}
+		}
 
-				byte buf[] = Base64Codec.decode(line.getBytes());
-				if (buf != null) {
-					outfile.write(buf);
-				}
+		return (body);
+	}
 
-			} else if (attachment) {
 
-				byte buf[] = line.getBytes();
-				if (buf != null) {
-					outfile.write(buf);
-					outfile.write(line_separator);
-				}
-				
-			} else {
-				part.append(line);
-			}
-		}
+	/**
+	 * Retrieves the body of a message whose header was read on its own,
+	 * using the POP3 session the header was read with.
+	 *
+	 * @return the body of the message
+	 * @exception  IOException If an I/O error occurs 
+	 * @exception  POP3Exception  when a POP3 protocol error occurs.
+	 */
+	public synchronized MessagePart [] fetchBody ()
+		throws IOException, POP3Exception {
 
-		if (outfile != null) {
-			outfile.close();
+		if (headerOnly) {
+			msgTotal = 0;
+			pop3Connection.retrieveBody(this);
+			headerOnly = false;
 		}
 
-		MessagePart body[] = new MessagePart[1];
-		body[0] = part;
-		return (body);	
+		return (body);
 	}
-	
 
 
 	protected MessagePart parseHeader (Map<String, String> parts) throws IOException {
 			
 		String content_type = parts.get("content-type");
+		if (content_type == null) {
+			content_type = "text/plain";
+		}
+
 		String content_disp = parts.get("content-disposition");
 		String enc = parts.get("content-transfer-encoding");
 		
@@ -618,6 +591,12 @@ public class POP3MailMessage {
 				if (filename != null) {
 
 					filename = Utilities.removeQuotes(filename.trim());
+					if (attachmentStore != null) {
+						/* The blob is named when the data has been stored */
+						return (new MessagePart(filename, null,
+							content_type, enc));
+					}
+
 					filename = Utilities.createUniqueFile(
 											attachmentDir, filename);
 					return (new MessagePart(filename, content_type, enc));
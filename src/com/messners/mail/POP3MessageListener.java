@@ -0,0 +1,50 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.io.IOException;
+
+/**
+ * Listener interface for receiving messages as they are read by the
+ * pipelined batch retrieval methods of <code>POP3</code>.
+ *
+ * @see     com.messners.mail.POP3#retrieveMessages(POP3MessageInfo[], POP3MessageListener)
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public interface POP3MessageListener {
+
+	/**
+	 * Invoked as each message is read. If this throws an exception no
+	 * more messages are passed to the listener and the exception is
+	 * thrown by the batch method once the replies to the commands that
+	 * were already sent have been read.
+	 *
+	 * @param  info     the message info passed to the batch method
+	 * @param  message  the message that was read
+	 * @exception  IOException  when the message cannot be processed
+	 */
+	void messageRetrieved (POP3MessageInfo info, POP3MailMessage message)
+		throws IOException;
+}
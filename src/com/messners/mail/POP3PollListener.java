@@ -0,0 +1,44 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+/**
+ * Listener interface for receiving the results of the polls made by a
+ * <code>POP3Poller</code>.
+ *
+ * @see     com.messners.mail.POP3Poller
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public interface POP3PollListener {
+
+	/**
+	 * Invoked when a poll of a mailbox finishes, whether it succeeded or
+	 * failed. This is called on the thread that made the poll, so it
+	 * should not block for long.
+	 *
+	 * @param  result  the result of the poll
+	 */
+	void polled (POP3PollResult result);
+}
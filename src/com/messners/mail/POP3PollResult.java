@@ -0,0 +1,129 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+/**
+ * The <code>POP3PollResult</code> class describes the outcome of a poll
+ * of a mailbox made by a <code>POP3Poller</code>.
+ *
+ * @see     com.messners.mail.POP3Poller
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3PollResult {
+
+	protected final POP3Account account;
+	protected final POP3MailboxInfo info;
+	protected final int newMessages;
+	protected final Exception exception;
+	protected final long time;
+	protected final long nextPoll;
+
+
+	/**
+	 * Package internal use constructor.
+	 */
+	POP3PollResult (POP3Account account, POP3MailboxInfo info,
+			int newMessages, Exception exception, long time, long nextPoll) {
+
+		this.account = account;
+		this.info = info;
+		this.newMessages = newMessages;
+		this.exception = exception;
+		this.time = time;
+		this.nextPoll = nextPoll;
+	}
+
+
+	/**
+	 * Gets the account that was polled.
+	 *
+	 * @return the account that was polled
+	 */
+	public POP3Account getAccount () {
+		return (account);
+	}
+
+
+	/**
+	 * Returns true if the poll succeeded.
+	 *
+	 * @return true if the poll succeeded
+	 */
+	public boolean isOk () {
+		return (exception == null);
+	}
+
+
+	/**
+	 * Gets the mailbox status returned by the server.
+	 *
+	 * @return the mailbox status, or null if the poll failed
+	 */
+	public POP3MailboxInfo getMailboxInfo () {
+		return (info);
+	}
+
+
+	/**
+	 * Gets the number of messages that arrived since the last poll, this
+	 * is the increase in the message count (or the whole count if it
+	 * went down, as the mailbox was emptied in between).
+	 *
+	 * @return the number of new messages
+	 */
+	public int getNewMessageCount () {
+		return (newMessages);
+	}
+
+
+	/**
+	 * Gets the exception that made the poll fail.
+	 *
+	 * @return the exception, or null if the poll succeeded
+	 */
+	public Exception getException () {
+		return (exception);
+	}
+
+
+	/**
+	 * Gets the time the poll finished.
+	 *
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getTime () {
+		return (time);
+	}
+
+
+	/**
+	 * Gets the time the mailbox is next due to be polled.
+	 *
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getNextPoll () {
+		return (nextPoll);
+	}
+}
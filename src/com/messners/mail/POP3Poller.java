@@ -0,0 +1,786 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The <code>POP3Poller</code> class checks a large number of mailboxes
+ * for new mail. Each poll (connect, login, STAT and logout) runs as a
+ * task on a <code>MailExecutor</code>, which uses virtual threads when the
+ * runtime supports them, so thousands of mailboxes can be polled without
+ * a thread for each one. No more than <code>setMaxPerHost()</code> polls
+ * run against the same server at once.<p>
+ *
+ * The interval between polls adapts to how often mail arrives in each
+ * mailbox. The arrival rate is estimated from the change in the message
+ * count between polls, and a mailbox is polled about as often as a new
+ * message is expected, within the minimum and maximum intervals. A
+ * mailbox that gets no mail is polled less and less often, and a failed
+ * poll is retried with exponential backoff.<p>
+ *
+ * The result of each poll is passed to the poll listeners and, if one is
+ * set, offered to a result queue. The poll lag (how late polls start
+ * compared to when they were due) and the number of overdue mailboxes
+ * show whether the executor and host limits keep up with the load.
+ *
+ * @see     com.messners.mail.POP3Account
+ * @see     com.messners.mail.POP3PollListener
+ * @see     com.messners.mail.MailExecutor
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3Poller {
+
+	/**
+	 * The default shortest time between polls of a mailbox, 1 minute.
+	 */
+	public static final long DEFAULT_MIN_INTERVAL = 60 * 1000;
+
+	/**
+	 * The default longest time between polls of a mailbox, 30 minutes.
+	 */
+	public static final long DEFAULT_MAX_INTERVAL = 30 * 60 * 1000;
+
+	/**
+	 * The default most polls run against one server at once.
+	 */
+	public static final int DEFAULT_MAX_PER_HOST = 8;
+
+	/*
+	 * Weight of the newest sample in the arrival rate estimate
+	 */
+	protected static final double RATE_WEIGHT = 0.3;
+
+
+	protected MailExecutor executor = null;
+	protected long minInterval = DEFAULT_MIN_INTERVAL;
+	protected long maxInterval = DEFAULT_MAX_INTERVAL;
+	protected int maxPerHost = DEFAULT_MAX_PER_HOST;
+	protected long overdueThreshold = 10000;
+	protected int tickMsecs = 250;
+
+	protected final HashMap<POP3Account, Mailbox> mailboxes =
+		new HashMap<POP3Account, Mailbox>();
+	protected final HashMap<String, Host> hosts = new HashMap<String, Host>();
+	protected final PriorityQueue<Mailbox> due =
+		new PriorityQueue<Mailbox>(64, new Comparator<Mailbox>() {
+			public int compare (Mailbox a, Mailbox b) {
+				return (a.nextPoll < b.nextPoll ? -1 :
+					(a.nextPoll > b.nextPoll ? 1 : 0));
+			}
+		});
+
+	protected ScheduledExecutorService scheduler = null;
+	protected int active = 0;
+
+	protected final CopyOnWriteArrayList<POP3PollListener> listeners =
+		new CopyOnWriteArrayList<POP3PollListener>();
+	protected BlockingQueue<POP3PollResult> resultQueue = null;
+
+	protected final AtomicLong polls = new AtomicLong();
+	protected final AtomicLong failures = new AtomicLong();
+	protected final AtomicLong dropped = new AtomicLong();
+	protected long lagTotal = 0;
+	protected long lagCount = 0;
+	protected long maxLag = 0;
+
+
+	/**
+	 * Creates a <code>POP3Poller</code> with no accounts. Polling does not
+	 * start until <code>start()</code> is called.
+	 */
+	public POP3Poller () {
+	}
+
+
+	/**
+	 * Sets the executor the polls are run on. By default the shared
+	 * default <code>MailExecutor</code> is used.
+	 *
+	 * @param  executor  the executor, or null for the default executor
+	 */
+	public synchronized void setExecutor (MailExecutor executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Gets the executor the polls are run on.
+	 *
+	 * @return the executor
+	 */
+	public synchronized MailExecutor getExecutor () {
+		return (executor != null ? executor : MailExecutor.getDefault());
+	}
+
+
+	/**
+	 * Sets the shortest and longest time between polls of a mailbox.
+	 *
+	 * @param  min  the shortest interval in milliseconds
+	 * @param  max  the longest interval in milliseconds
+	 */
+	public synchronized void setInterval (long min, long max) {
+
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException(
+				"invalid poll interval: " + min + ", " + max);
+		}
+
+		minInterval = min;
+		maxInterval = max;
+	}
+
+
+	/**
+	 * Sets the most polls that will run against the same server at once.
+	 *
+	 * @param  max  the most polls per server, at least 1
+	 */
+	public synchronized void setMaxPerHost (int max) {
+
+		if (max < 1) {
+			throw new IllegalArgumentException(
+				"invalid polls per host: " + max);
+		}
+
+		maxPerHost = max;
+	}
+
+
+	/**
+	 * Gets the most polls that will run against the same server at once.
+	 *
+	 * @return the most polls per server
+	 */
+	public synchronized int getMaxPerHost () {
+		return (maxPerHost);
+	}
+
+
+	/**
+	 * Sets how late a poll has to be before its mailbox is counted as
+	 * overdue. The default is 10 seconds.
+	 *
+	 * @param  msecs  the threshold in milliseconds
+	 */
+	public synchronized void setOverdueThreshold (long msecs) {
+		overdueThreshold = msecs;
+	}
+
+
+	/**
+	 * Sets a queue that the result of every poll is offered to. If the
+	 * queue is full the result is dropped and counted.
+	 *
+	 * @param  queue  the result queue, or null for none
+	 */
+	public synchronized void setResultQueue (BlockingQueue<POP3PollResult> queue) {
+		resultQueue = queue;
+	}
+
+
+	/**
+	 * Adds the specified listener to receive poll results.
+	 *
+	 * @param  l  the listener
+	 */
+	public void addPollListener (POP3PollListener l) {
+
+		if (l != null) {
+			listeners.addIfAbsent(l);
+		}
+	}
+
+
+	/**
+	 * Removes the specified poll listener.
+	 *
+	 * @param  l  the listener
+	 */
+	public void removePollListener (POP3PollListener l) {
+		listeners.remove(l);
+	}
+
+
+	/**
+	 * Adds an account to be polled. A new account is due to be polled
+	 * right away.
+	 *
+	 * @param  account  the account to poll
+	 */
+	public synchronized void addAccount (POP3Account account) {
+
+		if (mailboxes.containsKey(account)) {
+			return;
+		}
+
+		Mailbox mailbox = new Mailbox(account);
+		mailbox.interval = minInterval;
+		mailbox.nextPoll = System.currentTimeMillis();
+		mailboxes.put(account, mailbox);
+		due.add(mailbox);
+	}
+
+
+	/**
+	 * Removes an account. A poll of the account that is in progress is
+	 * allowed to finish.
+	 *
+	 * @param  account  the account to remove
+	 */
+	public synchronized void removeAccount (POP3Account account) {
+
+		Mailbox mailbox = mailboxes.remove(account);
+		if (mailbox != null) {
+			mailbox.removed = true;
+			due.remove(mailbox);
+		}
+	}
+
+
+	/**
+	 * Gets the accounts being polled.
+	 *
+	 * @return the accounts
+	 */
+	public synchronized POP3Account [] getAccounts () {
+
+		POP3Account accounts[] = new POP3Account[mailboxes.size()];
+		mailboxes.keySet().toArray(accounts);
+		return (accounts);
+	}
+
+
+	/**
+	 * Gets the current interval between polls of an account.
+	 *
+	 * @param  account  the account
+	 * @return the interval in milliseconds, or -1 if the account is not
+	 * being polled
+	 */
+	public synchronized long getInterval (POP3Account account) {
+
+		Mailbox mailbox = mailboxes.get(account);
+		return (mailbox != null ? mailbox.interval : -1);
+	}
+
+
+	/**
+	 * Gets the time an account is next due to be polled.
+	 *
+	 * @param  account  the account
+	 * @return the time in milliseconds since the epoch, or -1 if the
+	 * account is not being polled
+	 */
+	public synchronized long getNextPoll (POP3Account account) {
+
+		Mailbox mailbox = mailboxes.get(account);
+		return (mailbox != null ? mailbox.nextPoll : -1);
+	}
+
+
+	/**
+	 * Starts polling.
+	 */
+	public synchronized void start () {
+
+		if (scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread (Runnable r) {
+					Thread t = new Thread(r, "jgmail-poller");
+					t.setDaemon(true);
+					return (t);
+				}
+			});
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run () {
+				tick();
+			}
+		}, 0, tickMsecs, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Stops polling. Polls in progress are allowed to finish.
+	 */
+	public synchronized void stop () {
+
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+
+	/**
+	 * Stops polling and waits for the polls in progress to finish.
+	 */
+	public synchronized void close () {
+
+		stop();
+
+		boolean interrupted = false;
+		while (active > 0) {
+			try {
+				wait();
+			} catch (InterruptedException ie) {
+				interrupted = true;
+				break;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Gets the number of polls made, successful or not.
+	 *
+	 * @return the number of polls
+	 */
+	public long getPollCount () {
+		return (polls.get());
+	}
+
+
+	/**
+	 * Gets the number of polls that failed.
+	 *
+	 * @return the number of failed polls
+	 */
+	public long getFailureCount () {
+		return (failures.get());
+	}
+
+
+	/**
+	 * Gets the number of results dropped because the result queue was
+	 * full.
+	 *
+	 * @return the number of dropped results
+	 */
+	public long getDroppedResultCount () {
+		return (dropped.get());
+	}
+
+
+	/**
+	 * Gets the number of polls in progress or waiting on the executor.
+	 *
+	 * @return the number of active polls
+	 */
+	public synchronized int getActiveCount () {
+		return (active);
+	}
+
+
+	/**
+	 * Gets how late polls have started on average, compared to when they
+	 * were due.
+	 *
+	 * @return the average poll lag in milliseconds
+	 */
+	public synchronized long getAveragePollLag () {
+		return (lagCount > 0 ? lagTotal / lagCount : 0);
+	}
+
+
+	/**
+	 * Gets the latest any poll has started, compared to when it was due.
+	 *
+	 * @return the longest poll lag in milliseconds
+	 */
+	public synchronized long getMaxPollLag () {
+		return (maxLag);
+	}
+
+
+	/**
+	 * Gets the number of mailboxes whose poll is more than the overdue
+	 * threshold late and has not started yet.
+	 *
+	 * @return the number of overdue mailboxes
+	 */
+	public synchronized int getOverdueCount () {
+
+		long late = System.currentTimeMillis() - overdueThreshold;
+		int count = 0;
+		for (Mailbox mailbox : mailboxes.values()) {
+			if (!mailbox.running && mailbox.nextPoll < late) {
+				count++;
+			}
+		}
+
+		return (count);
+	}
+
+
+	/**
+	 * Polls an account, returning the mailbox status. Subclasses can
+	 * override this to check a mailbox differently.
+	 *
+	 * @param  account  the account to poll
+	 * @return the mailbox status
+	 * @exception  Exception  when the poll fails
+	 */
+	protected POP3MailboxInfo poll (POP3Account account) throws Exception {
+
+		POP3 pop3 = new POP3(account.getHost());
+		try {
+
+			if (!pop3.connect()) {
+				throw new POP3Exception("connect refused: " +
+					pop3.getLastResponse());
+			}
+
+			pop3.login(account.getUsername(), account.getPassword());
+			POP3MailboxInfo info = pop3.status();
+			if (info == null) {
+				throw new POP3Exception("STAT failed: " +
+					pop3.getLastResponse());
+			}
+
+			pop3.logout();
+			return (info);
+
+		} finally {
+			pop3.disconnect();
+		}
+	}
+
+
+	/**
+	 * Runs on the scheduler thread, starts a poll of every mailbox that
+	 * is due unless its server already has the most polls running.
+	 */
+	protected void tick () {
+
+		ArrayList<Mailbox> ready = new ArrayList<Mailbox>();
+		synchronized (this) {
+
+			if (scheduler == null) {
+				return;
+			}
+
+			ArrayList<Mailbox> waiting = new ArrayList<Mailbox>();
+			long now = System.currentTimeMillis();
+			Mailbox mailbox;
+			while ((mailbox = due.peek()) != null && mailbox.nextPoll <= now) {
+
+				due.poll();
+				Host host = getHost(mailbox.account.getHost());
+				if (host.active >= maxPerHost) {
+					waiting.add(mailbox);
+					continue;
+				}
+
+				host.active++;
+				active++;
+				ready.add(mailbox);
+			}
+
+			due.addAll(waiting);
+		}
+
+		for (Mailbox mailbox : ready) {
+			submit(mailbox);
+		}
+	}
+
+
+	/**
+	 * Submits a task to poll a mailbox.
+	 */
+	protected void submit (final Mailbox mailbox) {
+
+		/*
+		 * Whichever of the task and the completion claims the mailbox
+		 * first does its bookkeeping, so it is done exactly once
+		 */
+		final AtomicBoolean claimed = new AtomicBoolean();
+		getExecutor().submit(new Callable<Object>() {
+			public Object call () {
+				if (claimed.compareAndSet(false, true)) {
+					pollMailbox(mailbox);
+				}
+
+				return (null);
+			}
+		}).whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept (Object result, Throwable t) {
+
+				/*
+				 * The task never ran, the executor was full or the
+				 * submit was interrupted, the mailbox is still due and
+				 * is tried again on the next tick
+				 */
+				if (t != null && claimed.compareAndSet(false, true)) {
+					synchronized (POP3Poller.this) {
+						finished(mailbox);
+						if (!mailbox.removed) {
+							due.add(mailbox);
+						}
+					}
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Polls a mailbox, works out when to poll it next, and passes on the
+	 * result. The mailbox is put back in the schedule however the poll
+	 * ends.
+	 */
+	protected void pollMailbox (Mailbox mailbox) {
+
+		long start = System.currentTimeMillis();
+		synchronized (this) {
+
+			mailbox.running = true;
+			long lag = start - mailbox.nextPoll;
+			if (lag < 0) {
+				lag = 0;
+			}
+
+			lagTotal += lag;
+			lagCount++;
+			if (lag > maxLag) {
+				maxLag = lag;
+			}
+		}
+
+		POP3PollResult result = null;
+		BlockingQueue<POP3PollResult> queue = null;
+		try {
+
+			POP3MailboxInfo info = null;
+			Exception error = null;
+			try {
+				info = poll(mailbox.account);
+			} catch (Exception e) {
+				error = e;
+			}
+
+			synchronized (this) {
+
+				long now = System.currentTimeMillis();
+				int newMessages = 0;
+				if (error == null) {
+
+					int count = info.getMessageCount();
+					if (mailbox.lastCount < 0 || count < mailbox.lastCount) {
+						newMessages = count;
+					} else {
+						newMessages = count - mailbox.lastCount;
+					}
+
+					if (mailbox.lastPoll > 0) {
+						updateRate(mailbox, newMessages,
+							now - mailbox.lastPoll);
+						mailbox.interval = getInterval(mailbox.rate);
+					}
+
+					mailbox.lastCount = count;
+					mailbox.lastPoll = now;
+					mailbox.failures = 0;
+					mailbox.nextPoll = now + mailbox.interval;
+
+				} else {
+					backOff(mailbox, now);
+				}
+
+				result = new POP3PollResult(mailbox.account, info,
+					newMessages, error, now, mailbox.nextPoll);
+				queue = resultQueue;
+			}
+
+		} finally {
+
+			synchronized (this) {
+
+				/*
+				 * The poll ended with an Error, back off as for a
+				 * failed poll
+				 */
+				if (result == null) {
+					backOff(mailbox, System.currentTimeMillis());
+				}
+
+				finished(mailbox);
+				if (!mailbox.removed) {
+					due.add(mailbox);
+				}
+			}
+		}
+
+		polls.incrementAndGet();
+		if (!result.isOk()) {
+			failures.incrementAndGet();
+		}
+
+		if (queue != null && !queue.offer(result)) {
+			dropped.incrementAndGet();
+		}
+
+		for (POP3PollListener l : listeners) {
+			try {
+				l.polled(result);
+			} catch (RuntimeException ignore) {
+				/* A broken listener does not stop the poller */
+			}
+		}
+	}
+
+
+	/**
+	 * Counts a failed poll of a mailbox and schedules the next one after
+	 * a delay that doubles with each failure in a row.
+	 */
+	protected void backOff (Mailbox mailbox, long now) {
+
+		mailbox.failures++;
+		int shift = Math.min(mailbox.failures - 1, 20);
+		mailbox.nextPoll = now + Math.min(maxInterval, minInterval << shift);
+	}
+
+
+	/**
+	 * Updates the arrival rate estimate of a mailbox with a new sample.
+	 */
+	protected void updateRate (Mailbox mailbox, int newMessages, long elapsed) {
+
+		if (elapsed <= 0) {
+			return;
+		}
+
+		double sample = (double)newMessages / elapsed;
+		if (mailbox.rate < 0) {
+			mailbox.rate = sample;
+		} else {
+			mailbox.rate = RATE_WEIGHT * sample +
+				(1 - RATE_WEIGHT) * mailbox.rate;
+		}
+	}
+
+
+	/**
+	 * Gets the interval for a mailbox with the specified arrival rate, the
+	 * time in which one new message is expected.
+	 */
+	protected long getInterval (double rate) {
+
+		if (rate <= 0) {
+			return (maxInterval);
+		}
+
+		double interval = 1 / rate;
+		if (interval < minInterval) {
+			return (minInterval);
+		} else if (interval > maxInterval) {
+			return (maxInterval);
+		}
+
+		return ((long)interval);
+	}
+
+
+	/**
+	 * Marks a mailbox as no longer being polled.
+	 */
+	protected void finished (Mailbox mailbox) {
+
+		mailbox.running = false;
+		getHost(mailbox.account.getHost()).active--;
+		active--;
+		notifyAll();
+	}
+
+
+	/**
+	 * Gets the state kept for a server, creating it if needed.
+	 */
+	protected Host getHost (String name) {
+
+		name = name.toLowerCase();
+		Host host = hosts.get(name);
+		if (host == null) {
+			host = new Host();
+			hosts.put(name, host);
+		}
+
+		return (host);
+	}
+
+
+	/**
+	 * The polling state of a mailbox.
+	 */
+	protected static class Mailbox {
+
+		protected final POP3Account account;
+		protected long interval;
+		protected long nextPoll;
+		protected long lastPoll = 0;
+		protected int lastCount = -1;
+		protected double rate = -1;
+		protected int failures = 0;
+		protected boolean running = false;
+		protected boolean removed = false;
+
+		protected Mailbox (POP3Account account) {
+			this.account = account;
+		}
+	}
+
+
+	/**
+	 * The number of polls running against a server.
+	 */
+	protected static class Host {
+		protected int active = 0;
+	}
+}
@@ -22,15 +22,29 @@
 package com.messners.mail;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * The <code>POP3Reader</code> class is used to read data from a POP3
- * server connection.
+ * server connection.<p>
+ *
+ * Data is read from the connection in large blocks into a byte buffer
+ * and lines are found by scanning the buffer for CRLF, so nothing is
+ * converted to characters unless a line is asked for as a
+ * <code>String</code>. <code>readLineBytes()</code> hands out each line
+ * as a slice of the buffer. Lines of a multi-line response have their
+ * dot-stuffing removed, and the lone period that ends the response is
+ * reported as the end of the data.<p>
+ *
+ * This class still extends <code>BufferedReader</code> so that it can be
+ * used wherever a <code>Reader</code> is expected, the single character
+ * reads treat each byte as an ISO-8859-1 character.
  *
  * @author  Gregory M. Messner <gmessner@messners.com>
  * @version $Revision: 1.1 $
@@ -38,7 +52,30 @@ import java.util.HashMap;
 
 public class POP3Reader extends BufferedReader {
 
-	protected int total = 0;
+	/**
+	 * The default size of the read buffer.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	protected static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	protected volatile int total = 0;
+
+	protected final InputStream stream;
+	protected byte buf[];
+	protected int pos = 0;
+	protected int limit = 0;
+	protected boolean eof = false;
+
+	/*
+	 * The number of lone periods that ended multi-line data
+	 */
+	protected long terminators = 0;
+
+	/*
+	 * The slice handed out by readLineBytes(), reused for every line
+	 */
+	protected ByteBuffer line;
 
 
 	/**
@@ -47,15 +84,119 @@ public class POP3Reader extends BufferedReader {
 	 * @param  in  InputStream from a socket connected to a POP3 server.
 	 */
 	public POP3Reader (InputStream in) {
-		super(new InputStreamReader(in));
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+
+
+	/**
+	 * Constructor to create A POP3Reader from the InputStream of a socket
+	 * with the specified buffer size.
+	 *
+	 * @param  in    InputStream from a socket connected to a POP3 server.
+	 * @param  size  the initial size of the read buffer
+	 */
+	public POP3Reader (InputStream in, int size) {
+
+		/*
+		 * All reading is done from our own byte buffer, the
+		 * Reader given to BufferedReader is never used
+		 */
+		super(new StringReader(""));
+
+		if (size < 256) {
+			size = 256;
+		}
+
+		this.stream = in;
+		this.buf = new byte[size];
+		this.line = ByteBuffer.wrap(buf);
+	}
+
+
+	/**
+	 * Reads the next line as a slice of the read buffer. A line ends with
+	 * a CRLF which is not part of the slice. The contents of the slice are
+	 * only valid until the next read from this reader.<p>
+	 *
+	 * A line starting with a period has it removed (dot-unstuffing), and
+	 * a line holding just a period ends the data and null is returned.
+	 *
+	 * @return the line, or null at the end of the data
+	 * @exception  IOException If an I/O error occurs 
+	 */
+	public ByteBuffer readLineBytes () throws IOException {
+
+		/*
+		 * Scan for a LF that follows a CR, reading more data as needed
+		 */
+		int start = pos;
+		int scan  = pos;
+		int end   = -1;
+		while (true) {
+
+			byte b[] = buf;
+			int lim = limit;
+			for (int i = scan; i < lim; i++) {
+				if (b[i] == '\n' && i > start && b[i - 1] == '\r') {
+					end = i - 1;
+					break;
+				}
+			}
+
+			if (end >= 0) {
+				pos = end + 2;
+				break;
+			}
+
+			scan = limit;
+			int moved = fill();
+			if (moved < 0) {
+
+				/*
+				 * End of stream, what is left is the last line
+				 */
+				if (limit == pos) {
+					return (null);
+				}
+
+				start = pos;
+				end   = limit;
+				pos   = limit;
+				break;
+			}
+
+			start -= moved;
+			scan  -= moved;
+		}
+
+		total += pos - start;
+
+		int len = end - start;
+		if (len > 0 && buf[start] == '.') {
+			if (len == 1) {
+				terminators++;
+				return (null);
+			}
+
+			start++;
+			len--;
+		}
+
+		if (line.array() != buf) {
+			line = ByteBuffer.wrap(buf);
+		}
+
+		line.limit(start + len);
+		line.position(start);
+		return (line);
 	}
 
 
 	/**
 	 * Read a line of text. A line is considered to be terminated by
-	 * any one of a line feed ('\n'), a carriage return ('\r'), or a
-	 * carriage return followed immediately by a linefeed. Additionally,
-	 * a lone period "." indicates EOF and null will be returned.
+	 * a carriage return followed immediately by a linefeed. Additionally,
+	 * a lone period "." indicates EOF and null will be returned, and a
+	 * leading period on any other line is removed.
 	 *
 	 * @return A String containing the contents of the line, not
 	 * including any line-termination characters, or null if
@@ -64,56 +205,223 @@ public class POP3Reader extends BufferedReader {
 	 */
 	public String readLine () throws IOException {
 
-		StringBuffer buf  = new StringBuffer(80);
-		boolean endOfLine = false;
-		boolean lastWasCr = false;
-		int bytesRead = 0;
-		do {
-			int c = read();
-			switch (c) {
+		ByteBuffer line = readLineBytes();
+		if (line == null) {
+			return (null);
+		}
 
-			    case -1:
-					endOfLine = true;
-					break;
+		return (toString(line.array(), line.position(), line.remaining()));
+	}	
 
-				case '\r':
-					lastWasCr = true;
-					bytesRead++;
-					break;
 
-				case '\n':
-					bytesRead++;
-					if (lastWasCr) {
-						endOfLine = true;
-					} else {
-						buf.append((char)'\n');
-					}
-					break;
+	/**
+	 * Converts bytes read from the server to a String. US-ASCII data, by
+	 * far the most common, is converted directly, anything else is
+	 * decoded with the platform default character set.
+	 *
+	 * @param  b    the bytes to convert
+	 * @param  off  the offset of the first byte
+	 * @param  len  the number of bytes
+	 * @return the bytes as a String
+	 */
+	public static String toString (byte b[], int off, int len) {
 
-				default:
-					bytesRead++;
-					if (lastWasCr) {
-						buf.append((char)'\r');
-						lastWasCr = false;
-					}
-					buf.append((char)c);
-					break;
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			if (b[i] < 0) {
+				return (new String(b, off, len, Charset.defaultCharset()));
 			}
+		}
 
-		} while (!endOfLine);
-		
-		if (bytesRead == 0) {
-			return (null);
+		return (new String(b, off, len, ISO_8859_1));
+	}
+
+
+	/**
+	 * Reads a single byte as a character.
+	 *
+	 * @return the character read, or -1 at the end of the stream
+	 * @exception  IOException If an I/O error occurs 
+	 */
+	public int read () throws IOException {
+
+		if (pos >= limit && fill() < 0) {
+			return (-1);
 		}
-		
-		incrBytesRead(bytesRead);
-		String line = buf.toString();
-		if (line.equals(".")) {
-			return (null);
-		} else {
-			return (line);
+
+		total++;
+		return (buf[pos++] & 0xff);
+	}
+
+
+	/**
+	 * Reads bytes as characters into a portion of an array.
+	 *
+	 * @param  cbuf  the destination buffer
+	 * @param  off   the offset at which to start storing characters
+	 * @param  len   the maximum number of characters to read
+	 * @return the number of characters read, or -1 at the end of the stream
+	 * @exception  IOException If an I/O error occurs 
+	 */
+	public int read (char cbuf[], int off, int len) throws IOException {
+
+		if (len == 0) {
+			return (0);
 		}
-	}	
+
+		if (pos >= limit && fill() < 0) {
+			return (-1);
+		}
+
+		int n = (limit - pos < len ? limit - pos : len);
+		for (int i = 0; i < n; i++) {
+			cbuf[off + i] = (char)(buf[pos + i] & 0xff);
+		}
+
+		pos += n;
+		total += n;
+		return (n);
+	}
+
+
+	/**
+	 * Reads raw bytes into a portion of an array, bypassing any line
+	 * handling.
+	 *
+	 * @param  b    the destination buffer
+	 * @param  off  the offset at which to start storing bytes
+	 * @param  len  the maximum number of bytes to read
+	 * @return the number of bytes read, or -1 at the end of the stream
+	 * @exception  IOException If an I/O error occurs 
+	 */
+	public int readBytes (byte b[], int off, int len) throws IOException {
+
+		if (len == 0) {
+			return (0);
+		}
+
+		if (pos >= limit && fill() < 0) {
+			return (-1);
+		}
+
+		int n = (limit - pos < len ? limit - pos : len);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		total += n;
+		return (n);
+	}
+
+
+	/**
+	 * Skips characters.
+	 *
+	 * @param  n  the number of characters to skip
+	 * @return the number of characters actually skipped
+	 * @exception  IOException If an I/O error occurs 
+	 */
+	public long skip (long n) throws IOException {
+
+		long skipped = 0;
+		while (skipped < n) {
+
+			if (pos >= limit && fill() < 0) {
+				break;
+			}
+
+			int step = (int)Math.min(n - skipped, limit - pos);
+			pos += step;
+			skipped += step;
+		}
+
+		total += (int)skipped;
+		return (skipped);
+	}
+
+
+	/**
+	 * Tells whether data can be read without blocking.
+	 *
+	 * @return true if data is buffered or available from the stream
+	 * @exception  IOException If an I/O error occurs 
+	 */
+	public boolean ready () throws IOException {
+		return (pos < limit || stream.available() > 0);
+	}
+
+
+	/**
+	 * Mark and reset are not supported.
+	 *
+	 * @return false
+	 */
+	public boolean markSupported () {
+		return (false);
+	}
+
+
+	/**
+	 * Mark is not supported.
+	 *
+	 * @exception  IOException always
+	 */
+	public void mark (int readAheadLimit) throws IOException {
+		throw new IOException("mark() not supported");
+	}
+
+
+	/**
+	 * Reset is not supported.
+	 *
+	 * @exception  IOException always
+	 */
+	public void reset () throws IOException {
+		throw new IOException("reset() not supported");
+	}
+
+
+	/**
+	 * Closes the reader and the underlying stream.
+	 *
+	 * @exception  IOException If an I/O error occurs 
+	 */
+	public void close () throws IOException {
+		stream.close();
+	}
+
+
+	/**
+	 * Reads more data into the buffer. Unread data is first moved to the
+	 * start of the buffer, and the buffer is grown if it is already full.
+	 *
+	 * @return the number of bytes the unread data was moved down by,
+	 * or -1 at the end of the stream
+	 */
+	protected int fill () throws IOException {
+
+		if (eof) {
+			return (-1);
+		}
+
+		int moved = pos;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		} else if (limit == buf.length) {
+			byte tmp[] = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, tmp, 0, limit);
+			buf = tmp;
+		}
+
+		int n = stream.read(buf, limit, buf.length - limit);
+		if (n < 0) {
+			eof = true;
+			return (-1);
+		}
+
+		limit += n;
+		return (moved);
+	}
 
 	
 
@@ -143,7 +451,8 @@ public class POP3Reader extends BufferedReader {
 
 	/**
 	 * This method reads a message or multipart message header and returns
-	 * a hashtable containg the name value pairs in the header.
+	 * a hashtable containg the name value pairs in the header. The header
+	 * is read a line at a time, folded lines are joined with a space.
 	 *
 	 * @return a HashTable containing the header name/value pairs 
 	 */
@@ -152,129 +461,70 @@ public class POP3Reader extends BufferedReader {
 
 		Map<String, String> header = new HashMap<String, String>(3);
 
-		int bytesRead = 0;
-		String name   = null;
-		String value  = null;
-		StringBuffer nameBuf  = new StringBuffer();
-		StringBuffer valueBuf = new StringBuffer();
-		int state = NAME;
-		while (state != BODY) {
+		String name = null;
+		StringBuilder valueBuf = new StringBuilder();
+		while (true) {
 
-			/*
-			 * Read in the next character
-			 */
-			int c = read();
-			if (c == -1) {
+			ByteBuffer line = readLineBytes();
+			if (line == null || !line.hasRemaining()) {
 				break;
 			}
 
-			bytesRead++;
-
-			switch (state) {
-			  case NAME:
-				if (c != ':') {
-					nameBuf.append((char)c);
-				} else {
-					name = nameBuf.toString();
-					name = name.toLowerCase();
-					nameBuf.setLength(0);
-					state = VALUE;
-				}
-
-				break;
-
-			  case VALUE:
-				if (c == '\r') {
-					state = EOL;
-				} else {
-					valueBuf.append((char)c);
-				}
-
-				break;
-
-
-			  case EOH:
-				state = BODY;
-				break;
-
-
-			  case EOL:
-				switch (c) {
-				
-				  /*
-				   * Another CR means end of header
-				   */
-				  case '\r':
-					state = EOH;
-					break;
-
-				  /*
-				   * White space means we're folding in a value
-				   */
-				  case '\t':
-				  case ' ':
-					state = FOLD;
-					break;
-
-				  /*
-				   * A LF is not a state change unless at EOH
-				   */
-				  case '\n':
-					break;
+			byte b[] = line.array();
+			int off = line.position();
+			int end = line.limit();
 
-				  /*
-				   * Any other character means we've come to
-				   * another name (field). If we have a value
-				   * pending add it to the hashtable.
-				   */
-				  default:
-					if (valueBuf.length() > 0) {
-						value =
-						    valueBuf.toString().trim();
-						valueBuf.setLength(0);
-						header.put(name, value);
+			/*
+			 * White space means we're folding in a value
+			 */
+			if (b[off] == ' ' || b[off] == '\t') {
+				if (name != null) {
+					String folded = toString(b, off, end - off).trim();
+					if (folded.length() > 0) {
+						if (valueBuf.length() > 0) {
+							valueBuf.append(' ');
+						}
+
+						valueBuf.append(folded);
 					}
-
-					state = NAME;
-					nameBuf.append((char)c);
-					break;
 				}
 
-				break;
+				continue;
+			}
 
-			  /*
-			   * Folding in a value
-			   */
-			  case FOLD:
+			/*
+			 * Any other line starts another name (field). If we have
+			 * a value pending add it to the hashtable.
+			 */
+			if (name != null && valueBuf.length() > 0) {
+				header.put(name, valueBuf.toString().trim());
+			}
 
-				/*
-				 * If c is a CR then switch to EOL state, 
-				 * otherwise, if it is not a newline, space,
-				 * or tab swicth to VALUE state and append c
-				 * to the value buffer
-				 */
-				if (c == '\r') {
-					state = EOL;
-				} else if (c != '\n' && c != ' ' && c != '\t') {
-					state = VALUE;
-					if (valueBuf.length() > 0) {
-						valueBuf.append(' ');
-					}
-					valueBuf.append((char)c);
-				}
+			name = null;
+			valueBuf.setLength(0);
 
-				break;
+			int colon = off;
+			while (colon < end && b[colon] != ':') {
+				colon++;
+			}
+
+			if (colon == end) {
+				continue;
 			}
+
+			name = toString(b, off, colon - off).toLowerCase();
+			valueBuf.append(toString(b, colon + 1, end - colon - 1));
 		}
 
-		incrBytesRead(bytesRead);
-		
 		/*
 		 * Do we have a pending name value pair? If so add it to the
 		 * hashtable
 		 */
-		if (valueBuf.length() > 0) {
-			header.put(name, valueBuf.toString().trim());
+		if (name != null && valueBuf.length() > 0) {
+			String value = valueBuf.toString().trim();
+			if (value.length() > 0) {
+				header.put(name, value);
+			}
 		}
 
 		if (header.isEmpty()) {
@@ -290,7 +540,7 @@ public class POP3Reader extends BufferedReader {
 	 *
 	 * @param  bytes  The number of bytes to increment by.
 	 */
-	protected synchronized void incrBytesRead (int bytes) {
+	protected void incrBytesRead (int bytes) {
 			total += bytes;
 	}
 
@@ -300,8 +550,19 @@ public class POP3Reader extends BufferedReader {
 	 *
 	 * @return the count of bytes read
 	 */
-	public synchronized int getBytesRead () {
+	public int getBytesRead () {
 			return (total);
 	}
-}
 
+
+	/**
+	 * Gets the number of lone period lines read, each of which ended
+	 * the data of a multi-line reply. Comparing the count before and
+	 * after reading a reply tells whether its data was read to the end.
+	 *
+	 * @return the number of lone period lines read
+	 */
+	public long getTerminatorCount () {
+		return (terminators);
+	}
+}
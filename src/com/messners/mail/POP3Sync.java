@@ -0,0 +1,433 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The <code>POP3Sync</code> class incrementally synchronizes a mailbox that
+ * is left on the server. It keeps an index of the unique identifiers
+ * (UIDs) of the messages it has already retrieved in a local file, and
+ * each sync diffs the server's UIDL listing against that index, so only
+ * messages that have not been seen before are retrieved. Re-polling a
+ * mailbox that has not changed costs a single UIDL command.<p>
+ *
+ * Messages can optionally be deleted from the server once they have been
+ * held in the index for a retention period. Identifiers that no longer
+ * appear in the server's listing are dropped from the index.<p>
+ *
+ * The index file is a log of "&lt;time retrieved&gt; &lt;UID&gt;" lines.
+ * Newly retrieved messages are appended to it as they are processed, and
+ * it is rewritten (to a temporary file which then replaces it) when
+ * entries are dropped. A torn line left by a crash is ignored, which at
+ * worst causes that one message to be retrieved again.<p>
+ *
+ * Usage:
+ * <pre>
+ *    pop3.connect(host);
+ *    pop3.login(username, password);
+ *    POP3Sync sync = new POP3Sync(pop3, new File("mailbox.idx"));
+ *    sync.setRetention(7L * 24 * 60 * 60 * 1000);
+ *    POP3MailMessage msgs[] = sync.sync();
+ *    pop3.logout();
+ *    pop3.disconnect();
+ * </pre>
+ *
+ * @see     com.messners.mail.POP3#listMailbox(boolean, boolean)
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3Sync {
+
+	/**
+	 * Retention value that never deletes messages from the server.
+	 */
+	public static final long KEEP_FOREVER = -1;
+
+	protected final POP3 pop3;
+	protected final File indexFile;
+
+	/*
+	 * UID to the time it was retrieved
+	 */
+	protected final HashMap<String, Long> index = new HashMap<String, Long>();
+
+	/*
+	 * The number of lines in the index file, used to decide when it
+	 * has enough stale lines to be worth rewriting
+	 */
+	protected int indexLines = 0;
+
+	protected long retention = KEEP_FOREVER;
+	protected int retrievedCount = 0;
+	protected int deletedCount = 0;
+
+
+	/**
+	 * Creates a <code>POP3Sync</code> for a mailbox, loading the index of
+	 * messages already retrieved from the specified file. The file is
+	 * created by the first sync if it does not exist.
+	 *
+	 * @param  pop3       the POP3 connection to the mailbox
+	 * @param  indexFile  the file to keep the index in
+	 * @exception  IOException  when the index file cannot be read
+	 */
+	public POP3Sync (POP3 pop3, File indexFile) throws IOException {
+
+		this.pop3 = pop3;
+		this.indexFile = indexFile;
+		load();
+	}
+
+
+	/**
+	 * Sets how long a retrieved message is left on the server before it
+	 * is deleted. Use <code>KEEP_FOREVER</code> (the default) to never
+	 * delete messages, or 0 to delete them as soon as they are retrieved.
+	 * Deleted messages are removed when the POP3 session is logged out.
+	 *
+	 * @param  msecs  the retention in milliseconds, or KEEP_FOREVER
+	 */
+	public synchronized void setRetention (long msecs) {
+		retention = msecs;
+	}
+
+
+	/**
+	 * Gets how long a retrieved message is left on the server before it
+	 * is deleted.
+	 *
+	 * @return the retention in milliseconds, or KEEP_FOREVER
+	 */
+	public synchronized long getRetention () {
+		return (retention);
+	}
+
+
+	/**
+	 * Gets the number of messages in the index.
+	 *
+	 * @return the number of messages in the index
+	 */
+	public synchronized int getIndexSize () {
+		return (index.size());
+	}
+
+
+	/**
+	 * Checks if the message with the specified UID has been retrieved.
+	 *
+	 * @param  uid  the unique identifier of the message
+	 * @return true if the message is in the index
+	 */
+	public synchronized boolean isRetrieved (String uid) {
+		return (index.containsKey(uid));
+	}
+
+
+	/**
+	 * Gets the number of messages retrieved by the last sync.
+	 *
+	 * @return the number of messages retrieved by the last sync
+	 */
+	public synchronized int getRetrievedCount () {
+		return (retrievedCount);
+	}
+
+
+	/**
+	 * Gets the number of messages marked for deletion by the last sync.
+	 *
+	 * @return the number of messages marked for deletion by the last sync
+	 */
+	public synchronized int getDeletedCount () {
+		return (deletedCount);
+	}
+
+
+	/**
+	 * Retrieves the messages that are not in the index and returns them.
+	 * For large mailboxes <code>sync(POP3MessageListener)</code> should be
+	 * used instead so that the messages are not all held in memory.
+	 *
+	 * @return the newly retrieved messages
+	 * @exception  IOException  when an I/O error occurs
+	 * @exception  POP3Exception  when not in the TRANSACTION state or the
+	 * server does not support UIDL
+	 */
+	public POP3MailMessage[] sync () throws IOException, POP3Exception {
+
+		final ArrayList<POP3MailMessage> messages =
+			new ArrayList<POP3MailMessage>();
+		sync(new POP3MessageListener() {
+			public void messageRetrieved (
+					POP3MessageInfo info, POP3MailMessage message) {
+				messages.add(message);
+			}
+		});
+
+		POP3MailMessage msgs[] = new POP3MailMessage[messages.size()];
+		messages.toArray(msgs);
+		return (msgs);
+	}
+
+
+	/**
+	 * Retrieves the messages that are not in the index, passing each one
+	 * to the listener, then marks messages that have been held past the
+	 * retention period for deletion. A message is added to the index only
+	 * after the listener returns, so if the listener throws an exception
+	 * the message will be retrieved again by the next sync.
+	 *
+	 * @param  listener  the listener to pass the retrieved messages to
+	 * @return the number of messages retrieved
+	 * @exception  IOException  when an I/O error occurs
+	 * @exception  POP3Exception  when not in the TRANSACTION state or the
+	 * server does not support UIDL
+	 */
+	public synchronized int sync (POP3MessageListener listener)
+			throws IOException, POP3Exception {
+
+		retrievedCount = 0;
+		deletedCount = 0;
+
+		POP3Listing listing = pop3.listMailbox(false, true);
+		if (listing == null) {
+			throw new POP3Exception("UIDL failed: " +
+				pop3.getLastResponse());
+		}
+
+		/*
+		 * Look each indexed UID up in the listing rather than turning
+		 * every listed UID into a string, this drops the UIDs that are
+		 * no longer on the server as it goes
+		 */
+		boolean seen[] = new boolean[listing.size()];
+		final ArrayList<POP3MessageInfo> expired =
+			new ArrayList<POP3MessageInfo>();
+		long now = System.currentTimeMillis();
+
+		Iterator<Map.Entry<String, Long>> iter = index.entrySet().iterator();
+		while (iter.hasNext()) {
+
+			Map.Entry<String, Long> e = iter.next();
+			int i = listing.indexOf(e.getKey());
+			if (i < 0) {
+				iter.remove();
+				continue;
+			}
+
+			seen[i] = true;
+			if (retention >= 0 &&
+					now - e.getValue().longValue() >= retention) {
+				expired.add(listing.getMessageInfo(i));
+			}
+		}
+
+		ArrayList<POP3MessageInfo> unseen = new ArrayList<POP3MessageInfo>();
+		for (int i = 0; i < seen.length; i++) {
+			if (!seen[i]) {
+				unseen.add(listing.getMessageInfo(i));
+			}
+		}
+
+		/*
+		 * Retrieve the new messages as one pipelined batch, each is
+		 * recorded as retrieved only once the listener has it
+		 */
+		if (unseen.size() > 0) {
+
+			final IndexLog log = new IndexLog();
+			final POP3MessageListener target = listener;
+			POP3MessageInfo batch[] = new POP3MessageInfo[unseen.size()];
+			unseen.toArray(batch);
+			try {
+				pop3.retrieveMessages(batch, new POP3MessageListener() {
+					public void messageRetrieved (POP3MessageInfo info,
+							POP3MailMessage message) throws IOException {
+
+						target.messageRetrieved(info, message);
+						log.record(info);
+						if (retention == 0) {
+							expired.add(info);
+						}
+					}
+				});
+			} finally {
+				log.close();
+			}
+		}
+
+		if (expired.size() > 0) {
+
+			int msgnums[] = new int[expired.size()];
+			for (int i = 0; i < msgnums.length; i++) {
+				msgnums[i] = expired.get(i).getMessageNumber();
+			}
+
+			boolean deleted[] = pop3.deleteMessages(msgnums);
+			for (int i = 0; i < deleted.length; i++) {
+				if (deleted[i]) {
+					deletedCount++;
+				}
+			}
+		}
+
+		/*
+		 * Rewrite the index once it is mostly stale lines
+		 */
+		if (indexLines > index.size() * 2 + 64) {
+			rewrite();
+		}
+
+		return (retrievedCount);
+	}
+
+
+	/**
+	 * Writes the index file out with one line per indexed message.
+	 *
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public synchronized void rewrite () throws IOException {
+
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+
+			StringBuilder sb = new StringBuilder(index.size() * 32);
+			for (Map.Entry<String, Long> e : index.entrySet()) {
+				sb.append(e.getValue().longValue()).append(' ')
+					.append(e.getKey()).append('\n');
+			}
+
+			out.write(sb.toString().getBytes("ISO-8859-1"));
+			out.getFD().sync();
+
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), indexFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+		indexLines = index.size();
+	}
+
+
+	/**
+	 * Loads the index file. Malformed lines are skipped, and if the last
+	 * line was torn the file is rewritten so that appends start on a
+	 * fresh line.
+	 */
+	protected void load () throws IOException {
+
+		if (!indexFile.exists()) {
+			return;
+		}
+
+		byte data[] = Files.readAllBytes(indexFile.toPath());
+
+		int start = 0;
+		for (int i = 0; i < data.length; i++) {
+
+			if (data[i] != '\n') {
+				continue;
+			}
+
+			int space = start;
+			while (space < i && data[space] != ' ') {
+				space++;
+			}
+
+			if (space > start && space + 1 < i) {
+				try {
+					long time = Long.parseLong(
+						new String(data, start, space - start, "ISO-8859-1"));
+					String uid = new String(data, space + 1,
+						i - space - 1, "ISO-8859-1");
+					index.put(uid, Long.valueOf(time));
+				} catch (NumberFormatException nfe) {
+					/* Not an index line, skip it */
+				}
+			}
+
+			indexLines++;
+			start = i + 1;
+		}
+
+		if (start < data.length) {
+			rewrite();
+		}
+	}
+
+
+	/**
+	 * Appends the messages retrieved by a sync to the index file.
+	 */
+	protected class IndexLog {
+
+		protected OutputStream log = null;
+
+		protected void record (POP3MessageInfo info) throws IOException {
+
+			if (log == null) {
+				log = new FileOutputStream(indexFile, true);
+			}
+
+			String uid = info.getUniqueIdentifier();
+			long retrieved = System.currentTimeMillis();
+			log.write(toLine(uid, retrieved));
+			log.flush();
+			index.put(uid, Long.valueOf(retrieved));
+			indexLines++;
+			retrievedCount++;
+		}
+
+		protected void close () throws IOException {
+
+			if (log != null) {
+				log.close();
+				log = null;
+			}
+		}
+	}
+
+
+	/**
+	 * Formats an index line.
+	 */
+	protected static byte[] toLine (String uid, long time) throws IOException {
+		return ((time + " " + uid + "\n").getBytes("ISO-8859-1"));
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+/**
+ * Holds the phase and start time of a command that is waiting on its
+ * reply, along with its flight recorder event if one was started. The
+ * POP3 and SMTP classes queue these in the order the commands are
+ * written and take them off as the replies arrive.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+class PendingReply {
+
+	final String phase;
+	final long start;
+	final Object event;
+
+
+	/**
+	 * Creates a <code>PendingReply</code> that starts now.
+	 *
+	 * @param  phase  the command verb or phase name
+	 * @param  event  the flight recorder event, or null if none
+	 */
+	PendingReply (String phase, Object event) {
+
+		this.phase = phase;
+		this.event = event;
+		this.start = System.nanoTime();
+	}
+}
@@ -22,17 +22,16 @@
 package com.messners.mail;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 /**
  * The <code>SMTP</code> class implements the Simple Mail Transfer Protocol
@@ -70,6 +69,7 @@ public class SMTP {
 	protected static final String CRLF = "\r\n";
 	
 	protected String host = "localhost";
+	protected int port = SMTP_PORT;
 	protected int timeoutMsecs = 20000;
 	
 	protected String charset = "us-ascii";
@@ -95,13 +95,20 @@ public class SMTP {
 	protected ArrayList<Attachment> attachments = new ArrayList<Attachment>();
 
 	protected String lastResponse = null;
+	protected MailExecutor executor = null;
+	protected volatile MailMetrics metrics = null;
 
 
 	/**
 	 * Collection of objects listening for SMTP events.
 	 */
-	protected ArrayList<SMTPStatusListener> smtpListeners =
-			new ArrayList<SMTPStatusListener>();
+	protected final MailEventDispatcher<SMTPStatusListener> events =
+		new MailEventDispatcher<SMTPStatusListener>(this) {
+			protected void deliver (SMTPStatusListener l,
+					MailStatusEvent evt) {
+				l.smtpStatus(evt);
+			}
+		};
 
 
 	/**
@@ -180,6 +187,24 @@ public class SMTP {
 	}
 
 
+	/**
+	 * Gets the port of the SMTP server to connect to.
+	 */
+	public int getPort () {
+		return (port);
+	}
+
+
+	/**
+	 * Sets the port of the SMTP server to connect to, defaults to 25.
+	 *
+	 * @param port     the port of the SMTP server.
+	 */
+	public void setPort (int port) {
+		this.port = port;
+	}
+
+
 	/**
 	 * Gets the AUTH type for the SMTP transaction.
 	 *
@@ -676,676 +701,237 @@ public class SMTP {
 
 
 	/**
-	 * Reads the response from the server and checks that it starts with
-	 * the expected response code.
+	 * Creates an immutable snapshot of the message that has been setup
+	 * with calls to <code>setFrom(), addTo(), setBody()</code> and
+	 * similar methods. The snapshot is not affected by later changes to
+	 * this <code>SMTP</code> instance, so this instance can be reset and
+	 * used to build the next message while the snapshot is being sent.
 	 *
-	 * @param  expected   the expected response code
-	 *
-	 * @exception IOException if an IO error occurs while reading the socket
-	 * @exception SMTPException when the server does not return the
-	 * expected response code.
+	 * @return the snapshot of the message
+	 * @see com.messners.mail.SMTPTransport
 	 */
-	private void readAndCheck (String expected, BufferedReader in)
-		throws IOException, SMTPException {
-
-		while (true) {
-
-			lastResponse = in.readLine();
-			if (lastResponse == null) {
-			   	throw new SMTPException(
-					"empty response from server");
-			}
-
-			fireMailStatusEvent(
-				MailStatusEvent.RESPONSE, lastResponse);
-		
-			if (lastResponse.length() < 4) {
-			   	throw new SMTPException(
-					"malformed response from server");
-			} else if (!lastResponse.startsWith(expected)) {
-			   	throw new SMTPException(
-					"got response code \"" + 
-					lastResponse.substring(0, 3) + "\" " +
-					"expected \"" + expected + "\"");
-			}
-
-			/*
-			 * Continue reading until a space follows the
-			 * numeric code
-			 */
-			if (lastResponse.charAt(3) == ' ') {
-				break;
-			}
-		}
+	public synchronized SMTPMessage createMessage () {
+		return (new SMTPMessage(this));
 	}
 
 
 	/**
-	 * Appends the specified recipients to the message header buffer.
+	 * Creates a one-shot session with the settings of this instance
+	 * that passes its events on to our listeners.
 	 */
-	private void appendAddress (String type, ArrayList addresses, 
-		StringBuffer hdr) {
+	protected synchronized SMTPSession createSession () {
 
-		int num_addresses = addresses.size();
-		if (num_addresses < 1) {
-			return;
+		SMTPSession session = new SMTPSession(this);
+		if (events.hasListeners()) {
+			session.addStatusListener(new SMTPStatusListener() {
+				public void smtpStatus (MailStatusEvent event) {
+					fireMailStatusEvent(
+						event.getType(), event.getMessage());
+				}
+			});
 		}
 
-		hdr.append(CRLF + type + ": ");
-		for (int i = 0; i < num_addresses; i++) {
-			MailAddress ma = (MailAddress)addresses.get(i);
-			String address = ma.getFullAddress();
-			if (address.length() < 1) {
-				break;
-			}
-			if (i > 0) {
-				hdr.append(", ");
-			}
-
-			hdr.append(ma.getFullAddress());
-		}
+		return (session);
 	}
 
 
 	/**
-	 * Outputs the message header data.
+	 * Send the message. Assumes that the message has been previously
+	 * setup with calls to <code>setFrom(), addTo(), setBody()</code>
+	 * and similar methods. A connection is opened to the SMTP server,
+	 * the message is sent and the connection closed, use a
+	 * <code>SMTPSession</code> to send many messages over one connection.
+	 * If the server rejects any of the recipients an SMTPException is
+	 * thrown with the first rejection, the message has still been sent to
+	 * the accepted recipients. Use <code>sendMessage()</code> to get the
+	 * accepted and rejected recipients instead.
 	 *
 	 * @exception  IOException    when an I/O errors happen on the socket
 	 * @exception  SMTPException  when an SMTP specific error occurs
+	 * @see com.messners.mail.SMTPSession
 	 */
-	private void outputHeader (PrintWriter out, BufferedReader in)
-		throws IOException, SMTPException {
-
-		/*
-		 * Build the standard header and output it
-		 */
-		StringBuffer hdr = new StringBuffer();
-
-		if (sender.getAddress() != null) {
-			hdr.append("X-Sender: " + sender.getAddress() + CRLF);
-		}
-
-		if (mailer != null) {
-			hdr.append("X-Mailer: " + mailer + CRLF);
-		}
-
-		hdr.append("Date: " + Utilities.getFormattedDate(new java.util.Date()));
-
-		appendAddress("To", toList, hdr);
-		appendAddress("CC", ccList, hdr);
-		appendAddress("BCC", bccList, hdr);
-//		appendAddress("Reply-To", replyToList, hdr);
-
-		hdr.append(CRLF + "From: " + from.getFullAddress());
-		hdr.append(CRLF + "Subject: " + subject);
-
-		out.write(hdr.toString());
+	public synchronized void send () throws IOException, SMTPException {
 
-		/*
-		 * Output any extra header fields
-		 */
-		String headers = extraHeader.toString();
-		if (headers.length() > 0) {
-			out.write(CRLF + headers);
+		SMTPReceipt receipt = sendMessage();
+		if (receipt.hasRejectedRecipients()) {
+			String response = receipt.getRejectedResponse(
+				receipt.getRejectedRecipients()[0]);
+			throw new SMTPException(response,
+				SMTPSession.getReplyCode(response));
 		}
-
-		out.flush();
 	}
 
 
 	/**
-	 * Send the RCPT TO: command for the specified recipients.
+	 * Send the message, the same as <code>send()</code> except that the
+	 * message is sent as long as one of the recipients is accepted, check
+	 * the returned receipt for recipients the server rejected.
 	 *
+	 * @return the receipt listing the accepted and rejected recipients
 	 * @exception  IOException    when an I/O errors happen on the socket
 	 * @exception  SMTPException  when an SMTP specific error occurs
+	 * @see com.messners.mail.SMTPSession
 	 */
-	private void outputRecipients (ArrayList addresses, PrintWriter out, 
-		BufferedReader in) throws IOException, SMTPException {
+	public synchronized SMTPReceipt sendMessage ()
+			throws IOException, SMTPException {
 
-		for (int i = 0; i < addresses.size(); i++) {
-			MailAddress ma = (MailAddress)addresses.get(i);
-			send(out, "RCPT TO: " + ma.getPathAddress());
-			readAndCheck("250", in);
+		SMTPMessage message = createMessage();
+		SMTPSession session = createSession();
+		try {
+			return (session.send(message));
+		} finally {
+			session.close();
+			lastResponse = session.getLastResponse();
 		}
 	}
 
 
 	/**
-	 * Send a command to the server.
-	 *
-	 * @param  out      the PrintWriter to send the command on.
-	 * @param  command  the command to send.
+	 * Adds a SMTP event listener.
 	 *
-	 * @exception  IOException    when an I/O errors happen on the socket
-	 * @exception  SMTPException  when an SMTP specific error occurs
+	 * @param  l  the SMTPStatusListener to add
 	 */
-	private void send (PrintWriter out, String command) 
-		throws IOException, SMTPException {
-
-		fireMailStatusEvent(MailStatusEvent.COMMAND, command);
-		out.print(command);
-		out.print(CRLF);
-		out.flush();
+	public void addStatusListener (SMTPStatusListener l) {
+		events.addListener(l);
 	}
 
 
 	/**
-	 * Send the message. Assumes that the message has been previously
-	 * setup with calls to <code>setFrom(), addTo(), setBody()</code>
-	 * and similar methods.
+	 * Removes a SMTP event listener.
 	 *
-	 * @exception  IOException    when an I/O errors happen on the socket
-	 * @exception  SMTPException  when an SMTP specific error occurs
-	 */
-	public synchronized void send () throws IOException, SMTPException {
-
-		/*
-		 * Make sure we have a from and at least one destination
-		 */
-		if (from.getAddress() == null) {
-			throw new SMTPException("no from address specified");
-		}
-
-		if (toList.size() == 0) {
-			throw new SMTPException("no to destination specified");
-		}
-
-
-		/*
-		 * Connect to the SMTP server
-		 */
-		Connection c;
-		try {
-
-			c = Connection.getInstance();
-
-		} catch (Exception e) {
-
-			IOException ioe = new IOException();
-			ioe.fillInStackTrace();
-			throw (ioe);
-		}
-
-		c.open(host, SMTP_PORT);
-		if (timeoutMsecs != -1) {
-			c.setTimeout(timeoutMsecs);
-		}
-
-		boolean connected = false;
-		PrintWriter out = null;
-		BufferedReader in = null;
-
-		try {
-
-			out = new PrintWriter(c.getOutputStream(), true);
-			in = new BufferedReader(
-				new InputStreamReader(c.getInputStream()));
-
-			/*
-			 * As soon as we connect the SMTP dialog begins
-			 */
-			readAndCheck("220", in);
-			connected = true;
-	
-			String senderHost = this.senderHost;
-			if (senderHost == null) {
-				String tmp[] = Utilities.splitDelimitedString(
-					from.getAddress(), "@");
-				if (tmp.length == 2) {
-					senderHost = tmp[1];
-				} else {
-					senderHost = "localhost";
-				}
-			}
-			
-
-			/*
-			 * Do we need to do an AUTH command?
-			 */
-			if ((authType == AUTH_PLAIN ||
-					authType == AUTH_LOGIN) &&
-					username != null && password != null) {
-
-				send(out, "EHLO " + senderHost) ;
-				readAndCheck("250", in);
-
-				if (authType == AUTH_PLAIN) {
-					plainAuth(out, in);
-				} else {
-					loginAuth(out, in);
-				}
-
-			} else {
-
-				send(out, "HELO " + senderHost) ;
-				readAndCheck("250", in);
-			}
-	
-			send(out, "MAIL FROM: " + from.getPathAddress());
-
-			try {
-				readAndCheck("250", in);
-			} catch (SMTPException se) {
-				
-				/*
-				 * Try the "MAIL FROM" again without the 
-				 * full name in the FROM address
-				 */
-				if (lastResponse != null &&
-						lastResponse.length() >= 4) {
-
-					send(out, "MAIL FROM: <" +
-						from.getAddress() + ">");
-					readAndCheck("250", in);
-				}
-			}
-		
-			/*
-			 * Output the recipients
-			 */
-			outputRecipients(toList,  out, in);
-			outputRecipients(ccList,  out, in);
-			outputRecipients(bccList, out, in);
-	
-	
-			/*
-			 * Now setup to output the header and message body
-			 */
-			send(out, "DATA") ;
-			readAndCheck("354", in);
-	
-			/*
-			 * Build the header and output it
-			 */
-			outputHeader(out, in);
-	
-			/*
-			 * Now send the message body.
-			 */
-			outputMessagePart(out, in);
-
-		} finally {
-
-			/*
-			 * End the SMTP session.
-			 */
-			if (connected) {
-				String saved_rsp = lastResponse;
-				try {
-					send(out, "QUIT");
-					readAndCheck("221", in);
-
-					out.close();
-					in.close();
-				} catch (Exception ignore) {
-				}
-
-				lastResponse = saved_rsp;
-			}
-
-			try {
-				c.close() ;
-			} catch (Exception ignore) {
-			}
-		}
-	}
-
-
-	/**
-	 * Does a AUTH PLAIN command.
+	 * @param  l  the SMTPStatusListener to remove
 	 */
-	protected void plainAuth (PrintWriter out, BufferedReader in)
-			throws IOException, SMTPException {
-
-		StringBuffer buf = new StringBuffer();
-		buf.append("\000");
-		buf.append(username);
-		buf.append("\000");
-		buf.append(password);
-		byte bytes[] = buf.toString().getBytes();
-		byte encoded[] = Base64Codec.encode(bytes);
-
-		send(out, "AUTH PLAIN " + new String(encoded));
-		readAndCheck("235", in);
+	public void removeStatusListener (SMTPStatusListener l) {
+		events.removeListener(l);
 	}
 
 
 	/**
-	 * Does a AUTH LOGIN command.
-	 */
-	protected void loginAuth (PrintWriter out, BufferedReader in)
-			throws IOException, SMTPException {
-
-		byte bytes[];
-		bytes = this.username.getBytes();
-		byte username[] = Base64Codec.encode(bytes);
-		bytes = new String(this.password).getBytes();
-		byte password[] = Base64Codec.encode(bytes);
-
-		send(out, "AUTH LOGIN");
-		readAndCheck("334", in);
-		out.write(new String(username) + CRLF);
-		out.flush();
-		readAndCheck("334", in);
-		out.write(new String(password) + CRLF);
-		out.flush();
-		readAndCheck("235", in);
-	}
-
-
-	/*
-	 * Output the body of the message. This method takes care of
-	 * setting the MIME types if any attachements are specified.
+	 * Gets the dispatcher that delivers the events of this instance, it is
+	 * used to make events be delivered asynchronously.
 	 *
-	 * @exception  IOException    when an I/O errors happen on the socket
-	 * @exception  SMTPException  when an SMTP specific error occurs
+	 * @return the event dispatcher
 	 */
-	private void outputMessagePart (PrintWriter out, BufferedReader in)
-		throws IOException, SMTPException {
-
-		/*
-		 * Output the MIME version header field
-		 */
-		out.write(CRLF + "Mime-Version: 1.0");
-
-		/*
-		 * Do we have attachments? If so output with boundary.
-		 */
-		if (attachments.size() > 0) {
-			/*
-			 * Construct a boundary
-			 */
-			java.util.Date d = new java.util.Date();
-			String boundary = new String(
-				"=====================_" + d.getTime() + "==_");	
-
-			out.write(CRLF + "Content-Type: multipart/mixed; " +
-				"boundary=\"" + boundary + "\"");
-
-			/*
-			 * Always a blank line between header and body
-			 */
-			out.write(CRLF);
-
-			/*
-			 * Output the body text
-			 */
-			out.write(CRLF + "--" + boundary);
-			out.write(CRLF + "Content-Type: text/plain; " +
-				"charset=\"" + getCharset() + "\"");
-			out.write(CRLF);
-			out.write(CRLF + body.toString());
-			out.flush();
-			
-			/*
-			 * Output the attachments
-			 */
-			outputAttachments(out, boundary);
-
-			/*
-			 * And the closing boundary
-			 */
-			out.write(CRLF + "--" + boundary + "--");
-		} else {
-			out.write(CRLF + "Content-Type: text/plain; " +
-				"charset=\"" + getCharset() + "\"");
-
-			/*
-			 * Always a blank line between header and body
-			 */
-			out.write(CRLF);
-
-			out.write(CRLF + body.toString());
-		}
-
-		/*
-		 * Send a lone period(.). This indicates the end of
-		 * the body text.
-		 */
-		out.write(CRLF + "." + CRLF);
-		out.flush();
-		readAndCheck("250", in);
+	public MailEventDispatcher<SMTPStatusListener> getEventDispatcher () {
+		return (events);
 	}
 
-	
-	/*
-	 * Output all the file attachments. 
-	 *
-	 * @exception  IOException    when an I/O errors happen on the socket
-	 * @exception  SMTPException  when an SMTP specific error occurs
-	 */
-	private void outputAttachments (PrintWriter out, String boundary)
-		throws IOException, SMTPException {
-
-		for (int i = 0; i < attachments.size(); i++) {
-
-			Attachment attachment = (Attachment)attachments.get(i);
-			String name = attachment.getName();
-			String type = attachment.getType();
-			Object obj  = attachment.getData();
 
-			/*
-			 * Lookup the content type for the attachment
-			 */
-			if (obj instanceof File) {
-
-				File f = (File)obj;
-				if (type == null) {
-					type = MimeMap.getContentTypeFromFile(f);
-				}
-
-				if (name == null) {
-					name = f.getName();
-				}
-
-			} else if (obj instanceof URL) {
-
-				if (name == null) {
-					name = ((URL)obj).getPath();
-				}
-
-			} else if (obj instanceof InputStream) {
-			} else if (obj instanceof String) {
-			} else {
-				continue;
-			}
-
-
-			/*
-			 * Output the boundary
-			 */
-			out.write(CRLF + "--" + boundary);
-
-
-			if (type == null) {
-				type = "application/octet-stream";
-			}
-
-			out.write(CRLF + "Content-Type: " + type);
-			if (name != null) {
-				out.write("; name=\"" + name + "\"");
-			}
-
-			out.write(CRLF + "Content-Transfer-Encoding: base64");
-			out.write(CRLF + "Content-Disposition: attachment");
-			if (name != null) {
-				out.write("; filename=\"" + name + "\"");
-			}
-
-			out.write(CRLF);
-			out.write(CRLF);
-
-			/*
-			 * Now output the contents base64 encoded
-			 */
-			if (obj instanceof File) {
-				outputAttachment((File)obj, out);
-			} else if (obj instanceof InputStream) {
-				outputAttachment((InputStream)obj, out);
-			} else if (obj instanceof String) {
-				String s = (String)obj;
-				outputAttachment(new ByteArrayInputStream(s.getBytes()), out);
-			} else if (obj instanceof URL) {
-				InputStream in = ((URL)obj).openStream();
-				outputAttachment(in, out);
-			}
-
-			out.flush();
-		}
-	}
-
-
-	/*
-	 * Output a single file attachment.
+	/**
+	 * Notify listening objects of SMTP events.
 	 *
-	 * @exception  IOException    when an I/O errors happen on the file 
+	 * @param  type     The type of SMTP event (COMMAND | RESPONSE)
+	 * @param  message  The SMTP command or response message.
 	 */
-	private void outputAttachment (File f, PrintWriter out)
-		throws IOException {
-
-		FileInputStream fis = new FileInputStream(f);
-		outputAttachment(fis, out);
-		fis.close();
+	public void fireMailStatusEvent (int type, String message) {
+		events.fireStatus(type, message);
 	}
 
 
-	/*
-	 * Output a single InputStream attachment.
-	 *
-	 * @exception  IOException    when an I/O errors happen on the file 
+	/**
+	 * Send the mail message in the background. The message is sent with
+	 * <code>sendAsync()</code>, when done a DONE event, or an EXCEPTION
+	 * event if the send failed, is reported to any registered
+	 * SMTPStatusListeners.
 	 */
-	private void outputAttachment (InputStream in, PrintWriter out)
-		throws IOException {
+	public void backgroundSend () {
 
-		/*
-		 * Output in 48 byte chunks. This gives a nice 64 byte wide
-		 * encoded string.
-		 */
-		byte buf[] = new byte[48];
-		int n;
-		while ((n = in.read(buf)) > 0) {
-
-			byte encoded[];
-			if (n < 48) {
-				byte tmp[] = new byte[n];
-				for (int i = 0; i < n; i++) {
-					tmp[i] = buf[i];
+		sendAsync().whenComplete(new BiConsumer<SMTPReceipt, Throwable>() {
+			public void accept (SMTPReceipt receipt, Throwable t) {
+				if (t == null) {
+					fireMailStatusEvent(MailStatusEvent.DONE, "Done");
+				} else {
+					fireMailStatusEvent(
+						MailStatusEvent.EXCEPTION, t.getMessage());
 				}
-				encoded = Base64Codec.encode(tmp);
-			} else {
-				encoded = Base64Codec.encode(buf);
 			}
-
-			out.write(new String(encoded) + CRLF);
-		}
+		});
 	}
 
 
 	/**
-	 * Adds a SMTP event listener.
+	 * Send the mail message asynchronously. A snapshot of the message is
+	 * taken before this method returns, so this instance can be reset and
+	 * used for the next message right away. The send is run by the
+	 * <code>MailExecutor</code> set with <code>setExecutor()</code>, or
+	 * the shared default executor if none has been set.<p>
 	 *
-	 * @param  l  the SMTPStatusListener to add
+	 * The returned future completes with the receipt for the message, or
+	 * exceptionally with the <code>IOException</code> or
+	 * <code>SMTPException</code> that caused the send to fail. If the
+	 * executor queue is full the outcome depends on its overflow policy.
+	 *
+	 * @return a future for the receipt of the message
+	 * @see com.messners.mail.MailExecutor
 	 */
-	public synchronized void addStatusListener (SMTPStatusListener l) {
+	public CompletableFuture<SMTPReceipt> sendAsync () {
 
-		if (!smtpListeners.contains(l)) {
-	   		smtpListeners.add(l);
+		final SMTPMessage message;
+		final SMTPSession session;
+		synchronized (this) {
+			message = createMessage();
+			session = createSession();
 		}
+
+		return (getExecutor().submit(new Callable<SMTPReceipt>() {
+			public SMTPReceipt call () throws Exception {
+				try {
+					return (session.send(message));
+				} finally {
+					session.close();
+					synchronized (SMTP.this) {
+						lastResponse = session.getLastResponse();
+					}
+				}
+			}
+		}));
 	}
 
 
 	/**
-	 * Removes a SMTP event listener.
+	 * Sets the executor used by <code>sendAsync()</code> and
+	 * <code>backgroundSend()</code>.
 	 *
-	 * @param  l  the SMTPStatusListener to remove
+	 * @param  executor  the executor, or null to use the shared default
 	 */
-	public synchronized void removeStatusListener (SMTPStatusListener l) {
-	   	smtpListeners.remove(l);
+	public void setExecutor (MailExecutor executor) {
+		this.executor = executor;
 	}
 
 
 	/**
-	 * Notify listening objects of SMTP events.
+	 * Gets the executor used by <code>sendAsync()</code> and
+	 * <code>backgroundSend()</code>.
 	 *
-	 * @param  type     The type of SMTP event (COMMAND | RESPONSE)
-	 * @param  message  The SMTP command or response message.
+	 * @return the executor
 	 */
-	public void fireMailStatusEvent (int type, String message) {
-
-		/*
-		 * Make a copy of the listener object ArrayList so that it cannot
-		 * be changed while we are firing events
-		 */
-		ArrayList<SMTPStatusListener> v;
-		synchronized(this) {
-			if (smtpListeners.size() < 1) {
-				return;
-			}
-
-			v = new ArrayList<SMTPStatusListener>(smtpListeners.size());
-			for (SMTPStatusListener l : smtpListeners) {
-				v.add(l);
-			}
-	  	}
-
+	public MailExecutor getExecutor () {
 
-		/*
-		 * Create the event object
-		 */
-		MailStatusEvent evt = new MailStatusEvent(this, type, message);
-
-
-	  	/*
-		 * Fire the event to all listeners
-		 */
-	  	int count = v.size();
-	  	for (int i = 0; i < count; i++) {
-			SMTPStatusListener l = v.get(i);
-	     	l.smtpStatus(evt);
-	  	}
+		MailExecutor executor = this.executor;
+		return (executor != null ? executor : MailExecutor.getDefault());
 	}
 
 
 	/**
-	 * Send the mail message in the background. This is done by creating
-	 * a thread and invoking send() in that thread's run() method.
-	 * Status and execptions are reported to any registered
-	 * SMTPStatusListeners.
+	 * Sets the metrics that the latency of each protocol phase of
+	 * <code>send()</code>, and the bytes, messages and errors, are
+	 * recorded in.
+	 *
+	 * @param  metrics  the metrics to record in, or null to not
+	 * record any
 	 */
-	public synchronized void backgroundSend () {
-
-		Thread thread = new Thread(new SMTPWorker(this));
-		thread.setPriority(Thread.MAX_PRIORITY - 1);
-		thread.start();
+	public void setMetrics (MailMetrics metrics) {
+		this.metrics = metrics;
 	}
 
 
 	/**
-	 * Objects of this class are used to send the mail in the background.
+	 * Gets the metrics that sends are recorded in.
+	 *
+	 * @return the metrics or null if none are recorded
 	 */
-	protected class SMTPWorker implements Runnable {
-
-		private SMTP smtp = null;
-
-		protected SMTPWorker (SMTP smtp) {
-			this.smtp = smtp;
-		}
-
-		public void run () {
-
-			try {
-
-				smtp.send();
-				smtp.fireMailStatusEvent(
-					MailStatusEvent.DONE, "Done");
-
-			} catch (Exception e) {
-
-				smtp.fireMailStatusEvent(
-					MailStatusEvent.EXCEPTION,
-					e.getMessage());
-			}
-		}
+	public MailMetrics getMetrics () {
+		return (metrics);
 	}
 
 
@@ -1353,7 +939,7 @@ public class SMTP {
 	 * Class to describe an E-mail address. Conatins the full name
 	 * and address of an E-mail recipient or sender.
 	 */
-	protected class MailAddress {
+	protected static class MailAddress {
 
 		String fullname  = null;
 		String address   = null;
@@ -0,0 +1,454 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The <code>SMTPDataOutputStream</code> class writes message data the way
+ * it has to appear after the SMTP DATA command. All output goes through a
+ * single reusable buffer, strings are written a character at a time
+ * without being converted to byte arrays first, and attachments are
+ * Base64 encoded straight into the buffer, so writing a message of any
+ * size creates a fixed amount of garbage.<p>
+ *
+ * Bare LF line endings are written as CRLF, and when dot-stuffing is on a
+ * line that starts with a period has another period put in front of it
+ * as required by RFC-5321 (section 4.5.2). <code>finish()</code> writes
+ * the lone period that ends the message data.
+ *
+ * @see     com.messners.mail.SMTPMessage#writeTo(OutputStream)
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class SMTPDataOutputStream extends FilterOutputStream {
+
+	/**
+	 * The default size of the output buffer.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/*
+	 * Bytes of attachment data per encoded line, this gives a
+	 * nice 64 byte wide encoded line
+	 */
+	protected static final int BASE64_LINE_BYTES = 48;
+
+	protected static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/*
+	 * Characters encoded at a time when a string is not all US-ASCII
+	 */
+	protected static final int ENCODE_CHUNK = 1024;
+
+	protected final byte buf[];
+	protected int count = 0;
+	protected long written = 0;
+	protected final boolean dotStuffing;
+
+	/*
+	 * The last byte written, a message starts at the start of a line
+	 */
+	protected int last = '\n';
+
+	/*
+	 * Holds raw attachment data while it is being encoded
+	 */
+	protected byte raw[] = null;
+
+	/*
+	 * Encode strings that are not all US-ASCII, created when first
+	 * needed and reused
+	 */
+	protected CharsetEncoder encoder = null;
+	protected CharBuffer chars = null;
+	protected ByteBuffer bytes = null;
+
+
+	/**
+	 * Creates a dot-stuffing <code>SMTPDataOutputStream</code> with the
+	 * default buffer size.
+	 *
+	 * @param  out  the stream to write to
+	 */
+	public SMTPDataOutputStream (OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE, true);
+	}
+
+
+	/**
+	 * Creates a <code>SMTPDataOutputStream</code>.
+	 *
+	 * @param  out          the stream to write to
+	 * @param  size         the size of the output buffer
+	 * @param  dotStuffing  true to dot-stuff lines starting with a period
+	 */
+	public SMTPDataOutputStream (OutputStream out, int size,
+			boolean dotStuffing) {
+
+		super(out);
+
+		if (size < 16) {
+			throw new IllegalArgumentException("invalid buffer size: " + size);
+		}
+
+		this.buf = new byte[size];
+		this.dotStuffing = dotStuffing;
+	}
+
+
+	/**
+	 * Writes a byte of message data.
+	 *
+	 * @param  b  the byte to write
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void write (int b) throws IOException {
+
+		if (count + 3 > buf.length) {
+			flushBuffer();
+		}
+
+		put(b & 0xff);
+	}
+
+
+	/**
+	 * Writes a portion of an array of message data.
+	 *
+	 * @param  b    the data
+	 * @param  off  the offset of the first byte to write
+	 * @param  len  the number of bytes to write
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void write (byte b[], int off, int len) throws IOException {
+
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+
+			if (count + 3 > buf.length) {
+				flushBuffer();
+			}
+
+			put(b[i] & 0xff);
+		}
+	}
+
+
+	/**
+	 * Writes a string of message data. Runs of US-ASCII characters are
+	 * copied straight into the buffer. From the first other character on
+	 * the string is encoded with the specified character set a chunk at
+	 * a time through reused buffers.
+	 *
+	 * @param  s        the string to write
+	 * @param  charset  the character set for non US-ASCII characters
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void write (String s, Charset charset) throws IOException {
+
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				encode(s, i, charset);
+				return;
+			}
+
+			if (count + 3 > buf.length) {
+				flushBuffer();
+			}
+
+			put(c);
+		}
+	}
+
+
+	/**
+	 * Encodes the rest of a string starting at the specified index.
+	 * Characters that cannot be encoded are replaced, the same as
+	 * <code>String.getBytes(Charset)</code> does.
+	 */
+	protected void encode (String s, int start, Charset charset)
+			throws IOException {
+
+		if (encoder == null || !encoder.charset().equals(charset)) {
+			encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			int size = (int)Math.ceil(
+				ENCODE_CHUNK * encoder.maxBytesPerChar());
+			if (bytes == null || bytes.capacity() < size) {
+				bytes = ByteBuffer.allocate(size);
+			}
+		}
+
+		if (chars == null) {
+			chars = CharBuffer.allocate(ENCODE_CHUNK);
+		}
+
+		encoder.reset();
+		chars.clear();
+		int length = s.length();
+		int i = start;
+		CoderResult result;
+		while (true) {
+
+			/*
+			 * A high surrogate at the end of a chunk is left in
+			 * the buffer by the encoder and compacted to the front
+			 */
+			int n = Math.min(chars.remaining(), length - i);
+			s.getChars(i, i + n, chars.array(), chars.position());
+			chars.position(chars.position() + n);
+			i += n;
+
+			boolean endOfInput = (i == length);
+			chars.flip();
+			do {
+				result = encoder.encode(chars, bytes, endOfInput);
+				writeEncoded();
+			} while (result.isOverflow());
+
+			chars.compact();
+			if (endOfInput) {
+				break;
+			}
+		}
+
+		do {
+			result = encoder.flush(bytes);
+			writeEncoded();
+		} while (result.isOverflow());
+	}
+
+
+	/**
+	 * Writes the bytes the encoder has put in <code>bytes</code>.
+	 */
+	protected void writeEncoded () throws IOException {
+
+		bytes.flip();
+		write(bytes.array(), 0, bytes.limit());
+		bytes.clear();
+	}
+
+
+	/**
+	 * Writes a string of US-ASCII message data.
+	 *
+	 * @param  s  the string to write
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void writeAscii (String s) throws IOException {
+		write(s, US_ASCII);
+	}
+
+
+	/**
+	 * Writes a US-ASCII string followed by a CRLF.
+	 *
+	 * @param  s  the line to write
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void writeLine (String s) throws IOException {
+		write(s, US_ASCII);
+		writeCRLF();
+	}
+
+
+	/**
+	 * Writes a CRLF.
+	 *
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void writeCRLF () throws IOException {
+
+		if (count + 2 > buf.length) {
+			flushBuffer();
+		}
+
+		buf[count++] = '\r';
+		buf[count++] = '\n';
+		last = '\n';
+	}
+
+
+	/**
+	 * Reads the stream to its end and writes the data Base64 encoded,
+	 * 64 characters to a line. The stream is not closed.
+	 *
+	 * @param  in  the stream of data to encode
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void writeBase64 (InputStream in) throws IOException {
+
+		if (last != '\n') {
+			writeCRLF();
+		}
+
+		if (raw == null) {
+			raw = new byte[BASE64_LINE_BYTES * 64];
+		}
+
+		int n;
+		while ((n = fill(in)) > 0) {
+
+			for (int i = 0; i < n; i += BASE64_LINE_BYTES) {
+
+				if (count + 66 > buf.length) {
+					flushBuffer();
+				}
+
+				int len = (n - i < BASE64_LINE_BYTES ?
+					n - i : BASE64_LINE_BYTES);
+				count += Base64Codec.encode(raw, i, len, buf, count);
+				buf[count++] = '\r';
+				buf[count++] = '\n';
+			}
+
+			if (n < raw.length) {
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * Ends the message data with a lone period. A CRLF is written first
+	 * if the data did not end with one.
+	 *
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void finish () throws IOException {
+
+		if (last != '\n') {
+			writeCRLF();
+		}
+
+		if (count + 3 > buf.length) {
+			flushBuffer();
+		}
+
+		buf[count++] = '.';
+		buf[count++] = '\r';
+		buf[count++] = '\n';
+		flush();
+	}
+
+
+	/**
+	 * Flushes the buffer and the underlying stream.
+	 *
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void flush () throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+
+	/**
+	 * Gets ready to write the data for another message, discarding
+	 * anything that has not been flushed.
+	 */
+	public void reset () {
+		count = 0;
+		written = 0;
+		last  = '\n';
+	}
+
+
+	/**
+	 * Gets the number of bytes of message data written since the last
+	 * <code>reset()</code>, including the dot-stuffing and the CRLFs.
+	 *
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten () {
+		return (written + count);
+	}
+
+
+	/**
+	 * Writes the buffer to the underlying stream.
+	 */
+	protected void flushBuffer () throws IOException {
+
+		if (count > 0) {
+			out.write(buf, 0, count);
+			written += count;
+			count = 0;
+		}
+	}
+
+
+	/**
+	 * Puts a byte into the buffer, adding the CR to a bare LF and the
+	 * extra period to a line starting with one. The caller makes sure
+	 * there is room for three bytes.
+	 */
+	protected final void put (int b) {
+
+		if (b == '\n') {
+			if (last != '\r') {
+				buf[count++] = '\r';
+			}
+		} else if (b == '.' && last == '\n' && dotStuffing) {
+			buf[count++] = '.';
+		}
+
+		buf[count++] = (byte)b;
+		last = b;
+	}
+
+
+	/**
+	 * Reads from the stream until the raw buffer is full or the end of
+	 * the stream is reached.
+	 */
+	protected int fill (InputStream in) throws IOException {
+
+		int total = 0;
+		while (total < raw.length) {
+			int n = in.read(raw, total, raw.length - total);
+			if (n < 0) {
+				break;
+			}
+
+			total += n;
+		}
+
+		return (total);
+	}
+}
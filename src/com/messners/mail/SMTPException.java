@@ -32,6 +32,12 @@ package com.messners.mail;
 
 public class SMTPException extends java.lang.Exception {
 
+	/**
+	 * The reply code from the server, -1 if not known.
+	 */
+	protected int replyCode = -1;
+
+
 	/**
    	 * Constructs an <code>SMTPException</code> with no
 	 * detail message.
@@ -49,5 +55,39 @@ public class SMTPException extends java.lang.Exception {
 	public SMTPException (String s) {
 		super(s);
 	}
+
+	/**
+	 * Constructs an <code>SMTPException</code> with the 
+	 * specified detail message and SMTP reply code.
+	 *
+	 * @param   s          the detail message
+	 * @param   replyCode  the three digit reply code sent by the server
+	 */
+	public SMTPException (String s, int replyCode) {
+		super(s);
+		this.replyCode = replyCode;
+	}
+
+
+	/**
+	 * Gets the reply code sent by the server, or -1 if the exception
+	 * was not caused by a server reply.
+	 *
+	 * @return the three digit reply code or -1
+	 */
+	public int getReplyCode () {
+		return (replyCode);
+	}
+
+
+	/**
+	 * Returns true if the reply code indicates a transient (4xx) failure,
+	 * meaning the same command may succeed if tried again later.
+	 *
+	 * @return true if the reply code is a 4xx code
+	 */
+	public boolean isTransient () {
+		return (replyCode >= 400 && replyCode < 500);
+	}
 }
 
@@ -0,0 +1,554 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The <code>SMTPMessage</code> class is an immutable snapshot of a mail
+ * message: the envelope (from and recipients), the header fields, the body
+ * text and the attachments. Instances are created with
+ * <code>SMTP.createMessage()</code> and can be handed to any number of
+ * threads and sent with a shared <code>SMTPTransport</code>.<p>
+ *
+ * Attachments added as an <code>InputStream</code> can only be read once,
+ * so a message with such an attachment can only be sent once. Attachments
+ * from a <code>File</code>, <code>URL</code> or <code>String</code> are
+ * read each time the message is sent.
+ *
+ * @see     com.messners.mail.SMTP
+ * @see     com.messners.mail.SMTPTransport
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class SMTPMessage {
+
+	protected static final String CRLF = "\r\n";
+
+	protected final SMTP.MailAddress from;
+	protected final SMTP.MailAddress sender;
+	protected final List<SMTP.MailAddress> toList;
+	protected final List<SMTP.MailAddress> ccList;
+	protected final List<SMTP.MailAddress> bccList;
+
+	protected final String subject;
+	protected final String mailer;
+	protected final String charset;
+	protected final String extraHeader;
+	protected final String body;
+	protected final List<Attachment> attachments;
+
+	/*
+	 * The already rendered header and body, only set for messages
+	 * created from rendered content (such as those read from a spool)
+	 */
+	protected final byte content[];
+
+
+	/**
+	 * Creates a snapshot of the message currently held by the
+	 * specified <code>SMTP</code> instance.
+	 *
+	 * @param  smtp  the SMTP instance holding the message
+	 */
+	SMTPMessage (SMTP smtp) {
+
+		from    = copy(smtp.from);
+		sender  = copy(smtp.sender);
+		toList  = copy(smtp.toList);
+		ccList  = copy(smtp.ccList);
+		bccList = copy(smtp.bccList);
+
+		subject     = smtp.subject;
+		mailer      = smtp.mailer;
+		charset     = smtp.charset;
+		extraHeader = smtp.extraHeader.toString();
+		body        = smtp.body.toString();
+		attachments = Collections.unmodifiableList(
+			new ArrayList<Attachment>(smtp.attachments));
+		content = null;
+	}
+
+
+	/**
+	 * Creates a message from an envelope and already rendered content.
+	 * The content is the header and body exactly as they are to be sent
+	 * after the DATA command, without the terminating period.
+	 *
+	 * @param  from        the address of the sender
+	 * @param  recipients  the addresses of the recipients
+	 * @param  content     the rendered header and body
+	 */
+	SMTPMessage (String from, String recipients[], byte content[]) {
+
+		this.from   = new SMTP.MailAddress(null, from);
+		this.sender = new SMTP.MailAddress();
+
+		ArrayList<SMTP.MailAddress> addresses =
+			new ArrayList<SMTP.MailAddress>(recipients.length);
+		for (int i = 0; i < recipients.length; i++) {
+			addresses.add(new SMTP.MailAddress(null, recipients[i]));
+		}
+
+		List<SMTP.MailAddress> none = Collections.emptyList();
+		toList  = Collections.unmodifiableList(addresses);
+		ccList  = none;
+		bccList = none;
+
+		subject     = null;
+		mailer      = null;
+		charset     = null;
+		extraHeader = "";
+		body        = null;
+		attachments = Collections.emptyList();
+		this.content = content;
+	}
+
+
+	private static SMTP.MailAddress copy (SMTP.MailAddress ma) {
+		return (new SMTP.MailAddress(ma.getFullname(), ma.getAddress()));
+	}
+
+
+	private static List<SMTP.MailAddress> copy (List<SMTP.MailAddress> list) {
+
+		ArrayList<SMTP.MailAddress> addresses =
+			new ArrayList<SMTP.MailAddress>(list.size());
+		for (SMTP.MailAddress ma : list) {
+			addresses.add(copy(ma));
+		}
+
+		return (Collections.unmodifiableList(addresses));
+	}
+
+
+	/**
+	 * Gets the address of the sender of the message.
+	 *
+	 * @return the from address
+	 */
+	public String getFrom () {
+		return (from.getAddress());
+	}
+
+
+	/**
+	 * Gets the addresses of all the recipients (To, Cc and Bcc)
+	 * of the message.
+	 *
+	 * @return the recipient addresses
+	 */
+	public String [] getRecipients () {
+
+		List<SMTP.MailAddress> all = getRecipientList();
+		String addresses[] = new String[all.size()];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = all.get(i).getAddress();
+		}
+
+		return (addresses);
+	}
+
+
+	/**
+	 * Gets the subject of the message.
+	 *
+	 * @return the subject
+	 */
+	public String getSubject () {
+		return (subject);
+	}
+
+
+	/**
+	 * Gets the body text of the message.
+	 *
+	 * @return the body text
+	 */
+	public String getBody () {
+		return (body);
+	}
+
+
+	/**
+	 * Writes the header and body of the message to the stream exactly as
+	 * they are sent after the DATA command, without the terminating
+	 * period. When the stream is a <code>SMTPDataOutputStream</code> the
+	 * data is left in its buffer so that it goes out together with the
+	 * terminating period.
+	 *
+	 * @param  os  the stream to write the message to
+	 * @exception  IOException    when an I/O error occurs
+	 */
+	public void writeTo (OutputStream os) throws IOException {
+
+		SMTPDataOutputStream out;
+		if (os instanceof SMTPDataOutputStream) {
+			out = (SMTPDataOutputStream)os;
+		} else {
+			out = new SMTPDataOutputStream(os, 8192, false);
+		}
+
+		if (content != null) {
+			out.write(content, 0, content.length);
+		} else {
+			Charset cs = getCharset();
+			writeHeader(out, cs);
+			writeMessagePart(out, cs);
+		}
+
+		if (out != os) {
+			out.flush();
+		}
+	}
+
+
+	/**
+	 * Renders the header and body of the message into a byte array.
+	 *
+	 * @return the rendered message
+	 * @exception  IOException    when an I/O error occurs reading an
+	 * attachment
+	 */
+	public byte [] render () throws IOException {
+
+		if (content != null) {
+			return (content);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+			body.length() + 1024);
+		writeTo(bytes);
+		return (bytes.toByteArray());
+	}
+
+
+	/**
+	 * Gets the list of all the recipients, To, then Cc, then Bcc.
+	 */
+	List<SMTP.MailAddress> getRecipientList () {
+
+		ArrayList<SMTP.MailAddress> recipients =
+			new ArrayList<SMTP.MailAddress>(
+				toList.size() + ccList.size() + bccList.size());
+		recipients.addAll(toList);
+		recipients.addAll(ccList);
+		recipients.addAll(bccList);
+		return (recipients);
+	}
+
+
+	/**
+	 * Checks that the message has a from address and at least one
+	 * destination.
+	 *
+	 * @exception  SMTPException  if the message cannot be sent
+	 */
+	void validate () throws SMTPException {
+
+		if (from.getAddress() == null) {
+			throw new SMTPException("no from address specified");
+		}
+
+		if (toList.size() == 0) {
+			throw new SMTPException("no to destination specified");
+		}
+	}
+
+
+	/**
+	 * Gets the character set used to encode the header and body text,
+	 * the platform default if the named one is not supported.
+	 */
+	private Charset getCharset () {
+
+		try {
+			return (Charset.forName(charset));
+		} catch (IllegalArgumentException iae) {
+			return (Charset.defaultCharset());
+		}
+	}
+
+
+	/**
+	 * Writes a header field with a list of addresses.
+	 */
+	private void writeAddresses (SMTPDataOutputStream out, String type,
+			List<SMTP.MailAddress> addresses, Charset cs) throws IOException {
+
+		int num_addresses = addresses.size();
+		if (num_addresses < 1) {
+			return;
+		}
+
+		out.writeAscii(type);
+		out.writeAscii(": ");
+		for (int i = 0; i < num_addresses; i++) {
+			SMTP.MailAddress ma = addresses.get(i);
+			String address = ma.getFullAddress();
+			if (address.length() < 1) {
+				break;
+			}
+			if (i > 0) {
+				out.writeAscii(", ");
+			}
+
+			out.write(address, cs);
+		}
+
+		out.writeCRLF();
+	}
+
+
+	/**
+	 * Writes a single header field.
+	 */
+	private void writeField (SMTPDataOutputStream out, String name,
+			String value, Charset cs) throws IOException {
+
+		out.writeAscii(name);
+		out.writeAscii(": ");
+		if (value != null) {
+			out.write(value, cs);
+		}
+
+		out.writeCRLF();
+	}
+
+
+	/**
+	 * Writes the message header fields, each ending with a CRLF.
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 */
+	void writeHeader (SMTPDataOutputStream out, Charset cs)
+			throws IOException {
+
+		if (sender.getAddress() != null) {
+			writeField(out, "X-Sender", sender.getAddress(), cs);
+		}
+
+		if (mailer != null) {
+			writeField(out, "X-Mailer", mailer, cs);
+		}
+
+		writeField(out, "Date",
+			Utilities.getFormattedDate(new java.util.Date()), cs);
+
+		writeAddresses(out, "To", toList, cs);
+		writeAddresses(out, "CC", ccList, cs);
+		writeAddresses(out, "BCC", bccList, cs);
+
+		writeField(out, "From", from.getFullAddress(), cs);
+		writeField(out, "Subject", subject, cs);
+
+		/*
+		 * Output any extra header fields, these already end with CRLF
+		 */
+		if (extraHeader.length() > 0) {
+			out.write(extraHeader, cs);
+		}
+	}
+
+
+	/*
+	 * Output the body of the message. This method takes care of
+	 * setting the MIME types if any attachements are specified.
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 */
+	void writeMessagePart (SMTPDataOutputStream out, Charset cs)
+			throws IOException {
+
+		/*
+		 * Output the MIME version header field
+		 */
+		out.writeLine("Mime-Version: 1.0");
+
+		/*
+		 * Do we have attachments? If so output with boundary.
+		 */
+		if (attachments.size() > 0) {
+			/*
+			 * Construct a boundary
+			 */
+			java.util.Date d = new java.util.Date();
+			String boundary = "=====================_" + d.getTime() + "==_";
+
+			out.writeLine("Content-Type: multipart/mixed; " +
+				"boundary=\"" + boundary + "\"");
+
+			/*
+			 * Always a blank line between header and body
+			 */
+			out.writeCRLF();
+
+			/*
+			 * Output the body text
+			 */
+			out.writeLine("--" + boundary);
+			out.writeLine("Content-Type: text/plain; " +
+				"charset=\"" + charset + "\"");
+			out.writeCRLF();
+			out.write(body, cs);
+
+			/*
+			 * Output the attachments
+			 */
+			writeAttachments(out, boundary);
+
+			/*
+			 * And the closing boundary
+			 */
+			out.writeCRLF();
+			out.writeAscii("--" + boundary + "--");
+		} else {
+			out.writeLine("Content-Type: text/plain; " +
+				"charset=\"" + charset + "\"");
+
+			/*
+			 * Always a blank line between header and body
+			 */
+			out.writeCRLF();
+
+			out.write(body, cs);
+		}
+	}
+
+	
+	/*
+	 * Output all the file attachments. 
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 */
+	private void writeAttachments (SMTPDataOutputStream out, String boundary)
+		throws IOException {
+
+		for (int i = 0; i < attachments.size(); i++) {
+
+			Attachment attachment = attachments.get(i);
+			String name = attachment.getName();
+			String type = attachment.getType();
+			Object obj  = attachment.getData();
+
+			/*
+			 * Lookup the content type for the attachment
+			 */
+			if (obj instanceof File) {
+
+				File f = (File)obj;
+				if (type == null) {
+					type = MimeMap.getContentTypeFromFile(f);
+				}
+
+				if (name == null) {
+					name = f.getName();
+				}
+
+			} else if (obj instanceof URL) {
+
+				if (name == null) {
+					name = ((URL)obj).getPath();
+				}
+
+			} else if (obj instanceof InputStream) {
+			} else if (obj instanceof String) {
+			} else {
+				continue;
+			}
+
+
+			/*
+			 * Output the boundary
+			 */
+			out.writeCRLF();
+			out.writeLine("--" + boundary);
+
+
+			if (type == null) {
+				type = "application/octet-stream";
+			}
+
+			out.writeAscii("Content-Type: " + type);
+			if (name != null) {
+				out.writeAscii("; name=\"" + name + "\"");
+			}
+
+			out.writeCRLF();
+			out.writeAscii("Content-Transfer-Encoding: base64");
+			out.writeCRLF();
+			out.writeAscii("Content-Disposition: attachment");
+			if (name != null) {
+				out.writeAscii("; filename=\"" + name + "\"");
+			}
+
+			out.writeCRLF();
+			out.writeCRLF();
+
+			/*
+			 * Now output the contents base64 encoded
+			 */
+			if (obj instanceof File) {
+				writeAttachment(new FileInputStream((File)obj), out, true);
+			} else if (obj instanceof InputStream) {
+				writeAttachment((InputStream)obj, out, false);
+			} else if (obj instanceof String) {
+				String s = (String)obj;
+				writeAttachment(new ByteArrayInputStream(s.getBytes()),
+					out, true);
+			} else if (obj instanceof URL) {
+				writeAttachment(((URL)obj).openStream(), out, true);
+			}
+		}
+	}
+
+
+	/*
+	 * Output a single InputStream attachment, closing the stream
+	 * afterwards if requested.
+	 *
+	 * @exception  IOException    when an I/O errors happen on the file 
+	 */
+	private void writeAttachment (InputStream in, SMTPDataOutputStream out,
+		boolean close) throws IOException {
+
+		try {
+			out.writeBase64(in);
+		} finally {
+			if (close) {
+				in.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.util.ArrayList;
+
+/**
+ * The <code>SMTPReceipt</code> class describes the outcome of sending a
+ * message. It holds the recipients that were accepted by the server, the
+ * recipients that were rejected along with the reply the server gave for
+ * each, and the final reply to the message data.<p>
+ *
+ * A message is sent as long as at least one recipient is accepted, so
+ * callers that need to know about individual recipients should check
+ * <code>hasRejectedRecipients()</code>.
+ *
+ * @see     com.messners.mail.SMTPSession
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class SMTPReceipt {
+
+	protected ArrayList<String> accepted = new ArrayList<String>();
+	protected ArrayList<String> rejected = new ArrayList<String>();
+	protected ArrayList<String> rejectedResponses = new ArrayList<String>();
+	protected String response = null;
+	protected boolean pipelined = false;
+
+
+	/**
+	 * Package internal use constructor.
+	 */
+	protected SMTPReceipt () {
+	}
+
+
+	/**
+	 * Records a recipient accepted by the server.
+	 */
+	void addAccepted (String address) {
+		accepted.add(address);
+	}
+
+
+	/**
+	 * Records a recipient rejected by the server.
+	 */
+	void addRejected (String address, String response) {
+		rejected.add(address);
+		rejectedResponses.add(response);
+	}
+
+
+	/**
+	 * Sets the final response to the message data.
+	 */
+	void setResponse (String response) {
+		this.response = response;
+	}
+
+
+	/**
+	 * Sets whether the envelope was sent using PIPELINING.
+	 */
+	void setPipelined (boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+
+	/**
+	 * Gets the addresses of the recipients accepted by the server.
+	 *
+	 * @return the accepted recipient addresses
+	 */
+	public String [] getAcceptedRecipients () {
+
+		String addresses[] = new String[accepted.size()];
+		accepted.toArray(addresses);
+		return (addresses);
+	}
+
+
+	/**
+	 * Gets the addresses of the recipients rejected by the server.
+	 *
+	 * @return the rejected recipient addresses
+	 */
+	public String [] getRejectedRecipients () {
+
+		String addresses[] = new String[rejected.size()];
+		rejected.toArray(addresses);
+		return (addresses);
+	}
+
+
+	/**
+	 * Gets the response the server gave when rejecting the
+	 * specified recipient.
+	 *
+	 * @param  address  the address of the rejected recipient
+	 * @return the response for the recipient, or null if the recipient
+	 * was not rejected
+	 */
+	public String getRejectedResponse (String address) {
+
+		int index = rejected.indexOf(address);
+		if (index < 0) {
+			return (null);
+		}
+
+		return (rejectedResponses.get(index));
+	}
+
+
+	/**
+	 * Returns true if any of the recipients were rejected by the server.
+	 *
+	 * @return true if any of the recipients were rejected
+	 */
+	public boolean hasRejectedRecipients () {
+		return (rejected.size() > 0);
+	}
+
+
+	/**
+	 * Gets the response the server gave after the message data was sent.
+	 * This usually contains the queue ID of the message.
+	 *
+	 * @return the final response for the message
+	 */
+	public String getResponse () {
+		return (response);
+	}
+
+
+	/**
+	 * Returns true if the envelope was sent using PIPELINING (RFC-2920).
+	 *
+	 * @return true if the envelope was pipelined
+	 */
+	public boolean isPipelined () {
+		return (pipelined);
+	}
+}
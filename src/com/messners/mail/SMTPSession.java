@@ -0,0 +1,1247 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The <code>SMTPSession</code> class holds a connection to a SMTP server
+ * open so that many messages can be sent over it. The greeting, HELO/EHLO
+ * and AUTH exchange is done once when the session is opened, after that
+ * each call to <code>send()</code> only does the MAIL/RCPT/DATA
+ * transaction, with a RSET sent between transactions.<p>
+ *
+ * The session uses EHLO and remembers the service extensions the server
+ * advertises. When the server supports PIPELINING (RFC-2920) the MAIL,
+ * RCPT and DATA commands are written as one batch and the replies read
+ * back in order, so a message costs the same number of round trips no
+ * matter how many recipients it has. Recipients rejected by the server
+ * are reported in the returned <code>SMTPReceipt</code> rather than
+ * failing the whole message.<p>
+ *
+ * If the server drops the connection (or sends a 421 reply) between
+ * messages the session reconnects and authenticates again before sending
+ * the next message. Example:
+ * <pre>
+ *    SMTPSession session = new SMTPSession("mail.example.com");
+ *    try {
+ *        for (int i = 0; i &lt; messages.length; i++) {
+ *            session.send(messages[i]);
+ *        }
+ *    } finally {
+ *        session.close();
+ *    }
+ * </pre>
+ *
+ * @see     com.messners.mail.SMTP
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class SMTPSession {
+
+	protected static final String CRLF = "\r\n";
+
+	protected String host = "localhost";
+	protected int port = SMTP.SMTP_PORT;
+	protected int timeoutMsecs = 20000;
+	protected String senderHost = Utilities.getLocalHostAddress();
+
+	protected int authType = SMTP.AUTH_NONE;
+	protected String username = null;
+	protected char password[] = null;
+
+	protected Connection connection = null;
+	protected SMTPDataOutputStream data = null;
+	protected PrintWriter out = null;
+	protected BufferedReader in = null;
+
+	protected String lastResponse = null;
+	protected ArrayList<String> responseLines = new ArrayList<String>();
+
+	/*
+	 * The service extensions advertised in the EHLO response, keyed
+	 * by the upper case extension keyword
+	 */
+	protected HashMap<String, String> capabilities =
+			new HashMap<String, String>();
+	protected boolean pipelining = true;
+
+	/*
+	 * Session counters
+	 */
+	protected int transactions = 0;
+	protected long messagesSent = 0;
+	protected long handshakes = 0;
+	protected long handshakesSaved = 0;
+	protected long reconnects = 0;
+
+	/*
+	 * When metrics or flight recorder events are being collected this
+	 * holds each command still waiting on its reply, in the order the
+	 * commands were written
+	 */
+	protected MailMetrics metrics = null;
+	protected final ArrayDeque<PendingReply> pending =
+			new ArrayDeque<PendingReply>();
+	protected Object sessionEvent = null;
+	protected long sessionMessages = 0;
+
+
+	/**
+	 * Collection of objects listening for SMTP events.
+	 */
+	protected final MailEventDispatcher<SMTPStatusListener> events =
+		new MailEventDispatcher<SMTPStatusListener>(this) {
+			protected void deliver (SMTPStatusListener l,
+					MailStatusEvent evt) {
+				l.smtpStatus(evt);
+			}
+		};
+
+
+	/**
+	 * Creates a <code>SMTPSession</code> that will connect to "localhost".
+	 */
+	public SMTPSession () {
+	}
+
+
+	/**
+	 * Creates a <code>SMTPSession</code> that will connect to the
+	 * specified SMTP host.
+	 *
+	 * @param host     the host name of the SMTP server.
+	 */
+	public SMTPSession (String host) {
+		this.host = host;
+	}
+
+
+	/**
+	 * Creates a <code>SMTPSession</code> that uses the connection
+	 * settings (host, port, sender host, timeout and AUTH info) and the
+	 * metrics of the specified <code>SMTP</code> instance.
+	 *
+	 * @param smtp     the SMTP instance to copy the settings from
+	 */
+	public SMTPSession (SMTP smtp) {
+
+		this.host         = smtp.getHost();
+		this.port         = smtp.getPort();
+		this.senderHost   = smtp.getSenderHost();
+		this.timeoutMsecs = smtp.getTimeout();
+		this.authType     = smtp.getAuthType();
+		this.username     = smtp.getUserName();
+		this.password     = smtp.getPassword();
+		this.metrics      = smtp.getMetrics();
+	}
+
+
+	/**
+	 * Gets the host name of the SMTP server to connect to.
+	 */
+	public String getHost () {
+		return (host);
+	}
+
+
+	/**
+	 * Sets the host name of the SMTP server to connect to. Takes effect
+	 * the next time the session is opened.
+	 *
+	 * @param host     the host name of the SMTP server.
+	 */
+	public void setHost (String host) {
+		this.host = host;
+	}
+
+
+	/**
+	 * Gets the port of the SMTP server to connect to.
+	 */
+	public int getPort () {
+		return (port);
+	}
+
+
+	/**
+	 * Sets the port of the SMTP server to connect to. Takes effect
+	 * the next time the session is opened.
+	 *
+	 * @param port     the port of the SMTP server.
+	 */
+	public void setPort (int port) {
+		this.port = port;
+	}
+
+
+	/**
+	 * Gets the SMTP sender host. This is used as the host name
+	 * with the HELO command.
+	 */
+	public String getSenderHost () {
+		return (senderHost);
+	}
+
+
+	/**
+	 * Sets the SMTP sender host. This is used as the host name
+	 * with the HELO command.
+	 *
+	 * @param host     the host name of the sender.
+	 */
+	public void setSenderHost (String host) {
+		senderHost = host;
+	}
+
+
+	/**
+	 * Gets the AUTH type for the session.
+	 *
+	 * @return the AUTH type
+	 */
+	public int getAuthType () {
+		return (authType);
+	}
+
+
+	/**
+	 * Sets the AUTH type for the session. Must be SMTP.AUTH_NONE,
+	 * SMTP.AUTH_PLAIN, or SMTP.AUTH_LOGIN.
+	 *
+	 * @param authType  the new AUTH type
+	 */
+	public void setAuthType (int authType) {
+		this.authType = authType;
+	}
+
+
+	/**
+	 * Gets the username to use with the AUTH command.
+	 *
+	 * @return the AUTH username
+	 */
+	public String getUserName () {
+		return (username);
+	}
+
+
+	/**
+	 * Sets the username to use with the AUTH command.
+	 *
+	 * @param username the AUTH username
+	 */
+	public void setUserName (String username) {
+		this.username = username;
+	}
+
+
+	/**
+	 * Sets the password to use with the AUTH command.
+	 *
+	 * @param password the AUTH password
+	 */
+	public void setPassword (char password[]) {
+		this.password = password;
+	}
+
+
+	/**
+	 * Gets the socket timeout in milliseconds.
+	 *
+	 * @return the socket timeout in milliseconds
+	 */
+	public int getTimeout () {
+		return (timeoutMsecs);
+	}
+
+
+	/**
+	 * Sets the socket timeout.
+	 *
+	 * @param  msecs  the number of milliseconds for the timeout,
+	 * -1 will disable the timeout
+	 */
+	public void setTimeout (int msecs) {
+		timeoutMsecs = msecs;
+	}
+
+
+	/**
+	 * Gets the last response recieved from the SMTP server.
+	 *
+	 * @return the last response recieved from the SMTP server
+	 */
+	public synchronized String getLastResponse () {
+		return (lastResponse);
+	}
+
+
+	/**
+	 * Sets whether PIPELINING will be used when the server supports it.
+	 * Defaults to <code>true</code>.
+	 *
+	 * @param  pipelining  true to use PIPELINING when available
+	 */
+	public void setPipelining (boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
+
+	/**
+	 * Gets whether PIPELINING will be used when the server supports it.
+	 *
+	 * @return true if PIPELINING will be used when available
+	 */
+	public boolean getPipelining () {
+		return (pipelining);
+	}
+
+
+	/**
+	 * Sets the metrics that the latency of each protocol phase and the
+	 * bytes, messages and errors of this session are recorded in. The
+	 * bytes are only counted for connections opened after the metrics
+	 * are set.
+	 *
+	 * @param  metrics  the metrics to record in, or null to not
+	 * record any
+	 */
+	public synchronized void setMetrics (MailMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Gets the metrics that this session records in.
+	 *
+	 * @return the metrics or null if none are recorded
+	 */
+	public synchronized MailMetrics getMetrics () {
+		return (metrics);
+	}
+
+
+	/**
+	 * Returns true if the server advertised the specified service
+	 * extension (for example "PIPELINING" or "8BITMIME") in its
+	 * response to EHLO. Only valid while the session is open.
+	 *
+	 * @param  keyword  the extension keyword, case is ignored
+	 * @return true if the server supports the extension
+	 */
+	public synchronized boolean hasCapability (String keyword) {
+		return (capabilities.containsKey(keyword.toUpperCase()));
+	}
+
+
+	/**
+	 * Gets the parameters the server advertised with the specified
+	 * service extension, for example "PLAIN LOGIN" for "AUTH".
+	 *
+	 * @param  keyword  the extension keyword, case is ignored
+	 * @return the parameters for the extension, an empty string if there
+	 * were none, or null if the extension is not supported
+	 */
+	public synchronized String getCapability (String keyword) {
+		return (capabilities.get(keyword.toUpperCase()));
+	}
+
+
+	/**
+	 * Gets the keywords of all the service extensions the server
+	 * advertised in its response to EHLO.
+	 *
+	 * @return the advertised extension keywords
+	 */
+	public synchronized String [] getCapabilities () {
+
+		String keywords[] = new String[capabilities.size()];
+		capabilities.keySet().toArray(keywords);
+		return (keywords);
+	}
+
+
+	/**
+	 * Returns true if the session currently has an open connection
+	 * to the SMTP server.
+	 *
+	 * @return true if the session is open
+	 */
+	public synchronized boolean isOpen () {
+		return (connection != null);
+	}
+
+
+	/**
+	 * Gets the number of messages successfully sent over this session.
+	 *
+	 * @return the number of messages sent
+	 */
+	public synchronized long getMessagesSent () {
+		return (messagesSent);
+	}
+
+
+	/**
+	 * Gets the number of times the connect/greeting/HELO/AUTH handshake
+	 * has been done by this session.
+	 *
+	 * @return the number of handshakes done
+	 */
+	public synchronized long getHandshakes () {
+		return (handshakes);
+	}
+
+
+	/**
+	 * Gets the number of messages that were sent over an already open
+	 * connection, each of which saved a full connect and handshake.
+	 *
+	 * @return the number of handshakes saved
+	 */
+	public synchronized long getHandshakesSaved () {
+		return (handshakesSaved);
+	}
+
+
+	/**
+	 * Gets the number of times the session had to reconnect because
+	 * the server dropped the connection.
+	 *
+	 * @return the number of reconnects
+	 */
+	public synchronized long getReconnects () {
+		return (reconnects);
+	}
+
+
+	/**
+	 * Opens the connection to the SMTP server and does the greeting,
+	 * HELO/EHLO and AUTH exchange. Does nothing if the session is
+	 * already open.
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs
+	 */
+	public synchronized void open () throws IOException, SMTPException {
+		open(null);
+	}
+
+
+	/**
+	 * Does the actual work of opening the session. If no sender host
+	 * has been set the domain from the <code>from</code> address is
+	 * used with the HELO command.
+	 */
+	protected void open (SMTPMessage message)
+			throws IOException, SMTPException {
+
+		if (connection != null) {
+			return;
+		}
+
+		/*
+		 * Connect to the SMTP server
+		 */
+		long start = System.nanoTime();
+		sessionEvent = FlightEvents.beginSMTPSession(host, port);
+		sessionMessages = 0;
+		Connection c;
+		try {
+
+			c = Connection.getInstance(host, port);
+			c.open(host, port);
+
+		} catch (Exception e) {
+
+			/*
+			 * There is no session to abort, just end the event
+			 */
+			FlightEvents.endSMTPSession(sessionEvent, 0, -1);
+			sessionEvent = null;
+			if (e instanceof IOException) {
+				throw ((IOException)e);
+			}
+
+			IOException ioe = new IOException(e.getMessage());
+			ioe.fillInStackTrace();
+			throw (ioe);
+		}
+
+		try {
+
+			if (timeoutMsecs != -1) {
+				c.setTimeout(timeoutMsecs);
+			}
+
+			OutputStream os = c.getOutputStream();
+			InputStream is = c.getInputStream();
+			if (metrics != null) {
+				metrics.record(MailMetrics.CONNECT, start);
+				os = metrics.countOutput(os);
+				is = metrics.countInput(is);
+			}
+
+			out  = new PrintWriter(os, true);
+			data = new SMTPDataOutputStream(os);
+			in = new BufferedReader(new InputStreamReader(is));
+			connection = c;
+
+			/*
+			 * As soon as we connect the SMTP dialog begins
+			 */
+			startPhase(MailMetrics.GREETING);
+			readAndCheck("220");
+
+			String senderHost = this.senderHost;
+			if (senderHost == null) {
+				senderHost = "localhost";
+				if (message != null && message.from.getAddress() != null) {
+					String tmp[] = Utilities.splitDelimitedString(
+						message.from.getAddress(), "@");
+					if (tmp.length == 2) {
+						senderHost = tmp[1];
+					}
+				}
+			}
+
+			boolean doAuth = ((authType == SMTP.AUTH_PLAIN ||
+					authType == SMTP.AUTH_LOGIN) &&
+					username != null && password != null);
+
+			/*
+			 * Say EHLO so we learn about the service extensions, if
+			 * the server does not understand it fall back to HELO
+			 */
+			capabilities.clear();
+			send("EHLO " + senderHost) ;
+			int code = readResponse();
+			if (code == 250) {
+				parseCapabilities();
+			} else if (code == 421 || doAuth) {
+				throw new SMTPException(
+					"EHLO failed: " + lastResponse, code);
+			} else {
+				send("HELO " + senderHost) ;
+				readAndCheck("250");
+			}
+
+			/*
+			 * Do we need to do an AUTH command?
+			 */
+			if (doAuth) {
+				if (authType == SMTP.AUTH_PLAIN) {
+					plainAuth();
+				} else {
+					loginAuth();
+				}
+			}
+
+		} catch (IOException ioe) {
+			abort();
+			throw ioe;
+		} catch (SMTPException se) {
+			close();
+			throw se;
+		}
+
+		transactions = 0;
+		handshakes++;
+	}
+
+
+	/**
+	 * Send the message currently held by the specified <code>SMTP</code>
+	 * instance over this session.
+	 *
+	 * @param  message  the SMTP instance holding the message to send
+	 * @return the receipt listing the accepted and rejected recipients
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs,
+	 * including when none of the recipients are accepted
+	 */
+	public SMTPReceipt send (SMTP message) throws IOException, SMTPException {
+		return (send(message.createMessage()));
+	}
+
+
+	/**
+	 * Send the message over this session. The session is opened if it
+	 * is not already open. If the server has dropped the connection
+	 * since the last message the session is reopened before sending.
+	 *
+	 * @param  message  the message to send
+	 * @return the receipt listing the accepted and rejected recipients
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs,
+	 * including when none of the recipients are accepted
+	 */
+	public synchronized SMTPReceipt send (SMTPMessage message)
+			throws IOException, SMTPException {
+
+		/*
+		 * Make sure we have a from and at least one destination
+		 */
+		message.validate();
+
+		long start = System.nanoTime();
+		if (connection != null && transactions > 0) {
+
+			/*
+			 * Reset the session state from the last transaction,
+			 * this also tells us if the server is still there
+			 */
+			try {
+				send("RSET");
+				readAndCheck("250");
+			} catch (IOException ioe) {
+				abort();
+				reconnects++;
+			} catch (SMTPException se) {
+				if (se.getReplyCode() != 421) {
+					throw se;
+				}
+
+				abort();
+				reconnects++;
+			}
+		}
+
+		boolean reused = (connection != null && transactions > 0);
+		open(message);
+
+		SMTPReceipt receipt;
+		try {
+
+			receipt = sendTransaction(message);
+
+		} catch (IOException ioe) {
+
+			/*
+			 * The connection is no good anymore
+			 */
+			abort();
+			throw ioe;
+
+		} catch (SMTPException se) {
+
+			if (se.getReplyCode() == 421) {
+				abort();
+			}
+
+			throw se;
+		}
+
+		messagesSent++;
+		sessionMessages++;
+		if (reused) {
+			handshakesSaved++;
+		}
+
+		if (metrics != null) {
+			metrics.record(MailMetrics.SEND, start);
+			metrics.countMessage();
+		}
+
+		return (receipt);
+	}
+
+
+	/**
+	 * Does the MAIL/RCPT/DATA transaction for the message.
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs
+	 */
+	protected SMTPReceipt sendTransaction (SMTPMessage message)
+			throws IOException, SMTPException {
+
+		/*
+		 * Count this as a transaction as soon as we start it so that
+		 * a RSET is sent before the next one, even if this one fails
+		 */
+		transactions++;
+
+		List<SMTP.MailAddress> recipients = message.getRecipientList();
+
+		SMTPReceipt receipt = new SMTPReceipt();
+		if (pipelining && capabilities.containsKey("PIPELINING")) {
+			receipt.setPipelined(true);
+			sendPipelinedEnvelope(message, recipients, receipt);
+		} else {
+			sendEnvelope(message, recipients, receipt);
+		}
+
+		/*
+		 * Send the header and body followed by a lone period(.),
+		 * which indicates the end of the message
+		 */
+		flush();
+		Object event = FlightEvents.beginSMTPData(host);
+		long start = System.nanoTime();
+		data.reset();
+		message.writeTo(data);
+		data.finish();
+		if (metrics != null) {
+			metrics.record(MailMetrics.DATA_TRANSFER, start);
+		}
+
+		startPhase(MailMetrics.DATA_END);
+		try {
+			readAndCheck("250");
+		} finally {
+			FlightEvents.endSMTPData(event, data.getBytesWritten(),
+				getReplyCode(lastResponse));
+		}
+
+		receipt.setResponse(lastResponse);
+		return (receipt);
+	}
+
+
+	/**
+	 * Sends the MAIL, RCPT and DATA commands one at a time, waiting for
+	 * the reply to each before sending the next.
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs
+	 */
+	protected void sendEnvelope (SMTPMessage message,
+			List<SMTP.MailAddress> recipients, SMTPReceipt receipt)
+			throws IOException, SMTPException {
+
+		send("MAIL FROM: " + message.from.getPathAddress());
+
+		try {
+			readAndCheck("250");
+		} catch (SMTPException se) {
+
+			/*
+			 * Try the "MAIL FROM" again without the
+			 * full name in the FROM address
+			 */
+			if (se.getReplyCode() == 421 || lastResponse == null ||
+					lastResponse.length() < 4) {
+				throw se;
+			}
+
+			send("MAIL FROM: <" + message.from.getAddress() + ">");
+			readAndCheck("250");
+		}
+
+		/*
+		 * Output the recipients, a rejected recipient does not stop
+		 * the message from going to the others
+		 */
+		int code = -1;
+		for (int i = 0; i < recipients.size(); i++) {
+			SMTP.MailAddress ma = recipients.get(i);
+			send("RCPT TO: " + ma.getPathAddress());
+			code = readResponse();
+			checkRecipientResponse(ma, code, receipt);
+		}
+
+		if (receipt.accepted.size() == 0) {
+			throw new SMTPException(
+				"no recipients accepted: " + lastResponse, code);
+		}
+
+		/*
+		 * Now setup to output the header and message body
+		 */
+		send("DATA") ;
+		readAndCheck("354");
+	}
+
+
+	/**
+	 * Writes the MAIL, RCPT and DATA commands as a single batch and then
+	 * reads the replies back in order (RFC-2920).
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs
+	 */
+	protected void sendPipelinedEnvelope (SMTPMessage message,
+			List<SMTP.MailAddress> recipients, SMTPReceipt receipt)
+			throws IOException, SMTPException {
+
+		/*
+		 * A pipelining server is an ESMTP server, so use the plain
+		 * path form of the addresses rather than the full names
+		 */
+		write("MAIL FROM: <" + message.from.getAddress() + ">");
+		for (int i = 0; i < recipients.size(); i++) {
+			SMTP.MailAddress ma = recipients.get(i);
+			write("RCPT TO: <" + ma.getAddress() + ">");
+		}
+
+		write("DATA");
+		flush();
+
+		/*
+		 * Now read the replies in the same order as the commands
+		 */
+		int mailCode = readResponse();
+		String mailResponse = lastResponse;
+		if (mailCode == 421) {
+			throw new SMTPException(mailResponse, mailCode);
+		}
+
+		int code = -1;
+		for (int i = 0; i < recipients.size(); i++) {
+			SMTP.MailAddress ma = recipients.get(i);
+			code = readResponse();
+			if (mailCode == 250) {
+				checkRecipientResponse(ma, code, receipt);
+			} else if (code == 421) {
+				throw new SMTPException(lastResponse, code);
+			}
+		}
+
+		int dataCode = readResponse();
+		if (dataCode == 421) {
+			throw new SMTPException(lastResponse, dataCode);
+		}
+
+		if (mailCode != 250 || receipt.accepted.size() == 0) {
+
+			/*
+			 * The server should have rejected the DATA command, if it
+			 * didn't end the (empty) message data so that it is
+			 * not delivered
+			 */
+			if (dataCode == 354) {
+				send(".");
+				readResponse();
+			}
+
+			if (mailCode != 250) {
+				throw new SMTPException(
+					"got response code \"" + mailCode + "\" " +
+					"expected \"250\"", mailCode);
+			} else {
+				throw new SMTPException(
+					"no recipients accepted", code);
+			}
+		}
+
+		if (dataCode != 354) {
+			throw new SMTPException(
+				"got response code \"" + dataCode + "\" " +
+				"expected \"354\"", dataCode);
+		}
+	}
+
+
+	/**
+	 * Records the server reply to a RCPT command in the receipt.
+	 *
+	 * @exception  SMTPException  if the server is shutting down
+	 */
+	private void checkRecipientResponse (SMTP.MailAddress ma, int code,
+			SMTPReceipt receipt) throws SMTPException {
+
+		if (code == 250 || code == 251) {
+			receipt.addAccepted(ma.getAddress());
+		} else if (code == 421) {
+			throw new SMTPException(lastResponse, code);
+		} else {
+			receipt.addRejected(ma.getAddress(), lastResponse);
+		}
+	}
+
+
+	/**
+	 * Parses the service extensions out of the EHLO response. The
+	 * first line is the greeting, the rest are extension keywords
+	 * followed by optional parameters.
+	 */
+	private void parseCapabilities () {
+
+		for (int i = 1; i < responseLines.size(); i++) {
+
+			String line = responseLines.get(i);
+			if (line.length() < 5) {
+				continue;
+			}
+
+			line = line.substring(4).trim();
+			int index = line.indexOf(' ');
+			if (index < 0) {
+				capabilities.put(line.toUpperCase(), "");
+			} else {
+				capabilities.put(line.substring(0, index).toUpperCase(),
+					line.substring(index + 1).trim());
+			}
+		}
+	}
+
+
+	/**
+	 * Ends the session by sending a QUIT and closing the connection.
+	 * The session can be opened again after being closed.
+	 */
+	public synchronized void close () {
+
+		if (connection == null) {
+			return;
+		}
+
+		String saved_rsp = lastResponse;
+		try {
+			send("QUIT");
+			readAndCheck("221");
+		} catch (Exception ignore) {
+		}
+
+		lastResponse = saved_rsp;
+		abort();
+	}
+
+
+	/**
+	 * Closes the connection without sending a QUIT.
+	 */
+	protected void abort () {
+
+		if (out != null) {
+			out.close();
+		}
+
+		try {
+			if (in != null) {
+				in.close();
+			}
+		} catch (Exception ignore) {
+		}
+
+		try {
+			if (connection != null) {
+				connection.close();
+			}
+		} catch (Exception ignore) {
+		}
+
+		connection = null;
+		out = null;
+		data = null;
+		in = null;
+		pending.clear();
+
+		FlightEvents.endSMTPSession(sessionEvent, sessionMessages,
+			getReplyCode(lastResponse));
+		sessionEvent = null;
+	}
+
+
+	/**
+	 * Does a AUTH PLAIN command.
+	 */
+	protected void plainAuth () throws IOException, SMTPException {
+
+		StringBuffer buf = new StringBuffer();
+		buf.append("\000");
+		buf.append(username);
+		buf.append("\000");
+		buf.append(password);
+		byte bytes[] = buf.toString().getBytes();
+		byte encoded[] = Base64Codec.encode(bytes);
+
+		send("AUTH PLAIN " + new String(encoded));
+		readAndCheck("235");
+	}
+
+
+	/**
+	 * Does a AUTH LOGIN command.
+	 */
+	protected void loginAuth () throws IOException, SMTPException {
+
+		byte bytes[];
+		bytes = this.username.getBytes();
+		byte username[] = Base64Codec.encode(bytes);
+		bytes = new String(this.password).getBytes();
+		byte password[] = Base64Codec.encode(bytes);
+
+		send("AUTH LOGIN");
+		readAndCheck("334");
+		startPhase("AUTH");
+		out.write(new String(username) + CRLF);
+		out.flush();
+		readAndCheck("334");
+		startPhase("AUTH");
+		out.write(new String(password) + CRLF);
+		out.flush();
+		readAndCheck("235");
+	}
+
+
+	/**
+	 * Send a command to the server.
+	 *
+	 * @param  command  the command to send.
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 */
+	protected void send (String command) throws IOException {
+		write(command);
+		flush();
+	}
+
+
+	/**
+	 * Write a command to the server without flushing it, used to
+	 * batch up pipelined commands.
+	 *
+	 * @param  command  the command to write.
+	 */
+	protected void write (String command) {
+
+		fireMailStatusEvent(MailStatusEvent.COMMAND, command);
+		startPhase(getPhase(command));
+
+		out.print(command);
+		out.print(CRLF);
+	}
+
+
+	/**
+	 * Gets the phase a command is recorded under, which is the command
+	 * verb except for the lone period that ends the message data.
+	 */
+	protected static String getPhase (String command) {
+
+		if (command.equals(".")) {
+			return (MailMetrics.DATA_END);
+		}
+
+		int index = command.indexOf(' ');
+		if (index > 0) {
+			command = command.substring(0, index);
+		}
+
+		return (command.toUpperCase());
+	}
+
+
+	/**
+	 * Notes the start of a phase that ends when the next reply not
+	 * already claimed by an earlier phase arrives. Does nothing if no
+	 * metrics are being recorded and the flight recorder event for SMTP
+	 * commands is not enabled.
+	 *
+	 * @param  phase  the phase name
+	 */
+	protected void startPhase (String phase) {
+
+		Object event = FlightEvents.beginSMTPCommand(host, phase);
+		if (metrics != null || event != null) {
+			pending.add(new PendingReply(phase, event));
+		}
+	}
+
+
+	/**
+	 * Records the latency of the oldest phase waiting on a reply.
+	 *
+	 * @param  line  the first line of the reply
+	 */
+	protected void endPhase (String line) {
+
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		PendingReply reply = pending.remove();
+		if (metrics != null) {
+			metrics.record(reply.phase, reply.start);
+		}
+
+		FlightEvents.endSMTPCommand(reply.event, getReplyCode(line));
+	}
+
+
+	/**
+	 * Flush any commands written to the server.
+	 *
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 */
+	protected void flush () throws IOException {
+
+		out.flush();
+		if (out.checkError()) {
+			throw new IOException("error writing to SMTP server");
+		}
+	}
+
+
+	/**
+	 * Reads a (possibly multi-line) response from the server. The lines
+	 * of the response are saved in <code>responseLines</code> and the
+	 * last line in <code>lastResponse</code>.
+	 *
+	 * @return the reply code of the response
+	 * @exception IOException if an IO error occurs while reading the socket
+	 * @exception SMTPException if the response is malformed, or empty
+	 * because the server closed the connection, which is reported with
+	 * a 421 reply code
+	 */
+	protected int readResponse () throws IOException, SMTPException {
+
+		responseLines.clear();
+		while (true) {
+
+			lastResponse = in.readLine();
+			if (lastResponse == null) {
+				throw new SMTPException("empty response from server", 421);
+			}
+
+			if (responseLines.isEmpty()) {
+				endPhase(lastResponse);
+			}
+
+			fireMailStatusEvent(MailStatusEvent.RESPONSE, lastResponse);
+
+			if (lastResponse.length() < 3) {
+			   	throw new SMTPException(
+					"malformed response from server");
+			}
+
+			responseLines.add(lastResponse);
+
+			/*
+			 * Continue reading until something other than a
+			 * hyphen follows the numeric code
+			 */
+			if (lastResponse.length() == 3 ||
+					lastResponse.charAt(3) != '-') {
+				break;
+			}
+		}
+
+		int code = getReplyCode(lastResponse);
+		if (code < 0) {
+		   	throw new SMTPException("malformed response from server");
+		}
+
+		if (code >= 400 && metrics != null) {
+			metrics.countError(String.valueOf(code));
+		}
+
+		return (code);
+	}
+
+
+	/**
+	 * Reads the response from the server and checks that it starts with
+	 * the expected response code.
+	 *
+	 * @param  expected   the expected response code
+	 *
+	 * @exception IOException if an IO error occurs while reading the socket
+	 * @exception SMTPException when the server does not return the
+	 * expected response code.
+	 */
+	protected void readAndCheck (String expected)
+			throws IOException, SMTPException {
+
+		int code = readResponse();
+		if (!lastResponse.startsWith(expected)) {
+			throw new SMTPException(
+				"got response code \"" +
+				lastResponse.substring(0, 3) + "\" " +
+				"expected \"" + expected + "\"", code);
+		}
+	}
+
+
+	/**
+	 * Gets the numeric reply code from a response line.
+	 *
+	 * @return the reply code or -1 if the line does not start
+	 * with a reply code
+	 */
+	protected static int getReplyCode (String response) {
+
+		if (response == null || response.length() < 3) {
+			return (-1);
+		}
+
+		try {
+			return (Integer.parseInt(response.substring(0, 3)));
+		} catch (NumberFormatException nfe) {
+			return (-1);
+		}
+	}
+
+
+	/**
+	 * Adds a SMTP event listener.
+	 *
+	 * @param  l  the SMTPStatusListener to add
+	 */
+	public void addStatusListener (SMTPStatusListener l) {
+		events.addListener(l);
+	}
+
+
+	/**
+	 * Removes a SMTP event listener.
+	 *
+	 * @param  l  the SMTPStatusListener to remove
+	 */
+	public void removeStatusListener (SMTPStatusListener l) {
+		events.removeListener(l);
+	}
+
+
+	/**
+	 * Gets the dispatcher that delivers the events of this session, it is
+	 * used to make events be delivered asynchronously.
+	 *
+	 * @return the event dispatcher
+	 */
+	public MailEventDispatcher<SMTPStatusListener> getEventDispatcher () {
+		return (events);
+	}
+
+
+	/**
+	 * Notify listening objects of SMTP events.
+	 *
+	 * @param  type     The type of SMTP event (COMMAND | RESPONSE)
+	 * @param  message  The SMTP command or response message.
+	 */
+	public void fireMailStatusEvent (int type, String message) {
+		events.fireStatus(type, message);
+	}
+}
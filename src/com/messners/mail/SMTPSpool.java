@@ -0,0 +1,1326 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * The <code>SMTPSpool</code> class is a durable outbound mail queue. Messages
+ * are rendered when they are enqueued and appended to a write-ahead journal
+ * kept in memory-mapped segment files in the spool directory, so enqueuing
+ * costs little more than a memory copy and a spooled message survives the
+ * JVM being restarted.<p>
+ *
+ * Once started the spool delivers its messages through an
+ * <code>SMTPTransport</code>, one message at a time per destination host and
+ * in the order they were enqueued. When a host cannot be reached, or
+ * replies with a transient (4xx) error, delivery to that host is retried
+ * with exponential backoff. A message that is refused with a permanent
+ * (5xx) error is dropped from the spool and reported as failed.<p>
+ *
+ * Each record in a segment is laid out as follows:
+ * <pre>
+ *    +0   int    magic, written last so a torn record is never seen
+ *    +4   int    payload length
+ *    +8   byte   state (pending, done or failed) and 3 bytes of padding
+ *    +12  long   spool ID
+ *    +20  long   time enqueued
+ *    +28  int    CRC-32 of the payload
+ *    +32         payload: host, from, recipients and message content
+ * </pre>
+ *
+ * A segment file is deleted as soon as it no longer holds any pending
+ * messages, and segments that are mostly delivered are compacted by
+ * copying their remaining messages forward.
+ *
+ * @see     com.messners.mail.SMTPTransport
+ * @see     com.messners.mail.SMTPSpoolListener
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class SMTPSpool {
+
+	/**
+	 * The default size of a segment file, 16 megabytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	protected static final int MAGIC = 0x4A474D53;
+	protected static final int HEADER_SIZE = 32;
+
+	protected static final byte STATE_PENDING = 0;
+	protected static final byte STATE_DONE    = 1;
+	protected static final byte STATE_FAILED  = 2;
+
+	protected static final String SEGMENT_PREFIX = "spool-";
+	protected static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * The default number of milliseconds <code>close()</code> waits for
+	 * deliveries in progress.
+	 */
+	public static final long DEFAULT_CLOSE_TIMEOUT = 60000;
+
+	/*
+	 * Unsafe.invokeCleaner() unmaps a buffer right away (Java 9 and
+	 * later), otherwise the mapping goes when the buffer is collected
+	 */
+	private static Object unsafe = null;
+	private static Method invokeCleaner = null;
+	static {
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Method m = c.getMethod("invokeCleaner", ByteBuffer.class);
+			unsafe = f.get(null);
+			invokeCleaner = m;
+		} catch (Throwable ignore) {
+		}
+	}
+
+
+	protected final File directory;
+	protected final SMTPTransport transport;
+	protected MailExecutor executor = null;
+
+	protected int segmentSize = DEFAULT_SEGMENT_SIZE;
+	protected boolean syncOnWrite = false;
+	protected long initialBackoff = 1000;
+	protected long maxBackoff = 600000;
+	protected int maxAttempts = 0;
+	protected int compactPercent = 50;
+	protected int tickMsecs = 1000;
+
+	protected final ArrayList<Segment> segments = new ArrayList<Segment>();
+	protected Segment active = null;
+	protected final HashMap<String, HostQueue> hosts =
+		new HashMap<String, HostQueue>();
+	protected final ArrayList<File> undeleted = new ArrayList<File>();
+
+	protected long nextId = 1;
+	protected long nextSeq = 1;
+	protected int pending = 0;
+	protected boolean closed = false;
+	protected ScheduledExecutorService scheduler = null;
+
+	protected final AtomicLong delivered = new AtomicLong();
+	protected final AtomicLong failed = new AtomicLong();
+
+	protected final CopyOnWriteArrayList<SMTPSpoolListener> listeners =
+		new CopyOnWriteArrayList<SMTPSpoolListener>();
+
+
+	/**
+	 * Opens the spool kept in the specified directory, recovering any
+	 * messages that were still pending when it was last used. The spool
+	 * does not deliver messages until <code>start()</code> is called.
+	 *
+	 * @param  directory  the spool directory, created if it does not exist
+	 * @param  transport  the transport used to deliver the messages
+	 * @exception  IOException  when the spool could not be opened
+	 */
+	public SMTPSpool (File directory, SMTPTransport transport)
+			throws IOException {
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException(
+				"could not create spool directory: " + directory);
+		}
+
+		this.directory = directory;
+		this.transport = transport;
+		recover();
+	}
+
+
+	/**
+	 * Sets the size of newly created segment files. A message larger than
+	 * this is given a segment of its own.
+	 *
+	 * @param  size  the segment size in bytes
+	 */
+	public synchronized void setSegmentSize (int size) {
+
+		if (size < HEADER_SIZE) {
+			throw new IllegalArgumentException("invalid segment size: " + size);
+		}
+
+		segmentSize = size;
+	}
+
+
+	/**
+	 * Sets whether every change to the spool is forced to the storage
+	 * device before returning. Without this a spooled message survives
+	 * the JVM exiting but may be lost if the operating system crashes.
+	 *
+	 * @param  sync  true to force every change to disk
+	 */
+	public synchronized void setSyncOnWrite (boolean sync) {
+		syncOnWrite = sync;
+	}
+
+
+	/**
+	 * Sets the backoff used when delivery to a host fails. The delay
+	 * starts at the initial backoff and doubles with each consecutive
+	 * failure up to the maximum.
+	 *
+	 * @param  initialMsecs  the delay after the first failure
+	 * @param  maxMsecs      the longest delay between attempts
+	 */
+	public synchronized void setBackoff (long initialMsecs, long maxMsecs) {
+
+		if (initialMsecs < 0 || maxMsecs < initialMsecs) {
+			throw new IllegalArgumentException("invalid backoff");
+		}
+
+		initialBackoff = initialMsecs;
+		maxBackoff = maxMsecs;
+	}
+
+
+	/**
+	 * Sets the most times delivery of a message is attempted before it is
+	 * dropped from the spool. Zero, the default, retries forever.
+	 *
+	 * @param  attempts  the most delivery attempts, or 0 for no limit
+	 */
+	public synchronized void setMaxAttempts (int attempts) {
+		maxAttempts = attempts;
+	}
+
+
+	/**
+	 * Sets the percentage of a segment that must still be pending for it
+	 * to be left alone by compaction.
+	 *
+	 * @param  percent  the live percentage below which a segment is
+	 * compacted, 0 turns off compaction
+	 */
+	public synchronized void setCompactThreshold (int percent) {
+		compactPercent = percent;
+	}
+
+
+	/**
+	 * Sets the executor the delivery tasks are run on.
+	 *
+	 * @param  executor  the executor, or null to use the transport's
+	 */
+	public void setExecutor (MailExecutor executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Gets the executor the delivery tasks are run on.
+	 *
+	 * @return the executor
+	 */
+	public MailExecutor getExecutor () {
+
+		MailExecutor executor = this.executor;
+		return (executor != null ? executor : transport.getExecutor());
+	}
+
+
+	/**
+	 * Adds the specified listener to receive delivery results.
+	 *
+	 * @param  l  the listener
+	 */
+	public void addSpoolListener (SMTPSpoolListener l) {
+
+		if (l != null) {
+			listeners.add(l);
+		}
+	}
+
+
+	/**
+	 * Removes the specified listener.
+	 *
+	 * @param  l  the listener
+	 */
+	public void removeSpoolListener (SMTPSpoolListener l) {
+		listeners.remove(l);
+	}
+
+
+	/**
+	 * Spools a message for delivery to the transport's default host.
+	 *
+	 * @param  message  the message to spool
+	 * @return the spool ID of the message
+	 * @exception  IOException    when the message could not be spooled
+	 * @exception  SMTPException  when the message is not valid
+	 */
+	public long enqueue (SMTPMessage message)
+			throws IOException, SMTPException {
+		return (enqueue(transport.getHost(), message));
+	}
+
+
+	/**
+	 * Spools a message for delivery to the specified host. When this
+	 * returns the message is in the journal and will be delivered even
+	 * if the JVM is restarted.
+	 *
+	 * @param  host     the host name of the SMTP server
+	 * @param  message  the message to spool
+	 * @return the spool ID of the message
+	 * @exception  IOException    when the message could not be spooled
+	 * @exception  SMTPException  when the message is not valid
+	 */
+	public long enqueue (String host, SMTPMessage message)
+			throws IOException, SMTPException {
+
+		if (host == null) {
+			throw new IllegalArgumentException("no host specified");
+		}
+
+		message.validate();
+
+		/*
+		 * Render and checksum the message before taking the lock
+		 */
+		byte payload[] = encode(host, message);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		Entry entry;
+		HostQueue ready = null;
+		synchronized (this) {
+
+			if (closed) {
+				throw new IOException("spool is closed");
+			}
+
+			entry = append(nextId++, System.currentTimeMillis(),
+				host, payload, (int)crc.getValue());
+			HostQueue queue = getQueue(host);
+			queue.entries.addLast(entry);
+			pending++;
+
+			if (scheduler != null && !queue.draining &&
+					queue.nextAttempt <= System.currentTimeMillis()) {
+				queue.draining = true;
+				ready = queue;
+			}
+		}
+
+		if (ready != null) {
+			submit(ready);
+		}
+
+		return (entry.id);
+	}
+
+
+	/**
+	 * Starts delivering the spooled messages.
+	 */
+	public synchronized void start () {
+
+		if (closed) {
+			throw new IllegalStateException("spool is closed");
+		}
+
+		if (scheduler != null) {
+			return;
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread (Runnable r) {
+					Thread t = new Thread(r, "jgmail-spool");
+					t.setDaemon(true);
+					return (t);
+				}
+			});
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run () {
+				tick();
+			}
+		}, 0, tickMsecs, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Stops delivering the spooled messages. Deliveries in progress are
+	 * allowed to finish.
+	 */
+	public synchronized void stop () {
+
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+
+
+	/**
+	 * Stops delivery, waits up to <code>DEFAULT_CLOSE_TIMEOUT</code>
+	 * milliseconds for deliveries in progress to finish, and closes the
+	 * spool. Pending messages remain in the spool directory and are
+	 * recovered when it is next opened.
+	 */
+	public void close () {
+		close(DEFAULT_CLOSE_TIMEOUT);
+	}
+
+
+	/**
+	 * Stops delivery, waits for deliveries in progress to finish, and
+	 * closes the spool. Pending messages remain in the spool directory
+	 * and are recovered when it is next opened. A delivery still in
+	 * progress when the wait is over is not recorded in the journal, so
+	 * that message is sent again after recovery.
+	 *
+	 * @param  msecs  the most milliseconds to wait, 0 to wait forever
+	 * @return true if no deliveries were still in progress
+	 */
+	public synchronized boolean close (long msecs) {
+
+		if (closed) {
+			return (true);
+		}
+
+		stop();
+
+		/*
+		 * A drain task that the executor never runs would keep
+		 * us waiting forever, so the wait is bounded
+		 */
+		boolean interrupted = false;
+		long deadline = (msecs > 0 ? System.currentTimeMillis() + msecs : 0);
+		while (isDraining()) {
+
+			long wait = 0;
+			if (deadline > 0) {
+				wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					break;
+				}
+			}
+
+			try {
+				wait(wait);
+			} catch (InterruptedException ie) {
+				interrupted = true;
+				break;
+			}
+		}
+
+		boolean drained = !isDraining();
+		closed = true;
+		for (Iterator<Segment> i = segments.iterator(); i.hasNext(); ) {
+
+			Segment segment = i.next();
+			if (segment.live == 0) {
+				unmap(segment);
+				delete(segment.file);
+			} else {
+				segment.buffer.force();
+				unmap(segment);
+			}
+		}
+
+		segments.clear();
+		hosts.clear();
+		active = null;
+		retryDeletes();
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		return (drained);
+	}
+
+
+	/**
+	 * Gets the number of messages waiting to be delivered.
+	 *
+	 * @return the number of pending messages
+	 */
+	public synchronized int getPendingCount () {
+		return (pending);
+	}
+
+
+	/**
+	 * Gets the number of messages waiting to be delivered to the
+	 * specified host.
+	 *
+	 * @param  host  the host name of the SMTP server
+	 * @return the number of pending messages for the host
+	 */
+	public synchronized int getPendingCount (String host) {
+
+		HostQueue queue = hosts.get(host);
+		return (queue != null ? queue.entries.size() : 0);
+	}
+
+
+	/**
+	 * Gets the number of messages delivered since the spool was opened.
+	 *
+	 * @return the number of delivered messages
+	 */
+	public long getDeliveredCount () {
+		return (delivered.get());
+	}
+
+
+	/**
+	 * Gets the number of messages dropped from the spool because of a
+	 * permanent failure since the spool was opened.
+	 *
+	 * @return the number of failed messages
+	 */
+	public long getFailedCount () {
+		return (failed.get());
+	}
+
+
+	/**
+	 * Gets the number of segment files currently in use.
+	 *
+	 * @return the number of segments
+	 */
+	public synchronized int getSegmentCount () {
+		return (segments.size());
+	}
+
+
+	/**
+	 * Gets the time the next delivery to the specified host will be
+	 * attempted, zero if it is not backing off.
+	 *
+	 * @param  host  the host name of the SMTP server
+	 * @return the time of the next attempt in milliseconds
+	 */
+	public synchronized long getNextAttempt (String host) {
+
+		HostQueue queue = hosts.get(host);
+		return (queue != null ? queue.nextAttempt : 0);
+	}
+
+
+	/**
+	 * Copies the pending messages out of segments that are mostly done
+	 * so that those segments can be deleted. This is also done by the
+	 * scheduler while the spool is started.
+	 *
+	 * @return the number of messages copied
+	 * @exception  IOException  when a new segment could not be created
+	 */
+	public synchronized int compact () throws IOException {
+
+		if (closed || compactPercent <= 0) {
+			return (0);
+		}
+
+		ArrayList<Segment> sparse = new ArrayList<Segment>();
+		for (Segment segment : segments) {
+			if (segment != active && segment.live > 0 &&
+					segment.liveBytes * 100L <
+						(long)segment.position * compactPercent) {
+				sparse.add(segment);
+			}
+		}
+
+		if (sparse.isEmpty()) {
+			return (0);
+		}
+
+		/*
+		 * The copy is written before the original is marked done, if
+		 * we stop in between recovery keeps only one of the two
+		 */
+		int moved = 0;
+		for (HostQueue queue : hosts.values()) {
+			for (Entry entry : queue.entries) {
+
+				Segment from = entry.segment;
+				if (!sparse.contains(from)) {
+					continue;
+				}
+
+				ByteBuffer buf = from.buffer;
+				byte payload[] = read(from, entry.offset, entry.length);
+				Entry copy = append(entry.id, buf.getLong(entry.offset + 20),
+					entry.host, payload, buf.getInt(entry.offset + 28));
+
+				setState(from, entry.offset, STATE_DONE);
+				release(from, entry.length);
+
+				entry.segment = copy.segment;
+				entry.offset  = copy.offset;
+				moved++;
+			}
+		}
+
+		return (moved);
+	}
+
+
+	/**
+	 * Runs on the scheduler thread, starts delivery to every host that
+	 * has pending messages and is not backing off.
+	 */
+	protected void tick () {
+
+		ArrayList<HostQueue> ready = new ArrayList<HostQueue>();
+		synchronized (this) {
+
+			if (scheduler == null) {
+				return;
+			}
+
+			retryDeletes();
+			long now = System.currentTimeMillis();
+			for (HostQueue queue : hosts.values()) {
+				if (!queue.draining && !queue.entries.isEmpty() &&
+						queue.nextAttempt <= now) {
+					queue.draining = true;
+					ready.add(queue);
+				}
+			}
+		}
+
+		for (HostQueue queue : ready) {
+			submit(queue);
+		}
+
+		try {
+			compact();
+		} catch (IOException ignore) {
+		}
+	}
+
+
+	/**
+	 * Schedules an extra tick so a retry is not held up until the
+	 * next regular tick.
+	 */
+	protected synchronized void wakeup (long delay) {
+
+		if (scheduler != null && delay < tickMsecs) {
+			scheduler.schedule(new Runnable() {
+				public void run () {
+					tick();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+	/**
+	 * Submits a task to deliver the messages for a host.
+	 */
+	protected void submit (final HostQueue queue) {
+
+		getExecutor().submit(new Callable<Object>() {
+			public Object call () {
+				drain(queue);
+				return (null);
+			}
+		}).whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept (Object result, Throwable t) {
+
+				/*
+				 * The executor was full, try again on the next tick
+				 */
+				if (t instanceof RejectedExecutionException) {
+					synchronized (SMTPSpool.this) {
+						queue.draining = false;
+						SMTPSpool.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Delivers the messages for a host in order until the queue is
+	 * empty, the spool is stopped, or a delivery fails transiently.
+	 */
+	protected void drain (HostQueue queue) {
+
+		try {
+
+			while (true) {
+
+				Entry entry;
+				SMTPMessage message = null;
+				IOException unreadable = null;
+				synchronized (this) {
+
+					if (scheduler == null || closed) {
+						return;
+					}
+
+					entry = queue.entries.peekFirst();
+					if (entry == null) {
+						return;
+					}
+
+					try {
+						message = decode(read(entry.segment,
+							entry.offset, entry.length));
+					} catch (IOException ioe) {
+						remove(queue, entry, STATE_FAILED);
+						unreadable = ioe;
+					}
+				}
+
+				/*
+				 * Listeners are never called holding the lock
+				 */
+				if (unreadable != null) {
+					failed.incrementAndGet();
+					fireFailed(entry.id, unreadable, true);
+					continue;
+				}
+
+				SMTPReceipt receipt;
+				try {
+					receipt = transport.send(queue.host, message);
+				} catch (Exception e) {
+
+					boolean permanent = false;
+					if (e instanceof SMTPException) {
+						permanent = (((SMTPException)e).getReplyCode() >= 500);
+					}
+
+					synchronized (this) {
+
+						entry.attempts++;
+						if (maxAttempts > 0 && entry.attempts >= maxAttempts) {
+							permanent = true;
+						}
+
+						if (permanent) {
+							remove(queue, entry, STATE_FAILED);
+						} else {
+							queue.failures++;
+							long delay = getBackoff(queue.failures);
+							queue.nextAttempt = System.currentTimeMillis() + delay;
+							wakeup(delay);
+						}
+					}
+
+					if (permanent) {
+						failed.incrementAndGet();
+					}
+
+					fireFailed(entry.id, e, permanent);
+					if (permanent) {
+						continue;
+					}
+
+					return;
+				}
+
+				synchronized (this) {
+					remove(queue, entry, STATE_DONE);
+					queue.failures = 0;
+					queue.nextAttempt = 0;
+				}
+
+				delivered.incrementAndGet();
+				fireDelivered(entry.id, receipt);
+			}
+
+		} finally {
+
+			synchronized (this) {
+				queue.draining = false;
+				notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the delay before the next attempt after the specified number
+	 * of consecutive failures.
+	 */
+	protected synchronized long getBackoff (int failures) {
+
+		long delay = initialBackoff;
+		for (int i = 1; i < failures && delay < maxBackoff; i++) {
+			delay *= 2;
+		}
+
+		return (delay < maxBackoff ? delay : maxBackoff);
+	}
+
+
+	/**
+	 * Returns true if any host is being delivered to.
+	 */
+	protected boolean isDraining () {
+
+		for (HostQueue queue : hosts.values()) {
+			if (queue.draining) {
+				return (true);
+			}
+		}
+
+		return (false);
+	}
+
+
+	/**
+	 * Gets the queue for a host, creating it if needed.
+	 */
+	protected HostQueue getQueue (String host) {
+
+		HostQueue queue = hosts.get(host);
+		if (queue == null) {
+			queue = new HostQueue(host);
+			hosts.put(host, queue);
+		}
+
+		return (queue);
+	}
+
+
+	/**
+	 * Removes the message at the head of a host queue, recording its
+	 * final state in the journal.
+	 */
+	protected void remove (HostQueue queue, Entry entry, byte state) {
+
+		queue.entries.remove(entry);
+		pending--;
+
+		if (closed || entry.segment.buffer == null) {
+			return;
+		}
+
+		setState(entry.segment, entry.offset, state);
+		release(entry.segment, entry.length);
+	}
+
+
+	/**
+	 * Appends a record to the active segment, starting a new segment if
+	 * the record does not fit.
+	 */
+	protected Entry append (long id, long time, String host,
+			byte payload[], int crc) throws IOException {
+
+		int size = HEADER_SIZE + payload.length;
+		if (active == null || active.position + size > active.capacity) {
+			roll(size);
+		}
+
+		Segment segment = active;
+		int offset = segment.position;
+		ByteBuffer buf = segment.buffer;
+
+		buf.putInt(offset + 4, payload.length);
+		buf.put(offset + 8, STATE_PENDING);
+		buf.putLong(offset + 12, id);
+		buf.putLong(offset + 20, time);
+		buf.putInt(offset + 28, crc);
+
+		ByteBuffer dst = buf.duplicate();
+		dst.position(offset + HEADER_SIZE);
+		dst.put(payload);
+
+		/*
+		 * The magic number goes in last, until then the record
+		 * is not part of the journal
+		 */
+		buf.putInt(offset, MAGIC);
+		if (syncOnWrite) {
+			segment.buffer.force();
+		}
+
+		segment.position += size;
+		segment.live++;
+		segment.liveBytes += size;
+
+		return (new Entry(id, host, segment, offset, payload.length));
+	}
+
+
+	/**
+	 * Seals the active segment and creates a new one big enough to hold
+	 * a record of the specified size.
+	 */
+	protected void roll (int size) throws IOException {
+
+		if (active != null) {
+			active.sealed = true;
+			if (active.live == 0) {
+				deleteSegment(active);
+			}
+		}
+
+		long seq = nextSeq++;
+		File file = new File(directory,
+			SEGMENT_PREFIX + seq + SEGMENT_SUFFIX);
+		active = openSegment(file, seq,
+			size > segmentSize ? size : segmentSize);
+		segments.add(active);
+	}
+
+
+	/**
+	 * Records that a record in a segment is no longer pending, deleting
+	 * the segment when none are left.
+	 */
+	protected void release (Segment segment, int length) {
+
+		segment.live--;
+		segment.liveBytes -= HEADER_SIZE + length;
+		if (segment.live == 0 && segment.sealed) {
+			deleteSegment(segment);
+		}
+	}
+
+
+	/**
+	 * Sets the state of a record.
+	 */
+	protected void setState (Segment segment, int offset, byte state) {
+
+		segment.buffer.put(offset + 8, state);
+		if (syncOnWrite) {
+			segment.buffer.force();
+		}
+	}
+
+
+	/**
+	 * Removes a segment and deletes its file.
+	 */
+	protected void deleteSegment (Segment segment) {
+
+		segments.remove(segment);
+		unmap(segment);
+		delete(segment.file);
+		if (segment == active) {
+			active = null;
+		}
+	}
+
+
+	/**
+	 * Unmaps a segment's buffer. Some platforms (Windows) refuse to
+	 * delete a file while it is mapped. All access to the buffers is
+	 * done holding the spool's lock, so no one is left using it.
+	 */
+	protected static void unmap (Segment segment) {
+
+		MappedByteBuffer buffer = segment.buffer;
+		segment.buffer = null;
+		if (buffer == null || invokeCleaner == null) {
+			return;
+		}
+
+		try {
+			invokeCleaner.invoke(unsafe, buffer);
+		} catch (Exception ignore) {
+		}
+	}
+
+
+	/**
+	 * Deletes a segment file, keeping it to try again later if it
+	 * cannot be deleted now.
+	 */
+	protected void delete (File file) {
+
+		if (!file.delete() && file.exists() && !undeleted.contains(file)) {
+			undeleted.add(file);
+		}
+	}
+
+
+	/**
+	 * Tries again to delete the segment files that could not be
+	 * deleted before.
+	 */
+	protected void retryDeletes () {
+
+		for (Iterator<File> i = undeleted.iterator(); i.hasNext(); ) {
+			File file = i.next();
+			if (file.delete() || !file.exists()) {
+				i.remove();
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the segment files that could not be deleted yet, for
+	 * example because the platform still had them mapped.
+	 *
+	 * @return the files waiting to be deleted
+	 */
+	public synchronized File [] getUndeletedFiles () {
+		return (undeleted.toArray(new File[undeleted.size()]));
+	}
+
+
+	/**
+	 * Reads a record's payload out of a segment.
+	 */
+	protected byte [] read (Segment segment, int offset, int length) {
+
+		byte payload[] = new byte[length];
+		ByteBuffer src = segment.buffer.duplicate();
+		src.position(offset + HEADER_SIZE);
+		src.get(payload);
+		return (payload);
+	}
+
+
+	/**
+	 * Maps a segment file into memory.
+	 */
+	protected Segment openSegment (File file, long seq, int size)
+			throws IOException {
+
+		/*
+		 * The mapping stays valid after the file is closed
+		 */
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+			return (new Segment(file, seq, buffer, size));
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Scans the segment files in the spool directory and queues every
+	 * message that is still pending. The recovered segments are sealed,
+	 * new messages always go into a new segment.
+	 */
+	protected void recover () throws IOException {
+
+		File files[] = directory.listFiles(new FilenameFilter() {
+			public boolean accept (File dir, String name) {
+				return (name.startsWith(SEGMENT_PREFIX) &&
+					name.endsWith(SEGMENT_SUFFIX) &&
+					getSequence(name) > 0);
+			}
+		});
+
+		if (files == null) {
+			throw new IOException("could not list spool directory: " +
+				directory);
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare (File f1, File f2) {
+				return (Long.compare(getSequence(f1.getName()),
+					getSequence(f2.getName())));
+			}
+		});
+
+		TreeMap<Long, Entry> recovered = new TreeMap<Long, Entry>();
+		for (int i = 0; i < files.length; i++) {
+
+			long seq = getSequence(files[i].getName());
+			Segment segment = openSegment(files[i], seq,
+				(int)files[i].length());
+			segment.sealed = true;
+			segments.add(segment);
+			scan(segment, recovered);
+
+			if (seq >= nextSeq) {
+				nextSeq = seq + 1;
+			}
+		}
+
+		for (Entry entry : recovered.values()) {
+			entry.segment.live++;
+			entry.segment.liveBytes += HEADER_SIZE + entry.length;
+			getQueue(entry.host).entries.addLast(entry);
+			pending++;
+		}
+
+		for (Segment segment : new ArrayList<Segment>(segments)) {
+			if (segment.live == 0) {
+				deleteSegment(segment);
+			}
+		}
+	}
+
+
+	/**
+	 * Reads the records in a segment up to the first one that is missing
+	 * or torn, collecting the pending ones.
+	 */
+	protected void scan (Segment segment, TreeMap<Long, Entry> recovered) {
+
+		ByteBuffer buf = segment.buffer;
+		int offset = 0;
+		while (offset + HEADER_SIZE <= segment.capacity &&
+				buf.getInt(offset) == MAGIC) {
+
+			int length = buf.getInt(offset + 4);
+			if (length < 0 ||
+					length > segment.capacity - offset - HEADER_SIZE) {
+				break;
+			}
+
+			byte payload[] = read(segment, offset, length);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, payload.length);
+			if ((int)crc.getValue() != buf.getInt(offset + 28)) {
+				break;
+			}
+
+			long id = buf.getLong(offset + 12);
+			if (id >= nextId) {
+				nextId = id + 1;
+			}
+
+			if (buf.get(offset + 8) == STATE_PENDING) {
+
+				/*
+				 * A message copied by compaction may be in the journal
+				 * twice, keep the first copy and retire the other
+				 */
+				if (recovered.containsKey(id)) {
+					buf.put(offset + 8, STATE_DONE);
+				} else {
+					try {
+						String host = new DataInputStream(
+							new ByteArrayInputStream(payload)).readUTF();
+						recovered.put(id,
+							new Entry(id, host, segment, offset, length));
+					} catch (IOException ioe) {
+						buf.put(offset + 8, STATE_FAILED);
+					}
+				}
+			}
+
+			offset += HEADER_SIZE + length;
+		}
+
+		segment.position = offset;
+	}
+
+
+	/**
+	 * Gets the sequence number from a segment file name, or -1 if the
+	 * name is not valid.
+	 */
+	protected static long getSequence (String name) {
+
+		try {
+			return (Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+				name.length() - SEGMENT_SUFFIX.length())));
+		} catch (RuntimeException re) {
+			return (-1);
+		}
+	}
+
+
+	/**
+	 * Renders a message and its envelope into a record payload.
+	 */
+	protected static byte [] encode (String host, SMTPMessage message)
+			throws IOException {
+
+		byte content[] = message.render();
+		String recipients[] = message.getRecipients();
+
+		ByteArrayOutputStream bytes =
+			new ByteArrayOutputStream(content.length + 256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(host);
+		out.writeUTF(message.getFrom());
+		out.writeInt(recipients.length);
+		for (int i = 0; i < recipients.length; i++) {
+			out.writeUTF(recipients[i]);
+		}
+
+		out.writeInt(content.length);
+		out.write(content);
+		out.flush();
+		return (bytes.toByteArray());
+	}
+
+
+	/**
+	 * Rebuilds a message from a record payload.
+	 */
+	protected static SMTPMessage decode (byte payload[]) throws IOException {
+
+		DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(payload));
+		in.readUTF();
+		String from = in.readUTF();
+
+		int count = in.readInt();
+		if (count < 0 || count > payload.length) {
+			throw new IOException("corrupt spool record");
+		}
+
+		String recipients[] = new String[count];
+		for (int i = 0; i < count; i++) {
+			recipients[i] = in.readUTF();
+		}
+
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("corrupt spool record");
+		}
+
+		byte content[] = new byte[length];
+		in.readFully(content);
+		return (new SMTPMessage(from, recipients, content));
+	}
+
+
+	/**
+	 * Notifies the listeners of a delivered message.
+	 */
+	protected void fireDelivered (long id, SMTPReceipt receipt) {
+
+		for (SMTPSpoolListener l : listeners) {
+			l.delivered(id, receipt);
+		}
+	}
+
+
+	/**
+	 * Notifies the listeners of a failed delivery attempt.
+	 */
+	protected void fireFailed (long id, Exception e, boolean permanent) {
+
+		for (SMTPSpoolListener l : listeners) {
+			l.failed(id, e, permanent);
+		}
+	}
+
+
+	/**
+	 * A memory-mapped segment file.
+	 */
+	protected static class Segment {
+
+		protected final File file;
+		protected final long seq;
+		protected final int capacity;
+		protected MappedByteBuffer buffer;
+		protected int position = 0;
+		protected int live = 0;
+		protected long liveBytes = 0;
+		protected boolean sealed = false;
+
+		Segment (File file, long seq, MappedByteBuffer buffer, int capacity) {
+			this.file = file;
+			this.seq = seq;
+			this.buffer = buffer;
+			this.capacity = capacity;
+		}
+	}
+
+
+	/**
+	 * The location of a pending message in the journal.
+	 */
+	protected static class Entry {
+
+		protected final long id;
+		protected final String host;
+		protected final int length;
+		protected Segment segment;
+		protected int offset;
+		protected int attempts = 0;
+
+		Entry (long id, String host, Segment segment, int offset, int length) {
+			this.id = id;
+			this.host = host;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+
+	/**
+	 * The pending messages and retry state for a destination host.
+	 */
+	protected static class HostQueue {
+
+		protected final String host;
+		protected final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+		protected int failures = 0;
+		protected long nextAttempt = 0;
+		protected boolean draining = false;
+
+		HostQueue (String host) {
+			this.host = host;
+		}
+	}
+}
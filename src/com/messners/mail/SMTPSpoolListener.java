@@ -0,0 +1,53 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+/**
+ * Listener interface for receiving the outcome of delivery attempts made
+ * by an <code>SMTPSpool</code>.
+ *
+ * @see     com.messners.mail.SMTPSpool
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public interface SMTPSpoolListener {
+
+	/**
+	 * Invoked when a spooled message has been accepted by the server.
+	 *
+	 * @param  id       the spool ID of the message
+	 * @param  receipt  the receipt for the message
+	 */
+	void delivered (long id, SMTPReceipt receipt);
+
+	/**
+	 * Invoked when an attempt to deliver a spooled message fails. If the
+	 * failure is permanent the message has been removed from the spool,
+	 * otherwise it will be retried.
+	 *
+	 * @param  id         the spool ID of the message
+	 * @param  e          the exception that caused the failure
+	 * @param  permanent  true if the message will not be retried
+	 */
+	void failed (long id, Exception e, boolean permanent);
+}
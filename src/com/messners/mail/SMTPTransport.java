@@ -0,0 +1,663 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>SMTPTransport</code> class sends <code>SMTPMessage</code>
+ * instances over a bounded pool of open, authenticated
+ * <code>SMTPSession</code>s for each SMTP host. A single transport is
+ * meant to be shared by many threads, each call to <code>send()</code>
+ * borrows a session from the pool, sends the message and returns the
+ * session to the pool, so no lock is held across sends.<p>
+ *
+ * The connection settings (port, sender host, AUTH info and timeouts)
+ * should be set before the transport is first used, they are applied to
+ * each session as it is created. Example:
+ * <pre>
+ *    SMTPTransport transport = new SMTPTransport("mail.example.com");
+ *    transport.setMaxConnections(8);
+ *
+ *    // From any number of threads
+ *    SMTP smtp = new SMTP();
+ *    smtp.setFrom("Me", "me@example.com");
+ *    smtp.addTo("You", "you@example.com");
+ *    smtp.setBody("Hello");
+ *    transport.send(smtp.createMessage());
+ *
+ *    // When done with the transport
+ *    transport.close();
+ * </pre>
+ *
+ * @see     com.messners.mail.SMTPMessage
+ * @see     com.messners.mail.SMTPSession
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class SMTPTransport {
+
+	protected String host = "localhost";
+	protected int port = SMTP.SMTP_PORT;
+	protected int timeoutMsecs = 20000;
+	protected String senderHost = Utilities.getLocalHostAddress();
+
+	protected int authType = SMTP.AUTH_NONE;
+	protected String username = null;
+	protected char password[] = null;
+	protected boolean pipelining = true;
+
+	protected int maxConnections = 4;
+	protected int borrowTimeoutMsecs = 60000;
+
+	protected volatile boolean closed = false;
+	protected volatile MailExecutor executor = null;
+	protected volatile MailMetrics metrics = null;
+
+	/*
+	 * The session pools keyed by host name
+	 */
+	protected ConcurrentHashMap<String, SessionPool> pools =
+			new ConcurrentHashMap<String, SessionPool>();
+
+	/*
+	 * Pool metrics
+	 */
+	protected AtomicLong connectionsCreated = new AtomicLong();
+	protected AtomicLong borrows = new AtomicLong();
+	protected AtomicLong borrowWaitNanos = new AtomicLong();
+	protected AtomicLong maxBorrowWaitNanos = new AtomicLong();
+
+	/**
+	 * Collection of objects listening for SMTP events, they are added to
+	 * each session as it is created.
+	 */
+	protected CopyOnWriteArrayList<SMTPStatusListener> smtpListeners =
+			new CopyOnWriteArrayList<SMTPStatusListener>();
+
+
+	/**
+	 * Creates a <code>SMTPTransport</code> that sends to "localhost".
+	 */
+	public SMTPTransport () {
+	}
+
+
+	/**
+	 * Creates a <code>SMTPTransport</code> that sends to the
+	 * specified SMTP host.
+	 *
+	 * @param host     the host name of the SMTP server.
+	 */
+	public SMTPTransport (String host) {
+		this.host = host;
+	}
+
+
+	/**
+	 * Creates a <code>SMTPTransport</code> that uses the connection
+	 * settings (host, port, sender host, timeout and AUTH info) and the
+	 * metrics of the specified <code>SMTP</code> instance.
+	 *
+	 * @param smtp     the SMTP instance to copy the settings from
+	 */
+	public SMTPTransport (SMTP smtp) {
+
+		this.host         = smtp.getHost();
+		this.port         = smtp.getPort();
+		this.senderHost   = smtp.getSenderHost();
+		this.timeoutMsecs = smtp.getTimeout();
+		this.authType     = smtp.getAuthType();
+		this.username     = smtp.getUserName();
+		this.password     = smtp.getPassword();
+		this.metrics      = smtp.getMetrics();
+	}
+
+
+	/**
+	 * Gets the host name of the default SMTP server.
+	 */
+	public String getHost () {
+		return (host);
+	}
+
+
+	/**
+	 * Sets the host name of the default SMTP server.
+	 *
+	 * @param host     the host name of the SMTP server.
+	 */
+	public void setHost (String host) {
+		this.host = host;
+	}
+
+
+	/**
+	 * Gets the port of the SMTP servers.
+	 */
+	public int getPort () {
+		return (port);
+	}
+
+
+	/**
+	 * Sets the port of the SMTP servers.
+	 *
+	 * @param port     the port of the SMTP servers.
+	 */
+	public void setPort (int port) {
+		this.port = port;
+	}
+
+
+	/**
+	 * Sets the SMTP sender host. This is used as the host name
+	 * with the HELO command.
+	 *
+	 * @param host     the host name of the sender.
+	 */
+	public void setSenderHost (String host) {
+		senderHost = host;
+	}
+
+
+	/**
+	 * Sets the AUTH type. Must be SMTP.AUTH_NONE, SMTP.AUTH_PLAIN,
+	 * or SMTP.AUTH_LOGIN.
+	 *
+	 * @param authType  the new AUTH type
+	 */
+	public void setAuthType (int authType) {
+		this.authType = authType;
+	}
+
+
+	/**
+	 * Sets the username to use with the AUTH command.
+	 *
+	 * @param username the AUTH username
+	 */
+	public void setUserName (String username) {
+		this.username = username;
+	}
+
+
+	/**
+	 * Sets the password to use with the AUTH command.
+	 *
+	 * @param password the AUTH password
+	 */
+	public void setPassword (char password[]) {
+		this.password = password;
+	}
+
+
+	/**
+	 * Sets the socket timeout.
+	 *
+	 * @param  msecs  the number of milliseconds for the timeout,
+	 * -1 will disable the timeout
+	 */
+	public void setTimeout (int msecs) {
+		timeoutMsecs = msecs;
+	}
+
+
+	/**
+	 * Sets whether PIPELINING will be used when the server supports it.
+	 *
+	 * @param  pipelining  true to use PIPELINING when available
+	 */
+	public void setPipelining (boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
+
+	/**
+	 * Gets the maximum number of connections held open to each host.
+	 *
+	 * @return the maximum number of connections per host
+	 */
+	public int getMaxConnections () {
+		return (maxConnections);
+	}
+
+
+	/**
+	 * Sets the maximum number of connections held open to each host.
+	 * This is the most messages that will be sent to a host at the
+	 * same time, other senders wait for a connection to be returned.
+	 * Only applies to hosts not yet sent to.
+	 *
+	 * @param  maxConnections  the maximum number of connections per host
+	 */
+	public void setMaxConnections (int maxConnections) {
+
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException(
+				"maxConnections must be at least 1");
+		}
+
+		this.maxConnections = maxConnections;
+	}
+
+
+	/**
+	 * Sets how long a send will wait for a pooled connection
+	 * before giving up with an IOException.
+	 *
+	 * @param  msecs  the number of milliseconds to wait
+	 */
+	public void setBorrowTimeout (int msecs) {
+		borrowTimeoutMsecs = msecs;
+	}
+
+
+	/**
+	 * Sends the message to the default SMTP host.
+	 *
+	 * @param  message  the message to send
+	 * @return the receipt listing the accepted and rejected recipients
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs
+	 */
+	public SMTPReceipt send (SMTPMessage message)
+			throws IOException, SMTPException {
+		return (send(host, message));
+	}
+
+
+	/**
+	 * Sends the message to the specified SMTP host.
+	 *
+	 * @param  host     the host name of the SMTP server
+	 * @param  message  the message to send
+	 * @return the receipt listing the accepted and rejected recipients
+	 * @exception  IOException    when an I/O errors happen on the socket
+	 * @exception  SMTPException  when an SMTP specific error occurs
+	 */
+	public SMTPReceipt send (String host, SMTPMessage message)
+			throws IOException, SMTPException {
+
+		message.validate();
+
+		SessionPool pool = getPool(host);
+		SMTPSession session = pool.borrow();
+		try {
+			return (session.send(message));
+		} finally {
+			pool.release(session);
+		}
+	}
+
+
+	/**
+	 * Sends the message to the default SMTP host asynchronously.
+	 *
+	 * @param  message  the message to send
+	 * @return a future for the receipt of the message
+	 * @see #sendAsync(String, SMTPMessage)
+	 */
+	public CompletableFuture<SMTPReceipt> sendAsync (SMTPMessage message) {
+		return (sendAsync(host, message));
+	}
+
+
+	/**
+	 * Sends the message to the specified SMTP host asynchronously. The
+	 * send is run by the <code>MailExecutor</code> set with
+	 * <code>setExecutor()</code>, or the shared default executor if none
+	 * has been set. The returned future completes with the receipt for
+	 * the message, or exceptionally with the <code>IOException</code> or
+	 * <code>SMTPException</code> that caused the send to fail.
+	 *
+	 * @param  host     the host name of the SMTP server
+	 * @param  message  the message to send
+	 * @return a future for the receipt of the message
+	 */
+	public CompletableFuture<SMTPReceipt> sendAsync (final String host,
+			final SMTPMessage message) {
+
+		return (getExecutor().submit(new Callable<SMTPReceipt>() {
+			public SMTPReceipt call () throws Exception {
+				return (send(host, message));
+			}
+		}));
+	}
+
+
+	/**
+	 * Sets the executor used by <code>sendAsync()</code>.
+	 *
+	 * @param  executor  the executor, or null to use the shared default
+	 */
+	public void setExecutor (MailExecutor executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 * Gets the executor used by <code>sendAsync()</code>.
+	 *
+	 * @return the executor
+	 */
+	public MailExecutor getExecutor () {
+
+		MailExecutor executor = this.executor;
+		return (executor != null ? executor : MailExecutor.getDefault());
+	}
+
+
+	/**
+	 * Sets the metrics that the sessions record the latency of each
+	 * protocol phase, and the bytes, messages and errors, in. Only
+	 * sessions created after the metrics are set record in them.
+	 *
+	 * @param  metrics  the metrics to record in, or null to not
+	 * record any
+	 */
+	public void setMetrics (MailMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * Gets the metrics that the sessions record in.
+	 *
+	 * @return the metrics or null if none are recorded
+	 */
+	public MailMetrics getMetrics () {
+		return (metrics);
+	}
+
+
+	/**
+	 * Closes all the pooled connections. Sends in progress complete
+	 * but no new sends are allowed.
+	 */
+	public void close () {
+
+		closed = true;
+		for (SessionPool pool : pools.values()) {
+			pool.closeIdle();
+		}
+	}
+
+
+	/**
+	 * Closes the connections that are currently idle in the pools. They
+	 * will be opened again as needed.
+	 */
+	public void closeIdle () {
+
+		for (SessionPool pool : pools.values()) {
+			pool.closeIdle();
+		}
+	}
+
+
+	/**
+	 * Gets the total number of connections (sessions) created.
+	 *
+	 * @return the number of connections created
+	 */
+	public long getConnectionsCreated () {
+		return (connectionsCreated.get());
+	}
+
+
+	/**
+	 * Gets the number of idle connections waiting in the pools.
+	 *
+	 * @return the number of idle connections
+	 */
+	public int getIdleCount () {
+
+		int count = 0;
+		for (SessionPool pool : pools.values()) {
+			count += pool.idle.size();
+		}
+
+		return (count);
+	}
+
+
+	/**
+	 * Gets the number of idle connections waiting in the pool for
+	 * the specified host.
+	 *
+	 * @param  host  the host name of the SMTP server
+	 * @return the number of idle connections
+	 */
+	public int getIdleCount (String host) {
+
+		SessionPool pool = pools.get(host);
+		return (pool == null ? 0 : pool.idle.size());
+	}
+
+
+	/**
+	 * Gets the number of times a connection has been borrowed
+	 * from the pools.
+	 *
+	 * @return the number of borrows
+	 */
+	public long getBorrowCount () {
+		return (borrows.get());
+	}
+
+
+	/**
+	 * Gets the total time in milliseconds spent waiting to borrow
+	 * a connection from the pools.
+	 *
+	 * @return the total borrow wait time in milliseconds
+	 */
+	public long getBorrowWaitTime () {
+		return (TimeUnit.NANOSECONDS.toMillis(borrowWaitNanos.get()));
+	}
+
+
+	/**
+	 * Gets the longest time in milliseconds spent waiting to borrow
+	 * a connection from the pools.
+	 *
+	 * @return the longest borrow wait time in milliseconds
+	 */
+	public long getMaxBorrowWaitTime () {
+		return (TimeUnit.NANOSECONDS.toMillis(maxBorrowWaitNanos.get()));
+	}
+
+
+	/**
+	 * Adds a SMTP event listener. Events from all the pooled
+	 * connections are sent to the listener.
+	 *
+	 * @param  l  the SMTPStatusListener to add
+	 */
+	public void addStatusListener (SMTPStatusListener l) {
+		smtpListeners.addIfAbsent(l);
+	}
+
+
+	/**
+	 * Removes a SMTP event listener. Only affects connections
+	 * created after the listener is removed.
+	 *
+	 * @param  l  the SMTPStatusListener to remove
+	 */
+	public void removeStatusListener (SMTPStatusListener l) {
+		smtpListeners.remove(l);
+	}
+
+
+	/**
+	 * Gets the session pool for a host, creating it if needed.
+	 */
+	protected SessionPool getPool (String host) {
+
+		SessionPool pool = pools.get(host);
+		if (pool == null) {
+			SessionPool newPool = new SessionPool(host, maxConnections);
+			pool = pools.putIfAbsent(host, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+
+		return (pool);
+	}
+
+
+	/**
+	 * Creates a new session for the specified host, configured with
+	 * the settings of this transport.
+	 */
+	protected SMTPSession createSession (String host) {
+
+		SMTPSession session = new SMTPSession(host);
+		session.setPort(port);
+		session.setSenderHost(senderHost);
+		session.setTimeout(timeoutMsecs);
+		session.setAuthType(authType);
+		session.setUserName(username);
+		session.setPassword(password);
+		session.setPipelining(pipelining);
+		session.setMetrics(metrics);
+
+		for (SMTPStatusListener l : smtpListeners) {
+			session.addStatusListener(l);
+		}
+
+		connectionsCreated.incrementAndGet();
+		return (session);
+	}
+
+
+	/**
+	 * Records the time a sender waited to borrow a session.
+	 */
+	private void recordBorrowWait (long nanos) {
+
+		borrows.incrementAndGet();
+		borrowWaitNanos.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = maxBorrowWaitNanos.get())) {
+			if (maxBorrowWaitNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * A bounded pool of sessions to a single host. The semaphore limits
+	 * the number of sessions (in use plus idle), the idle sessions are
+	 * kept in a deque and reused most recently used first.
+	 */
+	protected class SessionPool {
+
+		protected String host;
+		protected Semaphore permits;
+		protected ConcurrentLinkedDeque<SMTPSession> idle =
+				new ConcurrentLinkedDeque<SMTPSession>();
+
+		protected SessionPool (String host, int maxConnections) {
+			this.host = host;
+			this.permits = new Semaphore(maxConnections, true);
+		}
+
+
+		/**
+		 * Borrows a session, waiting for one to be returned if the
+		 * maximum number of sessions are in use.
+		 */
+		protected SMTPSession borrow () throws IOException {
+
+			if (closed) {
+				throw new IOException("transport is closed");
+			}
+
+			long start = System.nanoTime();
+			try {
+				if (!permits.tryAcquire(
+						borrowTimeoutMsecs, TimeUnit.MILLISECONDS)) {
+					throw new IOException(
+						"timed out waiting for a connection to " + host);
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException(
+					"interrupted waiting for a connection to " + host);
+			}
+
+			recordBorrowWait(System.nanoTime() - start);
+
+			SMTPSession session = idle.pollFirst();
+			if (session == null) {
+				session = createSession(host);
+			}
+
+			return (session);
+		}
+
+
+		/**
+		 * Returns a session to the pool. Sessions that have lost their
+		 * connection are dropped, a new one is created when needed.
+		 */
+		protected void release (SMTPSession session) {
+
+			try {
+				if (closed) {
+					session.close();
+				} else if (session.isOpen()) {
+					idle.offerFirst(session);
+				}
+			} finally {
+				permits.release();
+			}
+		}
+
+
+		/**
+		 * Closes all the idle sessions.
+		 */
+		protected void closeIdle () {
+
+			SMTPSession session;
+			while ((session = idle.pollLast()) != null) {
+				session.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The <code>UniqueFileAllocator</code> class creates files with unique
+ * names in a directory. A name that is taken gets a number put in front of
+ * its extension, "image.png" becomes "image1.png", "image2.png" and so on,
+ * the same names that <code>Utilities.getUniqueFile()</code> produces.<p>
+ *
+ * Rather than probing each numbered name with <code>exists()</code>, the
+ * allocator remembers the next number to use for each name, so a save
+ * normally costs a single <code>createNewFile()</code>. The counters are
+ * split over a number of stripes, each with its own lock, so threads
+ * saving attachments with different names do not wait on each other, and
+ * the lock is not held while the file is created. The file is created
+ * atomically, so a name that was taken by something else is skipped
+ * rather than reused.<p>
+ *
+ * The counters are seeded by scanning the directory once, the first time
+ * the allocator for the directory is used.
+ *
+ * @see     com.messners.mail.Utilities#createUniqueFile(String, String)
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class UniqueFileAllocator {
+
+	protected static final int STRIPES = 16;
+
+	protected static final ConcurrentHashMap<String, UniqueFileAllocator>
+		allocators = new ConcurrentHashMap<String, UniqueFileAllocator>();
+
+	protected final String directory;
+
+	/*
+	 * Name to the next number to try for it, 0 means the name itself
+	 * has not been tried
+	 */
+	protected final Object locks[] = new Object[STRIPES];
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	protected final HashMap<String, Integer> counters[] = new HashMap[STRIPES];
+
+
+	/**
+	 * Gets the allocator for a directory, creating it and scanning the
+	 * directory the first time.
+	 *
+	 * @param  directory  the directory, null for the current directory
+	 * @return the allocator for the directory
+	 */
+	public static UniqueFileAllocator getAllocator (String directory) {
+
+		String key = new File(directory != null ? directory : "")
+				.getAbsolutePath();
+		UniqueFileAllocator allocator = allocators.get(key);
+		if (allocator != null) {
+			return (allocator);
+		}
+
+		allocator = new UniqueFileAllocator(directory);
+		UniqueFileAllocator existing = allocators.putIfAbsent(key, allocator);
+		return (existing != null ? existing : allocator);
+	}
+
+
+	/**
+	 * Creates an allocator for a directory, seeding its counters from the
+	 * files already in the directory.
+	 *
+	 * @param  directory  the directory, null for the current directory
+	 */
+	public UniqueFileAllocator (String directory) {
+
+		this.directory = directory;
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+			counters[i] = new HashMap<String, Integer>();
+		}
+
+		String names[] = new File(directory != null ? directory : ".").list();
+		if (names != null) {
+			for (int i = 0; i < names.length; i++) {
+				seed(names[i]);
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the directory files are created in.
+	 *
+	 * @return the directory
+	 */
+	public String getDirectory () {
+		return (directory);
+	}
+
+
+	/**
+	 * Creates an empty file with a unique name based on
+	 * <code>name</code>.
+	 *
+	 * @param  name  the original filename
+	 * @return the file that was created
+	 * @exception  IOException  when the file cannot be created
+	 */
+	public File create (String name) throws IOException {
+
+		int stripe = (name.hashCode() & 0x7fffffff) % STRIPES;
+		while (true) {
+
+			int times;
+			synchronized (locks[stripe]) {
+				Integer next = counters[stripe].get(name);
+				times = (next != null ? next.intValue() : 0);
+				counters[stripe].put(name, Integer.valueOf(times + 1));
+			}
+
+			File f = new File(directory, getName(name, times));
+			if (f.createNewFile()) {
+				return (f);
+			}
+
+			/* Taken by something other than this allocator, try the next */
+		}
+	}
+
+
+	/**
+	 * Forgets the counters, the next file created for a name starts over
+	 * from the name itself.
+	 */
+	public void reset () {
+
+		for (int i = 0; i < STRIPES; i++) {
+			synchronized (locks[i]) {
+				counters[i].clear();
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the name for the specified number, the name itself for 0.
+	 *
+	 * @param  name   the original filename
+	 * @param  times  the number to put in the name
+	 * @return the numbered name
+	 */
+	public static String getName (String name, int times) {
+
+		if (times == 0) {
+			return (name);
+		}
+
+		int index = name.lastIndexOf(".");
+		if (index >= 0) {
+			return (name.substring(0, index) + times + name.substring(index));
+		}
+
+		return (name + times);
+	}
+
+
+	/**
+	 * Advances the counters for an existing file. A numbered name could
+	 * come from more than one original name ("a12.txt" is "a1.txt" number
+	 * 2 or "a.txt" number 12) so each possibility is counted.
+	 */
+	protected void seed (String existing) {
+
+		advance(existing, 1);
+
+		int index = existing.lastIndexOf(".");
+		String stem = (index >= 0 ? existing.substring(0, index) : existing);
+		String ext  = (index >= 0 ? existing.substring(index) : "");
+
+		int digits = stem.length();
+		while (digits > 0 && Character.isDigit(stem.charAt(digits - 1))) {
+			digits--;
+		}
+
+		for (int i = digits; i < stem.length(); i++) {
+
+			/* Numbers are never written with a leading zero */
+			if (stem.charAt(i) == '0' || stem.length() - i > 9) {
+				continue;
+			}
+
+			int times = Integer.parseInt(stem.substring(i));
+			advance(stem.substring(0, i) + ext, times + 1);
+		}
+	}
+
+
+	/**
+	 * Makes sure the counter for a name is at least the specified value.
+	 */
+	protected void advance (String name, int next) {
+
+		int stripe = (name.hashCode() & 0x7fffffff) % STRIPES;
+		synchronized (locks[stripe]) {
+			Integer current = counters[stripe].get(name);
+			if (current == null || current.intValue() < next) {
+				counters[stripe].put(name, Integer.valueOf(next));
+			}
+		}
+	}
+}
@@ -22,7 +22,6 @@
 package com.messners.mail;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -166,19 +165,18 @@ public class Utilities {
 
 	/**
 	 * Create a unique file in the specified directory based on
-	 * <code>name</code>.
+	 * <code>name</code>. The file is created atomically by the
+	 * <code>UniqueFileAllocator</code> for the directory, so concurrent
+	 * callers never get the same file.
 	 *
 	 * @param  directory  the directory for the unique file
 	 * @param  name       the original filename for the unique file.
 	 * @exception IOException when an exception occurs.
 	 */
-	public static final synchronized String createUniqueFile (
+	public static final String createUniqueFile (
 		String directory, String name) throws IOException {
 
-		File f = getUniqueFile(directory, name, 0);
-		FileOutputStream fos = new FileOutputStream(f);
-		fos.close();
-		fos = null;
+		File f = UniqueFileAllocator.getAllocator(directory).create(name);
 		return (f.getPath());
 	}
 
@@ -0,0 +1,190 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+import java.io.File;
+
+import com.messners.mail.*;
+
+/**
+ * This class load tests the com.messners.mail SMTP and POP3 classes
+ * against the in-process test servers and prints the throughput and
+ * the per-phase latencies. The test servers are in jgmail-testing.jar,
+ * which must be on the classpath with jgmail.jar.
+ *
+ * @version $Revision: 1.1 $
+ */
+class MailLoadTest {
+
+	public static void main (String args[]) {
+
+		/*
+		 * Get the command line parameters
+		 */
+		if (args.length < 1) {
+			System.err.println(
+				"usage: MailLoadTest messages [threads] [eml-dir] " +
+					"[latency-msecs]");
+			System.exit(1);
+		}
+
+		final int messages = Integer.parseInt(args[0]);
+		int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+		String dir = (args.length > 2 ? args[2] : null);
+		long latency = (args.length > 3 ? Long.parseLong(args[3]) : 0);
+
+		try {
+
+			final SMTPTestServer smtpServer = new SMTPTestServer();
+			smtpServer.setLatency(latency);
+			final int smtpPort = smtpServer.start();
+
+			POP3TestServer pop3Server = new POP3TestServer();
+			pop3Server.setLatency(latency);
+			if (dir != null) {
+				pop3Server.addMessages(new File(dir));
+			} else {
+				for (int i = 1; i <= 100; i++) {
+					pop3Server.addMessage("Subject: message " + i +
+						"\r\n\r\nThis is message " + i + ".\r\n");
+				}
+			}
+
+			final int pop3Port = pop3Server.start();
+			final MailMetrics metrics = new MailMetrics();
+
+			/*
+			 * Send the messages, each thread over its own session
+			 */
+			long start = System.nanoTime();
+			run(threads, new Task() {
+				public void run (int count) throws Exception {
+
+					SMTP smtp = new SMTP("127.0.0.1");
+					smtp.setPort(smtpPort);
+					smtp.setMetrics(metrics);
+					smtp.setFrom("Load Test", "load@example.com");
+					smtp.addTo(null, "sink@example.com");
+					smtp.setSubject("load test");
+					smtp.setBody("This is a load test message.");
+
+					SMTPSession session = new SMTPSession(smtp);
+					try {
+						for (int i = 0; i < count; i++) {
+							session.send(smtp);
+						}
+					} finally {
+						session.close();
+					}
+				}
+			}, messages);
+			report("SMTP sent", smtpServer.getMessageCount(), start);
+
+			/*
+			 * Retrieve the maildrop over and over until as many
+			 * messages have been retrieved
+			 */
+			final int total = pop3Server.getMessageCount();
+			start = System.nanoTime();
+			run(threads, new Task() {
+				public void run (int count) throws Exception {
+
+					POP3 pop3 = new POP3("127.0.0.1");
+					pop3.setPort(pop3Port);
+					pop3.setMetrics(metrics);
+					while (count > 0) {
+
+						int n = Math.min(count, total);
+						int msgnums[] = new int[n];
+						for (int i = 0; i < n; i++) {
+							msgnums[i] = i + 1;
+						}
+
+						pop3.connect();
+						pop3.login("load", "test");
+						pop3.retrieveMessages(msgnums);
+						pop3.logout();
+						pop3.disconnect();
+						count -= n;
+					}
+				}
+			}, messages);
+			report("POP3 retrieved", pop3Server.getRetrievedCount(), start);
+
+			smtpServer.stop();
+			pop3Server.stop();
+
+			System.out.println();
+			System.out.println(metrics.getReport());
+
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/*
+	 * Runs the task on the threads, dividing the messages between them
+	 */
+	static void run (int threads, final Task task, int messages)
+			throws Exception {
+
+		Thread workers[] = new Thread[threads];
+		final Exception failures[] = new Exception[threads];
+		for (int i = 0; i < threads; i++) {
+
+			final int index = i;
+			final int count = messages / threads +
+				(i < messages % threads ? 1 : 0);
+			workers[i] = new Thread() {
+				public void run () {
+					try {
+						task.run(count);
+					} catch (Exception e) {
+						failures[index] = e;
+					}
+				}
+			};
+
+			workers[i].start();
+		}
+
+		for (int i = 0; i < threads; i++) {
+			workers[i].join();
+			if (failures[i] != null) {
+				throw failures[i];
+			}
+		}
+	}
+
+
+	static void report (String what, long count, long start) {
+
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(what + " " + count + " messages in " +
+			Math.round(secs * 1000) + " ms, " +
+			Math.round(count / secs) + " messages/s");
+	}
+
+
+	interface Task {
+		void run (int count) throws Exception;
+	}
+}
@@ -33,9 +33,9 @@ class POP3Client implements POP3StatusListener {
 		/*
 		 * Get the command line parameters
 		 */
-		if (args.length != 3) {
+		if (args.length != 3 && args.length != 4) {
 			System.err.println(
-				"usage: POP3Client host username password");
+				"usage: POP3Client host username password [index-file]");
 			System.exit(1);
 		}
 
@@ -70,20 +70,37 @@ class POP3Client implements POP3StatusListener {
 			}
 
 
-			/*
-			 * Get the information on the messages and retrieve the
-			 * content of each message.
-			 */
-			POP3MessageInfo msg_info[] = pop3.listMessages();
+			if (args.length == 4) {
 
-			for (int i = 0; i < msg_info.length; i++) {
+				/*
+				 * Only retrieve the messages that are not
+				 * in the index from the last run
+				 */
+				POP3Sync sync = new POP3Sync(pop3, new java.io.File(args[3]));
+				POP3MailMessage msgs[] = sync.sync();
+				for (int i = 0; i < msgs.length; i++) {
+					System.out.println("\nMessage: " + i);
+					dump(msgs[i]);
+					msgs[i].dispose();
+				}
 
-				POP3MailMessage msg = 
-					pop3.retrieveMessage(msg_info[i]);
+			} else {
 
-				System.out.println("\nMessage: " + i);
-				dump(msg);
+				/*
+				 * Get the information on the messages and retrieve
+				 * the content of each message.
+				 */
+				POP3MessageInfo msg_info[] = pop3.listMessages();
 
+				for (int i = 0; i < msg_info.length; i++) {
+
+					POP3MailMessage msg = 
+						pop3.retrieveMessage(msg_info[i]);
+
+					System.out.println("\nMessage: " + i);
+					dump(msg);
+					msg.dispose();
+				}
 			}
 
 			/*
@@ -0,0 +1,719 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>MailTestServer</code> class is the base of the in-process
+ * SMTP and POP3 servers used to load test and benchmark mail code
+ * without a real mail server. A server listens on the loopback interface
+ * once started, so <code>SMTP</code>, <code>SMTPSession</code> and
+ * <code>POP3</code> reach it through their normal connection with the
+ * host set to "127.0.0.1" and the port set to <code>getPort()</code>. A
+ * server is also a <code>ConnectionHandler</code>, so it can be reached
+ * without a socket through a <code>LoopbackConnection</code>, in which
+ * case it does not need to be started:
+ * <pre>
+ *    Connection.registerProvider("smtp.test", -1,
+ *        LoopbackConnection.newProvider(server));
+ * </pre>
+ *
+ * The replies can be delayed per command to simulate a slow server, and
+ * scripted to return other reply codes:
+ * <pre>
+ *    server.setLatency("RCPT", 20);
+ *    server.setReply("RCPT TO:&lt;bad", "550 no such user");
+ *    server.setReply("MAIL", "421 try again later", 1);
+ * </pre>
+ *
+ * A scripted reply applies to commands that start with its prefix, case
+ * and spaces are ignored so "RCPT TO:&lt;bad" matches
+ * "RCPT TO: &lt;bad@example.com&gt;". The greeting is matched as
+ * "GREETING".<p>
+ *
+ * Each session is run on its own virtual thread when the runtime has
+ * them, otherwise on a daemon thread.<p>
+ *
+ * The test servers are built into their own JAR, jgmail-testing.jar, by
+ * the "testing" target and are not part of jgmail.jar.
+ *
+ * @see     com.messners.mail.SMTPTestServer
+ * @see     com.messners.mail.POP3TestServer
+ * @see     com.messners.mail.LoopbackConnection
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public abstract class MailTestServer implements ConnectionHandler {
+
+	/**
+	 * The command name the greeting is matched as for latency and
+	 * scripted replies.
+	 */
+	public static final String GREETING = "GREETING";
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+
+	protected ServerSocket server = null;
+	protected ExecutorService executor = null;
+
+	/*
+	 * The sockets of the sessions in progress, closed by stop()
+	 */
+	protected final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+	protected volatile long defaultLatency = 0;
+	protected final ConcurrentHashMap<String, Long> latencies =
+			new ConcurrentHashMap<String, Long>();
+	protected final CopyOnWriteArrayList<Script> scripts =
+			new CopyOnWriteArrayList<Script>();
+	protected final CopyOnWriteArrayList<String> capabilities =
+			new CopyOnWriteArrayList<String>();
+
+	protected final AtomicLong connections = new AtomicLong();
+	protected final AtomicLong commands = new AtomicLong();
+	protected final AtomicInteger active = new AtomicInteger();
+
+
+	/**
+	 * Starts the server listening on a free port of the loopback
+	 * interface.
+	 *
+	 * @return the port the server is listening on
+	 * @exception  IOException  when the port cannot be opened
+	 */
+	public int start () throws IOException {
+		return (start(0));
+	}
+
+
+	/**
+	 * Starts the server listening on the specified port of the loopback
+	 * interface. Does nothing if already started.
+	 *
+	 * @param  port  the port, or 0 for a free port
+	 * @return the port the server is listening on
+	 * @exception  IOException  when the port cannot be opened
+	 */
+	public synchronized int start (int port) throws IOException {
+
+		if (server != null) {
+			return (server.getLocalPort());
+		}
+
+		server = new ServerSocket(port, 1000,
+			InetAddress.getLoopbackAddress());
+		executor = MailExecutor.newVirtualThreadExecutor();
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread (Runnable r) {
+					Thread t = new Thread(r, "jgmail-test-server-" +
+						threadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return (t);
+				}
+			});
+		}
+
+		final ServerSocket ss = server;
+		final ExecutorService ex = executor;
+		Thread t = new Thread(new Runnable() {
+			public void run () {
+				accept(ss, ex);
+			}
+		}, getClass().getSimpleName() + "-" + ss.getLocalPort());
+		t.setDaemon(true);
+		t.start();
+
+		return (ss.getLocalPort());
+	}
+
+
+	/**
+	 * Stops the server. Sessions in progress over a socket are closed,
+	 * sessions run through <code>serve()</code> by a
+	 * <code>LoopbackConnection</code> end when the client closes its end.
+	 */
+	public synchronized void stop () {
+
+		if (server == null) {
+			return;
+		}
+
+		try {
+			server.close();
+		} catch (IOException ignore) {
+		}
+
+		/*
+		 * Interrupting the session threads does not wake a thread blocked
+		 * reading a socket, closing the socket does
+		 */
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		executor.shutdownNow();
+		server = null;
+		executor = null;
+	}
+
+
+	/**
+	 * Gets the port the server is listening on.
+	 *
+	 * @return the port, or -1 if not started
+	 */
+	public synchronized int getPort () {
+		return (server != null ? server.getLocalPort() : -1);
+	}
+
+
+	/**
+	 * Runs one session with a client over the specified streams, on the
+	 * calling thread. Returns when the client quits or closes its end.
+	 *
+	 * @param  in   the stream the client's commands are read from
+	 * @param  out  the stream the replies are written to
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	public void serve (InputStream in, OutputStream out) throws IOException {
+
+		connections.incrementAndGet();
+		active.incrementAndGet();
+		try {
+			session(new Session(in, out));
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Runs the protocol for one session.
+	 *
+	 * @param  s  the session
+	 * @exception  IOException  when an I/O error occurs
+	 */
+	protected abstract void session (Session s) throws IOException;
+
+
+	/**
+	 * Sets the delay before every reply that has no delay of its own.
+	 *
+	 * @param  msecs  the delay in milliseconds, 0 for none
+	 */
+	public void setLatency (long msecs) {
+		defaultLatency = msecs;
+	}
+
+
+	/**
+	 * Sets the delay before the reply to a command.
+	 *
+	 * @param  command  the command verb, for example "RCPT" or "RETR"
+	 * @param  msecs    the delay in milliseconds, or -1 to use the
+	 * delay for every reply
+	 */
+	public void setLatency (String command, long msecs) {
+
+		if (msecs < 0) {
+			latencies.remove(command.toUpperCase());
+		} else {
+			latencies.put(command.toUpperCase(), Long.valueOf(msecs));
+		}
+	}
+
+
+	/**
+	 * Scripts the reply to the commands starting with a prefix.
+	 *
+	 * @param  prefix  the command prefix, case and spaces are ignored
+	 * @param  reply   the reply, lines of a multi-line reply are
+	 * separated by CRLF
+	 */
+	public void setReply (String prefix, String reply) {
+		setReply(prefix, reply, -1);
+	}
+
+
+	/**
+	 * Scripts the reply to the commands starting with a prefix for a
+	 * number of times. Scripts are matched in the order they were set.
+	 *
+	 * @param  prefix  the command prefix, case and spaces are ignored
+	 * @param  reply   the reply, lines of a multi-line reply are
+	 * separated by CRLF
+	 * @param  times   the number of commands to reply to, or -1 for
+	 * no limit
+	 */
+	public void setReply (String prefix, String reply, int times) {
+		scripts.add(new Script(prefix, reply, times));
+	}
+
+
+	/**
+	 * Removes all the scripted replies.
+	 */
+	public void clearReplies () {
+		scripts.clear();
+	}
+
+
+	/**
+	 * Sets the capabilities the server advertises, in the EHLO reply for
+	 * SMTP and the CAPA reply for POP3.
+	 *
+	 * @param  caps  the capabilities, each a keyword optionally followed
+	 * by parameters
+	 */
+	public void setCapabilities (String caps[]) {
+
+		capabilities.clear();
+		for (int i = 0; i < caps.length; i++) {
+			capabilities.add(caps[i]);
+		}
+	}
+
+
+	/**
+	 * Gets the capabilities the server advertises.
+	 *
+	 * @return the capabilities
+	 */
+	public String [] getCapabilities () {
+		return (capabilities.toArray(new String[0]));
+	}
+
+
+	/**
+	 * Adds a capability if it is not already advertised.
+	 *
+	 * @param  capability  the capability keyword and parameters
+	 */
+	public void addCapability (String capability) {
+		capabilities.addIfAbsent(capability);
+	}
+
+
+	/**
+	 * Stops advertising a capability.
+	 *
+	 * @param  keyword  the capability keyword, case is ignored
+	 */
+	public void removeCapability (String keyword) {
+
+		for (String cap : capabilities) {
+			if (getVerb(cap).equals(keyword.toUpperCase())) {
+				capabilities.remove(cap);
+			}
+		}
+	}
+
+
+	/**
+	 * Returns true if a capability is advertised.
+	 *
+	 * @param  keyword  the capability keyword, case is ignored
+	 * @return true if the capability is advertised
+	 */
+	public boolean hasCapability (String keyword) {
+
+		for (String cap : capabilities) {
+			if (getVerb(cap).equals(keyword.toUpperCase())) {
+				return (true);
+			}
+		}
+
+		return (false);
+	}
+
+
+	/**
+	 * Gets the number of sessions that have been started.
+	 *
+	 * @return the number of sessions
+	 */
+	public long getConnectionCount () {
+		return (connections.get());
+	}
+
+
+	/**
+	 * Gets the number of sessions in progress.
+	 *
+	 * @return the number of sessions in progress
+	 */
+	public int getActiveCount () {
+		return (active.get());
+	}
+
+
+	/**
+	 * Gets the number of commands received.
+	 *
+	 * @return the number of commands
+	 */
+	public long getCommandCount () {
+		return (commands.get());
+	}
+
+
+	/**
+	 * Gets the reply to a command. The reply is delayed by the latency
+	 * for the command and replaced by a scripted reply if one matches.
+	 *
+	 * @param  verb          the command verb, or GREETING
+	 * @param  line          the whole command line
+	 * @param  defaultReply  the reply if none is scripted
+	 * @return the reply to send
+	 */
+	protected String getReply (String verb, String line,
+			String defaultReply) {
+
+		Long latency = latencies.get(verb);
+		long msecs = (latency != null ? latency.longValue() : defaultLatency);
+		if (msecs > 0) {
+			try {
+				Thread.sleep(msecs);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (scripts.isEmpty()) {
+			return (defaultReply);
+		}
+
+		for (Script script : scripts) {
+			if (script.matches(line)) {
+				return (script.reply);
+			}
+		}
+
+		return (defaultReply);
+	}
+
+
+	/**
+	 * Gets the upper case verb of a command line.
+	 */
+	protected static String getVerb (String line) {
+
+		int index = line.indexOf(' ');
+		return ((index < 0 ? line : line.substring(0, index)).toUpperCase());
+	}
+
+
+	/**
+	 * Accepts connections and runs a session for each.
+	 */
+	protected void accept (ServerSocket ss, ExecutorService ex) {
+
+		while (!ss.isClosed()) {
+
+			final Socket socket;
+			try {
+				socket = ss.accept();
+				socket.setTcpNoDelay(true);
+			} catch (IOException ioe) {
+				return;
+			}
+
+			sockets.add(socket);
+
+			try {
+
+				ex.execute(new Runnable() {
+					public void run () {
+						try {
+							serve(socket.getInputStream(),
+								socket.getOutputStream());
+						} catch (IOException ignore) {
+						} finally {
+							sockets.remove(socket);
+							try {
+								socket.close();
+							} catch (IOException ignore) {
+							}
+						}
+					}
+				});
+
+			} catch (RejectedExecutionException ree) {
+				sockets.remove(socket);
+				try {
+					socket.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * A scripted reply.
+	 */
+	protected static class Script {
+
+		protected final String prefix;
+		protected final String reply;
+		protected final AtomicInteger remaining;
+
+		protected Script (String prefix, String reply, int times) {
+			this.prefix = prefix;
+			this.reply = reply;
+			this.remaining = (times < 0 ? null : new AtomicInteger(times));
+		}
+
+		/**
+		 * Returns true if the script applies to the command, using up
+		 * one of its times if it is limited.
+		 */
+		protected boolean matches (String line) {
+
+			if (!startsWith(line, prefix)) {
+				return (false);
+			}
+
+			if (remaining == null) {
+				return (true);
+			}
+
+			return (remaining.getAndDecrement() > 0);
+		}
+
+		/**
+		 * Returns true if the line starts with the prefix, ignoring
+		 * case and spaces.
+		 */
+		protected static boolean startsWith (String line, String prefix) {
+
+			int i = 0;
+			int len = line.length();
+			int plen = prefix.length();
+			for (int j = 0; j < plen; j++) {
+
+				char c = prefix.charAt(j);
+				if (c == ' ') {
+					continue;
+				}
+
+				while (i < len && line.charAt(i) == ' ') {
+					i++;
+				}
+
+				if (i >= len || Character.toUpperCase(line.charAt(i++)) !=
+						Character.toUpperCase(c)) {
+					return (false);
+				}
+			}
+
+			return (true);
+		}
+	}
+
+
+	/**
+	 * The streams of a session, with buffered line reading and replies
+	 * that are only flushed when no more pipelined commands are waiting.
+	 */
+	protected static class Session {
+
+		protected final InputStream in;
+		protected final OutputStream out;
+
+		protected final byte buf[] = new byte[16 * 1024];
+		protected int pos = 0;
+		protected int limit = 0;
+
+		protected byte line[] = new byte[1024];
+		protected final byte outBuf[] = new byte[16 * 1024];
+		protected int outCount = 0;
+
+		protected Session (InputStream in, OutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		/**
+		 * Reads a line into <code>line</code> without its line ending.
+		 *
+		 * @return the length of the line, or -1 at the end of input
+		 */
+		protected int readLineBytes () throws IOException {
+
+			int n = 0;
+			while (true) {
+
+				if (pos >= limit && !fill()) {
+					return (n > 0 ? n : -1);
+				}
+
+				byte b = buf[pos++];
+				if (b == '\n') {
+					if (n > 0 && line[n - 1] == '\r') {
+						n--;
+					}
+
+					return (n);
+				}
+
+				if (n == line.length) {
+					byte tmp[] = new byte[line.length * 2];
+					System.arraycopy(line, 0, tmp, 0, n);
+					line = tmp;
+				}
+
+				line[n++] = b;
+			}
+		}
+
+		/**
+		 * Reads a line without its line ending.
+		 *
+		 * @return the line, or null at the end of input
+		 */
+		protected String readLine () throws IOException {
+
+			int n = readLineBytes();
+			return (n < 0 ? null : new String(line, 0, n, "ISO-8859-1"));
+		}
+
+		/**
+		 * Reads exactly <var>len</var> bytes, copying them to
+		 * <var>copy</var> if it is not null.
+		 */
+		protected void readFully (long len, OutputStream copy)
+				throws IOException {
+
+			while (len > 0) {
+
+				if (pos >= limit && !fill()) {
+					throw new IOException("end of input in chunk");
+				}
+
+				int n = (int)Math.min(len, limit - pos);
+				if (copy != null) {
+					copy.write(buf, pos, n);
+				}
+
+				pos += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Writes a reply ending with CRLF, flushing it unless more
+		 * commands are waiting to be read.
+		 */
+		protected void reply (String reply) throws IOException {
+
+			int len = reply.length();
+			for (int i = 0; i < len; i++) {
+				if (outCount >= outBuf.length - 2) {
+					flushOut();
+				}
+
+				outBuf[outCount++] = (byte)reply.charAt(i);
+			}
+
+			outBuf[outCount++] = '\r';
+			outBuf[outCount++] = '\n';
+			flushIfIdle();
+		}
+
+		/**
+		 * Writes bytes as they are, without flushing them.
+		 */
+		protected void write (byte b[], int off, int len) throws IOException {
+
+			if (len > outBuf.length - outCount) {
+				flushOut();
+				out.write(b, off, len);
+				return;
+			}
+
+			System.arraycopy(b, off, outBuf, outCount, len);
+			outCount += len;
+		}
+
+		/**
+		 * Flushes the replies unless more commands are waiting.
+		 */
+		protected void flushIfIdle () throws IOException {
+
+			if (pos >= limit && in.available() == 0) {
+				flushOut();
+				out.flush();
+			}
+		}
+
+		protected void flushOut () throws IOException {
+
+			if (outCount > 0) {
+				out.write(outBuf, 0, outCount);
+				outCount = 0;
+			}
+		}
+
+		protected boolean fill () throws IOException {
+
+			/*
+			 * Don't leave replies sitting in the buffer while
+			 * waiting on the client
+			 */
+			if (outCount > 0 && in.available() == 0) {
+				flushOut();
+				out.flush();
+			}
+
+			int n = in.read(buf, 0, buf.length);
+			if (n <= 0) {
+				return (false);
+			}
+
+			pos = 0;
+			limit = n;
+			return (true);
+		}
+	}
+}
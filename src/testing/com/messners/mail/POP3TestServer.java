@@ -0,0 +1,530 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>POP3TestServer</code> class is an in-process POP3 server for
+ * load testing and benchmarking. Its maildrop is seeded with messages,
+ * usually from a directory of .eml files, and is shared by every session.
+ * Messages deleted in a session are only removed from the maildrop if
+ * <code>setDeleteOnQuit(true)</code> is set, so by default the same
+ * maildrop can be retrieved over and over:
+ * <pre>
+ *    POP3TestServer server = new POP3TestServer();
+ *    server.addMessages(new File("testdata"));
+ *    POP3 pop3 = new POP3();
+ *    pop3.setPort(server.start());
+ *    pop3.connect("127.0.0.1");
+ * </pre>
+ *
+ * The CAPA reply lists USER, UIDL, TOP and PIPELINING unless changed with
+ * <code>setCapabilities()</code>; with no capabilities CAPA is answered
+ * with -ERR like a server that predates it. Any user name and password
+ * are accepted unless <code>setCredentials()</code> is called or a PASS
+ * reply is scripted.
+ *
+ * @see     com.messners.mail.MailTestServer
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class POP3TestServer extends MailTestServer {
+
+	protected static final String DEFAULT_CAPABILITIES[] = {
+		"USER", "UIDL", "TOP", "PIPELINING"
+	};
+
+	protected static final byte CRLF[] = { '\r', '\n' };
+	protected static final byte TERMINATOR[] = { '.', '\r', '\n' };
+
+
+	protected final CopyOnWriteArrayList<Message> maildrop =
+			new CopyOnWriteArrayList<Message>();
+	protected final AtomicLong nextUid = new AtomicLong();
+
+	protected volatile String username = null;
+	protected volatile String password = null;
+	protected volatile boolean deleteOnQuit = false;
+
+	protected final AtomicLong retrieved = new AtomicLong();
+	protected final AtomicLong deleted = new AtomicLong();
+
+
+	/**
+	 * Creates a <code>POP3TestServer</code> with an empty maildrop and
+	 * the default capabilities.
+	 */
+	public POP3TestServer () {
+		setCapabilities(DEFAULT_CAPABILITIES);
+	}
+
+
+	/**
+	 * Sets the only user name and password that are accepted.
+	 *
+	 * @param  username  the user name, or null to accept any
+	 * @param  password  the password
+	 */
+	public void setCredentials (String username, String password) {
+		this.username = username;
+		this.password = password;
+	}
+
+
+	/**
+	 * Sets whether messages deleted in a session are removed from the
+	 * maildrop when the session quits. The default is false.
+	 *
+	 * @param  deleteOnQuit  true to remove deleted messages
+	 */
+	public void setDeleteOnQuit (boolean deleteOnQuit) {
+		this.deleteOnQuit = deleteOnQuit;
+	}
+
+
+	/**
+	 * Adds a message to the maildrop. Bare LF line endings are changed
+	 * to CRLF.
+	 *
+	 * @param  message  the message, headers and body
+	 */
+	public void addMessage (byte message[]) {
+		maildrop.add(new Message(message, "test-" + nextUid.incrementAndGet()));
+	}
+
+
+	/**
+	 * Adds a message to the maildrop.
+	 *
+	 * @param  message  the message, headers and body
+	 */
+	public void addMessage (String message) {
+
+		try {
+			addMessage(message.getBytes("ISO-8859-1"));
+		} catch (java.io.UnsupportedEncodingException uee) {
+			addMessage(message.getBytes());
+		}
+	}
+
+
+	/**
+	 * Adds a message read from a file to the maildrop.
+	 *
+	 * @param  file  the file holding the message
+	 * @exception  IOException  when the file cannot be read
+	 */
+	public void addMessage (File file) throws IOException {
+
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream buf =
+				new ByteArrayOutputStream((int)file.length());
+			byte b[] = new byte[8192];
+			int n;
+			while ((n = in.read(b)) > 0) {
+				buf.write(b, 0, n);
+			}
+
+			addMessage(buf.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/**
+	 * Adds each .eml file in a directory to the maildrop, in order of
+	 * their names.
+	 *
+	 * @param  dir  the directory
+	 * @return the number of messages added
+	 * @exception  IOException  when the directory or a file cannot
+	 * be read
+	 */
+	public int addMessages (File dir) throws IOException {
+
+		File files[] = dir.listFiles();
+		if (files == null) {
+			throw new IOException("cannot list " + dir);
+		}
+
+		Arrays.sort(files);
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].isFile() &&
+					files[i].getName().toLowerCase().endsWith(".eml")) {
+				addMessage(files[i]);
+				count++;
+			}
+		}
+
+		return (count);
+	}
+
+
+	/**
+	 * Removes all the messages from the maildrop.
+	 */
+	public void clearMessages () {
+		maildrop.clear();
+	}
+
+
+	/**
+	 * Gets the number of messages in the maildrop.
+	 *
+	 * @return the number of messages
+	 */
+	public int getMessageCount () {
+		return (maildrop.size());
+	}
+
+
+	/**
+	 * Gets the number of messages retrieved with RETR.
+	 *
+	 * @return the number of messages retrieved
+	 */
+	public long getRetrievedCount () {
+		return (retrieved.get());
+	}
+
+
+	/**
+	 * Gets the number of messages removed from the maildrop.
+	 *
+	 * @return the number of messages removed
+	 */
+	public long getDeletedCount () {
+		return (deleted.get());
+	}
+
+
+	protected void session (Session s) throws IOException {
+
+		s.reply(getReply(GREETING, GREETING, "+OK POP3 server ready"));
+
+		String user = null;
+		Message drop[] = null;
+		boolean marked[] = null;
+
+		String line;
+		while ((line = s.readLine()) != null) {
+
+			commands.incrementAndGet();
+			String verb = getVerb(line);
+			String arg = (line.length() > verb.length() ?
+				line.substring(verb.length()).trim() : "");
+
+			if (verb.equals("QUIT")) {
+
+				String reply = getReply(verb, line, "+OK bye");
+				if (drop != null && deleteOnQuit &&
+						reply.charAt(0) == '+') {
+					for (int i = 0; i < drop.length; i++) {
+						if (marked[i] && maildrop.remove(drop[i])) {
+							deleted.incrementAndGet();
+						}
+					}
+				}
+
+				s.reply(reply);
+				s.flushOut();
+				s.out.flush();
+				return;
+
+			} else if (verb.equals("CAPA")) {
+
+				if (capabilities.isEmpty()) {
+					s.reply(getReply(verb, line, "-ERR unknown command"));
+					continue;
+				}
+
+				StringBuffer buf = new StringBuffer("+OK capability list follows");
+				for (String cap : capabilities) {
+					buf.append("\r\n");
+					buf.append(cap);
+				}
+
+				buf.append("\r\n.");
+				s.reply(getReply(verb, line, buf.toString()));
+
+			} else if (verb.equals("NOOP")) {
+
+				s.reply(getReply(verb, line, "+OK"));
+
+			} else if (drop == null) {
+
+				/*
+				 * AUTHORIZATION state
+				 */
+				if (verb.equals("USER")) {
+
+					String reply = getReply(verb, line, "+OK");
+					user = (reply.charAt(0) == '+' ? arg : null);
+					s.reply(reply);
+
+				} else if (verb.equals("PASS")) {
+
+					String expected = username;
+					boolean ok = (user != null && (expected == null ||
+						(expected.equals(user) && password.equals(arg))));
+					String reply = getReply(verb, line, ok ?
+						"+OK maildrop ready" : "-ERR authentication failed");
+					if (reply.charAt(0) == '+') {
+						drop = maildrop.toArray(new Message[0]);
+						marked = new boolean[drop.length];
+					}
+
+					user = null;
+					s.reply(reply);
+
+				} else {
+					s.reply(getReply(verb, line, "-ERR not authenticated"));
+				}
+
+			} else {
+
+				/*
+				 * TRANSACTION state
+				 */
+				transaction(s, verb, arg, line, drop, marked);
+			}
+		}
+	}
+
+
+	/**
+	 * Handles a command in the TRANSACTION state.
+	 */
+	protected void transaction (Session s, String verb, String arg,
+			String line, Message drop[], boolean marked[]) throws IOException {
+
+		if (verb.equals("STAT")) {
+
+			int count = 0;
+			long size = 0;
+			for (int i = 0; i < drop.length; i++) {
+				if (!marked[i]) {
+					count++;
+					size += drop[i].size;
+				}
+			}
+
+			s.reply(getReply(verb, line, "+OK " + count + " " + size));
+
+		} else if (verb.equals("LIST") || verb.equals("UIDL")) {
+
+			boolean uidl = verb.equals("UIDL");
+			if (arg.length() > 0) {
+				int i = getIndex(arg, drop, marked);
+				s.reply(getReply(verb, line, i < 0 ? "-ERR no such message" :
+					"+OK " + (i + 1) + " " +
+					(uidl ? drop[i].uid : String.valueOf(drop[i].size))));
+				return;
+			}
+
+			StringBuffer buf = new StringBuffer("+OK");
+			for (int i = 0; i < drop.length; i++) {
+				if (!marked[i]) {
+					buf.append("\r\n");
+					buf.append(i + 1);
+					buf.append(' ');
+					if (uidl) {
+						buf.append(drop[i].uid);
+					} else {
+						buf.append(drop[i].size);
+					}
+				}
+			}
+
+			buf.append("\r\n.");
+			s.reply(getReply(verb, line, buf.toString()));
+
+		} else if (verb.equals("RETR") || verb.equals("TOP")) {
+
+			String args[] = arg.split(" +");
+			int i = getIndex(args[0], drop, marked);
+			int lines = -1;
+			if (verb.equals("TOP")) {
+				try {
+					lines = Integer.parseInt(args[1]);
+				} catch (RuntimeException e) {
+					i = -1;
+				}
+			}
+
+			String reply = getReply(verb, line, i < 0 ?
+				"-ERR no such message" : "+OK " + drop[i].size + " octets");
+			if (reply.charAt(0) != '+' || i < 0) {
+				s.reply(reply);
+				return;
+			}
+
+			/*
+			 * The reply line, message and terminator go out
+			 * together unless more commands are waiting
+			 */
+			byte data[] = drop[i].data;
+			int len = (lines < 0 ? data.length : drop[i].topLength(lines));
+			s.write(reply.getBytes("ISO-8859-1"), 0, reply.length());
+			s.write(CRLF, 0, CRLF.length);
+			s.write(data, 0, len);
+			s.write(TERMINATOR, 0, TERMINATOR.length);
+			s.flushIfIdle();
+
+			if (lines < 0) {
+				retrieved.incrementAndGet();
+			}
+
+		} else if (verb.equals("DELE")) {
+
+			int i = getIndex(arg, drop, marked);
+			String reply = getReply(verb, line, i < 0 ?
+				"-ERR no such message" : "+OK message deleted");
+			if (i >= 0 && reply.charAt(0) == '+') {
+				marked[i] = true;
+			}
+
+			s.reply(reply);
+
+		} else if (verb.equals("RSET")) {
+
+			Arrays.fill(marked, false);
+			s.reply(getReply(verb, line, "+OK"));
+
+		} else {
+			s.reply(getReply(verb, line, "-ERR unknown command"));
+		}
+	}
+
+
+	/**
+	 * Gets the index of a message that has not been deleted.
+	 *
+	 * @return the index, or -1 if there is no such message
+	 */
+	protected static int getIndex (String msgnum, Message drop[],
+			boolean marked[]) {
+
+		int i;
+		try {
+			i = Integer.parseInt(msgnum) - 1;
+		} catch (NumberFormatException nfe) {
+			return (-1);
+		}
+
+		if (i < 0 || i >= drop.length || marked[i]) {
+			return (-1);
+		}
+
+		return (i);
+	}
+
+
+	/**
+	 * A message in the maildrop, held with CRLF line endings and
+	 * dot-stuffed ready to be sent.
+	 */
+	protected static class Message {
+
+		protected final byte data[];
+		protected final int size;
+		protected final String uid;
+		protected final int bodyStart;
+
+		protected Message (byte message[], String uid) {
+
+			this.uid = uid;
+
+			ByteArrayOutputStream buf =
+				new ByteArrayOutputStream(message.length + 256);
+			int octets = 0;
+			int body = -1;
+			boolean bol = true;
+			for (int i = 0; i < message.length; i++) {
+
+				byte b = message[i];
+				if (b == '\r' && i + 1 < message.length &&
+						message[i + 1] == '\n') {
+					continue;
+				}
+
+				if (b == '\n') {
+					buf.write('\r');
+					buf.write('\n');
+					octets += 2;
+					if (bol && body < 0) {
+						body = buf.size();
+					}
+
+					bol = true;
+					continue;
+				}
+
+				if (bol && b == '.') {
+					buf.write('.');
+				}
+
+				buf.write(b);
+				octets++;
+				bol = false;
+			}
+
+			if (!bol) {
+				buf.write('\r');
+				buf.write('\n');
+				octets += 2;
+			}
+
+			this.data = buf.toByteArray();
+			this.size = octets;
+			this.bodyStart = (body < 0 ? data.length : body);
+		}
+
+		/**
+		 * Gets the length of the headers, the blank line and the
+		 * first <var>lines</var> lines of the body.
+		 */
+		protected int topLength (int lines) {
+
+			int i = bodyStart;
+			while (lines > 0 && i < data.length) {
+				if (data[i++] == '\n') {
+					lines--;
+				}
+			}
+
+			return (i);
+		}
+	}
+}
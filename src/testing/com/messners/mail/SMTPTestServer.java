@@ -0,0 +1,409 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+package com.messners.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The <code>SMTPTestServer</code> class is an in-process SMTP server for
+ * load testing and benchmarking. It accepts every message, or whatever
+ * the scripted replies say, and by default only counts what it receives
+ * so it can take hundreds of thousands of messages in a run. Use
+ * <code>setKeepMessages()</code> to keep the most recent messages for
+ * inspection.<p>
+ *
+ * The EHLO reply advertises PIPELINING, 8BITMIME, CHUNKING, SIZE and
+ * AUTH PLAIN LOGIN unless changed with <code>setCapabilities()</code>.
+ * BDAT is accepted whether or not CHUNKING is advertised. The end of
+ * the message data is matched as "DATA-END" for latency and scripted
+ * replies:
+ * <pre>
+ *    SMTPTestServer server = new SMTPTestServer();
+ *    server.setLatency(MailMetrics.DATA_END, 5);
+ *    SMTP smtp = new SMTP("127.0.0.1");
+ *    smtp.setPort(server.start());
+ * </pre>
+ *
+ * @see     com.messners.mail.MailTestServer
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class SMTPTestServer extends MailTestServer {
+
+	protected static final String DEFAULT_CAPABILITIES[] = {
+		"PIPELINING", "8BITMIME", "CHUNKING", "SIZE", "AUTH PLAIN LOGIN"
+	};
+
+
+	protected String hostname = "localhost";
+	protected volatile int keepMessages = 0;
+	protected final ArrayDeque<byte []> kept = new ArrayDeque<byte []>();
+
+	protected final AtomicLong messages = new AtomicLong();
+	protected final AtomicLong recipients = new AtomicLong();
+	protected final AtomicLong bytes = new AtomicLong();
+
+
+	/**
+	 * Creates an <code>SMTPTestServer</code> with the default
+	 * capabilities.
+	 */
+	public SMTPTestServer () {
+		setCapabilities(DEFAULT_CAPABILITIES);
+	}
+
+
+	/**
+	 * Sets the host name the server greets with.
+	 *
+	 * @param  hostname  the host name
+	 */
+	public void setHostname (String hostname) {
+		this.hostname = hostname;
+	}
+
+
+	/**
+	 * Sets how many of the most recently received messages are kept.
+	 * The default is 0, messages are only counted.
+	 *
+	 * @param  max  the number of messages to keep
+	 */
+	public void setKeepMessages (int max) {
+
+		keepMessages = max;
+		synchronized (kept) {
+			while (kept.size() > max) {
+				kept.removeFirst();
+			}
+		}
+	}
+
+
+	/**
+	 * Gets the kept messages, oldest first, with the dot-stuffing of
+	 * the DATA command removed.
+	 *
+	 * @return the kept messages
+	 */
+	public byte [][] getMessages () {
+
+		synchronized (kept) {
+			return (kept.toArray(new byte[kept.size()][]));
+		}
+	}
+
+
+	/**
+	 * Gets the number of messages accepted.
+	 *
+	 * @return the number of messages
+	 */
+	public long getMessageCount () {
+		return (messages.get());
+	}
+
+
+	/**
+	 * Gets the number of recipients accepted.
+	 *
+	 * @return the number of recipients
+	 */
+	public long getRecipientCount () {
+		return (recipients.get());
+	}
+
+
+	/**
+	 * Gets the number of message bytes received, including line endings.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getByteCount () {
+		return (bytes.get());
+	}
+
+
+	/**
+	 * Resets the counters and discards the kept messages.
+	 */
+	public void reset () {
+
+		messages.set(0);
+		recipients.set(0);
+		bytes.set(0);
+		connections.set(0);
+		commands.set(0);
+		synchronized (kept) {
+			kept.clear();
+		}
+	}
+
+
+	protected void session (Session s) throws IOException {
+
+		s.reply(getReply(GREETING, GREETING,
+			"220 " + hostname + " ESMTP ready"));
+
+		boolean mail = false;
+		int rcpts = 0;
+		ByteArrayOutputStream chunks = null;
+		long chunkBytes = 0;
+
+		String line;
+		while ((line = s.readLine()) != null) {
+
+			commands.incrementAndGet();
+			String verb = getVerb(line);
+			String reply;
+
+			if (verb.equals("EHLO")) {
+
+				mail = false;
+				rcpts = 0;
+				StringBuffer buf = new StringBuffer();
+				buf.append("250");
+				buf.append(capabilities.isEmpty() ? ' ' : '-');
+				buf.append(hostname);
+				int count = capabilities.size();
+				for (int i = 0; i < count; i++) {
+					buf.append("\r\n250");
+					buf.append(i == count - 1 ? ' ' : '-');
+					buf.append(capabilities.get(i));
+				}
+
+				reply = getReply(verb, line, buf.toString());
+
+			} else if (verb.equals("HELO")) {
+
+				mail = false;
+				rcpts = 0;
+				reply = getReply(verb, line, "250 " + hostname);
+
+			} else if (verb.equals("MAIL")) {
+
+				reply = getReply(verb, line, "250 OK");
+				if (reply.charAt(0) == '2') {
+					mail = true;
+					rcpts = 0;
+				}
+
+			} else if (verb.equals("RCPT")) {
+
+				reply = getReply(verb, line,
+					mail ? "250 OK" : "503 need MAIL command");
+				if (reply.charAt(0) == '2') {
+					rcpts++;
+				}
+
+			} else if (verb.equals("DATA")) {
+
+				reply = getReply(verb, line, !mail || rcpts == 0 ?
+					"503 need RCPT command" : "354 end data with <CRLF>.<CRLF>");
+				s.reply(reply);
+				if (reply.charAt(0) != '3') {
+					continue;
+				}
+
+				ByteArrayOutputStream copy = (keepMessages > 0 ?
+					new ByteArrayOutputStream() : null);
+				long size = readData(s, copy);
+				reply = getReply(MailMetrics.DATA_END, MailMetrics.DATA_END,
+					"250 OK message accepted");
+				if (reply.charAt(0) == '2') {
+					accept(rcpts, size, copy);
+				}
+
+				mail = false;
+				rcpts = 0;
+
+			} else if (verb.equals("BDAT")) {
+
+				String args[] = line.split(" +");
+				long size;
+				try {
+					size = Long.parseLong(args[1]);
+				} catch (RuntimeException e) {
+					s.reply("501 syntax: BDAT size [LAST]");
+					continue;
+				}
+
+				/*
+				 * The chunk follows the command whatever the reply
+				 */
+				if (chunks == null && keepMessages > 0) {
+					chunks = new ByteArrayOutputStream();
+				}
+
+				s.readFully(size, chunks);
+				chunkBytes += size;
+				boolean last = (args.length > 2 &&
+					args[2].equalsIgnoreCase("LAST"));
+
+				reply = getReply(verb, line, !mail || rcpts == 0 ?
+					"503 need RCPT command" : "250 " + size + " octets received");
+				if (reply.charAt(0) != '2') {
+					chunks = null;
+					chunkBytes = 0;
+				} else if (last) {
+					accept(rcpts, chunkBytes, chunks);
+					chunks = null;
+					chunkBytes = 0;
+					mail = false;
+					rcpts = 0;
+				}
+
+			} else if (verb.equals("RSET")) {
+
+				mail = false;
+				rcpts = 0;
+				chunks = null;
+				chunkBytes = 0;
+				reply = getReply(verb, line, "250 OK");
+
+			} else if (verb.equals("AUTH")) {
+
+				reply = auth(s, line);
+				if (reply == null) {
+					return;
+				}
+
+			} else if (verb.equals("NOOP")) {
+
+				reply = getReply(verb, line, "250 OK");
+
+			} else if (verb.equals("VRFY")) {
+
+				reply = getReply(verb, line, "252 cannot verify user");
+
+			} else if (verb.equals("QUIT")) {
+
+				s.reply(getReply(verb, line, "221 " + hostname + " closing"));
+				s.flushOut();
+				s.out.flush();
+				return;
+
+			} else {
+
+				reply = getReply(verb, line, "500 command not recognized");
+			}
+
+			s.reply(reply);
+		}
+	}
+
+
+	/**
+	 * Runs the AUTH exchange. Any user name and password are accepted
+	 * unless an AUTH reply is scripted.
+	 *
+	 * @return the final reply, or null at the end of input
+	 */
+	protected String auth (Session s, String line) throws IOException {
+
+		String args[] = line.split(" +");
+		String mechanism = (args.length > 1 ? args[1].toUpperCase() : "");
+
+		if (mechanism.equals("PLAIN")) {
+			if (args.length < 3) {
+				s.reply("334 ");
+				if (s.readLine() == null) {
+					return (null);
+				}
+			}
+		} else if (mechanism.equals("LOGIN")) {
+			if (args.length < 3) {
+				s.reply("334 VXNlcm5hbWU6");
+				if (s.readLine() == null) {
+					return (null);
+				}
+			}
+
+			s.reply("334 UGFzc3dvcmQ6");
+			if (s.readLine() == null) {
+				return (null);
+			}
+		} else {
+			return (getReply("AUTH", line,
+				"504 unrecognized authentication type"));
+		}
+
+		return (getReply("AUTH", line, "235 authentication successful"));
+	}
+
+
+	/**
+	 * Reads the message data up to the terminating dot, copying it with
+	 * the dot-stuffing removed if <var>copy</var> is not null.
+	 *
+	 * @return the number of bytes read, not counting the terminator
+	 */
+	protected long readData (Session s, ByteArrayOutputStream copy)
+			throws IOException {
+
+		long size = 0;
+		int n;
+		while ((n = s.readLineBytes()) >= 0) {
+
+			if (n == 1 && s.line[0] == '.') {
+				return (size);
+			}
+
+			size += n + 2;
+			if (copy != null) {
+				int off = (n > 0 && s.line[0] == '.' ? 1 : 0);
+				copy.write(s.line, off, n - off);
+				copy.write('\r');
+				copy.write('\n');
+			}
+		}
+
+		throw new IOException("end of input in message data");
+	}
+
+
+	/**
+	 * Counts an accepted message and keeps it if asked to.
+	 */
+	protected void accept (int rcpts, long size, ByteArrayOutputStream copy) {
+
+		messages.incrementAndGet();
+		recipients.addAndGet(rcpts);
+		bytes.addAndGet(size);
+
+		int max = keepMessages;
+		if (copy == null || max <= 0) {
+			return;
+		}
+
+		synchronized (kept) {
+			kept.addLast(copy.toByteArray());
+			while (kept.size() > max) {
+				kept.removeFirst();
+			}
+		}
+	}
+}
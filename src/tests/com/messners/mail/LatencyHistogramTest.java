@@ -0,0 +1,112 @@
+/*
+ *   Copyright (c) 1995-2003 by Gregory M. Messner
+ *
+ *   This library is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU Lesser General Public
+ *   License as published by the Free Software Foundation; either
+ *   version 2.1 of the License, or (at your option) any later version.
+ *
+ *   This library is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *   Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public
+ *   License along with this library; if not, write to the Free Software
+ *   Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ *   For more information contact the author at: gmessner@messners.com
+ *
+ */
+
+
+package com.messners.mail;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the bucket boundaries of <code>LatencyHistogram</code>.
+ *
+ * @author  Gregory M. Messner <gmessner@messners.com>
+ * @version $Revision: 1.1 $
+ */
+
+public class LatencyHistogramTest extends TestCase {
+
+	/**
+	 * Every power of two, and the value just below it, up to
+	 * MAX_TRACKABLE_VALUE must land in a bucket whose range holds it.
+	 */
+	public void testEveryExponent () {
+
+		for (int e = 0; e <= LatencyHistogram.MAX_EXPONENT + 1; e++) {
+
+			long values[] = { (1L << e) - 1, 1L << e };
+			for (int i = 0; i < values.length; i++) {
+
+				long value = values[i];
+				if (value > LatencyHistogram.MAX_TRACKABLE_VALUE) {
+					continue;
+				}
+
+				int index = LatencyHistogram.indexOf(value);
+				assertTrue("index of " + value, index >= 0 &&
+					index < LatencyHistogram.BUCKET_COUNT);
+				assertTrue("bucket of " + value,
+					LatencyHistogram.highestValueAt(index) >= value);
+				if (index > 0) {
+					assertTrue("bucket below " + value,
+						LatencyHistogram.highestValueAt(index - 1) < value);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * MAX_TRACKABLE_VALUE is the top of the last bucket.
+	 */
+	public void testMaxTrackableValue () {
+
+		long max = LatencyHistogram.MAX_TRACKABLE_VALUE;
+		assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+			LatencyHistogram.indexOf(max));
+		assertEquals(max, LatencyHistogram.highestValueAt(
+			LatencyHistogram.BUCKET_COUNT - 1));
+
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(1L << LatencyHistogram.MAX_EXPONENT);
+		h.record(max);
+		assertEquals(2, h.getCount());
+		assertEquals(max, h.getValueAtPercentile(100.0));
+	}
+
+
+	/**
+	 * Values past MAX_TRACKABLE_VALUE are counted in the top bucket.
+	 */
+	public void testAboveMaxTrackableValue () {
+
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(LatencyHistogram.MAX_TRACKABLE_VALUE + 1);
+		h.record(Long.MAX_VALUE / 2);
+		assertEquals(2, h.getCount());
+		assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE,
+			h.getValueAtPercentile(50.0));
+		assertEquals(Long.MAX_VALUE / 2, h.getMax());
+	}
+
+
+	/**
+	 * Values below 2 * SUB_BUCKETS are recorded exactly.
+	 */
+	public void testSmallValues () {
+
+		for (long value = 0; value < 2 * LatencyHistogram.SUB_BUCKETS;
+				value++) {
+			LatencyHistogram h = new LatencyHistogram();
+			h.record(value);
+			assertEquals(value, h.getValueAtPercentile(100.0));
+		}
+	}
+}